@@ -7,10 +7,13 @@
 package org.vivoweb.harvester.fetch;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.vivoweb.harvester.qualify.ChangeNamespace;
 import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.args.ArgDef;
@@ -18,16 +21,18 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
-import java.io.InputStream;
 import org.skife.csv.CSVReader;
+import org.skife.csv.ReaderCallback;
 import org.skife.csv.SimpleReader;
-import org.apache.jena.ontology.DatatypeProperty;
-import org.apache.jena.ontology.Individual;
-import org.apache.jena.ontology.OntClass;
-import org.apache.jena.ontology.OntModel;
-import org.apache.jena.ontology.OntModelSpec;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.apache.jena.rdf.model.Model;
-import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.vocabulary.OWL;
+import org.apache.jena.vocabulary.RDF;
 
 /**
  * Fetches data from a CSV file and uses the VIVO CSV import parameters to load RDF Data
@@ -90,6 +95,61 @@ public class CSVFetch {
 	 */
 	private int indexOfURIProp = -1;
 	
+	/**
+	 * number of rows whose triples are added to the output model at a time
+	 */
+	private int batchSize = 10000;
+	
+	/**
+	 * the columns whose values identify a row, hashed to name rows without a uri field
+	 */
+	private List<String> keyColumns;
+	
+	/**
+	 * index of each key column
+	 */
+	private int[] keyIndexes;
+	
+	/**
+	 * file the last used row number is stored in, null to name rows by their key columns
+	 */
+	private String counterFile;
+	
+	/**
+	 * the last used row number
+	 */
+	private long counter;
+	
+	/**
+	 * number of rows read
+	 */
+	private long rowCount;
+	
+	/**
+	 * the class each row is assigned to
+	 */
+	private Resource theClass;
+	
+	/**
+	 * the property of each column
+	 */
+	private Property[] dpArray;
+	
+	/**
+	 * statements waiting to be added to the output model
+	 */
+	private List<Statement> batch;
+	
+	/**
+	 * charset key values are hashed in
+	 */
+	private static final Charset utf8 = Charset.forName("UTF-8");
+	
+	/**
+	 * hash used to name rows without a uri field
+	 */
+	private static final HashFunction hashFunction = Hashing.murmur3_128();
+	
 	/**
 	 * @param filename the csv file to process
 	 * @param namespace the namespace for all properties and 
@@ -125,6 +185,9 @@ public class CSVFetch {
 			args.get("p"),
 			JenaConnect.parseConfig(args.get("o"), args.getValueMap("O"))
 		);
+		setBatchSize(Integer.parseInt(args.get("B")));
+		setKeyColumns(args.getAll("k"));
+		setCounterFile(args.get("c"));
 	}
 	
 	/**
@@ -154,73 +217,189 @@ public class CSVFetch {
 		this.uriProperty = uriField;
 	}
 	
+	/**
+	 * Set the number of rows whose triples are added to the output model at a time
+	 * @param batchSize the number of rows per batch
+	 */
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Name rows without a uri field by a hash of the values of the columns that identify them, so a row keeps its uri
+	 * when its other values change
+	 * @param keyColumns the key column headers
+	 */
+	public void setKeyColumns(List<String> keyColumns) {
+		this.keyColumns = (keyColumns == null || keyColumns.isEmpty()) ? null : keyColumns;
+	}
+	
+	/**
+	 * Number rows without a uri field sequentially, continuing from the count stored in a file, instead of naming them
+	 * by their key columns
+	 * @param counterFile the file the last used row number is stored in
+	 */
+	public void setCounterFile(String counterFile) {
+		this.counterFile = counterFile;
+	}
+	
 	/**
 	 * Execute
 	 * @throws IOException error reading/parsing input file or writing to record handler
 	 */
 	public void execute() throws IOException {
-		InputStream fis = FileAide.getInputStream(this.file);
-		Model destination = this.ouputJC.getJenaModel();
-		
-		OntModel ontModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM);
-		OntModel tboxOntModel = ModelFactory.createOntologyModel(OntModelSpec.OWL_MEM);
-		ontModel.addSubModel(tboxOntModel);
-		OntClass theClass = tboxOntModel.createClass(this.propertyNamespace + this.typeName);
+		if(this.uriProperty == null && this.keyColumns == null && this.counterFile == null) {
+			throw new IllegalArgumentException("Must provide a uri parameter, key columns or a counter file to name rows by");
+		}
+		this.indexOfURIProp = -1;
+		this.keyIndexes = null;
+		this.theClass = null;
+		this.dpArray = null;
+		this.batch = new ArrayList<Statement>();
+		this.rowCount = 0;
+		this.counter = 0;
+		if(this.counterFile != null && FileAide.exists(this.counterFile)) {
+			this.counter = Long.parseLong(FileAide.getTextContent(this.counterFile).trim());
+			log.debug("Continuing row numbering from " + this.counter);
+		}
 		
 		CSVReader cReader = new SimpleReader();
 		cReader.setSeperator(this.separatorChar);
-		//cReader.setQuoteCharacters(this.quoteChars);	
-		/*
-		URIGenerator uriGen = (wadf != null && destination != null) 
-				? new RandomURIGenerator(wadf, destination)
-		       : new SequentialURIGenerator();
-		*/
-		@SuppressWarnings("unchecked")
-		List<String[]> fileRows = cReader.parse(fis);
-		
-		String[] columnHeaders = fileRows.get(0);
-		
-		DatatypeProperty[] dpArray = new DatatypeProperty[columnHeaders.length];
-		
+		InputStream fis = FileAide.getInputStream(this.file);
+		try {
+			cReader.parse(fis, new ReaderCallback() {
+				@Override
+				public void onRow(String[] fields) {
+					try {
+						if(CSVFetch.this.dpArray == null) {
+							readHeader(fields);
+						} else {
+							readRow(fields);
+						}
+					} catch(IOException e) {
+						throw new RowException(e);
+					}
+				}
+			});
+		} catch(RowException e) {
+			throw (IOException)e.getCause();
+		} finally {
+			fis.close();
+		}
+		flush();
+		this.ouputJC.sync();
+		log.info("Loaded " + this.rowCount + " rows");
+	}
+	
+	/**
+	 * Create the class and one datatype property per column from the header row
+	 * @param columnHeaders the header row
+	 * @throws IOException error writing to output model
+	 */
+	private void readHeader(String[] columnHeaders) throws IOException {
+		Model destination = this.ouputJC.getJenaModel();
+		this.theClass = destination.createResource(this.propertyNamespace + this.typeName);
+		this.batch.add(destination.createStatement(this.theClass, RDF.type, OWL.Class));
+		this.dpArray = new Property[columnHeaders.length];
 		for(int i = 0; i < columnHeaders.length; i++) {
-			dpArray[i] = tboxOntModel.createDatatypeProperty(this.propertyNamespace + this.propertyNameBase + columnHeaders[i].replaceAll("\\W", ""));
+			this.dpArray[i] = destination.createProperty(this.propertyNamespace + this.propertyNameBase + columnHeaders[i].replaceAll("\\W", ""));
+			this.batch.add(destination.createStatement(this.dpArray[i], RDF.type, OWL.DatatypeProperty));
 			
 			//setting the column id to generate URI
-			if(this.uriProperty != null && this.uriProperty.equals(columnHeaders[i].toString())) {
+			if(this.uriProperty != null && this.uriProperty.equals(columnHeaders[i])) {
 				this.indexOfURIProp = i;
 			}
-			System.out.println(dpArray[i].toString());
+			log.debug("Column " + i + ": " + this.dpArray[i].getURI());
 		}
-		
-		Individual ind = null;
-		for(int row = 1; row < fileRows.size(); row++) {
-			
-			String[] cols = fileRows.get(row);
-			if(this.indexOfURIProp != -1) {
-				String uri = this.namespace + this.individualNameBase + cols[this.indexOfURIProp].trim();
-				ind = ontModel.createIndividual(uri, theClass);
-			} else {
-				String uri = ChangeNamespace.getUnusedURI(this.namespace + "/individual/n", ontModel);
-				ind = ontModel.createIndividual(uri, theClass);
-			}
-			for(int col = 0; col < cols.length; col++) {
-				String value = cols[col].trim();
-				if(value.length() > 0) {
-					ind.addProperty(dpArray[col], value); // no longer using: , XSDDatatype.XSDstring);
-					// TODO: specification of datatypes for columns
+		if(this.uriProperty != null && this.indexOfURIProp == -1) {
+			throw new IllegalArgumentException("uri parameter column " + this.uriProperty + " is not in the header");
+		}
+		if(this.keyColumns != null) {
+			List<String> headers = Arrays.asList(columnHeaders);
+			this.keyIndexes = new int[this.keyColumns.size()];
+			for(int k = 0; k < this.keyIndexes.length; k++) {
+				this.keyIndexes[k] = headers.indexOf(this.keyColumns.get(k));
+				if(this.keyIndexes[k] == -1) {
+					throw new IllegalArgumentException("key column " + this.keyColumns.get(k) + " is not in the header");
 				}
 			}
 		}
-		
-		ontModel.removeSubModel(tboxOntModel);
-		
-		//Model[] resultModels = new Model[2];
-		//resultModels[0] = ontModel;
-		//resultModels[1] = tboxOntModel;
-		destination.add(ontModel);
-		destination.add(tboxOntModel);
-		System.out.println(this.ouputJC.exportRdfToString());
-		//return resultModels;
+		flush();
+	}
+	
+	/**
+	 * Add the triples of a row to the current batch, adding the batch to the output model when full
+	 * @param cols the row
+	 * @throws IOException error writing to output model
+	 */
+	private void readRow(String[] cols) throws IOException {
+		Model destination = this.ouputJC.getJenaModel();
+		Resource ind = destination.createResource(getRowURI(cols));
+		this.batch.add(destination.createStatement(ind, RDF.type, this.theClass));
+		for(int col = 0; col < cols.length && col < this.dpArray.length; col++) {
+			String value = cols[col].trim();
+			if(value.length() > 0) {
+				this.batch.add(destination.createStatement(ind, this.dpArray[col], value)); // no longer using: , XSDDatatype.XSDstring);
+				// TODO: specification of datatypes for columns
+			}
+		}
+		this.rowCount++;
+		if(this.rowCount % this.batchSize == 0) {
+			flush();
+			log.debug("Loaded " + this.rowCount + " rows");
+		}
+	}
+	
+	/**
+	 * Get the uri of the individual for a row: from the uri field if there is one, otherwise the next number in
+	 * sequence if a counter file is in use, otherwise a hash of the row's key column values so the same record always
+	 * gets the same uri
+	 * @param cols the row
+	 * @return the uri
+	 */
+	private String getRowURI(String[] cols) {
+		if(this.indexOfURIProp != -1) {
+			return this.namespace + this.individualNameBase + cols[this.indexOfURIProp].trim();
+		}
+		if(this.counterFile != null) {
+			this.counter++;
+			return this.namespace + "/individual/n" + this.counter;
+		}
+		Hasher hasher = hashFunction.newHasher();
+		for(int index : this.keyIndexes) {
+			hasher.putString((index < cols.length) ? cols[index].trim() : "", utf8).putByte((byte)0);
+		}
+		return this.namespace + "/individual/n" + hasher.hash().toString();
+	}
+	
+	/**
+	 * Add the current batch to the output model and store the row counter
+	 * @throws IOException error storing row counter
+	 */
+	private void flush() throws IOException {
+		if(!this.batch.isEmpty()) {
+			this.ouputJC.getJenaModel().add(this.batch);
+			this.batch.clear();
+		}
+		if(this.indexOfURIProp == -1 && this.counterFile != null && this.counter > 0) {
+			FileAide.setTextContent(this.counterFile, String.valueOf(this.counter));
+		}
+	}
+	
+	/**
+	 * Carries an IOException out of a ReaderCallback
+	 */
+	private static class RowException extends RuntimeException {
+		/**
+		 * Constructor
+		 * @param cause the IOException
+		 */
+		RowException(IOException cause) {
+			super(cause);
+		}
 	}
 	
 	/**
@@ -237,6 +416,9 @@ public class CSVFetch {
 		parser.addArgument(new ArgDef().setShortOption('u').setLongOpt("uriPrefix").withParameter(true, "URI_PREFIX").setDescription("the prefix to add infront of the uri").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('b').setLongOpt("propertyPrefix").withParameter(true, "URI_PATTERN_BASE").setDescription("the field to base the URI on").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("uriParameter").withParameter(true, "URI_PATTERN_BASE").setDescription("the ur pattern base").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('k').setLongOpt("keyColumn").withParameters(true, "COLUMN").setDescription("a column identifying a row, hashed to name rows without a uri parameter [have multiple -k for a compound key]").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("counterFile").withParameter(true, "COUNTER_FILE").setDescription("number rows without a uri parameter sequentially, keeping the last number used in COUNTER_FILE, instead of by their key columns").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('B').setLongOpt("batchSize").withParameter(true, "ROWS").setDescription("number of rows added to the output model at a time - default 10000").setDefaultValue("10000").setRequired(false));
 		
 		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output").withParameter(true, "CONFIG_FILE").setDescription("RecordHandler config file path").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of output recordhandler using VALUE").setRequired(false));
@@ -5,7 +5,15 @@
  ******************************************************************************/
 package org.vivoweb.harvester.fetch;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.InitLog;
@@ -14,10 +22,19 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.RecordHandler;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
 import de.fuberlin.wiwiss.d2r.D2rProcessor;
+import de.fuberlin.wiwiss.d2r.exception.D2RException;
 
 /**
  * Fetches database or csv data using D2RMap
+ * The mapped RDF is split into records of a fixed number of resources, each carrying the blank nodes its resources
+ * refer to and the other resources sharing them, so later tasks can work on the output a record at a time.
  * @author Eliza Chan (elc2013@med.cornell.edu)
  */
 public class D2RMapFetch {
@@ -37,6 +54,10 @@ public class D2RMapFetch {
 	 * D2RMap working directory
 	 */
 	private String d2rWDir;
+	/**
+	 * Number of resources written to each record
+	 */
+	private int recordSize = 100;
 
 	/**
 	 * Get the ArgParser for this task
@@ -53,6 +74,8 @@ public class D2RMapFetch {
 		
 		// This option is for CSV data ingest only
 		parser.addArgument(new ArgDef().setShortOption('a').setLongOpt("d2rMapWorkingDirectory").withParameter(true, "D2RMAP_WORKING_DIRECTORY").setDescription("D2RMap working directory").setRequired(false));
+		
+		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("resourcesPerRecord").withParameter(true, "RESOURCES").setDescription("number of resources written to each record - default 100").setDefaultValue("100").setRequired(false));
 
 		return parser;
 	}
@@ -78,6 +101,7 @@ public class D2RMapFetch {
 			RecordHandler.parseConfig(opts.get("o"), opts.getValueMap("O")), 
 			opts.get("a")
 		);
+		setRecordSize(Integer.parseInt(opts.get("n")));
 	}
 	
 	/**
@@ -95,22 +119,34 @@ public class D2RMapFetch {
 		}
 	}
 
+	/**
+	 * Set the number of resources written to each record
+	 * @param resources the number of resources
+	 */
+	public void setRecordSize(int resources) {
+		if(resources < 1) {
+			throw new IllegalArgumentException("resourcesPerRecord must be at least 1");
+		}
+		this.recordSize = resources;
+	}
+	
 	/**
 	 * Executes the task
 	 */
 	public void execute() {
 		log.info("Fetch: Start");
-		D2rProcessor proc = new D2rProcessor();
+		ModelD2rProcessor proc = new ModelD2rProcessor();
 		proc.harvesterInit();
 		try {
 			if(this.d2rConfigPath != null) {
-				String output;
+				Model model;
 				if(this.d2rWDir != null) { // process CSV file
-					output = proc.processCsvMap("RDF/XML", this.d2rWDir, this.d2rConfigPath);
+					model = proc.processCsvMapToModel(this.d2rWDir, this.d2rConfigPath);
 				} else { // process data from database
-					output = proc.processMap("RDF/XML", this.d2rConfigPath);
+					model = ModelFactory.createDefaultModel();
+					proc.processMap(new File(this.d2rConfigPath), model);
 				}
-				this.outStore.addRecord("id", output, this.getClass());
+				writeRecords(model);
 			}
 			
 		} catch(Exception e) {
@@ -119,6 +155,181 @@ public class D2RMapFetch {
 		log.info("Fetch: End");
 	}
 	
+	/**
+	 * Split the mapped rdf into records of recordSize resources each. Resources that share blank nodes are written
+	 * into the same record along with the blank nodes, so no record refers to a blank node another record holds. The
+	 * statements about every resource, named or blank, are removed from the model once written so it shrinks as the
+	 * records go out.
+	 * @param model the mapped rdf
+	 * @throws IOException error writing record
+	 */
+	public void writeRecords(Model model) throws IOException {
+		Set<Resource> written = new HashSet<Resource>();
+		RecordWriter out = new RecordWriter(model);
+		List<Resource> subjects = model.listSubjects().toList();
+		for(Resource subject : subjects) {
+			if(!subject.isAnon() && !written.contains(subject)) {
+				out.add(subject, written);
+			}
+		}
+		// blank nodes no named resource reaches
+		for(Resource subject : subjects) {
+			if(subject.isAnon() && !written.contains(subject)) {
+				out.add(subject, written);
+			}
+		}
+		out.flush();
+		log.info("Wrote " + out.records + " records");
+	}
+	
+	/**
+	 * Gathers resources into a record and writes it once it is full
+	 */
+	private class RecordWriter {
+		/**
+		 * the mapped rdf
+		 */
+		private final Model source;
+		/**
+		 * the record being gathered
+		 */
+		private Model record;
+		/**
+		 * resources in the current record
+		 */
+		private int resources = 0;
+		/**
+		 * records written so far
+		 */
+		int records = 0;
+		
+		/**
+		 * Constructor
+		 * @param source the mapped rdf
+		 */
+		RecordWriter(Model source) {
+			this.source = source;
+			this.record = newRecord();
+		}
+		
+		/**
+		 * Add a resource along with the blank nodes it reaches and the resources sharing them, then remove their
+		 * statements from the mapped rdf. The record is written once it holds recordSize named resources or more.
+		 * @param subject the resource
+		 * @param written resources written so far
+		 * @throws IOException error writing record
+		 */
+		void add(Resource subject, Set<Resource> written) throws IOException {
+			int named = 0;
+			for(Resource member : gather(subject, written)) {
+				if(!member.isAnon()) {
+					named++;
+				}
+				List<Statement> stmts = this.source.listStatements(member, null, (RDFNode)null).toList();
+				this.source.removeAll(member, null, null);
+				this.record.add(stmts);
+			}
+			this.resources += Math.max(named, 1);
+			if(this.resources >= D2RMapFetch.this.recordSize) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Find the resources that must share a record with a resource: the blank nodes it reaches and every resource
+		 * referring to one of them, followed with a work list so long chains of blank nodes such as rdf:Lists do not
+		 * run out of stack
+		 * @param subject the resource
+		 * @param written resources written so far, which the group is added to
+		 * @return the group
+		 */
+		private List<Resource> gather(Resource subject, Set<Resource> written) {
+			List<Resource> group = new ArrayList<Resource>();
+			Deque<Resource> pending = new ArrayDeque<Resource>();
+			written.add(subject);
+			pending.push(subject);
+			while(!pending.isEmpty()) {
+				Resource member = pending.pop();
+				group.add(member);
+				StmtIterator objects = this.source.listStatements(member, null, (RDFNode)null);
+				try {
+					while(objects.hasNext()) {
+						RDFNode object = objects.next().getObject();
+						if(object.isAnon() && written.add((Resource)object)) {
+							pending.push((Resource)object);
+						}
+					}
+				} finally {
+					objects.close();
+				}
+				if(member.isAnon()) {
+					StmtIterator referrers = this.source.listStatements(null, null, member);
+					try {
+						while(referrers.hasNext()) {
+							Resource referrer = referrers.next().getSubject();
+							if(written.add(referrer)) {
+								pending.push(referrer);
+							}
+						}
+					} finally {
+						referrers.close();
+					}
+				}
+			}
+			return group;
+		}
+		
+		/**
+		 * Write the current record, if it has anything in it
+		 * @throws IOException error writing record
+		 */
+		void flush() throws IOException {
+			if(this.resources > 0) {
+				StringWriter rdf = new StringWriter();
+				this.record.write(rdf, "RDF/XML");
+				D2RMapFetch.this.outStore.addRecord("id_" + this.records, rdf.toString(), D2RMapFetch.class);
+				this.records++;
+				this.record.close();
+				this.record = newRecord();
+				this.resources = 0;
+			}
+		}
+		
+		/**
+		 * Create an empty record model carrying the mapping's prefixes
+		 * @return the model
+		 */
+		private Model newRecord() {
+			Model m = ModelFactory.createDefaultModel();
+			m.setNsPrefixes(this.source.getNsPrefixMap());
+			return m;
+		}
+	}
+	
+	/**
+	 * D2rProcessor that hands back the model the csv mapping builds
+	 */
+	private static class ModelD2rProcessor extends D2rProcessor {
+		/**
+		 * Constructor
+		 */
+		ModelD2rProcessor() {
+			super();
+		}
+		
+		/**
+		 * Process a csv mapping
+		 * @param workingDir D2RMap working directory
+		 * @param configPath D2RMap config file path
+		 * @return the mapped rdf
+		 * @throws D2RException error processing map
+		 */
+		Model processCsvMapToModel(String workingDir, String configPath) throws D2RException {
+			processCsvMap("N-TRIPLE", workingDir, configPath);
+			return getModel();
+		}
+	}
+	
 	/**
 	 * Main method
 	 * @param args commandline arguments
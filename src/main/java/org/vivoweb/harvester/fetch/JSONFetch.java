@@ -6,7 +6,15 @@
 package org.vivoweb.harvester.fetch;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import net.minidev.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +29,10 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
 import org.vivoweb.harvester.util.repo.XMLRecordOutputStream;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.jayway.jsonpath.InvalidPathException;
 import com.jayway.jsonpath.JsonPath;
 
@@ -60,6 +72,16 @@ public class JSONFetch implements RecordStreamOrigin {
 	 */
 	private String pathStrings[];
 	
+	/**
+	 * parse the source once as a stream, supporting a subset of JsonPath
+	 */
+	private boolean streaming;
+	
+	/**
+	 * factory for streaming parsers and generators
+	 */
+	static final JsonFactory jsonFactory = new JsonFactory();
+	
 	/**
 	 * the base for each instance's xmlRos
 	 */
@@ -93,7 +115,7 @@ public class JSONFetch implements RecordStreamOrigin {
 			args.getAll("d").toArray(new String[]{}), // json object name
 			args.getAll("p").toArray(new String[]{}) // path string
 		);
-		
+		setStreaming(args.has("s"));
 	}
 	
 	/**
@@ -123,6 +145,16 @@ public class JSONFetch implements RecordStreamOrigin {
 		
 	}
 	
+	/**
+	 * Parse the source once as a stream, evaluating all paths in a single pass and adding each matched object as a
+	 * record while the source is read. Supports paths made of names (.name or ['name']), wildcards (.* or [*]), array
+	 * indexes ([n]) and deep scan (..), where a path matching an array matches each object in it.
+	 * @param streaming true to stream
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
 	/**
 	 * Get the ArgParser for this task
 	 * @return the ArgParser
@@ -140,6 +172,7 @@ public class JSONFetch implements RecordStreamOrigin {
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("namespaceBase").withParameter(true, "NAMESPACE_BASE").setDescription("the base namespace to use for each node created").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("description").withParameters(true, "NAME").setDescription("a descriptive name for the json object [have multiple -d for more names]").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("path").withParameters(true, "PATH").setDescription("a single path for the json object [have multiple -p for more json paths]").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("stream").setDescription("parse the json once as a stream, evaluating all paths in one pass (paths limited to names, wildcards, array indexes and deep scan)").setRequired(false));
 		
 		return parser;
 	}
@@ -176,6 +209,14 @@ public class JSONFetch implements RecordStreamOrigin {
 	 * @throws IOException error getting recrords
 	 */
 	public void execute() throws IOException {
+		if(this.strAddress == null) {
+			System.out.println(getParser().getUsage());
+			System.exit(1);
+		}
+		if(this.streaming) {
+			executeStreaming();
+			return;
+		}
 		
 		String jsonpath = new String();
 		
@@ -185,10 +226,6 @@ public class JSONFetch implements RecordStreamOrigin {
 			
 			// Get json contents as String, check for url first then a file
 			String jsonString = new String();
-			if(this.strAddress == null) {
-				System.out.println(getParser().getUsage());
-				System.exit(1);
-			}
 			if(this.strAddress.startsWith("http:")) {
 				jsonString = WebAide.getURLContents(this.strAddress);
 			} else {
@@ -209,76 +246,12 @@ public class JSONFetch implements RecordStreamOrigin {
 				int count = 0;
 				
 				for(JSONObject jsonObject : nodes) {
-					StringBuilder sb = new StringBuilder();
-					
-					//log.info("fixedkey: "+ fixedkey);
-					StringBuilder recID = new StringBuilder();
-					recID.append("node_-_");
-					recID.append(String.valueOf(count));
-					
-					//log.trace("Creating RDF for "+name+": "+recID);
-					// Build RDF BEGIN
-					// Header info
-					String nodeNS = "node-" + name;
-					sb = new StringBuilder();
-					sb.append("<?xml version=\"1.0\"?>\n");
-					sb.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n");
-					sb.append("         xmlns:");
-					sb.append(nodeNS);
-					sb.append("=\"");
-					sb.append(buildNodeFieldNS(name));
-					sb.append("\"\n");
-					sb.append("         xml:base=\"");
-					sb.append(buildNodeRecordNS(name));
-					sb.append("\">\n");
-					
-					// Record info BEGIN
-					sb.append("  <rdf:Description rdf:ID=\"");
-					sb.append(recID);
-					sb.append("\">\n");
-					
-					// insert type value
-					sb.append("    <rdf:type rdf:resource=\"");
-					sb.append(buildNodeTypeNS(name));
-					sb.append("\"/>\n");
-					
+					StringBuilder sb = startRecord(name, count);
 					for(String key : jsonObject.keySet()) {
 						Object val = jsonObject.get(key);
-						String fixedkey = key.replaceAll(" ", "_");
-						
-						// Field BEGIN
-						
-						String field = nodeNS + ":" + fixedkey;
-						sb.append("    <");
-						sb.append(SpecialEntities.xmlEncode(field));
-						sb.append(">");
-						
-						// insert field value
-						// insert an empty string if the val is null
-						if(val == null) {
-							log.error("val is null for key: " + key);
-							sb.append(""); // put in an empty string
-						} else {
-							sb.append(SpecialEntities.xmlEncode(val.toString().trim()));
-						}
-						// Field END
-						sb.append("</");
-						sb.append(SpecialEntities.xmlEncode(field));
-						sb.append(">\n");
+						appendField(sb, name, key, (val == null) ? null : val.toString());
 					}
-					// Record info END
-					sb.append("  </rdf:Description>\n");
-					
-					// Footer info
-					sb.append("</rdf:RDF>");
-					// Build RDF END
-					
-					// Write RDF to RecordHandler
-					//log.trace("Adding record: " + fixedkey + "_" + recID);
-					//log.trace("data: "+ sb.toString());
-					//log.info("rhOutput: "+ this.rhOutput);
-					//log.info("recID: "+recID);
-					this.rhOutput.addRecord(name + "_" + recID, sb.toString(), this.getClass());
+					addRecord(name, count, sb);
 					count++;
 				}
 			}
@@ -291,6 +264,407 @@ public class JSONFetch implements RecordStreamOrigin {
 		}
 	}
 	
+	/**
+	 * Executes the task in a single streaming pass over the source
+	 * @throws IOException error getting records
+	 */
+	private void executeStreaming() throws IOException {
+		List<StreamPath> paths = new ArrayList<StreamPath>();
+		for(int i = 0; i < this.nodeNames.length; i++) {
+			log.info("Using path: " + this.pathStrings[i] + " for name: " + this.nodeNames[i]);
+			paths.add(new StreamPath(this.nodeNames[i], this.pathStrings[i]));
+		}
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		InputStream in = this.strAddress.startsWith("http:") ? WebAide.getInputStream(this.strAddress) : FileAide.getInputStream(this.strAddress);
+		JsonParser parser = jsonFactory.createParser(in);
+		try {
+			// containers currently open, and records currently being read (innermost last)
+			LinkedList<StreamFrame> frames = new LinkedList<StreamFrame>();
+			List<StreamRecord> open = new ArrayList<StreamRecord>();
+			JsonToken token;
+			while((token = parser.nextToken()) != null) {
+				int level = frames.size();
+				for(StreamRecord rec : open) {
+					rec.onToken(parser, token, level);
+				}
+				if(token == JsonToken.FIELD_NAME) {
+					frames.getLast().field = parser.getCurrentName();
+				} else if(token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+					frames.removeLast();
+					if(token == JsonToken.END_OBJECT) {
+						while(!open.isEmpty() && open.get(open.size() - 1).depth == level) {
+							StreamRecord rec = open.remove(open.size() - 1);
+							addRecord(rec.name, rec.num, startRecord(rec.name, rec.num).append(rec.getFields()));
+						}
+					}
+				} else {
+					// a value: find its position, then see whether it starts a record or a matched array
+					StreamFrame parent = frames.isEmpty() ? null : frames.getLast();
+					Object segment = null;
+					if(parent != null) {
+						segment = parent.array ? (Object)Integer.valueOf(parent.next++) : parent.field;
+					}
+					if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+						List<Object> position = new ArrayList<Object>(level);
+						for(StreamFrame frame : frames) {
+							if(frame.segment != null) {
+								position.add(frame.segment);
+							}
+						}
+						if(parent != null) {
+							position.add(segment);
+						}
+						StreamFrame frame = new StreamFrame(segment, token == JsonToken.START_ARRAY);
+						frames.add(frame);
+						for(StreamPath path : paths) {
+							boolean matched = path.matches(position);
+							if(token == JsonToken.START_OBJECT && (matched || (parent != null && parent.elementsMatch(path)))) {
+								// numbered as the object starts, as JsonPath finds enclosing objects before those nested in them
+								Integer count = counts.get(path.name);
+								int num = (count == null) ? 0 : count.intValue();
+								counts.put(path.name, Integer.valueOf(num + 1));
+								open.add(new StreamRecord(this, path.name, num, frames.size()));
+							} else if(token == JsonToken.START_ARRAY && matched) {
+								frame.matchedBy.add(path);
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			parser.close();
+			in.close();
+		}
+		for(String name : counts.keySet()) {
+			log.info("name: " + name + " num nodes: " + counts.get(name));
+		}
+	}
+	
+	/**
+	 * Start the rdf of a record
+	 * @param name the node name
+	 * @param count the record number within the node name
+	 * @return the rdf so far
+	 */
+	private StringBuilder startRecord(String name, int count) {
+		// Build RDF BEGIN
+		// Header info
+		String nodeNS = "node-" + name;
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\"?>\n");
+		sb.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n");
+		sb.append("         xmlns:");
+		sb.append(nodeNS);
+		sb.append("=\"");
+		sb.append(buildNodeFieldNS(name));
+		sb.append("\"\n");
+		sb.append("         xml:base=\"");
+		sb.append(buildNodeRecordNS(name));
+		sb.append("\">\n");
+		
+		// Record info BEGIN
+		sb.append("  <rdf:Description rdf:ID=\"");
+		sb.append(getRecordID(count));
+		sb.append("\">\n");
+		
+		// insert type value
+		sb.append("    <rdf:type rdf:resource=\"");
+		sb.append(buildNodeTypeNS(name));
+		sb.append("\"/>\n");
+		return sb;
+	}
+	
+	/**
+	 * Append a field to the rdf of a record
+	 * @param sb the rdf so far
+	 * @param name the node name
+	 * @param key the field name
+	 * @param val the field value, null for json null
+	 */
+	void appendField(StringBuilder sb, String name, String key, String val) {
+		String fixedkey = key.replaceAll(" ", "_");
+		
+		// Field BEGIN
+		String field = "node-" + name + ":" + fixedkey;
+		sb.append("    <");
+		sb.append(SpecialEntities.xmlEncode(field));
+		sb.append(">");
+		
+		// insert field value
+		// insert an empty string if the val is null
+		if(val == null) {
+			log.error("val is null for key: " + key);
+			sb.append(""); // put in an empty string
+		} else {
+			sb.append(SpecialEntities.xmlEncode(val.trim()));
+		}
+		// Field END
+		sb.append("</");
+		sb.append(SpecialEntities.xmlEncode(field));
+		sb.append(">\n");
+	}
+	
+	/**
+	 * Finish the rdf of a record and write it to the RecordHandler
+	 * @param name the node name
+	 * @param count the record number within the node name
+	 * @param sb the rdf so far
+	 * @throws IOException error writing record
+	 */
+	private void addRecord(String name, int count, StringBuilder sb) throws IOException {
+		// Record info END
+		sb.append("  </rdf:Description>\n");
+		
+		// Footer info
+		sb.append("</rdf:RDF>");
+		// Build RDF END
+		
+		// Write RDF to RecordHandler
+		this.rhOutput.addRecord(name + "_" + getRecordID(count), sb.toString(), this.getClass());
+	}
+	
+	/**
+	 * Get the id of a record
+	 * @param count the record number within the node name
+	 * @return the id
+	 */
+	private static String getRecordID(int count) {
+		return "node_-_" + count;
+	}
+	
+	/**
+	 * A path compiled for matching against positions in a json stream
+	 */
+	private static class StreamPath {
+		/**
+		 * marks a deep scan, matching any number of segments
+		 */
+		private static final Object DEEP = new Object();
+		/**
+		 * marks a wildcard, matching any single segment
+		 */
+		private static final Object ANY = new Object();
+		/**
+		 * one name or index segment
+		 */
+		private static final Pattern SEGMENT = Pattern.compile("\\.\\.|\\.\\*|\\.([^.\\[]+)|\\[\\*\\]|\\['([^']*)'\\]|\\[(\\d+)\\]");
+		/**
+		 * the node name
+		 */
+		final String name;
+		/**
+		 * the segments: names, indexes, ANY and DEEP
+		 */
+		private final List<Object> segments = new ArrayList<Object>();
+		
+		/**
+		 * Constructor
+		 * @param name the node name
+		 * @param path the json path
+		 */
+		StreamPath(String name, String path) {
+			this.name = name;
+			// $..name is a deep scan followed by .name
+			String p = path.trim().replaceAll("\\.\\.(?=[^.\\[])", "...");
+			if(!p.startsWith("$")) {
+				throw new IllegalArgumentException("Invalid JsonPath: " + path);
+			}
+			Matcher m = SEGMENT.matcher(p);
+			int pos = 1;
+			while(pos < p.length()) {
+				if(!m.find(pos) || m.start() != pos) {
+					throw new IllegalArgumentException("JsonPath not supported when streaming: " + path);
+				}
+				String seg = m.group();
+				if(seg.equals("..")) {
+					this.segments.add(DEEP);
+				} else if(seg.equals(".*") || seg.equals("[*]")) {
+					this.segments.add(ANY);
+				} else if(m.group(1) != null) {
+					this.segments.add(m.group(1));
+				} else if(m.group(2) != null) {
+					this.segments.add(m.group(2));
+				} else {
+					this.segments.add(Integer.valueOf(m.group(3)));
+				}
+				pos = m.end();
+			}
+		}
+		
+		/**
+		 * Does this path match a position
+		 * @param position the names and indexes leading to a value
+		 * @return true if it matches
+		 */
+		boolean matches(List<Object> position) {
+			return matches(0, position, 0);
+		}
+		
+		/**
+		 * Does the rest of this path match the rest of a position
+		 * @param s segment to start at
+		 * @param position the names and indexes leading to a value
+		 * @param p position element to start at
+		 * @return true if it matches
+		 */
+		private boolean matches(int s, List<Object> position, int p) {
+			if(s == this.segments.size()) {
+				return p == position.size();
+			}
+			Object seg = this.segments.get(s);
+			if(seg == DEEP) {
+				for(int skip = p; skip <= position.size(); skip++) {
+					if(matches(s + 1, position, skip)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if(p == position.size()) {
+				return false;
+			}
+			return (seg == ANY || seg.equals(position.get(p))) && matches(s + 1, position, p + 1);
+		}
+	}
+	
+	/**
+	 * An object or array open in a json stream
+	 */
+	private static class StreamFrame {
+		/**
+		 * the field name or array index of this container in its parent, null for the root
+		 */
+		final Object segment;
+		/**
+		 * is this an array
+		 */
+		final boolean array;
+		/**
+		 * the next index in this array
+		 */
+		int next;
+		/**
+		 * the current field name in this object
+		 */
+		String field;
+		/**
+		 * paths that matched this array, making each object in it a record
+		 */
+		final List<StreamPath> matchedBy = new ArrayList<StreamPath>(1);
+		
+		/**
+		 * Constructor
+		 * @param segment the field name or array index of this container in its parent
+		 * @param array is this an array
+		 */
+		StreamFrame(Object segment, boolean array) {
+			this.segment = segment;
+			this.array = array;
+		}
+		
+		/**
+		 * Are objects in this array records for a path
+		 * @param path the path
+		 * @return true if so
+		 */
+		boolean elementsMatch(StreamPath path) {
+			return this.array && this.matchedBy.contains(path);
+		}
+	}
+	
+	/**
+	 * A record being read from a json stream. Scalar fields are appended as they are read, object and array fields
+	 * are copied to json text.
+	 */
+	private static class StreamRecord {
+		/**
+		 * the fetch building the rdf
+		 */
+		private final JSONFetch fetch;
+		/**
+		 * the node name
+		 */
+		final String name;
+		/**
+		 * the record number within the node name
+		 */
+		final int num;
+		/**
+		 * number of containers open inside the record's object
+		 */
+		final int depth;
+		/**
+		 * the rdf of the fields read
+		 */
+		private final StringBuilder sb;
+		/**
+		 * the current field name
+		 */
+		private String field;
+		/**
+		 * json text of the object or array field being copied
+		 */
+		private StringWriter captured;
+		/**
+		 * generator copying the object or array field being copied
+		 */
+		private JsonGenerator capture;
+		
+		/**
+		 * Constructor
+		 * @param fetch the fetch building the rdf
+		 * @param name the node name
+		 * @param num the record number within the node name
+		 * @param depth number of containers open inside the record's object
+		 */
+		StreamRecord(JSONFetch fetch, String name, int num, int depth) {
+			this.fetch = fetch;
+			this.name = name;
+			this.num = num;
+			this.depth = depth;
+			this.sb = new StringBuilder();
+		}
+		
+		/**
+		 * Handle a token
+		 * @param parser the parser positioned at the token
+		 * @param token the token
+		 * @param level number of containers open before the token
+		 * @throws IOException error copying
+		 */
+		void onToken(JsonParser parser, JsonToken token, int level) throws IOException {
+			if(this.capture != null) {
+				this.capture.copyCurrentEvent(parser);
+				if((token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) && level == this.depth + 1) {
+					this.capture.close();
+					this.fetch.appendField(this.sb, this.name, this.field, this.captured.toString());
+					this.capture = null;
+					this.captured = null;
+				}
+			} else if(level == this.depth) {
+				if(token == JsonToken.FIELD_NAME) {
+					this.field = parser.getCurrentName();
+				} else if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+					this.captured = new StringWriter();
+					this.capture = jsonFactory.createGenerator(this.captured);
+					this.capture.copyCurrentEvent(parser);
+				} else if(token == JsonToken.VALUE_NULL) {
+					this.fetch.appendField(this.sb, this.name, this.field, null);
+				} else if(token != JsonToken.END_OBJECT) {
+					this.fetch.appendField(this.sb, this.name, this.field, parser.getText());
+				}
+			}
+		}
+		
+		/**
+		 * Get the rdf of the fields read
+		 * @return the rdf of the fields
+		 */
+		CharSequence getFields() {
+			return this.sb;
+		}
+	}
+	
 	@Override
 	public void writeRecord(String id, String data) throws IOException {
 		log.trace("Adding record " + id);
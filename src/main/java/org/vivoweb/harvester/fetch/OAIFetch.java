@@ -10,6 +10,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.HttpCache;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
@@ -108,6 +109,8 @@ public class OAIFetch implements RecordStreamOrigin {
 		try {
 			XMLRecordOutputStream xmlRos = xmlRosBase.clone();
 			xmlRos.setRso(this);
+			// the harvester library reads the repository with HttpURLConnection
+			HttpCache.installUrlConnectionCache();
 			RawWrite.run("http://" + this.strAddress, this.strStartDate, this.strEndDate, "oai_dc", "", xmlRos);
 		} catch(ParserConfigurationException e) {
 			throw new IOException(e);
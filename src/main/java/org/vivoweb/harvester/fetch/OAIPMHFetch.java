@@ -0,0 +1,759 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.fetch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.HttpCache;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.WebAide;
+import org.vivoweb.harvester.util.args.ArgDef;
+import org.vivoweb.harvester.util.args.ArgList;
+import org.vivoweb.harvester.util.args.ArgParser;
+import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
+
+/**
+ * Harvests from OAI-PMH Data Sources by driving ListRecords directly. The resumption token and the latest datestamp
+ * seen are written to a checkpoint file after every page, so an interrupted harvest picks up where it stopped and a
+ * completed harvest supplies the from date of the next incremental run. The next page is requested while the current
+ * one is split into records. Records are written in the same form as {@link OAIFetch}.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class OAIPMHFetch implements RecordStreamOrigin {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(OAIPMHFetch.class);
+	/**
+	 * Prepended to each record
+	 */
+	private static final String RECORD_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><harvest>";
+	/**
+	 * Appended to each record
+	 */
+	private static final String RECORD_FOOTER = "</harvest>";
+	/**
+	 * Namespace of the OAI-PMH protocol elements
+	 */
+	private static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+	/**
+	 * Creates the page readers
+	 */
+	private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+	static {
+		XML_INPUT.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		XML_INPUT.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+	}
+	/**
+	 * Creates the record writers
+	 */
+	private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newInstance();
+	/**
+	 * checkpoint key for the from date of the harvest in progress
+	 */
+	private static final String CP_FROM = "from";
+	/**
+	 * checkpoint key for the until date of the harvest in progress
+	 */
+	private static final String CP_UNTIL = "until";
+	/**
+	 * checkpoint key for the resumption token of the next page of the harvest in progress
+	 */
+	private static final String CP_TOKEN = "resumptionToken";
+	/**
+	 * checkpoint key for the latest datestamp seen by the harvest in progress
+	 */
+	private static final String CP_HARVEST_DATESTAMP = "harvestDatestamp";
+	/**
+	 * checkpoint key for the latest datestamp of the last completed harvest
+	 */
+	private static final String CP_LAST_DATESTAMP = "lastDatestamp";
+	/**
+	 * Number of times a page request is retried when the repository answers 503 Service Unavailable
+	 */
+	private static final int MAX_RETRIES = 5;
+	/**
+	 * Seconds to wait on 503 Service Unavailable when no Retry-After is given
+	 */
+	private static final int DEFAULT_RETRY_AFTER = 10;
+	/**
+	 * The base url of the OAI Repository
+	 */
+	private final String baseUrl;
+	/**
+	 * The from date for the range of records to pull, null to use the last completed harvest
+	 */
+	private final String from;
+	/**
+	 * The until date for the range of records to pull, null for no upper bound
+	 */
+	private final String until;
+	/**
+	 * The metadata format to request
+	 */
+	private final String metadataPrefix;
+	/**
+	 * The set to request, null for all sets
+	 */
+	private final String set;
+	/**
+	 * The checkpoint file, null for no checkpointing
+	 */
+	private final String checkpointFile;
+	/**
+	 * The record handler to write records to
+	 */
+	private final RecordHandler rhOutput;
+	/**
+	 * The latest datestamp seen by this harvest
+	 */
+	private String harvestDatestamp;
+	/**
+	 * Number of records written
+	 */
+	private int recordCount;
+
+	/**
+	 * Constructor
+	 * @param args command line arguments
+	 * @throws IOException error connecting to record handler
+	 * @throws UsageException user requested usage message
+	 */
+	private OAIPMHFetch(String[] args) throws IOException, UsageException {
+		this(getParser().parse(args));
+	}
+
+	/**
+	 * Constructor
+	 * @param argList parsed argument list
+	 * @throws IOException error connecting to record handler
+	 */
+	private OAIPMHFetch(ArgList argList) throws IOException {
+		this(argList.get("u"), argList.get("s"), argList.get("e"), argList.get("m"), argList.get("S"), argList.get("c"), RecordHandler.parseConfig(argList.get("o"), argList.getValueMap("O")));
+	}
+
+	/**
+	 * Constructor
+	 * @param address The address of the repository, the http:// prefix is optional
+	 * @param from The date at which to begin fetching records, null to continue from the last completed harvest (an interrupted harvest from another date is started over)
+	 * @param until The date at which to stop fetching records, null for no upper bound (an interrupted harvest to another date is started over)
+	 * @param metadataPrefix The metadata format to request, null for oai_dc
+	 * @param set The set to request, null for all sets
+	 * @param checkpointFile The file to store harvest progress in, null for no checkpointing
+	 * @param rhOutput The recordhandler to write to
+	 */
+	public OAIPMHFetch(String address, String from, String until, String metadataPrefix, String set, String checkpointFile, RecordHandler rhOutput) {
+		if(StringUtils.isBlank(address)) {
+			throw new IllegalArgumentException("Must provide a repository url");
+		}
+		if(rhOutput == null) {
+			throw new IllegalArgumentException("Must provide an output recordhandler");
+		}
+		this.baseUrl = address.matches("(?i)https?://.*") ? address : "http://" + address;
+		this.from = StringUtils.trimToNull(from);
+		this.until = StringUtils.trimToNull(until);
+		this.metadataPrefix = StringUtils.defaultIfEmpty(StringUtils.trimToNull(metadataPrefix), "oai_dc");
+		this.set = StringUtils.trimToNull(set);
+		this.checkpointFile = StringUtils.trimToNull(checkpointFile);
+		this.rhOutput = rhOutput;
+	}
+
+	/**
+	 * Executes the task
+	 * @throws IOException error getting records
+	 */
+	public void execute() throws IOException {
+		Properties checkpoint = loadCheckpoint();
+		String lastDatestamp = checkpoint.getProperty(CP_LAST_DATESTAMP);
+		String token = checkpoint.getProperty(CP_TOKEN);
+		String runFrom;
+		String runUntil;
+		if(token != null && (!matchesCheckpoint(this.from, checkpoint.getProperty(CP_FROM)) || !matchesCheckpoint(this.until, checkpoint.getProperty(CP_UNTIL)))) {
+			log.info("Discarding interrupted harvest, the given date range differs from the checkpoint");
+			token = null;
+		}
+		if(token != null) {
+			runFrom = checkpoint.getProperty(CP_FROM);
+			runUntil = checkpoint.getProperty(CP_UNTIL);
+			this.harvestDatestamp = checkpoint.getProperty(CP_HARVEST_DATESTAMP);
+			log.info("Resuming interrupted harvest with resumption token " + token);
+		} else {
+			runFrom = (this.from != null) ? this.from : lastDatestamp;
+			runUntil = this.until;
+			this.harvestDatestamp = null;
+			if(this.from == null && lastDatestamp != null) {
+				log.info("Incremental harvest from " + lastDatestamp);
+			}
+		}
+		this.recordCount = 0;
+		boolean resuming = (token != null);
+		int pages = 0;
+		ExecutorService prefetch = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> page = requestPage(prefetch, resuming ? getTokenUrl(token) : getListUrl(runFrom, runUntil));
+			while(page != null) {
+				Page xml = parsePage(getResponse(page));
+				if(xml.getErrorCode() != null) {
+					String code = xml.getErrorCode();
+					if(resuming && code.equals("badResumptionToken")) {
+						log.warn("Resumption token expired, restarting harvest from " + StringUtils.defaultString(runFrom, "the beginning"));
+						resuming = false;
+						page = requestPage(prefetch, getListUrl(runFrom, runUntil));
+						continue;
+					}
+					if(code.equals("noRecordsMatch")) {
+						log.info("No records match the request");
+						break;
+					}
+					throw new IOException("OAI-PMH error " + code + ": " + xml.getErrorMessage());
+				}
+				resuming = false;
+				String next = xml.getResumptionToken();
+				page = (next != null) ? requestPage(prefetch, getTokenUrl(next)) : null;
+				writeRecords(xml);
+				pages++;
+				log.debug("Processed page " + pages + ", " + this.recordCount + " records so far");
+				saveCheckpoint(runFrom, runUntil, next, lastDatestamp);
+			}
+		} finally {
+			prefetch.shutdownNow();
+		}
+		saveCheckpoint(null, null, null, latest(lastDatestamp, this.harvestDatestamp));
+		log.info("Harvested " + this.recordCount + " records in " + pages + " pages");
+	}
+
+	/**
+	 * Does a date given for this harvest agree with the one of the interrupted harvest in the checkpoint
+	 * @param given the date given, null if none was
+	 * @param checkpointed the date of the interrupted harvest, null if it had none
+	 * @return true if no date was given or it is the checkpointed date
+	 */
+	private static boolean matchesCheckpoint(String given, String checkpointed) {
+		return (given == null) || given.equals(checkpointed);
+	}
+
+	/**
+	 * Write the records of a ListRecords page
+	 * @param page the page
+	 * @throws IOException error writing records
+	 */
+	private void writeRecords(Page page) throws IOException {
+		for(int x = 0; x < page.getIds().size(); x++) {
+			writeRecord(page.getIds().get(x), RECORD_HEADER + page.getRecords().get(x) + RECORD_FOOTER);
+			this.recordCount++;
+		}
+		this.harvestDatestamp = latest(this.harvestDatestamp, page.getLatestDatestamp());
+	}
+	
+	/**
+	 * Read a ListRecords response. The protocol elements are matched by namespace and position, so prefixed responses
+	 * are read and elements of the same name inside a record's metadata (such as a MARC record, or a dc:identifier)
+	 * are left alone. Each record is copied whole with every namespace in scope declared on it.
+	 * @param xml the response
+	 * @return the page
+	 * @throws IOException the response is not well formed, or a record has no identifier
+	 */
+	public static Page parsePage(String xml) throws IOException {
+		Page page = new Page();
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT.createXMLStreamReader(new StringReader(xml));
+			// the oai element names and namespace declarations of the open elements
+			Deque<String> path = new ArrayDeque<String>();
+			Deque<Map<String, String>> scopes = new ArrayDeque<Map<String, String>>();
+			while(reader.hasNext()) {
+				int event = reader.next();
+				if(event == XMLStreamConstants.END_ELEMENT) {
+					path.pop();
+					scopes.pop();
+					continue;
+				}
+				if(event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = OAI_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : "";
+				String parent = path.isEmpty() ? "" : path.peek();
+				if(name.equals("error")) {
+					page.errorCode = StringUtils.defaultString(reader.getAttributeValue(null, "code"));
+					page.errorMessage = reader.getElementText().trim();
+				} else if(name.equals("resumptionToken")) {
+					page.resumptionToken = StringUtils.trimToNull(reader.getElementText());
+				} else if(name.equals("record") && parent.equals("ListRecords")) {
+					copyRecord(reader, scopes, page);
+				} else {
+					path.push(name);
+					scopes.push(getDeclarations(reader));
+				}
+			}
+		} catch(XMLStreamException e) {
+			throw new IOException("Malformed ListRecords response", e);
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch(XMLStreamException e) {
+					log.debug("Unable to close reader", e);
+				}
+			}
+		}
+		return page;
+	}
+	
+	/**
+	 * Copy a record, from its start element to its end element
+	 * @param reader the reader, at the record's start element
+	 * @param scopes the namespace declarations of the record's ancestors, innermost first
+	 * @param page the page to add the record to
+	 * @throws XMLStreamException error copying
+	 * @throws IOException the record has no identifier
+	 */
+	private static void copyRecord(XMLStreamReader reader, Deque<Map<String, String>> scopes, Page page) throws XMLStreamException, IOException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter writer = XML_OUTPUT.createXMLStreamWriter(out);
+		// the namespaces in scope at the record, outermost first so inner declarations win
+		Map<String, String> inScope = new LinkedHashMap<String, String>();
+		for(Iterator<Map<String, String>> it = scopes.descendingIterator(); it.hasNext();) {
+			inScope.putAll(it.next());
+		}
+		inScope.putAll(getDeclarations(reader));
+		String id = null;
+		String datestamp = null;
+		StringBuilder text = null;
+		int depth = 0;
+		boolean inHeader = false;
+		int event = reader.getEventType();
+		while(true) {
+			switch(event) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					writer.writeStartElement(StringUtils.defaultString(reader.getPrefix()), reader.getLocalName(), StringUtils.defaultString(reader.getNamespaceURI()));
+					Map<String, String> declarations = (depth == 1) ? inScope : getDeclarations(reader);
+					for(Map.Entry<String, String> ns : declarations.entrySet()) {
+						if(ns.getKey().isEmpty()) {
+							writer.writeDefaultNamespace(ns.getValue());
+						} else {
+							writer.writeNamespace(ns.getKey(), ns.getValue());
+						}
+					}
+					for(int x = 0; x < reader.getAttributeCount(); x++) {
+						String attrNs = reader.getAttributeNamespace(x);
+						if(StringUtils.isEmpty(attrNs)) {
+							writer.writeAttribute(reader.getAttributeLocalName(x), reader.getAttributeValue(x));
+						} else {
+							writer.writeAttribute(StringUtils.defaultString(reader.getAttributePrefix(x)), attrNs, reader.getAttributeLocalName(x), reader.getAttributeValue(x));
+						}
+					}
+					boolean oai = OAI_NS.equals(reader.getNamespaceURI());
+					if(depth == 2) {
+						inHeader = oai && reader.getLocalName().equals("header");
+					} else if(depth == 3 && inHeader && oai && (reader.getLocalName().equals("identifier") || reader.getLocalName().equals("datestamp"))) {
+						text = new StringBuilder();
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if(depth == 3 && text != null) {
+						if(reader.getLocalName().equals("identifier")) {
+							id = text.toString().trim();
+						} else {
+							datestamp = text.toString().trim();
+						}
+						text = null;
+					}
+					writer.writeEndElement();
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					if(text != null) {
+						text.append(reader.getText());
+					}
+					writer.writeCharacters(reader.getText());
+					break;
+				case XMLStreamConstants.CDATA:
+					if(text != null) {
+						text.append(reader.getText());
+					}
+					writer.writeCData(reader.getText());
+					break;
+				case XMLStreamConstants.COMMENT:
+					writer.writeComment(reader.getText());
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+					break;
+				default:
+					break;
+			}
+			if(depth == 0) {
+				break;
+			}
+			event = reader.next();
+		}
+		writer.close();
+		if(StringUtils.isEmpty(id)) {
+			throw new IOException("Record without identifier in ListRecords response");
+		}
+		page.ids.add(id);
+		page.records.add(out.toString());
+		if(StringUtils.isNotEmpty(datestamp)) {
+			page.latestDatestamp = latest(page.latestDatestamp, datestamp);
+		}
+	}
+	
+	/**
+	 * Get the namespaces declared on the current element
+	 * @param reader the reader, at a start element
+	 * @return the uri of each declared prefix ("" for the default namespace)
+	 */
+	private static Map<String, String> getDeclarations(XMLStreamReader reader) {
+		Map<String, String> declarations = new LinkedHashMap<String, String>();
+		for(int x = 0; x < reader.getNamespaceCount(); x++) {
+			declarations.put(StringUtils.defaultString(reader.getNamespacePrefix(x)), StringUtils.defaultString(reader.getNamespaceURI(x)));
+		}
+		return declarations;
+	}
+	
+	/**
+	 * A ListRecords response read into its records, resumption token and error
+	 */
+	public static class Page {
+		/**
+		 * the identifier of each record
+		 */
+		protected final List<String> ids = new ArrayList<String>();
+		/**
+		 * the xml of each record
+		 */
+		protected final List<String> records = new ArrayList<String>();
+		/**
+		 * the latest record datestamp
+		 */
+		protected String latestDatestamp;
+		/**
+		 * the resumption token
+		 */
+		protected String resumptionToken;
+		/**
+		 * the error code
+		 */
+		protected String errorCode;
+		/**
+		 * the error message
+		 */
+		protected String errorMessage;
+		
+		/**
+		 * Get the identifier of each record
+		 * @return the identifiers, in the order of getRecords
+		 */
+		public List<String> getIds() {
+			return this.ids;
+		}
+		
+		/**
+		 * Get the xml of each record
+		 * @return the records
+		 */
+		public List<String> getRecords() {
+			return this.records;
+		}
+		
+		/**
+		 * Get the latest datestamp of the records
+		 * @return the datestamp, null if there are no records
+		 */
+		public String getLatestDatestamp() {
+			return this.latestDatestamp;
+		}
+		
+		/**
+		 * Get the resumption token, an empty or missing element means the list is complete
+		 * @return the token, null if this is the last page
+		 */
+		public String getResumptionToken() {
+			return this.resumptionToken;
+		}
+		
+		/**
+		 * Get the OAI-PMH error code
+		 * @return the code, null if the response is not an error
+		 */
+		public String getErrorCode() {
+			return this.errorCode;
+		}
+		
+		/**
+		 * Get the OAI-PMH error message
+		 * @return the message
+		 */
+		public String getErrorMessage() {
+			return this.errorMessage;
+		}
+	}
+	
+	/**
+	 * Get the later of two datestamps. OAI-PMH datestamps are UTCdatetime strings of a single granularity per
+	 * repository, so they order lexically.
+	 * @param a first datestamp, may be null
+	 * @param b second datestamp, may be null
+	 * @return the later datestamp
+	 */
+	private static String latest(String a, String b) {
+		if(a == null) {
+			return b;
+		}
+		if(b == null) {
+			return a;
+		}
+		return (a.compareTo(b) >= 0) ? a : b;
+	}
+
+	/**
+	 * Get the url of the first page of a ListRecords request
+	 * @param runFrom the from date, null for none
+	 * @param runUntil the until date, null for none
+	 * @return the url
+	 * @throws IOException error encoding parameters
+	 */
+	private String getListUrl(String runFrom, String runUntil) throws IOException {
+		StringBuilder url = new StringBuilder(this.baseUrl).append("?verb=ListRecords&metadataPrefix=").append(URLEncoder.encode(this.metadataPrefix, "UTF-8"));
+		if(runFrom != null) {
+			url.append("&from=").append(URLEncoder.encode(runFrom, "UTF-8"));
+		}
+		if(runUntil != null) {
+			url.append("&until=").append(URLEncoder.encode(runUntil, "UTF-8"));
+		}
+		if(this.set != null) {
+			url.append("&set=").append(URLEncoder.encode(this.set, "UTF-8"));
+		}
+		return url.toString();
+	}
+
+	/**
+	 * Get the url of a ListRecords resumption request
+	 * @param token the resumption token
+	 * @return the url
+	 * @throws IOException error encoding parameters
+	 */
+	private String getTokenUrl(String token) throws IOException {
+		return this.baseUrl + "?verb=ListRecords&resumptionToken=" + URLEncoder.encode(token, "UTF-8");
+	}
+
+	/**
+	 * Request a page in the background
+	 * @param executor the executor to request on
+	 * @param url the url of the page
+	 * @return the pending page
+	 */
+	private static Future<String> requestPage(ExecutorService executor, final String url) {
+		log.trace("Requesting " + url);
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() throws IOException, InterruptedException {
+				return fetchPage(url);
+			}
+		});
+	}
+
+	/**
+	 * Get the contents of a page through the shared http client and cache, waiting out 503 Service Unavailable
+	 * responses as the protocol asks
+	 * @param url the url of the page
+	 * @return the page contents
+	 * @throws IOException error reading page
+	 * @throws InterruptedException interrupted while waiting to retry
+	 */
+	private static String fetchPage(String url) throws IOException, InterruptedException {
+		for(int attempt = 0;; attempt++) {
+			CloseableHttpResponse response = HttpCache.execute(WebAide.getClient(), new HttpGet(url));
+			try {
+				int code = response.getStatusLine().getStatusCode();
+				if(code == HttpStatus.SC_SERVICE_UNAVAILABLE && attempt < MAX_RETRIES) {
+					int wait = DEFAULT_RETRY_AFTER;
+					Header retryAfter = response.getFirstHeader("Retry-After");
+					if(retryAfter != null && retryAfter.getValue().trim().matches("\\d+")) {
+						wait = Integer.parseInt(retryAfter.getValue().trim());
+					}
+					log.debug("Repository unavailable, retrying in " + wait + " seconds");
+					EntityUtils.consume(response.getEntity());
+					Thread.sleep(wait * 1000L);
+					continue;
+				}
+				if(code != HttpStatus.SC_OK) {
+					throw new IOException("HTTP " + code + " requesting " + url);
+				}
+				return EntityUtils.toString(response.getEntity(), "UTF-8");
+			} finally {
+				response.close();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a pending page
+	 * @param page the pending page
+	 * @return the page contents
+	 * @throws IOException error requesting page
+	 */
+	private static String getResponse(Future<String> page) throws IOException {
+		try {
+			return page.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Load the checkpoint file
+	 * @return the checkpoint, empty if there is none
+	 * @throws IOException error reading checkpoint
+	 */
+	private Properties loadCheckpoint() throws IOException {
+		Properties checkpoint = new Properties();
+		if(this.checkpointFile != null && FileAide.exists(this.checkpointFile)) {
+			InputStream in = FileAide.getInputStream(this.checkpointFile);
+			try {
+				checkpoint.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Write the checkpoint file. It is written to a temporary file first so an interruption never leaves a partial
+	 * checkpoint behind.
+	 * @param runFrom the from date of the harvest in progress
+	 * @param runUntil the until date of the harvest in progress
+	 * @param token the resumption token of the next page, null when the harvest is complete
+	 * @param lastDatestamp the latest datestamp of the last completed harvest
+	 * @throws IOException error writing checkpoint
+	 */
+	private void saveCheckpoint(String runFrom, String runUntil, String token, String lastDatestamp) throws IOException {
+		if(this.checkpointFile == null) {
+			return;
+		}
+		Properties checkpoint = new Properties();
+		if(lastDatestamp != null) {
+			checkpoint.setProperty(CP_LAST_DATESTAMP, lastDatestamp);
+		}
+		if(token != null) {
+			checkpoint.setProperty(CP_TOKEN, token);
+			if(runFrom != null) {
+				checkpoint.setProperty(CP_FROM, runFrom);
+			}
+			if(runUntil != null) {
+				checkpoint.setProperty(CP_UNTIL, runUntil);
+			}
+			if(this.harvestDatestamp != null) {
+				checkpoint.setProperty(CP_HARVEST_DATESTAMP, this.harvestDatestamp);
+			}
+		}
+		String tmp = this.checkpointFile + ".tmp";
+		OutputStream out = FileAide.getOutputStream(tmp);
+		try {
+			checkpoint.store(out, "OAIPMHFetch checkpoint");
+		} finally {
+			out.close();
+		}
+		FileAide.moveFile(tmp, this.checkpointFile);
+	}
+
+	/**
+	 * Get the ArgParser for this task
+	 * @return the ArgParser
+	 */
+	private static ArgParser getParser() {
+		ArgParser parser = new ArgParser("OAIPMHFetch");
+		parser.addArgument(new ArgDef().setShortOption('u').setLongOpt("url").setDescription("repository url, http:// is optional").withParameter(true, "URL").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("start").setDescription("beginning date of date range (YYYY-MM-DD), an interrupted harvest from another date is started over - default the latest datestamp of the last completed harvest in the checkpoint").withParameter(true, "DATE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('e').setLongOpt("end").setDescription("ending date of date range (YYYY-MM-DD), an interrupted harvest to another date is started over").withParameter(true, "DATE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('m').setLongOpt("metadataPrefix").setDescription("metadata format to request - default oai_dc").withParameter(true, "PREFIX").setDefaultValue("oai_dc").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('S').setLongOpt("set").setDescription("set to request").withParameter(true, "SET").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("checkpoint").setDescription("file to store harvest progress in, used to resume interrupted harvests and as the start of incremental harvests").withParameter(true, "CHECKPOINT_FILE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output").setDescription("RecordHandler config file path").withParameter(true, "CONFIG_FILE"));
+		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of output recordhandler using VALUE").setRequired(false));
+		return parser;
+	}
+
+	@Override
+	public void writeRecord(String id, String data) throws IOException {
+		log.trace("Adding record " + id);
+		this.rhOutput.addRecord(id, data, getClass());
+	}
+
+	/**
+	 * Main method
+	 * @param args command line arguments
+	 */
+	public static void main(String... args) {
+		Exception error = null;
+		try {
+			InitLog.initLogger(args, getParser());
+			log.info(getParser().getAppName() + ": Start");
+			new OAIPMHFetch(args).execute();
+		} catch(IllegalArgumentException e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(UsageException e) {
+			log.info("Printing Usage:");
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(Exception e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
+			error = e;
+		} finally {
+			log.info(getParser().getAppName() + ": End");
+			if(error != null) {
+				System.exit(1);
+			}
+		}
+	}
+}
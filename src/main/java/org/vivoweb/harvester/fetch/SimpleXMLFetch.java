@@ -7,29 +7,35 @@ package org.vivoweb.harvester.fetch;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map.Entry;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.InitLog;
-import org.vivoweb.harvester.util.IterableAdaptor;
-import org.vivoweb.harvester.util.UniversalNamespaceCache;
+import org.vivoweb.harvester.util.MathAide;
 import org.vivoweb.harvester.util.WebAide;
-import org.vivoweb.harvester.util.XMLAide;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
-import org.vivoweb.harvester.util.repo.XMLRecordOutputStream;
-import org.w3c.dom.DOMConfiguration;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.bootstrap.DOMImplementationRegistry;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 
 /** Class for harvesting from XML Data Sources
 * @author jaf30
@@ -61,9 +67,17 @@ public class SimpleXMLFetch implements RecordStreamOrigin {
 	private String tagNames[];
 	
 	/**
-	 * the base for each instance's xmlRos
+	 * factory for the document reader
 	 */
-	private static XMLRecordOutputStream xmlRosBase = new XMLRecordOutputStream(new String[]{"record"}, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><harvest>", "</harvest>", ".*?<identifier>(.*?)</identifier>.*?", null);
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	
+	/**
+	 * factory for the writers serializing matched elements, declaring the namespaces each one uses
+	 */
+	static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	static {
+		outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+	}
 	
 	/**
 	 * Constructor
@@ -155,128 +169,217 @@ public class SimpleXMLFetch implements RecordStreamOrigin {
 	}
 	
 	/**
-	 * Executes the task
+	 * Executes the task. The document is read once as a stream; each element whose name is one of the tag names
+	 * becomes a record as soon as its end tag is read, so only the elements currently being matched are held.
 	 * @throws IOException error getting recrords
 	 */
-	
 	public void execute() throws IOException {
+		// Get xml contents as a stream, check for url first then a file
+		if(this.strAddress == null) {
+			System.out.println(getParser().getUsage());
+			System.exit(1);
+		}
+		
+		Set<String> tags = new HashSet<String>(Arrays.asList(this.tagNames));
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		InputStream stream = null;
+		if(this.strAddress.startsWith("http:") || this.strAddress.startsWith("https:")) {
+			stream = WebAide.getInputStream(this.strAddress);
+		} else {
+			stream = FileAide.getInputStream(this.strAddress);
+		}
 		try {
-			XMLRecordOutputStream xmlRos = xmlRosBase.clone();
-			xmlRos.setRso(this);
-			
-			// Get xml contents as String, check for url first then a file
-			if(this.strAddress == null) {
-				System.out.println(getParser().getUsage());
-				System.exit(1);
-			}
-			
-			InputStream stream = null;
-			if(this.strAddress.startsWith("http:") || this.strAddress.startsWith("https:")) {
-				stream = WebAide.getInputStream(this.strAddress);
-			} else {
-				stream = FileAide.getInputStream(this.strAddress);
-			}
-			Document doc = XMLAide.getDocument(stream);
-			
-			for(String tagname : this.tagNames) {
-				NodeList nodes = doc.getElementsByTagName(tagname);
-				log.info("Matched this many nodes: " + nodes.getLength());
-				int count = 0;
-				for(Node node : IterableAdaptor.adapt(nodes)) {
-					StringBuilder sb = new StringBuilder();
-					
-					StringBuilder recID = new StringBuilder();
-					recID.append("node_-_");
-					recID.append(String.valueOf(count));
-					
-					//log.trace("Creating RDF for "+name+": "+recID);
-					// Build RDF BEGIN
-					// Header info
-					sb = new StringBuilder();
-					sb.append("<?xml version=\"1.0\"?>\n");
-					sb.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n");
-					sb.append("         xmlns:");
-					sb.append("node-" + tagname);
-					sb.append("=\"");
-					sb.append(buildNodeFieldNS(tagname));
-					sb.append("\"\n");
-					sb.append("         xml:base=\"");
-					sb.append(buildNodeRecordNS(tagname));
-					sb.append("\"\n");
-					// add namespaces from the namespaces in the root element
-					for(Entry<String, String> nsEntry : new UniversalNamespaceCache(doc, true).getPrefix2UriMap().entrySet()) {
-						String nsprefix = nsEntry.getKey();
-						String nsuri = nsEntry.getValue();
-						if(!nsprefix.equals("DEFAULT")) {
-							sb.append("\nxmlns:" + nsprefix + "=\"" + nsuri + "\"");
+			XMLEventReader reader = inputFactory.createXMLEventReader(stream);
+			// namespaces declared on the root element, added to every record
+			StringBuilder rootNamespaces = null;
+			// elements currently being matched, innermost last
+			LinkedList<MatchedElement> open = new LinkedList<MatchedElement>();
+			int depth = 0;
+			while(reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if(event.isStartElement()) {
+					StartElement start = event.asStartElement();
+					depth++;
+					if(rootNamespaces == null) {
+						rootNamespaces = new StringBuilder();
+						for(Iterator<?> it = start.getNamespaces(); it.hasNext();) {
+							Namespace ns = (Namespace)it.next();
+							if(!ns.isDefaultNamespaceDeclaration()) {
+								rootNamespaces.append("\nxmlns:" + ns.getPrefix() + "=\"" + ns.getNamespaceURI() + "\"");
+							}
 						}
 					}
-					// and close
-					sb.append(">\n\n");
-					
-					// Record info BEGIN
-					sb.append("  <rdf:Description rdf:ID=\"");
-					sb.append(recID);
-					sb.append("\">\n");
-					
-					// insert type value
-					sb.append("    <rdf:type rdf:resource=\"");
-					sb.append(buildNodeTypeNS(tagname));
-					sb.append("\"/>\n");
-					//
-					// Now parse the element matched
-					//
-					
-					for(Node childNode : IterableAdaptor.adapt(node.getChildNodes())) {
-						if(childNode.getNodeType() != Node.TEXT_NODE) {
-							String nodeXml = serializeNode(childNode);
-							sb.append(nodeXml);
-						}
+					for(MatchedElement match : open) {
+						match.add(event, depth);
+					}
+					String tagname = getTagName(start.getName());
+					if(tags.contains(tagname)) {
+						// number records in document order, as they were numbered when matched from a whole document
+						Integer count = counts.get(tagname);
+						int num = (count == null) ? 0 : count.intValue();
+						counts.put(tagname, Integer.valueOf(num + 1));
+						open.add(new MatchedElement(tagname, num, depth));
+					}
+				} else if(event.isEndElement()) {
+					while(!open.isEmpty() && open.getLast().depth == depth) {
+						MatchedElement match = open.removeLast();
+						writeMatch(match, rootNamespaces);
+					}
+					for(MatchedElement match : open) {
+						match.add(event, depth);
+					}
+					depth--;
+				} else {
+					for(MatchedElement match : open) {
+						match.add(event, depth);
 					}
-					
-					// Record info END
-					sb.append("\n  </rdf:Description>\n");
-					
-					// Footer info
-					sb.append("</rdf:RDF>");
-					// Build RDF END
-					
-					// Write RDF to RecordHandler
-					//log.trace("Adding record: " + fixedkey + "_" + recID);
-					//log.trace("data: "+ sb.toString());
-					//log.info("rhOutput: "+ this.rhOutput);
-					//log.info("recID: "+recID);
-					this.rhOutput.addRecord(tagname + "_" + recID, sb.toString(), this.getClass());
-					count++;
 				}
 			}
-		} catch(Exception e) {
+			reader.close();
+		} catch(XMLStreamException e) {
 			log.error(e.getMessage());
-			e.printStackTrace();
 			throw new IOException(e);
+		} finally {
+			stream.close();
+		}
+		for(String tagname : this.tagNames) {
+			log.info("Matched this many nodes: " + MathAide.nvl(counts.get(tagname), Integer.valueOf(0)));
 		}
 	}
 	
 	/**
-	 * Serialize node
-	 * @param node the node
-	 * @return the serialized output
+	 * Get the name of an element as written, prefix included
+	 * @param name the element name
+	 * @return the name as written
 	 */
-	private String serializeNode(Node node) {
-		LSSerializer writer;
-		try {
-			writer = ((DOMImplementationLS)DOMImplementationRegistry.newInstance().getDOMImplementation("LS")).createLSSerializer();
-		} catch(ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
-			throw new IllegalStateException("Unable to Instantiate LSSerializer", e);
+	private static String getTagName(QName name) {
+		if(name.getPrefix() == null || name.getPrefix().isEmpty()) {
+			return name.getLocalPart();
+		}
+		return name.getPrefix() + ":" + name.getLocalPart();
+	}
+	
+	/**
+	 * Build the rdf of a matched element and write it to the RecordHandler
+	 * @param match the matched element
+	 * @param rootNamespaces namespaces declared on the root element
+	 * @throws IOException error writing record
+	 * @throws XMLStreamException error serializing element
+	 */
+	private void writeMatch(MatchedElement match, CharSequence rootNamespaces) throws IOException, XMLStreamException {
+		String tagname = match.tagname;
+		StringBuilder recID = new StringBuilder();
+		recID.append("node_-_");
+		recID.append(String.valueOf(match.count));
+		
+		// Build RDF BEGIN
+		// Header info
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\"?>\n");
+		sb.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"\n");
+		sb.append("         xmlns:");
+		sb.append("node-" + tagname);
+		sb.append("=\"");
+		sb.append(buildNodeFieldNS(tagname));
+		sb.append("\"\n");
+		sb.append("         xml:base=\"");
+		sb.append(buildNodeRecordNS(tagname));
+		sb.append("\"\n");
+		// add namespaces from the namespaces in the root element
+		sb.append(rootNamespaces);
+		// and close
+		sb.append(">\n\n");
+		
+		// Record info BEGIN
+		sb.append("  <rdf:Description rdf:ID=\"");
+		sb.append(recID);
+		sb.append("\">\n");
+		
+		// insert type value
+		sb.append("    <rdf:type rdf:resource=\"");
+		sb.append(buildNodeTypeNS(tagname));
+		sb.append("\"/>\n");
+		
+		// the children of the element matched
+		sb.append(match.getChildXml());
+		
+		// Record info END
+		sb.append("\n  </rdf:Description>\n");
+		
+		// Footer info
+		sb.append("</rdf:RDF>");
+		// Build RDF END
+		
+		// Write RDF to RecordHandler
+		this.rhOutput.addRecord(tagname + "_" + recID, sb.toString(), this.getClass());
+	}
+	
+	/**
+	 * An element being matched. Its child nodes, other than text directly inside it, are serialized as they are read,
+	 * declaring whatever namespaces they use.
+	 */
+	private static class MatchedElement {
+		/**
+		 * the tag name matched
+		 */
+		final String tagname;
+		/**
+		 * the record number within the tag name
+		 */
+		final int count;
+		/**
+		 * the depth of the element in the document
+		 */
+		final int depth;
+		/**
+		 * the serialized child nodes
+		 */
+		private final StringWriter childXml = new StringWriter();
+		/**
+		 * serializes the child nodes
+		 */
+		private final XMLEventWriter writer;
+		
+		/**
+		 * Constructor
+		 * @param tagname the tag name matched
+		 * @param count the record number within the tag name
+		 * @param depth the depth of the element in the document
+		 * @throws XMLStreamException error creating writer
+		 */
+		MatchedElement(String tagname, int count, int depth) throws XMLStreamException {
+			this.tagname = tagname;
+			this.count = count;
+			this.depth = depth;
+			this.writer = outputFactory.createXMLEventWriter(this.childXml);
+		}
+		
+		/**
+		 * Add an event inside the element
+		 * @param event the event
+		 * @param eventDepth the depth of the element the event belongs to (for start and end tags, the element itself)
+		 * @throws XMLStreamException error serializing
+		 */
+		void add(XMLEvent event, int eventDepth) throws XMLStreamException {
+			if(event.isCharacters() && eventDepth == this.depth && !event.asCharacters().isCData()) {
+				// text directly inside the element is not part of the record
+				return;
+			}
+			if(event.isStartDocument() || event.isEndDocument()) {
+				return;
+			}
+			this.writer.add(event);
 		}
-		DOMConfiguration domConfig = writer.getDomConfig();
-		domConfig.setParameter("namespaces", Boolean.TRUE);
-		domConfig.setParameter("namespace-declarations", Boolean.TRUE);
 		
-		if(domConfig.canSetParameter("xml-declaration", Boolean.FALSE)) {
-			domConfig.setParameter("xml-declaration", Boolean.FALSE);
+		/**
+		 * Get the serialized child nodes
+		 * @return the xml
+		 * @throws XMLStreamException error serializing
+		 */
+		String getChildXml() throws XMLStreamException {
+			this.writer.close();
+			return this.childXml.toString();
 		}
-		return writer.writeToString(node);
 	}
 	
 	@Override
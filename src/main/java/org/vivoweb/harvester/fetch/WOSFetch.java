@@ -7,14 +7,34 @@ package org.vivoweb.harvester.fetch;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.TransformerException;
 import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.InitLog;
@@ -30,21 +50,44 @@ import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * Fetches SOAP-XML data from a SOAP compatible site placing the data in the supplied file.
+ * The next page of search results is requested while the current page is parsed and written, and LAMR lookups are
+ * sent in concurrent batches.
  */
 public class WOSFetch {
 	/**
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(WOSFetch.class);
+	/**
+	 * Number of identifiers sent in each LAMR query
+	 */
+	private static final int LAMR_BATCH_SIZE = 50;
+	/**
+	 * StAX factory used to stream search responses
+	 */
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+	/**
+	 * StAX factory used to write records
+	 */
+	private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+	/**
+	 * StAX factory used to build record wrappers
+	 */
+	private static final XMLEventFactory xmlEventFactory = XMLEventFactory.newInstance();
+	static {
+		xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+	}
 	
 	/**
 	 * RecordHandler to put data in.
@@ -126,6 +169,56 @@ public class WOSFetch {
 	 */
 	private int totalLamrRecordsFound = 0;
 	
+	/**
+	 * The parsed search message, reused to build each page query
+	 */
+	private Document searchTemplate = null;
+	
+	/**
+	 * The firstRecord node of the parsed search message
+	 */
+	private Node firstRecordNode = null;
+	
+	/**
+	 * The first record requested by the search message
+	 */
+	private int firstRecord;
+	
+	/**
+	 * The number of records requested per page by the search message
+	 */
+	private int pageSize;
+	
+	/**
+	 * Maximum number of search requests sent per second
+	 */
+	private double requestRate = Double.parseDouble(getParser().getDefaultValue("q"));
+	
+	/**
+	 * Schedules the search requests
+	 */
+	private RateLimiter searchLimiter = null;
+	
+	/**
+	 * The parsed LAMR message, cloned for each batch
+	 */
+	private Document lamrTemplate = null;
+	
+	/**
+	 * Number of LAMR batches sent concurrently
+	 */
+	private int lamrThreads = Integer.parseInt(getParser().getDefaultValue("n"));
+	
+	/**
+	 * Runs the LAMR batches
+	 */
+	private ExecutorService lamrExecutor = null;
+	
+	/**
+	 * LAMR batches whose records have not yet been written
+	 */
+	private List<Future<Map<String, String>>> pendingLamr = new ArrayList<Future<Map<String, String>>>();
+	
 	/**
 	 * Constructor
 	 * @param authUrl The location of the authorization site
@@ -206,6 +299,8 @@ public class WOSFetch {
 				args.get("p")
 			);
 			this.recordTag = args.get("r");
+			setRequestRate(Double.parseDouble(args.get("q")));
+			setLamrThreads(Integer.parseInt(args.get("n")));
 		}
 	}
 	
@@ -225,6 +320,28 @@ public class WOSFetch {
 	public void setTerminateSession(boolean terminateSession) {
 		this.terminateSession = terminateSession;
 	}
+	
+	/**
+	 * Set the maximum number of search requests sent per second
+	 * @param requestsPerSecond the request rate
+	 */
+	public void setRequestRate(double requestsPerSecond) {
+		if(requestsPerSecond <= 0) {
+			throw new IllegalArgumentException("Request rate must be positive");
+		}
+		this.requestRate = requestsPerSecond;
+	}
+	
+	/**
+	 * Set the number of LAMR batches sent concurrently
+	 * @param threads the number of concurrent LAMR batches
+	 */
+	public void setLamrThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Must use at least one LAMR thread");
+		}
+		this.lamrThreads = threads;
+	}
 
 	/**
 	 * Library style Constructor
@@ -353,33 +470,43 @@ public class WOSFetch {
 	}
 	
 	/**
-	 * @param previousQuery a WOS soap query xml message
-	 * @return the string with the altered first node in the 
-	 * @throws IOException thrown if there is an issue parsing the previousQuery string
+	 * Parse the search message once and locate the paging parameters so that each page query can be built without
+	 * re-parsing the message
+	 * @throws IOException thrown if there is an issue parsing the search message
 	 */
-	private String getnextQuery(String previousQuery) throws IOException{
-		String nextQuery = "";
+	private void initSearchTemplate() throws IOException {
+		if(this.searchTemplate != null) {
+			return;
+		}
 		try {
-			Document searchDoc = XMLAide.getDocument(previousQuery);
-			
-			NodeList firstrecordNodes = searchDoc.getElementsByTagName("firstRecord");
-			Node firstnode = firstrecordNodes.item(0);
-			int firstrecord = Integer.parseInt(firstnode.getTextContent() );
-//			log.debug("firstrecord = " + firstrecord);
-			
-			NodeList countNodes = searchDoc.getElementsByTagName("count");
-			int count = Integer.parseInt(countNodes.item(0).getTextContent() );
-//			log.debug("count= " + count);
-			int newFirst = firstrecord + count;
-			firstnode.setTextContent(Integer.toString(newFirst));
-//			log.debug("new First Record= " + newFirst);
-			
+			this.searchTemplate = XMLAide.getDocument(this.searchString);
+		} catch(SAXException e) {
+			throw new IOException(e);
+		}
+		this.firstRecordNode = this.searchTemplate.getElementsByTagName("firstRecord").item(0);
+		Node countNode = this.searchTemplate.getElementsByTagName("count").item(0);
+		if(this.firstRecordNode == null || countNode == null) {
+			throw new IllegalArgumentException("Search message must contain retrieveParameters firstRecord and count");
+		}
+		this.firstRecord = Integer.parseInt(this.firstRecordNode.getTextContent().trim());
+		this.pageSize = Integer.parseInt(countNode.getTextContent().trim());
+		log.debug("first record = \"" + this.firstRecord + "\"");
+		log.debug("Search count = \"" + this.pageSize + "\"");
+	}
 	
-			nextQuery = XMLAide.formatXML(searchDoc);
-		} catch(SAXException | TransformerException e) {
+	/**
+	 * Build the search query for the page beginning at the given record
+	 * @param pageFirstRecord the first record of the requested page
+	 * @return the search query xml message
+	 * @throws IOException thrown if there is an issue formatting the query
+	 */
+	private String getPageQuery(int pageFirstRecord) throws IOException {
+		this.firstRecordNode.setTextContent(Integer.toString(pageFirstRecord));
+		try {
+			return XMLAide.formatXML(this.searchTemplate);
+		} catch(TransformerException e) {
 			throw new IOException(e);
 		}
-		return nextQuery;
 	}
 	
 	/**
@@ -395,137 +522,255 @@ public class WOSFetch {
 	}
 	
 	/**
+	 * Request a page of search results in the background, the request being issued once the rate limiter allows it
+	 * @param searchExecutor the executor issuing search requests
+	 * @param pageFirstRecord the first record of the requested page
+	 * @return the pending search response
+	 * @throws IOException thrown if there is an issue building the query
+	 */
+	private Future<String> requestSearchPage(ExecutorService searchExecutor, int pageFirstRecord) throws IOException {
+		final String query = getPageQuery(pageFirstRecord);
+		log.trace("Requesting search page starting at record " + pageFirstRecord);
+		return searchExecutor.submit(new Callable<String>() {
+			@Override
+			public String call() throws IOException {
+				WOSFetch.this.searchLimiter.acquire();
+				ByteArrayOutputStream searchResponse = new ByteArrayOutputStream();
+				new SOAPMessenger(WOSFetch.this.searchUrl, searchResponse, query, WOSFetch.this.authCode, null).execute();
+				return searchResponse.toString("UTF-8");
+			}
+		});
+	}
+	
+	/**
+	 * Wait for a pending response
+	 * @param <T> the type of response
+	 * @param pending the pending response
+	 * @return the response
+	 * @throws IOException error reading and writing to recordhandlers or web service
+	 */
+	private static <T> T getResponse(Future<T> pending) throws IOException {
+		try {
+			return pending.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for response", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Get the tag name of an element as it appears in the document (prefix:localName)
+	 * @param name the element name
+	 * @return the tag name
+	 */
+	private static String getTagName(QName name) {
+		if(StringUtils.isBlank(name.getPrefix())) {
+			return name.getLocalPart();
+		}
+		return name.getPrefix() + ":" + name.getLocalPart();
+	}
+	
+	/**
+	 * Stream through a search response in a single pass, writing each record as soon as it has been read
 	 * @param responseXML String containing the results from the WOS soap query
-	 * @return the number of records found in the string
+	 * @return the recordsFound value of the response, null if not present
 	 * @throws IOException error reading and writing to recordhandlers or web service
 	 */
-	private Map<String,String> extractSearchRecords(String responseXML) throws IOException {
-		HashMap<String,String> recordMap = new HashMap<String, String>();
+	private String processSearchResponse(String responseXML) throws IOException {
+		String recordsFound = null;
 		int numRecords = 0;
-		Document responseDoc;
+		log.debug("splitting on recordTag: <"+this.recordTag+">");
 		try {
-			responseDoc = XMLAide.getDocument(responseXML);
-		} catch(SAXException e) {
+			XMLEventReader reader = xmlInputFactory.createXMLEventReader(new StringReader(responseXML));
+			while(reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if(!event.isStartElement()) {
+					continue;
+				}
+				StartElement start = event.asStartElement();
+				if(getTagName(start.getName()).equals(this.recordTag)) {
+					writeSearchRecord(start, reader);
+					numRecords++;
+					this.totalRecordsFound++;
+				} else if(start.getName().getLocalPart().equals("recordsFound")) {
+					recordsFound = reader.getElementText().trim();
+				}
+			}
+			reader.close();
+		} catch(XMLStreamException e) {
 			throw new IllegalArgumentException("Malformed XML", e);
 		}
-		log.debug("splitting on recordTag: <"+this.recordTag+">");
-		for(Element currentRecord : IterableAdaptor.adapt(responseDoc.getElementsByTagName(this.recordTag), Element.class)) {
-			log.debug("currentRecord: "+currentRecord);
-//			try {
-//				log.debug(XMLAide.formatXML(currentRecord));
-//			} catch(TransformerException e) {
-//				log.warn("Error formatting xml", e);
-//			}
-			Node utTagsZero = currentRecord.getElementsByTagName("UT").item(0);
-			Node uidTagsZero = currentRecord.getElementsByTagName("UID").item(0);
-			String identifier = MathAide.nvl(utTagsZero,uidTagsZero).getTextContent();
-			String id = "id_-_" + identifier;
-			compileLamrList(identifier);
-			Document doc = XMLAide.getDocument();
-			Element recordRoot = doc.createElement("Description");
-			recordRoot.setAttribute("ID", identifier);
-			Node node = doc.importNode(currentRecord, true);
-			recordRoot.appendChild(node);
-			String data;
-			try {
-				data = XMLAide.formatXML(recordRoot);
-			} catch(TransformerException e) {
-				throw new IllegalArgumentException("Malformed XML", e);
+		log.trace("Extracted "+ numRecords +" records from search");
+		return recordsFound;
+	}
+	
+	/**
+	 * Read a single record from the response stream and write it to the output
+	 * @param recordStart the start tag of the record
+	 * @param reader the response stream positioned just after the start tag
+	 * @throws IOException error reading and writing to recordhandlers or web service
+	 * @throws XMLStreamException malformed xml
+	 */
+	private void writeSearchRecord(StartElement recordStart, XMLEventReader reader) throws IOException, XMLStreamException {
+		List<XMLEvent> events = new ArrayList<XMLEvent>();
+		events.add(recordStart);
+		String ut = null;
+		String uid = null;
+		String idTag = null;
+		StringBuilder idText = new StringBuilder();
+		int depth = 1;
+		while(depth > 0) {
+			XMLEvent event = reader.nextEvent();
+			events.add(event);
+			if(event.isStartElement()) {
+				depth++;
+				String tag = getTagName(event.asStartElement().getName());
+				if((ut == null && tag.equals("UT")) || (uid == null && tag.equals("UID"))) {
+					idTag = tag;
+					idText.setLength(0);
+				}
+			} else if(event.isCharacters() && idTag != null) {
+				idText.append(event.asCharacters().getData());
+			} else if(event.isEndElement()) {
+				depth--;
+				if(idTag != null && getTagName(event.asEndElement().getName()).equals(idTag)) {
+					if(idTag.equals("UT")) {
+						ut = idText.toString();
+					} else {
+						uid = idText.toString();
+					}
+					idTag = null;
+				}
 			}
-			recordMap.put(id, data);
-//			writeRecord(id, data);
-			numRecords++;
-			this.totalRecordsFound++;
 		}
-		log.trace("Extracted "+ numRecords +" records from search");
-		return recordMap;
+		String identifier = MathAide.nvl(ut, uid);
+		if(identifier == null) {
+			throw new IllegalArgumentException("Record <" + this.recordTag + "> has no UT or UID");
+		}
+		log.debug("currentRecord: "+identifier);
+		compileLamrList(identifier);
+		StringWriter data = new StringWriter();
+		XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(data);
+		writer.add(xmlEventFactory.createStartDocument("UTF-8", "1.0"));
+		writer.add(xmlEventFactory.createStartElement("", "", "Description"));
+		writer.add(xmlEventFactory.createAttribute("ID", identifier));
+		for(XMLEvent event : events) {
+			writer.add(event);
+		}
+		writer.add(xmlEventFactory.createEndElement("", "", "Description"));
+		writer.add(xmlEventFactory.createEndDocument());
+		writer.close();
+		writeRecord("id_-_" + identifier, data.toString());
 	}
 	
 	/**
-	 * Execute LAMR Query
+	 * Submit the pending LAMR identifiers as one batch, executed concurrently with the search and other batches
 	 * @throws IOException error reading and writing to recordhandlers or lamr service
 	 */
 	private void executeLamrQuery() throws IOException {
-		try {
-			log.trace("Building LAMR Query");
-			if(this.lamrSet.isEmpty()){
-				log.debug("No LAMR query sent, empty LAMR set.");
-				return;
-			}
-			//compile lamrquery with lamrSet
-			
-			Document lamrDoc;
+		log.trace("Building LAMR Query");
+		if(this.lamrSet.isEmpty()){
+			log.debug("No LAMR query sent, empty LAMR set.");
+			return;
+		}
+		//compile lamrquery with lamrSet
+		if(this.lamrTemplate == null) {
 			try {
-				lamrDoc = XMLAide.getDocument(this.lamrMessage);
+				this.lamrTemplate = XMLAide.getDocument(this.lamrMessage);
 			} catch(SAXException e) {
 				throw new IllegalArgumentException("Malformed XML", e);
 			}
-	
-	//			log.debug("LAMR Message :\n"+XMLAide.formatXML(lamrDoc));
-			Element lookUp = null;
-			for(Element currentmap : IterableAdaptor.adapt(lamrDoc.getElementsByTagName("map"), Element.class)) {
-//				try {
-//					log.debug("Element :\n" + XMLAide.formatXML(currentmap));
-//				} catch(TransformerException e) {
-//					log.warn("Error formatting xml", e);
-//				}
-	//			log.debug("Element name = \"" + currentmap.getAttribute("id")+ "\"");
-				if(currentmap.getAttribute("id").contentEquals("lookup")){
-					log.debug("Found element #lookup");
-	//				lookUp = (Element)currentmap.getParentNode();
-					lookUp = currentmap;
-					break;
-				}
+		}
+		Document lamrDoc = (Document)this.lamrTemplate.cloneNode(true);
+		Element lookUp = null;
+		for(Element currentmap : IterableAdaptor.adapt(lamrDoc.getElementsByTagName("map"), Element.class)) {
+			if(currentmap.getAttribute("id").contentEquals("lookup")){
+				log.debug("Found element #lookup");
+				lookUp = currentmap;
+				break;
 			}
-			if(lookUp == null){
-				log.error("No #lookup node in LAMR query message");
-			} else {
-	//			log.debug("prelookUp = " + XMLAide.formatXML(lookUp));
-				for(String currentUT : this.lamrSet){
-					Element val = lamrDoc.createElement("val");
-					val.setAttribute("name", "ut");
-					val.setTextContent(currentUT);
-					Element docMap = lamrDoc.createElement("map");
-					docMap.setAttribute("name", "doc-"+currentUT);
-					docMap.appendChild(val);
-					lookUp.appendChild(docMap);
-				}
+		}
+		if(lookUp == null){
+			log.error("No #lookup node in LAMR query message");
+		} else {
+			for(String currentUT : this.lamrSet){
+				Element val = lamrDoc.createElement("val");
+				val.setAttribute("name", "ut");
+				val.setTextContent(currentUT);
+				Element docMap = lamrDoc.createElement("map");
+				docMap.setAttribute("name", "doc-"+currentUT);
+				docMap.appendChild(val);
+				lookUp.appendChild(docMap);
 			}
-	//		log.debug("LAMR Message :\n"+XMLAide.formatXML(lamrDoc));
-			
-			//send lamrquery
-			log.trace("Sending LAMR Query");
-			Document lamrRespDoc = null;
+		}
+		final String lamrQuery;
+		try {
+			lamrQuery = XMLAide.formatXML(lamrDoc);
+		} catch(TransformerException e) {
+			throw new IllegalArgumentException("Malformed XML", e);
+		}
+		this.lamrSet.clear();
+		
+		//send lamrquery
+		log.trace("Sending LAMR Query");
+		this.pendingLamr.add(getLamrExecutor().submit(new Callable<Map<String, String>>() {
+			@Override
+			public Map<String, String> call() throws IOException {
+				return sendLamrQuery(lamrQuery);
+			}
+		}));
+	}
+	
+	/**
+	 * Get the executor running LAMR batches, creating it if needed
+	 * @return the executor
+	 */
+	private synchronized ExecutorService getLamrExecutor() {
+		if(this.lamrExecutor == null) {
+			this.lamrExecutor = Executors.newFixedThreadPool(this.lamrThreads);
+		}
+		return this.lamrExecutor;
+	}
 	
+	/**
+	 * Send a LAMR query and extract the records from its response
+	 * @param lamrQuery the LAMR query message
+	 * @return map of record id to record data
+	 * @throws IOException error talking with lamr service
+	 */
+	private Map<String, String> sendLamrQuery(String lamrQuery) throws IOException {
+		Map<String, String> recordMap = new LinkedHashMap<String, String>();
+		try {
 			ByteArrayOutputStream lamrResponse = new ByteArrayOutputStream();
-			
-			try {
-				new SOAPMessenger(this.lamrUrl, lamrResponse, XMLAide.formatXML(lamrDoc), "", null).execute();
-			} catch(TransformerException e) {
-				throw new IllegalArgumentException("Malformed XML", e);
-			}
+			new SOAPMessenger(this.lamrUrl, lamrResponse, lamrQuery, "", null).execute();
 			String lamrRespStr = lamrResponse.toString();
 			log.debug("LAMR Response: ", lamrRespStr);
+			Document lamrRespDoc;
 			try {
 				lamrRespDoc = XMLAide.getDocument(lamrRespStr);
 			} catch(SAXException e) {
 				throw new IllegalArgumentException("Malformed XML", e);
 			}
 	
-	//			log.debug("LAMR Response :\n"+nodeToString(lamrRespDoc));
-	//			extract records - A little hacky - message specifics sensitive
-	//			To ensure no erroneous name spaces rebuilding structure from existing data.
+	//		extract records - A little hacky - message specifics sensitive
+	//		To ensure no erroneous name spaces rebuilding structure from existing data.
 			log.trace("Extracting LAMR Records");
 	//		records are in map elements.
-	
-			int recordsFound = 0;
 			for(Element currentNode : IterableAdaptor.adapt(lamrRespDoc.getElementsByTagName("map"), Element.class)) {
-	//				what we are looking for is found in maps named "WOS"
+	//			what we are looking for is found in maps named "WOS"
 				if(currentNode.getAttribute("name").contentEquals("WOS")) {
-	//					for output similarity  have the root node be Description
+	//				for output similarity  have the root node be Description
 					Element recordRoot = lamrRespDoc.createElement("Description");
 					String ut = "";
-	//					each WOS node has the result formatted as named val nodes.
+	//				each WOS node has the result formatted as named val nodes.
 					for(Element currentVal : IterableAdaptor.adapt(currentNode.getElementsByTagName("val"), Element.class)) {
 	//					Getting Record ID
 						if(currentVal.getAttribute("name").contentEquals("ut")){
@@ -533,11 +778,9 @@ public class WOSFetch {
 							break;
 						}
 					}
-					if(ut != "") {
-						recordsFound++;
-						this.totalLamrRecordsFound ++;
+					if(!ut.isEmpty()) {
 						recordRoot.setAttribute( "ID",  ut);
-	
+						
 						Element currentDup = lamrRespDoc.createElement("map");
 						currentDup.setAttribute("name", "WOS");
 						for(Element cur : IterableAdaptor.adapt(currentNode.getElementsByTagName("val"), Element.class)) {
@@ -549,18 +792,39 @@ public class WOSFetch {
 						recordRoot.appendChild(currentDup);
 						
 						try {
-							writeRecord("id_-_LAMR_-_" + ut, XMLAide.formatXML(recordRoot));
+							recordMap.put("id_-_LAMR_-_" + ut, XMLAide.formatXML(recordRoot));
 						} catch(TransformerException e) {
 							throw new IllegalArgumentException("Malformed XML", e);
 						}
 					}
 				}
 			}
-			log.trace("Found " + recordsFound + " LAMR Records");
-			this.lamrSet.clear();
 		} catch(UnknownHostException e) {
 			log.error(e.getMessage());
 		}
+		return recordMap;
+	}
+	
+	/**
+	 * Write the records of finished LAMR batches
+	 * @param wait wait for all outstanding batches to finish
+	 * @throws IOException error reading and writing to recordhandlers or lamr service
+	 */
+	private void writeLamrResults(boolean wait) throws IOException {
+		Iterator<Future<Map<String, String>>> pendingIter = this.pendingLamr.iterator();
+		while(pendingIter.hasNext()) {
+			Future<Map<String, String>> pending = pendingIter.next();
+			if(!wait && !pending.isDone()) {
+				continue;
+			}
+			Map<String, String> records = getResponse(pending);
+			for(Entry<String, String> record : records.entrySet()) {
+				writeRecord(record.getKey(), record.getValue());
+			}
+			log.trace("Found " + records.size() + " LAMR Records");
+			this.totalLamrRecordsFound += records.size();
+			pendingIter.remove();
+		}
 	}
 	
 	/**
@@ -581,7 +845,7 @@ public class WOSFetch {
 		if(this.lamrUrl != null) {
 			log.trace("Adding LAMR UT = " + id);
 			this.lamrSet.add(id);
-			if(this.lamrSet.size() == 50) {
+			if(this.lamrSet.size() == LAMR_BATCH_SIZE) {
 				executeLamrQuery();
 			}
 		}
@@ -634,42 +898,49 @@ public class WOSFetch {
 			}
 			
 			// fetch records
-			int recordsFound,lastRec,count;
-			log.info("Beginning Search");
-			do {
-				log.trace("Executing Search");
-				ByteArrayOutputStream searchResponse = new ByteArrayOutputStream();
-				new SOAPMessenger(this.searchUrl, searchResponse, this.searchString, this.authCode, null).execute();
-				String searchResp = searchResponse.toString("UTF-8");
-				
-				String recFound = XMLAide.getXPathResultFromString(searchResp, "//recordsFound");
-				log.debug("Records Found = \"" + recFound + "\"");
-				if(StringUtils.isBlank(recFound)) {
-					log.error(searchResp);
+			initSearchTemplate();
+			this.searchLimiter = RateLimiter.create(this.requestRate);
+			ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+			try {
+				log.info("Beginning Search");
+				int pageFirstRecord = this.firstRecord;
+				int recordsFound = -1;
+				Future<String> pending = requestSearchPage(searchExecutor, pageFirstRecord);
+				while(pending != null) {
+					String searchResp = getResponse(pending);
+					int nextFirstRecord = pageFirstRecord + this.pageSize;
+					// once the total is known, request the next page while this one is parsed and written
+					pending = null;
+					if(recordsFound >= 0 && nextFirstRecord <= recordsFound) {
+						pending = requestSearchPage(searchExecutor, nextFirstRecord);
+					}
+					
+					log.trace("Extracting Search Records");
+					String recFound = processSearchResponse(searchResp);
+					log.debug("Records Found = \"" + recFound + "\"");
+					if(StringUtils.isBlank(recFound)) {
+						log.error(searchResp);
+						throw new IOException("Search response did not contain recordsFound");
+					}
+					recordsFound = Integer.parseInt(recFound);
+					int lastRec = Math.min(this.pageSize, recordsFound) + pageFirstRecord - 1;
+					log.debug("Records left = " + (recordsFound - lastRec));
+					if(pending == null && lastRec < recordsFound) {
+						pending = requestSearchPage(searchExecutor, nextFirstRecord);
+					}
+					pageFirstRecord = nextFirstRecord;
+					writeLamrResults(false);
 				}
-				String searchCount = XMLAide.getXPathResultFromString(this.searchString, "//retrieveParameters/count");
-				log.debug("Search count = \"" + searchCount + "\"");
-				String firstrecord = XMLAide.getXPathResultFromString(this.searchString, "//retrieveParameters/firstRecord");
-				log.debug("first record = \"" + firstrecord + "\"");
-				
-				log.trace("Extracting Search Records");
-				for(Entry<String, String> x : extractSearchRecords(searchResp).entrySet()) {
-					writeRecord(x.getKey(), x.getValue());
+				if(this.lamrUrl != null) {
+					executeLamrQuery();
+				}
+				writeLamrResults(true);
+			} finally {
+				searchExecutor.shutdownNow();
+				if(this.lamrExecutor != null) {
+					this.lamrExecutor.shutdownNow();
+					this.lamrExecutor = null;
 				}
-				count = Integer.parseInt(searchCount);
-				recordsFound = Integer.parseInt(recFound);
-				lastRec = Math.min(count, recordsFound) + Integer.parseInt(firstrecord) - 1;
-				int left = recordsFound - lastRec;
-				log.debug("Records left = " + left);
-				this.searchString = getnextQuery(this.searchString);
-				try {
-					Thread.sleep(600); // do nothing for 600 miliseconds (1000 miliseconds = 1 second)
-				} catch(InterruptedException e) {
-					log.error(e.getMessage(), e);
-				} 
-			} while(lastRec < recordsFound);
-			if(this.lamrUrl != null) {
-				executeLamrQuery();
 			}
 		}
 		log.info("Retrieved "+this.totalRecordsFound+" Records");
@@ -711,6 +982,8 @@ public class WOSFetch {
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of output recordhandler using VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('z').setLongOpt("reuseSession").withParameter(true, "SESSIONSAVEFILE").setDescription("Save the session authCode in this file path, reusing session if already existing").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("terminateSession").setDescription("Terminate the reused session, do nothing else").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('q').setLongOpt("requestRate").withParameter(true, "REQUESTS_PER_SECOND").setDescription("maximum number of search requests sent per second - default 1.6").setDefaultValue("1.6").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("lamrThreads").withParameter(true, "NUM_THREADS").setDescription("number of LAMR batches sent concurrently - default 4").setDefaultValue("4").setRequired(false));
 		return parser;
 	}
 	
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.fetch.linkeddata;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.fetch.linkeddata.service.LinkedDataResponse;
+import org.vivoweb.harvester.util.FileAide;
+
+/**
+ * Remembers the ETag and Last-Modified validators of each fetched uri between runs so that unchanged resources can be
+ * requested conditionally. Stored as one tab separated line per uri: uri, etag, last-modified.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class ConditionalGetCache {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(ConditionalGetCache.class);
+	/**
+	 * the file the validators are stored in
+	 */
+	private final String cacheFile;
+	/**
+	 * the validators by uri
+	 */
+	private final Map<String, LinkedDataResponse> validators = new ConcurrentHashMap<String, LinkedDataResponse>();
+	
+	/**
+	 * Constructor
+	 * @param cacheFile the file the validators are stored in
+	 * @throws IOException error reading the file
+	 */
+	public ConditionalGetCache(String cacheFile) throws IOException {
+		this.cacheFile = cacheFile;
+		if(FileAide.exists(cacheFile)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(FileAide.getInputStream(cacheFile), "UTF-8"));
+			try {
+				String line;
+				while((line = in.readLine()) != null) {
+					String[] fields = line.split("\t", -1);
+					if(fields.length == 3) {
+						this.validators.put(fields[0], new LinkedDataResponse(fields[0], null, StringUtils.trimToNull(fields[1]), StringUtils.trimToNull(fields[2])));
+					}
+				}
+			} finally {
+				in.close();
+			}
+			log.debug("Loaded validators for " + this.validators.size() + " uris");
+		}
+	}
+	
+	/**
+	 * Get the validators of the last fetch of a uri
+	 * @param uri the uri
+	 * @return the validators, null if never fetched
+	 */
+	public LinkedDataResponse get(String uri) {
+		return this.validators.get(uri);
+	}
+	
+	/**
+	 * Remember the validators of a response
+	 * @param response the response
+	 */
+	public void update(LinkedDataResponse response) {
+		if(response.hasValidators()) {
+			this.validators.put(response.getUri(), new LinkedDataResponse(response.getUri(), null, response.getETag(), response.getLastModified()));
+		} else {
+			this.validators.remove(response.getUri());
+		}
+	}
+	
+	/**
+	 * Write the validators back to the cache file
+	 * @throws IOException error writing the file
+	 */
+	public void save() throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(FileAide.getOutputStream(this.cacheFile), "UTF-8"));
+		try {
+			for(LinkedDataResponse v : this.validators.values()) {
+				out.print(v.getUri());
+				out.print('\t');
+				out.print(StringUtils.defaultString(v.getETag()));
+				out.print('\t');
+				out.println(StringUtils.defaultString(v.getLastModified()));
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -7,20 +7,28 @@ package org.vivoweb.harvester.fetch.linkeddata;
 
 import java.io.IOException; 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.client.config.RequestConfig;
-import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.fetch.linkeddata.discovery.DiscoverUrisUsingListrdf;
 import org.vivoweb.harvester.fetch.linkeddata.discovery.DiscoveryWorker;
+import org.vivoweb.harvester.fetch.linkeddata.discovery.DiscoveryIterationException;
 import org.vivoweb.harvester.fetch.linkeddata.discovery.DiscoveryWorkerException;
 import org.vivoweb.harvester.fetch.linkeddata.service.HttpLinkedDataService;
-import org.vivoweb.harvester.fetch.linkeddata.service.LinkedDataService;
+import org.vivoweb.harvester.fetch.linkeddata.service.LinkedDataResponse;
 import org.vivoweb.harvester.fetch.linkeddata.util.http.BasicHttpWorker;
+import org.vivoweb.harvester.fetch.linkeddata.util.http.HostRateLimiter;
 import org.vivoweb.harvester.fetch.linkeddata.util.http.HttpWorker;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.args.ArgDef;
@@ -28,6 +36,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.RecordHandler;
+import org.vivoweb.harvester.util.repo.RecordMetaData;
  
 
 /**
@@ -65,6 +74,31 @@ public class LinkedDataFetch  {
 	 * format of the output
 	 */
 	private String format;
+	
+	/**
+	 * number of requests in flight at once
+	 */
+	private int threads = 1;
+	
+	/**
+	 * maximum requests per second sent to each host, 0 for no limit
+	 */
+	private double hostRate = 0;
+	
+	/**
+	 * file holding the ETag/Last-Modified validators of the previous run, null to disable conditional requests
+	 */
+	private String validatorCacheFile;
+	
+	/**
+	 * number of records added
+	 */
+	private int added = 0;
+	
+	/**
+	 * number of records skipped as unchanged
+	 */
+	private int unchanged = 0;
 	 
 	/**
      * @return the rhOutput
@@ -96,6 +130,34 @@ public class LinkedDataFetch  {
 		this.format = format;
 	}
     
+    /**
+     * Set the number of requests in flight at once
+     * @param threads number of concurrent requests
+     */
+    public void setThreads(int threads) {
+    	if(threads < 1) {
+    		throw new IllegalArgumentException("Must use at least one thread");
+    	}
+    	this.threads = threads;
+    }
+    
+    /**
+     * Set the maximum number of requests per second sent to each host
+     * @param hostRate requests per second, 0 for no limit
+     */
+    public void setHostRate(double hostRate) {
+    	this.hostRate = hostRate;
+    }
+    
+    /**
+     * Set the file holding the ETag/Last-Modified validators between runs, enabling conditional requests. Record ids
+     * are then derived from the fetched uri so that unchanged resources keep their existing record.
+     * @param validatorCacheFile the file path, null to disable
+     */
+    public void setValidatorCacheFile(String validatorCacheFile) {
+    	this.validatorCacheFile = validatorCacheFile;
+    }
+    
 	/**
 	 * connection timeout
 	 */
@@ -140,6 +202,10 @@ public class LinkedDataFetch  {
 		if(this.format == null) {
 			this.format = "rdfxml";
 		}
+		
+		setThreads(Integer.parseInt(argList.get("t")));
+		setHostRate(Double.parseDouble(argList.get("r")));
+		setValidatorCacheFile(argList.get("c"));
 	}
 	
 	/**
@@ -164,7 +230,10 @@ public class LinkedDataFetch  {
 	 */
 	public void execute() throws IOException {
 		// Model m = output.getJenaModel();
-		HttpClientConnectionManager connManager = new BasicHttpClientConnectionManager();
+		// one connection per fetch thread plus one for the listrdf stream being discovered from
+		PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+		connManager.setMaxTotal(this.threads + 1);
+		connManager.setDefaultMaxPerRoute(this.threads + 1);
 		RequestConfig requestConfig = RequestConfig.custom()
 	            .setSocketTimeout(TIMEOUT * 1000)
 	            .setConnectTimeout(TIMEOUT * 1000)
@@ -179,9 +248,13 @@ public class LinkedDataFetch  {
 		HttpWorker httpWorker = new BasicHttpWorker(httpclient);		 
 		DiscoveryWorker discovery = new DiscoverUrisUsingListrdf(this.vClasses, httpWorker);
 		
-		LinkedDataService linkedDataService = new HttpLinkedDataService(httpclient);
-		int recid = 0;
-		int total = 0;
+		final HttpLinkedDataService linkedDataService = new HttpLinkedDataService(httpclient);
+		final HostRateLimiter rateLimiter = new HostRateLimiter(this.hostRate);
+		final ConditionalGetCache validators = (this.validatorCacheFile == null) ? null : new ConditionalGetCache(this.validatorCacheFile);
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+		CompletionService<LinkedDataResponse> completed = new ExecutorCompletionService<LinkedDataResponse>(pool);
+		int inFlight = 0;
+		boolean finished = false;
 		try {
 		   Iterable<String> uris = discovery.getUrisForSite(this.url);
 		   String individualID = new String();
@@ -209,28 +282,77 @@ public class LinkedDataFetch  {
 			   }
 			   //log.info("uri: "+uri);
 			   log.info("lduri: "+lduri);
-			   try {
-			      String linkedData = linkedDataService.getLinkedData(lduri );
-			      //String linkedData =  getLinkedDataRDF(lduri, httpWorker);
-			      //String linkedData =  getLinkedData(lduri );
-			      //log.info(linkedData);
-			      this.rhOutput.addRecord("ID_" + recid, linkedData, this.getClass());
-			      recid++; total++;
-			   } catch (Exception ex) {
-				  log.error(ex.getMessage());   
+			   final String fetchUri = lduri;
+			   completed.submit(new Callable<LinkedDataResponse>() {
+				   @Override
+				   public LinkedDataResponse call() throws Exception {
+					   rateLimiter.acquire(fetchUri);
+					   return linkedDataService.getLinkedData(fetchUri, (validators == null) ? null : validators.get(fetchUri));
+				   }
+			   });
+			   inFlight++;
+			   // keep a bounded number of requests queued, writing each record as soon as it arrives
+			   if (inFlight >= 2 * this.threads) {
+				   writeResponse(completed.take(), validators);
+				   inFlight--;
 			   }
 		   }
+		   while (inFlight > 0) {
+			   writeResponse(completed.take(), validators);
+			   inFlight--;
+		   }
+		   finished = true;
 		} catch (DiscoveryWorkerException e) {
 			log.error(e.getMessage());
 			log.debug("Stacktrace:",e);	
+		} catch (DiscoveryIterationException e) {
+			log.error(e.getCause().getMessage());
+			log.debug("Stacktrace:",e.getCause());
 		} catch (Exception e) {
 			log.error(e.getMessage());
 			log.debug("Stacktrace:",e);
 		} finally {
+			pool.shutdownNow();
 		    httpclient.close();	
 		}
+		if (finished && validators != null) {
+			validators.save();
+		}
 		 
-		log.info("Added " + total + " Records");
+		log.info("Added " + this.added + " Records");
+		if (validators != null) {
+			log.info("Skipped " + this.unchanged + " Unchanged Records");
+		}
+	}
+	
+	/**
+	 * Write a fetched record to the output
+	 * @param result the finished request
+	 * @param validators the validator cache, null if not using conditional requests
+	 * @throws IOException error writing record
+	 * @throws InterruptedException interrupted waiting for the request
+	 */
+	private void writeResponse(Future<LinkedDataResponse> result, ConditionalGetCache validators) throws IOException, InterruptedException {
+		LinkedDataResponse response;
+		try {
+			response = result.get();
+		} catch (ExecutionException ex) {
+			log.error(ex.getCause().getMessage());
+			return;
+		}
+		if (validators == null) {
+			this.rhOutput.addRecord("ID_" + this.added, response.getData(), this.getClass());
+			this.added++;
+			return;
+		}
+		validators.update(response);
+		if (response.isNotModified()) {
+			log.trace("unchanged: " + response.getUri());
+			this.unchanged++;
+		} else {
+			this.rhOutput.addRecord("ID_" + RecordMetaData.md5hex(response.getUri()), response.getData(), this.getClass());
+			this.added++;
+		}
 	}
 	
 	/**
@@ -245,6 +367,9 @@ public class LinkedDataFetch  {
 		parser.addArgument(new ArgDef().setShortOption('v').setLongOpt("vclass").withParameterValueMap("VCLASS", "TYPE").setDescription("the vclasses to be displayed").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('I').setLongOpt("include").withParameterValueMap("INCLUDE", "dir").setDescription("rich export includes, use all for all directories").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('f').setLongOpt("format").withParameter(true, "FORMAT").setDescription("output format").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("threads").withParameter(true, "NUM_THREADS").setDescription("number of requests in flight at once - default 1").setDefaultValue("1").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("hostRate").withParameter(true, "REQUESTS_PER_SECOND").setDescription("maximum requests per second sent to each host - default 0 (no limit)").setDefaultValue("0").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("validatorCache").withParameter(true, "CACHE_FILE").setDescription("file remembering ETag/Last-Modified of each uri between runs, enables conditional requests and uri based record ids").setRequired(false));
 		return parser;
 	}
 	
@@ -2,20 +2,28 @@
 
 package org.vivoweb.harvester.fetch.linkeddata.discovery;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.vivoweb.harvester.fetch.linkeddata.util.XPathHelper;
-import org.vivoweb.harvester.fetch.linkeddata.util.XPathHelper.XpathHelperException;
 import org.vivoweb.harvester.fetch.linkeddata.util.http.HttpWorker;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node; 
 
 /**
  * Do the discovery using [vivo]/listrdf.
  * 
+ * The listing for each class is not requested until the previous class is
+ * exhausted, and is parsed incrementally, so the URIs are handed out as they
+ * arrive. A URI that was already handed out for an earlier class is skipped.
+ * 
  * This does not work on a large VIVO installations, because listrdf won't bring back more than
  * 30,000 individuals per class.
  */
@@ -23,44 +31,131 @@ public class DiscoverUrisUsingListrdf extends BaseDiscoveryWorker {
 	private static final Log log = LogFactory
 			.getLog(DiscoverUrisUsingListrdf.class);
 
-	private static final String XPATH_TO_INDIVIDUAL_URI = "//rdf:Description/@rdf:about";
+	private static final String RDF_NS = XPathHelper.RDF_PREFIX.nsUri;
+
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+	static {
+		xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
 
 	private final HttpWorker http;
 
+	/** the URIs handed out so far, across all classes. */
+	private final UriHashSet seen = new UriHashSet();
+
 	public DiscoverUrisUsingListrdf(Iterable<String> classUris, HttpWorker http) {
 		super(classUris);
 		this.http = http;
 	}
 
 	@Override
-	protected Iterable<String> getUrisForClassAtSite(String siteUrl,
-			String classUri) throws DiscoveryWorkerException {
-		try {
-			Document uriList = http.post(siteUrl + "/listrdf")
-					.parameter("vclass", classUri).asXML().execute();
-			Set<String> uris = parseUriList(uriList);
-			if (uris.size() >= 30000) {
+	protected Iterable<String> getUrisForClassAtSite(final String siteUrl,
+			final String classUri) throws DiscoveryWorkerException {
+		return new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new ListrdfIterator(siteUrl, classUri);
+			}
+		};
+	}
+
+	/**
+	 * Reads the rdf:about of each rdf:Description from the listrdf response as
+	 * it is requested. The request is sent on the first call to hasNext(). A
+	 * failed request or unreadable response is thrown from hasNext() as a
+	 * DiscoveryIterationException.
+	 */
+	private class ListrdfIterator implements Iterator<String> {
+		private final String siteUrl;
+		private final String classUri;
+		private InputStream stream;
+		private XMLStreamReader reader;
+		private String next;
+		private boolean done = false;
+		private int count = 0;
+
+		ListrdfIterator(String siteUrl, String classUri) {
+			this.siteUrl = siteUrl;
+			this.classUri = classUri;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = readNext();
+				} catch (Exception e) {
+					close();
+					throw new DiscoveryIterationException(
+							new DiscoveryWorkerException(
+									"Can't continue. Failed to read the URLs for class '"
+											+ classUri + "' at site '" + siteUrl
+											+ "'", e));
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String uri = next;
+			next = null;
+			return uri;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private String readNext() throws Exception {
+			if (reader == null) {
+				stream = http.post(siteUrl + "/listrdf")
+						.parameter("vclass", classUri).asStream().execute();
+				reader = xmlInputFactory.createXMLStreamReader(stream);
+			}
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT
+						|| !"Description".equals(reader.getLocalName())
+						|| !RDF_NS.equals(reader.getNamespaceURI())) {
+					continue;
+				}
+				String uri = reader.getAttributeValue(RDF_NS, "about");
+				if (uri == null) {
+					continue;
+				}
+				count++;
+				if (seen.add(uri)) {
+					return uri;
+				}
+			}
+			if (count >= 30000) {
 				log.error("Site '" + siteUrl + "' maxed out on 30,000 "
 						+ "individual URIs for class '" + classUri + "'");
 			}
-			return uris;
-		} catch (Exception e) {
-			throw new DiscoveryWorkerException(
-					"Can't continue. Failed to read the URLs for class '"
-							+ classUri + "' at site '" + siteUrl + "'", e);
+			close();
+			return null;
 		}
-	}
 
-	private Set<String> parseUriList(Document uriListDoc)
-			throws XpathHelperException {
-		Set<String> uris = new HashSet<>();
-		XPathHelper xp = XPathHelper.getHelper(XPathHelper.RDF_PREFIX);
-		Node rootNode = uriListDoc.getDocumentElement();
-	 
-		   for (Node node : xp.findNodes(XPATH_TO_INDIVIDUAL_URI, rootNode)) {
-			   uris.add(node.getNodeValue());
-		   }
-	  
-		return uris;
+		private void close() {
+			done = true;
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+			} catch (XMLStreamException e) {
+				log.debug("could not close listrdf reader", e);
+			}
+			try {
+				if (stream != null) {
+					stream.close();
+				}
+			} catch (IOException e) {
+				log.debug("could not close listrdf stream", e);
+			}
+		}
 	}
 }
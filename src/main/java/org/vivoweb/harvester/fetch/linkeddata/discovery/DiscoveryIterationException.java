@@ -0,0 +1,22 @@
+/* $This file is distributed under the terms of the license in /doc/license.txt$ */
+
+package org.vivoweb.harvester.fetch.linkeddata.discovery;
+
+/**
+ * Carries a DiscoveryWorkerException out of the Iterator returned by
+ * DiscoveryWorker.getUrisForSite, whose hasNext() and next() cannot throw a
+ * checked exception. Callers should catch this and handle getCause() as they
+ * would a DiscoveryWorkerException thrown by getUrisForSite itself.
+ */
+public class DiscoveryIterationException extends RuntimeException {
+	private static final long serialVersionUID = -3571840228367291547L;
+
+	public DiscoveryIterationException(DiscoveryWorkerException cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	@Override
+	public synchronized DiscoveryWorkerException getCause() {
+		return (DiscoveryWorkerException) super.getCause();
+	}
+}
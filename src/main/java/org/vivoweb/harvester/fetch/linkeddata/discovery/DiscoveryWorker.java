@@ -6,6 +6,12 @@ package org.vivoweb.harvester.fetch.linkeddata.discovery;
  * A class that does URI discovery.
  */
 public interface DiscoveryWorker {
+	/**
+	 * Discover the individual URIs at a site. The URIs may be read lazily as
+	 * the Iterable is iterated, in which case a failure part way through is
+	 * thrown from hasNext() or next() as a DiscoveryIterationException whose
+	 * cause is the DiscoveryWorkerException.
+	 */
 	Iterable<String> getUrisForSite(String siteUrl)
 			throws DiscoveryWorkerException;
 }
@@ -0,0 +1,81 @@
+/* $This file is distributed under the terms of the license in /doc/license.txt$ */
+
+package org.vivoweb.harvester.fetch.linkeddata.discovery;
+
+/**
+ * A compact set of URIs, kept as the URI strings in an open-addressed array
+ * rather than as HashMap entries, about 4-8 bytes per URI on top of the
+ * strings themselves.
+ * 
+ * The strings are compared on every hash hit, so two URIs that share a hash
+ * are still both handed out.
+ */
+public class UriHashSet {
+	/** null marks an empty slot. */
+	private String[] slots = new String[1024];
+	private int size = 0;
+
+	/**
+	 * Add the URI to the set.
+	 * 
+	 * @return true if the URI was not already in the set.
+	 */
+	public synchronized boolean add(String uri) {
+		if (uri == null) {
+			throw new IllegalArgumentException("uri may not be null");
+		}
+		if ((size + 1) * 2 > slots.length) {
+			grow();
+		}
+		if (insert(slots, uri)) {
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized boolean contains(String uri) {
+		int mask = slots.length - 1;
+		int i = spread(uri.hashCode()) & mask;
+		while (slots[i] != null) {
+			if (slots[i].equals(uri)) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void grow() {
+		String[] bigger = new String[slots.length * 2];
+		for (String uri : slots) {
+			if (uri != null) {
+				insert(bigger, uri);
+			}
+		}
+		slots = bigger;
+	}
+
+	private static boolean insert(String[] table, String uri) {
+		int mask = table.length - 1;
+		int i = spread(uri.hashCode()) & mask;
+		while (table[i] != null) {
+			if (table[i].equals(uri)) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = uri;
+		return true;
+	}
+
+	/** Mix the high bits of the hash into the low bits used for the slot. */
+	private static int spread(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
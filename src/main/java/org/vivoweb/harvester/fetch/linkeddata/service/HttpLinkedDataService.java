@@ -2,15 +2,14 @@ package org.vivoweb.harvester.fetch.linkeddata.service;
 
 
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.commons.httpclient.HttpStatus; 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -19,12 +18,14 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 
 import org.apache.jena.rdf.model.Model;
+import org.vivoweb.harvester.util.HttpCache;
 
 /**
  * A class to use apache commons HttpClient to make
  * requests for RDF.
  *
- * Redirects are handled by HttpClient.
+ * Redirects are handled by HttpClient. Requests go through the shared
+ * HttpCache when one is configured.
  *
  * TODO:
  * deal with connection refused
@@ -70,7 +71,7 @@ public class HttpLinkedDataService implements LinkedDataService {
         HttpGet get = new HttpGet(uri);
         get.setHeader("Accept", RDF_ACCEPT_HEADER);
         //get.setHeader("Content-Type", RDF_CONTENT_TYPE);
-        HttpResponse resp = http.execute( get );
+        HttpResponse resp = HttpCache.execute( http, get );
         try{
             responseToModel(uri,m,resp);
         }catch(Exception ex){
@@ -88,7 +89,7 @@ public class HttpLinkedDataService implements LinkedDataService {
             
              
             
-            HttpResponse resp = http.execute( get );
+            HttpResponse resp = HttpCache.execute( http, get );
             String ld = new String();
             try{
                 ld = responseToString(uri, resp);
@@ -100,6 +101,46 @@ public class HttpLinkedDataService implements LinkedDataService {
             return ld;
         }
 
+    /**
+     * Get RDF for URI as a String, sending a conditional GET when validators
+     * from a previous fetch of the URI are known.
+     * @param uri
+     * @param previous validators from the previous fetch, may be null.
+     * @return the response, with null data if the server answered 304 Not Modified.
+     * @throws Throws descriptive Exception if things go wrong.
+     */
+    public LinkedDataResponse getLinkedData( String uri, LinkedDataResponse previous )
+        throws Exception {
+        log.trace("getLinkedData "+uri);
+        HttpGet get = new HttpGet(uri);
+        get.setHeader("Accept", RDF_ACCEPT_HEADER);
+        if( previous != null ){
+            if( previous.getETag() != null )
+                get.setHeader("If-None-Match", previous.getETag());
+            if( previous.getLastModified() != null )
+                get.setHeader("If-Modified-Since", previous.getLastModified());
+        }
+        HttpResponse resp = HttpCache.execute( http, get );
+        try{
+            if( resp.getStatusLine() != null &&
+                resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED &&
+                previous != null ){
+                return new LinkedDataResponse(uri, null, previous.getETag(), previous.getLastModified());
+            }
+            return new LinkedDataResponse(uri, responseToString(uri, resp),
+                headerValue(resp, "ETag"), headerValue(resp, "Last-Modified"));
+        } catch(Exception ex){
+            throw new Exception("could not get LD for " + uri + " " , ex);
+        } finally{
+            close( resp );
+        }
+    }
+
+    protected String headerValue( HttpResponse response, String name ){
+        Header header = response.getFirstHeader(name);
+        return (header == null) ? null : header.getValue();
+    }
+
 
     protected void responseToModel(String uri, Model m, HttpResponse response)
         throws Exception {
@@ -149,10 +190,7 @@ public class HttpLinkedDataService implements LinkedDataService {
                                     " status: " + response.getStatusLine() );
             } else {
             	try {
-                  InputStream is = entity.getContent();
-                  StringWriter writer = new StringWriter();
-                  IOUtils.copy(is, writer, "UTF-8");
-                  ld = writer.toString();
+                  ld = EntityUtils.toString(entity, "UTF-8");
                 } catch (Exception ex ){
                     throw new Exception("Could not parse RDF for " + uri
                         + " status: " + response.getStatusLine() + " "
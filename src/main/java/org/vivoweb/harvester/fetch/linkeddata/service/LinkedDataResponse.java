@@ -0,0 +1,58 @@
+package org.vivoweb.harvester.fetch.linkeddata.service;
+
+/**
+ * The result of a (possibly conditional) linked data request, along with the
+ * validators the server sent for it.
+ */
+public class LinkedDataResponse {
+    private final String uri;
+    private final String data;
+    private final String etag;
+    private final String lastModified;
+
+    /**
+     * @param uri the requested uri
+     * @param data the response body, null when the server reported the data unchanged
+     * @param etag the ETag header of the response, may be null
+     * @param lastModified the Last-Modified header of the response, may be null
+     */
+    public LinkedDataResponse(String uri, String data, String etag, String lastModified) {
+        this.uri = uri;
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * @return the response body, null when not modified
+     */
+    public String getData() {
+        return data;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return true if the server reported the data unchanged since the validators were issued
+     */
+    public boolean isNotModified() {
+        return data == null;
+    }
+
+    /**
+     * @return true if there is anything to send in a conditional request
+     */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+}
@@ -2,6 +2,7 @@
 
 package org.vivoweb.harvester.fetch.linkeddata.util.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.List;
@@ -19,6 +20,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URLEncodedUtils; 
 import org.vivoweb.harvester.fetch.linkeddata.util.http.BasicHttpWorkerRequest.StringHttpWorkerRequest;
 import org.vivoweb.harvester.fetch.linkeddata.util.http.HttpWorkerRequest.Method;
+import org.vivoweb.harvester.util.HttpCache;
 
 /**
  * The basic implementation of the HttpClient.
@@ -64,7 +66,7 @@ public class BasicHttpWorker implements HttpWorker {
 				: buildPostMethod(request);
 
 		try {
-			HttpResponse hresp = httpClient.execute(hreq);
+			HttpResponse hresp = HttpCache.execute(httpClient, hreq);
 			try (InputStream stream = hresp.getEntity().getContent()) {
 				String responseBody = (stream == null) ? "" : IOUtils.toString(
 						stream, "UTF-8");
@@ -81,6 +83,43 @@ public class BasicHttpWorker implements HttpWorker {
 		}
 	}
 
+	/**
+	 * Execute the request and hand back the open response stream. Closing the
+	 * stream releases the connection.
+	 * 
+	 * @throws HttpBadStatusException
+	 *             if the response status is not 200 OK.
+	 * @throws HttpWorkerException
+	 *             on any other problem.
+	 */
+	protected InputStream openRequest(BasicHttpWorkerRequest<?> request)
+			throws HttpWorkerException {
+		HttpRequestBase hreq = (request.getMethod() == Method.GET) ? buildGetMethod(request)
+				: buildPostMethod(request);
+
+		try {
+			HttpResponse hresp = HttpCache.execute(httpClient, hreq);
+			if (hresp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+				try (InputStream stream = hresp.getEntity().getContent()) {
+					String responseBody = (stream == null) ? "" : IOUtils
+							.toString(stream, "UTF-8");
+					throw new HttpBadStatusException(request,
+							hresp.getStatusLine(), responseBody);
+				} finally {
+					hreq.releaseConnection();
+				}
+			}
+			InputStream stream = hresp.getEntity().getContent();
+			return (stream == null) ? new ByteArrayInputStream(new byte[0])
+					: stream;
+		} catch (HttpWorkerException e) {
+			throw e;
+		} catch (Exception e) {
+			hreq.releaseConnection();
+			throw new HttpWorkerException(e);
+		}
+	}
+
 	private HttpPost buildPostMethod(BasicHttpWorkerRequest<?> request) {
 		HttpPost post = new HttpPost(request.getUrlWithoutParameters());
 		post.setEntity(new UrlEncodedFormEntity(request.getParameters(), utf8));
@@ -2,6 +2,7 @@ package org.vivoweb.harvester.fetch.linkeddata.util.http;
 
 /* $This file is distributed under the terms of the license in /doc/license.txt$ */
 
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -65,6 +66,10 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 		return url;
 	}
 
+	protected BasicHttpWorker getWorker() {
+		return worker;
+	}
+
 	public Method getMethod() {
 		return method;
 	}
@@ -102,12 +107,12 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 	}
 
 	@Override
-	public T execute() throws HttpWorkerException {
-		return processResponse(worker.executeRequest(this));
+	public HttpWorkerRequest<InputStream> asStream() {
+		return new StreamHttpWorkerRequest(this);
 	}
 
-	protected abstract T processResponse(String string)
-			throws HttpWorkerException;
+	@Override
+	public abstract T execute() throws HttpWorkerException;
 
 	/**
 	 * Move parameters from the URL, so they will all be in the same place.
@@ -147,7 +152,30 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 	// Specialized sub-classes
 	// ----------------------------------------------------------------------
 
-	static class StringHttpWorkerRequest extends BasicHttpWorkerRequest<String> {
+	/**
+	 * A request whose response body is read into a String and then converted.
+	 */
+	abstract static class ReadHttpWorkerRequest<T> extends
+			BasicHttpWorkerRequest<T> {
+		protected ReadHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
+			super(base);
+		}
+
+		public ReadHttpWorkerRequest(BasicHttpWorker worker, String url,
+				Method method) throws HttpWorkerException {
+			super(worker, url, method);
+		}
+
+		@Override
+		public T execute() throws HttpWorkerException {
+			return processResponse(getWorker().executeRequest(this));
+		}
+
+		protected abstract T processResponse(String string)
+				throws HttpWorkerException;
+	}
+
+	static class StringHttpWorkerRequest extends ReadHttpWorkerRequest<String> {
 		protected StringHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
 			super(base);
 		}
@@ -164,7 +192,7 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 	}
 
 	static class XmlHttpWorkerRequest extends
-			BasicHttpWorkerRequest<org.w3c.dom.Document> {
+			ReadHttpWorkerRequest<org.w3c.dom.Document> {
 		protected XmlHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
 			super(base);
 		}
@@ -182,7 +210,7 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 	}
 
 	static class JSoupHttpWorkerRequest extends
-			BasicHttpWorkerRequest<org.jsoup.nodes.Document> {
+			ReadHttpWorkerRequest<org.jsoup.nodes.Document> {
 		protected JSoupHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
 			super(base);
 		}
@@ -193,7 +221,24 @@ public abstract class BasicHttpWorkerRequest<T> implements HttpWorkerRequest<T>
 		}
 	}
 
-	static class JenaHttpWorkerRequest extends BasicHttpWorkerRequest<Model> {
+	/**
+	 * A request whose response body is handed back unread, so it does not
+	 * extend ReadHttpWorkerRequest.
+	 */
+	static class StreamHttpWorkerRequest extends
+			BasicHttpWorkerRequest<InputStream> {
+		protected StreamHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
+			super(base);
+		}
+
+		/** Hand back the open response stream rather than reading it. */
+		@Override
+		public InputStream execute() throws HttpWorkerException {
+			return getWorker().openRequest(this);
+		}
+	}
+
+	static class JenaHttpWorkerRequest extends ReadHttpWorkerRequest<Model> {
 		protected JenaHttpWorkerRequest(BasicHttpWorkerRequest<?> base) {
 			super(base);
 		}
@@ -0,0 +1,46 @@
+/* $This file is distributed under the terms of the license in /doc/license.txt$ */
+
+package org.vivoweb.harvester.fetch.linkeddata.util.http;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the rate of requests sent to each host, independently of the others.
+ * 
+ * A rate of zero or less disables the limit.
+ */
+public class HostRateLimiter {
+	private final double permitsPerSecond;
+
+	private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+	public HostRateLimiter(double permitsPerSecond) {
+		this.permitsPerSecond = permitsPerSecond;
+	}
+
+	/**
+	 * Block until a request to the host of this url is allowed.
+	 */
+	public void acquire(String url) {
+		if (permitsPerSecond <= 0) {
+			return;
+		}
+		String host = URI.create(url).getHost();
+		if (host == null) {
+			host = "";
+		}
+		RateLimiter limiter = limiters.get(host);
+		if (limiter == null) {
+			RateLimiter created = RateLimiter.create(permitsPerSecond);
+			limiter = limiters.putIfAbsent(host, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		limiter.acquire();
+	}
+}
@@ -28,6 +28,12 @@ public interface HttpWorkerRequest<T> {
 
 	HttpWorkerRequest<Model> asModel();
 
+	/**
+	 * The response body as an open stream. The caller must close it, which
+	 * releases the connection.
+	 */
+	HttpWorkerRequest<java.io.InputStream> asStream();
+
 	// ----------------------------------------------------------------------
 	// Send the request and get the response
 	// ----------------------------------------------------------------------
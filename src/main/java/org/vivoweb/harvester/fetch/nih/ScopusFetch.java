@@ -8,20 +8,29 @@ package org.vivoweb.harvester.fetch.nih;
 import gov.nih.nlm.ncbi.www.soap.eutils.EFetchPubmedServiceStub;
 import gov.nih.nlm.ncbi.www.soap.eutils.EFetchPubmedServiceStub.EFetchResult;
 import gov.nih.nlm.ncbi.www.soap.eutils.EFetchPubmedServiceStub.PubmedArticleSet_type0;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.namespace.QName;
@@ -30,9 +39,18 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.TransformerException;
 import org.apache.axis2.databinding.utils.writer.MTOMAwareXMLSerializer;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.RateLimiter;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.HttpCache;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.IterableAdaptor;
 import org.vivoweb.harvester.util.XMLAide;
@@ -132,10 +150,66 @@ public class ScopusFetch extends NIHFetch {
 	private List<Document> pubmedDocList = new ArrayList<Document>();
 	
 	/**
-	 * List to make sure there are no duplications of Scopus Doc Ids in the ScopusBean maps
-	 * across all authors.
+	 * Set to make sure there are no duplications of Scopus Doc Ids in the ScopusBean maps
+	 * across all authors. Authors are searched concurrently but claim their Doc Ids in input order, so the first
+	 * author in the input keeps a Doc Id.
 	 */
-	private List<String> scopusDocIdList = new ArrayList<String>();
+	private Set<String> scopusDocIdSet = new HashSet<String>();
+	
+	/**
+	 * Number of Scopus results requested per page
+	 */
+	private static final int SCOPUS_PAGE_SIZE = 200;
+	
+	/**
+	 * Number of DOIs searched for in one PubMed ESearch
+	 */
+	private static final int DOI_BATCH_SIZE = 100;
+	
+	/**
+	 * Number of Pubmed IDs fetched by one EFetch
+	 */
+	private static final int PMID_BATCH_SIZE = 200;
+	
+	/**
+	 * Number of times a request throttled by Scopus is retried
+	 */
+	private static final int MAX_RETRIES = 5;
+	
+	/**
+	 * Longest wait (in milliseconds) for the Scopus quota to reset before giving up
+	 */
+	private static final long MAX_QUOTA_WAIT = 60 * 60 * 1000L;
+	
+	/**
+	 * Maximum number of Scopus requests sent per second
+	 */
+	private double scopusRate = 3;
+	
+	/**
+	 * Number of Scopus author searches and document lookups run at once
+	 */
+	private int scopusThreads = 4;
+	
+	/**
+	 * Pooled client all Scopus requests are sent through
+	 */
+	private CloseableHttpClient httpClient;
+	
+	/**
+	 * Throttles all Scopus requests
+	 */
+	private RateLimiter scopusLimiter;
+	
+	/**
+	 * Time (in milliseconds) before which no Scopus request is sent, set when Scopus reports the quota exhausted
+	 */
+	private volatile long quotaResumeAt = 0;
+	
+	/**
+	 * Runs Scopus document lookups
+	 */
+	private ExecutorService lookupPool;
 	
 	/**
 	 * Constructor: Primary method for running a PubMed Fetch. The email address of the person responsible for this
@@ -168,6 +242,8 @@ public class ScopusFetch extends NIHFetch {
 		parser.addArgument(new ArgDef().setShortOption('a').setLongOpt("scopus-accept").withParameter(true, "SCOPUS_ACCEPT").setDescription("Scopus accept").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('f').setLongOpt("scopus-affiliation").withParameter(true, "SCOPUS_AFFILIATION").setDescription("Scopus affiliation").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("scopus-affiliation-linked").withParameter(true, "SCOPUS_AFFILIATION_LINKED").setDescription("Scopus affiliation linked").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("scopus-rate").withParameter(true, "REQUESTS_PER_SECOND").setDescription("maximum number of Scopus requests sent per second - default 3").setDefaultValue("3").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("scopus-threads").withParameter(true, "THREADS").setDescription("number of Scopus author searches and document lookups run at once - default 4").setDefaultValue("4").setRequired(false));
 		ArgList opts = parser.parse(args);
 		this.vivoJena = JenaConnect.parseConfig(opts.get("v"), null);
 		this.scopusApiKey = opts.get("k");
@@ -182,6 +258,8 @@ public class ScopusFetch extends NIHFetch {
 			this.scopusPubYearS = opts.get("s");
 			this.scopusPubYearE = opts.get("e");			
 		}
+		setScopusRate(Double.parseDouble(opts.get("r")));
+		setScopusThreads(Integer.parseInt(opts.get("p")));
 	}
 	
 	/**
@@ -193,78 +271,180 @@ public class ScopusFetch extends NIHFetch {
 		super(argList, database);
 	}
 	
+	/**
+	 * Set the maximum number of Scopus requests sent per second
+	 * @param requestsPerSecond the rate
+	 */
+	public void setScopusRate(double requestsPerSecond) {
+		if(requestsPerSecond <= 0) {
+			throw new IllegalArgumentException("scopus-rate must be greater than 0");
+		}
+		this.scopusRate = requestsPerSecond;
+	}
+	
+	/**
+	 * Set the number of Scopus author searches and document lookups run at once
+	 * @param threads the number of threads
+	 */
+	public void setScopusThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("scopus-threads must be at least 1");
+		}
+		this.scopusThreads = threads;
+	}
+	
 	@Override
 	public void execute() throws IOException {
 		// get scopus author id from vivo
 		getVivoScopusId();
 		
 		if(this.scopusIdMap.size() > 0) {
-			// connect to Scopus and get authtoken
-			boolean connected = initScopusConnect();
-	
-			if(connected) {
-				// iterate list of Scopus Author ID and get publication data
-				log.info("Query Scopus by Author ID: Start");
+			// author searches and document lookups each get a connection
+			PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+			connManager.setMaxTotal(this.scopusThreads * 2);
+			connManager.setDefaultMaxPerRoute(this.scopusThreads * 2);
+			this.httpClient = HttpClientBuilder.create().setConnectionManager(connManager).build();
+			this.scopusLimiter = RateLimiter.create(this.scopusRate);
+			ExecutorService searchPool = Executors.newFixedThreadPool(this.scopusThreads);
+			this.lookupPool = Executors.newFixedThreadPool(this.scopusThreads);
+			try {
+				// connect to Scopus and get authtoken
+				boolean connected = initScopusConnect();
 				
-				StringBuffer errMsg = new StringBuffer();
-				for(String key : this.scopusIdMap.keySet()) {
-					
-					String[] keySplit = key.split(",");
-					String scopusId = keySplit[1];
-					log.info("scopusId: " + scopusId);
-					
-					// query Scopus by Author ID
-					String scopusQueryResponse = scopusQueryByAuthorId(scopusId);
-	
-					// extract DOI from the query response and populate ScopusBeanMap
-					Map<String, ScopusBean> sbMap = new HashMap<String, ScopusBean>();
-					populateScopusBeanMap(scopusQueryResponse, sbMap, errMsg);
-
-					
-					// first round: query Pubmed and populate pubmedMap using Doi
-					Map<String, String> pubmedMap = new HashMap<String, String>();
-					if(errMsg.length() == 0) {
-						pubmedQueryByDoi(sbMap, pubmedMap, errMsg);
-					}
-					
-					// second round: 1) query Scopus by Doc ID to get Pubmed ID
-					List<String> pmidList = new ArrayList<String>();
-					if(errMsg.length() == 0) {
-						scopusQueryByDocId(sbMap, pmidList);
+				if(connected) {
+					// search Scopus by Author ID in the background, handling each author's results in input order
+					log.info("Query Scopus by Author ID: Start");
+					Deque<Future<AuthorSearch>> searches = new ArrayDeque<Future<AuthorSearch>>();
+					Iterator<String> keys = this.scopusIdMap.keySet().iterator();
+					while(searches.size() < this.scopusThreads && keys.hasNext()) {
+						searches.add(searchPool.submit(new AuthorSearch(keys.next().split(",")[1])));
 					}
-					
-					// second round: 2) query Pubmed and populate pubmedMap using Pubmed ID
-					if(errMsg.length() == 0) {
-						pubmedQueryByPubmedId(pmidList, sbMap, pubmedMap, errMsg);
-					}
-	
-					// finally: populate scopusMap with articles that are not found in Pubmed
-					Map<String, String> scopusMap = new HashMap<String, String>();
-					if(errMsg.length() == 0) {
-						try {
-							populateScopusMap(sbMap, scopusMap);
-							
-							// write to files
-							writeToFiles(scopusId, pubmedMap, scopusMap, errMsg);
-						} catch(TransformerException e) {
-							log.error(e.getMessage(), e);
+					while(!searches.isEmpty()) {
+						AuthorSearch search = getResult(searches.poll());
+						if(keys.hasNext()) {
+							searches.add(searchPool.submit(new AuthorSearch(keys.next().split(",")[1])));
 						}
+						processAuthor(search);
 					}
+					log.info("Query Scopus by Author ID: End");
 				}
-
-				log.info("Query Scopus by Author ID: End");
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while querying Scopus");
+			} finally {
+				searchPool.shutdownNow();
+				this.lookupPool.shutdownNow();
+				this.httpClient.close();
 			}
 		}
-
-		// for test purpose
-		//scopusQueryByAuthorId("36078494300"); // Shi, Lei
-		//scopusQueryByAuthorId("35969977300"); // Adelman, Ronald D
-		//scopusQueryByAuthorId("7102989382"); // Adelman, Ronald D
-		//scopusQueryByAuthorId("23019591700"); // Salemi, Arash
-		//scopusQueryByAuthorId("24435990700"); // Abramson, Erika
-		//scopusQueryByAuthorId("35117492000"); // Dorff, Kevin
-		//scopusQueryByAuthorId("6602462776"); // Campagne, Fabien
-		//scopusQueryByAuthorId("35328914300"); delete this
+	}
+	
+	/**
+	 * Look up the Pubmed records of an author's Scopus publications and write them out
+	 * @param search the completed Scopus search for the author
+	 */
+	private void processAuthor(AuthorSearch search) {
+		String scopusId = search.scopusId;
+		Map<String, ScopusBean> sbMap = search.sbMap;
+		StringBuffer errMsg = search.errMsg;
+		
+		// Doc Ids already claimed by an earlier author stay with that author
+		for(String docId : search.docIds) {
+			if(!this.scopusDocIdSet.add(docId)) {
+				sbMap.remove(docId);
+			}
+		}
+		
+		// first round: query Pubmed and populate pubmedMap using Doi
+		Map<String, String> pubmedMap = new HashMap<String, String>();
+		if(errMsg.length() == 0) {
+			pubmedQueryByDoi(sbMap, pubmedMap, errMsg);
+		}
+		
+		// second round: 1) query Scopus by Doc ID to get Pubmed ID
+		List<String> pmidList = new ArrayList<String>();
+		if(errMsg.length() == 0) {
+			scopusQueryByDocId(sbMap, pmidList);
+		}
+		
+		// second round: 2) query Pubmed and populate pubmedMap using Pubmed ID
+		if(errMsg.length() == 0) {
+			pubmedQueryByPubmedId(pmidList, sbMap, pubmedMap, errMsg);
+		}
+		
+		// finally: populate scopusMap with articles that are not found in Pubmed
+		Map<String, String> scopusMap = new HashMap<String, String>();
+		if(errMsg.length() == 0) {
+			try {
+				populateScopusMap(sbMap, scopusMap);
+				
+				// write to files
+				writeToFiles(scopusId, pubmedMap, scopusMap, errMsg);
+			} catch(TransformerException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Searches Scopus for the publications of one author, populating a ScopusBean map page by page
+	 */
+	private class AuthorSearch implements Callable<AuthorSearch> {
+		/**
+		 * the Scopus Author ID
+		 */
+		final String scopusId;
+		/**
+		 * the author's publications by Scopus Doc ID
+		 */
+		final Map<String, ScopusBean> sbMap = new HashMap<String, ScopusBean>();
+		/**
+		 * every Scopus Doc ID found for the author, whether or not it was added to the map
+		 */
+		final Set<String> docIds = new HashSet<String>();
+		/**
+		 * error message buffer
+		 */
+		final StringBuffer errMsg = new StringBuffer();
+		
+		/**
+		 * Constructor
+		 * @param scopusId the Scopus Author ID
+		 */
+		AuthorSearch(String scopusId) {
+			this.scopusId = scopusId;
+		}
+		
+		@Override
+		public AuthorSearch call() {
+			log.info("scopusId: " + this.scopusId);
+			try {
+				scopusQueryByAuthorId(this.scopusId, this.sbMap, this.docIds, this.errMsg);
+			} catch(IOException e) {
+				log.error("scopusQueryByAuthorId IOException: ", e);
+				this.errMsg.append(e + "\n");
+			}
+			return this;
+		}
+	}
+	
+	/**
+	 * Wait for a background task
+	 * @param <T> the result type
+	 * @param future the task
+	 * @return the result
+	 * @throws IOException the task failed
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
 	}
 	
 	/**
@@ -295,27 +475,11 @@ public class ScopusFetch extends NIHFetch {
 	private boolean initScopusConnect() {
 		boolean connected = true;
 		try {
-			URL url = new URL("http://api.elsevier.com/authenticate?platform=SCOPUS");
-			URLConnection conn = url.openConnection();
-			conn.setRequestProperty("X-ELS-APIKey", this.scopusApiKey);
-			conn.setRequestProperty("Accept", this.scopusAccept);
-			BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-			String inputLine;
-			StringBuffer respBuf = new StringBuffer();
-			
-			while((inputLine = in.readLine()) != null) {
-				respBuf.append(inputLine);
-			}
-			in.close();
-			
-			Document doc = XMLAide.getDocument(respBuf.toString());
+			Document doc = scopusGet("http://api.elsevier.com/authenticate?platform=SCOPUS");
 			Node authtokenNode = doc.getElementsByTagName("authenticate-response").item(0);
 			if(authtokenNode.getTextContent() != null) {
 				this.scopusAuthtoken  = authtokenNode.getTextContent().trim();
 			}
-		} catch(SAXException e) {
-			log.error("initScopusConnect SAXException: ", e);
-			connected = false;
 		} catch(IOException e) {
 			log.error("initScopusConnect IOException: ", e);
 			connected = false;
@@ -339,96 +503,137 @@ public class ScopusFetch extends NIHFetch {
 	}
 	
 	/**
-	 * Obtain Scopus metadata by querying Scopus Author ID
+	 * Obtain Scopus metadata by querying Scopus Author ID, adding the entries of each page to the ScopusBean map as
+	 * the page is read.
 	 * The query String includes the publication start and end years to
 	 * limit the results returned from Scopus.
 	 * 
 	 * @param scopusId the scopusID
-	 * @return metadata
-	 * @throws IOException error parsing response
+	 * @param sbMap scopus bean map
+	 * @param docIds set of the Scopus Doc IDs found
+	 * @param errMsg error message buffer
+	 * @throws IOException error requesting or parsing response
 	 */
-	private String scopusQueryByAuthorId(String scopusId) throws IOException {
-		
-		int totalResults = 0;
+	private void scopusQueryByAuthorId(String scopusId, Map<String, ScopusBean> sbMap, Set<String> docIds, StringBuffer errMsg) throws IOException {
 		String pubYearStr = null;
-		StringBuffer completeRespBuf = new StringBuffer();
-		
 		if(this.scopusPubYearS != null && this.scopusPubYearE != null) {
 			pubYearStr = constructPubYearQStr(this.scopusPubYearS, this.scopusPubYearE);
 		}
-
-		try {
-			String queryStr = "http://api.elsevier.com/content/search/index:SCOPUS?query=au-id(" + scopusId + ")";
-			if(pubYearStr != null) {
-				queryStr += "+AND+(" + pubYearStr + ")";
+		
+		String queryStr = "http://api.elsevier.com/content/search/index:SCOPUS?query=au-id(" + scopusId + ")";
+		if(pubYearStr != null) {
+			queryStr += "+AND+(" + pubYearStr + ")";
+		}
+		
+		// the first page also gives the total, then request the rest
+		List<String> pageQueries = constructCompleteQStr(queryStr, SCOPUS_PAGE_SIZE, 0, 1);
+		Document firstPage = scopusGet(pageQueries.get(0));
+		int totalResults = 0;
+		NodeList resultsNodes = firstPage.getElementsByTagName("opensearch:totalResults");
+		if(resultsNodes.getLength() > 0) {
+			totalResults = Integer.parseInt(resultsNodes.item(0).getTextContent().trim());
+		}
+		log.info("Total results for " + scopusId + " is " + totalResults);
+		populateScopusBeanMap(firstPage, sbMap, docIds);
+		for(String queryCompleteStr : constructCompleteQStr(queryStr, SCOPUS_PAGE_SIZE, SCOPUS_PAGE_SIZE, totalResults)) {
+			log.info("Scopus query: " + queryCompleteStr);
+			populateScopusBeanMap(scopusGet(queryCompleteStr), sbMap, docIds);
+		}
+	}
+	
+	/**
+	 * Send a request to Scopus through the pooled client, once the rate limit and quota allow, and parse the response
+	 * as it is read. Requests Scopus throttles are retried.
+	 * @param queryStr the query string
+	 * @return the response
+	 * @throws IOException error requesting or parsing response
+	 */
+	private Document scopusGet(String queryStr) throws IOException {
+		for(int attempt = 0;; attempt++) {
+			awaitQuota();
+			HttpGet get = new HttpGet(queryStr);
+			get.setHeader("X-ELS-APIKey", this.scopusApiKey);
+			if(this.scopusAuthtoken != null) {
+				get.setHeader("X-ELS-Authtoken", this.scopusAuthtoken);
 			}
-			String respStr = urlConnect(queryStr);
-			
-			if(respStr.length() > 0) {
-				Document doc = XMLAide.getDocument(respStr);
-				NodeList resultsNodes = doc.getElementsByTagName("opensearch:totalResults");
-				if(resultsNodes != null) {
-					String resultsNodeVal = resultsNodes.item(0).getTextContent();
-					totalResults = Integer.parseInt(resultsNodeVal);
-					log.info("Total results for " + scopusId + " is " + totalResults);
+			get.setHeader("Accept", this.scopusAccept);
+			CloseableHttpResponse response = HttpCache.execute(this.httpClient, get);
+			try {
+				int status = response.getStatusLine().getStatusCode();
+				// a 200 that uses up the quota still returns its document, only later requests wait
+				updateQuota(response, status, attempt);
+				if(status == 429 && attempt < MAX_RETRIES) {
+					log.debug("Scopus throttled request, retrying: " + queryStr);
+					continue;
 				}
-			}
-
-			if(totalResults > 0) { 
-				// query by counts
-				int start = 0;
-				int count = 200;
-				int countList = 0;
-				for(String queryCompleteStr: constructCompleteQStr(queryStr, count, start, totalResults)) {
-					log.info("Scopus query: " + queryCompleteStr);
-					String eachRespStr = urlConnect(queryCompleteStr);
-					if(countList > 0) {
-						int entryIndex = eachRespStr.indexOf("<entry>");
-						if(entryIndex > -1) {
-							eachRespStr = eachRespStr.substring(entryIndex);
-						}
-					}
-					completeRespBuf.append(eachRespStr.replace("</feed>", ""));
-					countList++;
+				if(status != 200) {
+					throw new IOException("Scopus returned HTTP " + status + " for " + queryStr);
+				}
+				InputStream in = response.getEntity().getContent();
+				try {
+					return XMLAide.getDocument(in);
+				} catch(SAXException e) {
+					throw new IOException("Invalid Scopus response for " + queryStr, e);
+				} finally {
+					in.close();
 				}
-				completeRespBuf.append("</feed>");
+			} finally {
+				response.close();
 			}
-		} catch(SAXException e) {
-			log.error("scopusQueryByAuthorId SAXException: ", e);
 		}
-		return completeRespBuf.toString();
 	}
 	
 	/**
-	 * connect
-	 * @param queryStr the query string
-	 * @return the response
+	 * Wait for the rate limit, and for the quota to reset if Scopus reported it exhausted
+	 * @throws IOException the quota will not reset soon enough to wait for
 	 */
-	private String urlConnect(String queryStr) {
-		StringBuffer respBuf = new StringBuffer();
-		try {
-			URL url = new URL(queryStr);
-			URLConnection conn = url.openConnection();
-			conn.setRequestProperty("X-ELS-APIKey", this.scopusApiKey);
-			conn.setRequestProperty("X-ELS-Authtoken", this.scopusAuthtoken);
-			conn.setRequestProperty("Accept", this.scopusAccept);
-			BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-			String inputLine;
-	
-			while((inputLine = in.readLine()) != null) {
-				respBuf.append(inputLine);
+	private void awaitQuota() throws IOException {
+		long resumeAt = this.quotaResumeAt;
+		if(resumeAt - System.currentTimeMillis() > MAX_QUOTA_WAIT) {
+			throw new IOException("Scopus quota exhausted until " + new Date(resumeAt));
+		}
+		this.scopusLimiter.acquire();
+		long wait;
+		while((wait = this.quotaResumeAt - System.currentTimeMillis()) > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for Scopus quota");
 			}
-			in.close();
-		} catch(MalformedURLException e) {
-			log.error("urlConnect MalformedURLException: ", e);
-		} catch(IOException e) {
-			log.error("urlConnect IOException: ", e);
-		} catch(Exception e) {
-			log.error("urlConnect Exception: ", e);
 		}
-		return respBuf.toString();
 	}
-
+	
+	/**
+	 * Hold back further requests when Scopus reports the quota exhausted (X-RateLimit-Remaining of 0) or throttles a
+	 * request (HTTP 429), until the reset time it gives
+	 * @param response the response
+	 * @param status the response status
+	 * @param attempt number of times this request has been retried
+	 */
+	private void updateQuota(HttpResponse response, int status, int attempt) {
+		Header remaining = response.getFirstHeader("X-RateLimit-Remaining");
+		Header reset = response.getFirstHeader("X-RateLimit-Reset");
+		boolean exhausted = (status == 429) || (remaining != null && remaining.getValue().trim().equals("0"));
+		if(!exhausted) {
+			return;
+		}
+		long resumeAt;
+		Header retryAfter = response.getFirstHeader("Retry-After");
+		if(reset != null && reset.getValue().trim().matches("\\d+")) {
+			// seconds since the epoch
+			resumeAt = Long.parseLong(reset.getValue().trim()) * 1000;
+		} else if(retryAfter != null && retryAfter.getValue().trim().matches("\\d+")) {
+			resumeAt = System.currentTimeMillis() + Long.parseLong(retryAfter.getValue().trim()) * 1000;
+		} else {
+			resumeAt = System.currentTimeMillis() + (1000L << Math.min(attempt, 6));
+		}
+		if(resumeAt > this.quotaResumeAt) {
+			log.info("Scopus quota exhausted, waiting until " + new Date(resumeAt));
+			this.quotaResumeAt = resumeAt;
+		}
+	}
+	
 	/**
 	 * Constructs publication year String
 	 * Method declared public for test purposes
@@ -466,7 +671,7 @@ public class ScopusFetch extends NIHFetch {
 	public List<String> constructCompleteQStr(String queryStr, int count, int start, int totalResults) {
 		int myStart = start;
 		List<String> qStrList = new ArrayList<String>();
-		while(myStart <= totalResults) {
+		while(myStart < totalResults) {
 			String queryCompleteStr = queryStr + "&count=" + count + "&start=" + myStart + "&view=COMPLETE";
 			qStrList.add(queryCompleteStr);
 			myStart += count;
@@ -475,165 +680,155 @@ public class ScopusFetch extends NIHFetch {
 	}
 
 	/**
-	 * This method retrieves Pubmed ID by querying Scopus by Scopus Document ID
+	 * This method retrieves Pubmed ID by querying Scopus by Scopus Document ID, running the lookups concurrently
 	 * @param sbMap scopus mapping
 	 * @param pmidList pubmed ids list
 	 */
 	private void scopusQueryByDocId(Map<String, ScopusBean> sbMap, List<String> pmidList) {
-		try {
-			for(String key : sbMap.keySet()) {
-				ScopusBean sb = sbMap.get(key);
-				if(sb.getPubmedId() == null) {
-					// get Pubmed ID from Scopus
-					StringBuffer respBuf = new StringBuffer();
-					String queryStr = "http://api.elsevier.com/content/abstract/SCOPUS_ID:" + sb.getScopusDocId() + "?view=META";
-					URL url = new URL(queryStr);
-					URLConnection conn = url.openConnection();
-					conn.setRequestProperty("X-ELS-APIKey", this.scopusApiKey);
-					conn.setRequestProperty("X-ELS-Authtoken", this.scopusAuthtoken);
-					conn.setRequestProperty("Accept", this.scopusAccept);
-					BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-					String inputLine;
-
-					while((inputLine = in.readLine()) != null) {
-						respBuf.append(inputLine);
-					}
-					in.close();
-					
-					// log.info("query by scopus doc id: " + respBuf.toString());
-					NodeList pubmedNodes = XMLAide.getDocument(respBuf.toString()).getElementsByTagName("pubmed-id");
-					if(pubmedNodes != null) {
-						String pubmedNodeVal = pubmedNodes.item(0).getTextContent();
-						if(!"".equals(pubmedNodeVal)) {
-							pmidList.add(pubmedNodeVal);
-							sb.setPubmedId(pubmedNodeVal);
+		Map<ScopusBean, Future<String>> lookups = new LinkedHashMap<ScopusBean, Future<String>>();
+		for(final ScopusBean sb : sbMap.values()) {
+			if(sb.getPubmedId() == null) {
+				// get Pubmed ID from Scopus
+				lookups.put(sb, this.lookupPool.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException {
+						String queryStr = "http://api.elsevier.com/content/abstract/SCOPUS_ID:" + sb.getScopusDocId() + "?view=META";
+						NodeList pubmedNodes = scopusGet(queryStr).getElementsByTagName("pubmed-id");
+						if(pubmedNodes.getLength() > 0) {
+							return pubmedNodes.item(0).getTextContent().trim();
 						}
+						return null;
+					}
+				}));
+			}
+		}
+		try {
+			for(Map.Entry<ScopusBean, Future<String>> lookup : lookups.entrySet()) {
+				try {
+					String pubmedNodeVal = getResult(lookup.getValue());
+					if(pubmedNodeVal != null && !"".equals(pubmedNodeVal)) {
+						pmidList.add(pubmedNodeVal);
+						lookup.getKey().setPubmedId(pubmedNodeVal);
 					} else {
 						log.info("Pubmed ID not found in Scopus.");
 					}
+				} catch(IOException e) {
+					log.error("scopusQueryByDocId IOException: ", e);
 				}
 			}
-		} catch(MalformedURLException e) {
-			log.error("scopusQueryByDocId MalformedURLException: ", e);
-		} catch(IOException e) {
-			log.error("scopusQueryByDocId IOException: ", e);
-		} catch(Exception e) {
-			log.error("scopusQueryByDocId Exception: ", e);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("scopusQueryByDocId interrupted");
+			for(Future<String> lookup : lookups.values()) {
+				lookup.cancel(true);
+			}
 		}
 	}
-
+	
 	/**
-	 * This method extracts metadata from a Scopus feed and then populates the ScopusBean map.
-	 * @param resp xml response
+	 * This method extracts metadata from a page of a Scopus feed and then populates the ScopusBean map.
+	 * @param page xml response page
 	 * @param sbMap scopus bean map
-	 * @param errMsg error message buffer
-	 * @throws IOException error with parsing response
+	 * @param docIds set of the Scopus Doc IDs found, so each is only added once
 	 * @throws DOMException error parsing response
 	 */
-	private void populateScopusBeanMap(String resp, Map<String, ScopusBean> sbMap, StringBuffer errMsg) throws DOMException, IOException {
-		try {
-			if(resp.length() > 0) {
-				// populate ScopusBean map
-				for(Node entryNode : IterableAdaptor.adapt(XMLAide.getDocument(resp).getElementsByTagName("entry"))) {
-					String doi = null;
-					@SuppressWarnings("unused")
-					String title = null;
-					String scopusDocId = null;
-					@SuppressWarnings("unused")
-					String issn = null;
-					@SuppressWarnings("unused")
-					String volume = null;
-					@SuppressWarnings("unused")
-					String issue = null;
-					@SuppressWarnings("unused")
-					String pageRange = null;
-					boolean withinAffil = false;
-					ScopusBean sb = new ScopusBean();
-					List<Node> authors = new ArrayList<Node>();
-					for(Node entryChildNode : IterableAdaptor.adapt(entryNode.getChildNodes())) {
-						if("dc:identifier".equals(entryChildNode.getNodeName())) {
-							scopusDocId = entryChildNode.getTextContent().replace("SCOPUS_ID:", "");
-						} else if("author".equals(entryChildNode.getNodeName())) {
-							authors.add(entryChildNode);
-						} else if("prism:doi".equals(entryChildNode.getNodeName())) {
-							doi = entryChildNode.getTextContent();
-						} else if("dc:title".equals(entryChildNode.getNodeName())) {
-							title = entryChildNode.getTextContent();
-						} else if("prism:issn".equals(entryChildNode.getNodeName())) {
-							issn = entryChildNode.getTextContent();
-						} else if("prism:volume".equals(entryChildNode.getNodeName())) {
-							volume = entryChildNode.getTextContent();
-						} else if("prism:issueIdentifier".equals(entryChildNode.getNodeName())) {
-							issue = entryChildNode.getTextContent();
-						} else if("prism:pageRange".equals(entryChildNode.getNodeName())) {
-							pageRange = entryChildNode.getTextContent();
-						} else if("affiliation".equals(entryChildNode.getNodeName())) {
-							for(Node affilNode : IterableAdaptor.adapt(entryChildNode.getChildNodes())) {
-								if("afid".equals(affilNode.getNodeName())) {
-									String affil = affilNode.getTextContent();
-									if(this.scopusAffilList != null && this.scopusAffilList.contains(affil)) {
-										withinAffil = true;
-										break;
-									}
-								}
+	private void populateScopusBeanMap(Document page, Map<String, ScopusBean> sbMap, Set<String> docIds) throws DOMException {
+		// populate ScopusBean map
+		for(Node entryNode : IterableAdaptor.adapt(page.getElementsByTagName("entry"))) {
+			String doi = null;
+			@SuppressWarnings("unused")
+			String title = null;
+			String scopusDocId = null;
+			@SuppressWarnings("unused")
+			String issn = null;
+			@SuppressWarnings("unused")
+			String volume = null;
+			@SuppressWarnings("unused")
+			String issue = null;
+			@SuppressWarnings("unused")
+			String pageRange = null;
+			boolean withinAffil = false;
+			ScopusBean sb = new ScopusBean();
+			List<Node> authors = new ArrayList<Node>();
+			for(Node entryChildNode : IterableAdaptor.adapt(entryNode.getChildNodes())) {
+				if("dc:identifier".equals(entryChildNode.getNodeName())) {
+					scopusDocId = entryChildNode.getTextContent().replace("SCOPUS_ID:", "");
+				} else if("author".equals(entryChildNode.getNodeName())) {
+					authors.add(entryChildNode);
+				} else if("prism:doi".equals(entryChildNode.getNodeName())) {
+					doi = entryChildNode.getTextContent();
+				} else if("dc:title".equals(entryChildNode.getNodeName())) {
+					title = entryChildNode.getTextContent();
+				} else if("prism:issn".equals(entryChildNode.getNodeName())) {
+					issn = entryChildNode.getTextContent();
+				} else if("prism:volume".equals(entryChildNode.getNodeName())) {
+					volume = entryChildNode.getTextContent();
+				} else if("prism:issueIdentifier".equals(entryChildNode.getNodeName())) {
+					issue = entryChildNode.getTextContent();
+				} else if("prism:pageRange".equals(entryChildNode.getNodeName())) {
+					pageRange = entryChildNode.getTextContent();
+				} else if("affiliation".equals(entryChildNode.getNodeName())) {
+					for(Node affilNode : IterableAdaptor.adapt(entryChildNode.getChildNodes())) {
+						if("afid".equals(affilNode.getNodeName())) {
+							String affil = affilNode.getTextContent();
+							if(this.scopusAffilList != null && this.scopusAffilList.contains(affil)) {
+								withinAffil = true;
+								break;
 							}
-							
 						}
 					}
+					
+				}
+			}
 		
-					sb.setScopusDocId(scopusDocId);
-					sb.setDoi(doi);
-					sb.setAuthors(authors);
-					sb.setEntryNode(entryNode);
+			sb.setScopusDocId(scopusDocId);
+			sb.setDoi(doi);
+			sb.setAuthors(authors);
+			sb.setEntryNode(entryNode);
 	
-					// check affiliation
-					boolean addToMap = false; // add to sbMap or not - default is false
-					if(this.scopusAffilLinked != null) {
-						if(("true".equals(this.scopusAffilLinked) && withinAffil) || ("false".equals(this.scopusAffilLinked) && !withinAffil)) {
-							addToMap = true;
-						}
-					} else {
-						addToMap = true; // add all publications to map, regardless of affiliated or not
-					}
+			// check affiliation
+			boolean addToMap = false; // add to sbMap or not - default is false
+			if(this.scopusAffilLinked != null) {
+				if(("true".equals(this.scopusAffilLinked) && withinAffil) || ("false".equals(this.scopusAffilLinked) && !withinAffil)) {
+					addToMap = true;
+				}
+			} else {
+				addToMap = true; // add all publications to map, regardless of affiliated or not
+			}
 	
-					// check if the article already exists in VIVO
-					/* comment out
-					boolean existsInVivo = false;
-					if(sb.getDoi() != null) { // try doi
-						existsInVivo = isDoiInVivo(sb.getDoi());
-					}
-					if(!existsInVivo) { // try Scopus Doc ID
-						existsInVivo = isScopusDocIdInVivo(sb.getScopusDocId());
-					}
-					*/
-					// add ScopusBean to map for Pubmed queries
-					if(!this.scopusDocIdList.contains(sb.getScopusDocId())) {
-						/*
-						if(addToMap && !existsInVivo) {
-							sbMap.put(sb.getScopusDocId(), sb);
-						}
-						*/
-						if(addToMap && sb.getScopusDocId() != null) {
-							sbMap.put(sb.getScopusDocId(), sb);
-						}
-						this.scopusDocIdList.add(sb.getScopusDocId());
-					}
+			// check if the article already exists in VIVO
+			/* comment out
+			boolean existsInVivo = false;
+			if(sb.getDoi() != null) { // try doi
+				existsInVivo = isDoiInVivo(sb.getDoi());
+			}
+			if(!existsInVivo) { // try Scopus Doc ID
+				existsInVivo = isScopusDocIdInVivo(sb.getScopusDocId());
+			}
+			*/
+			// add ScopusBean to map for Pubmed queries
+			if(sb.getScopusDocId() != null && docIds.add(sb.getScopusDocId())) {
+				/*
+				if(addToMap && !existsInVivo) {
+					sbMap.put(sb.getScopusDocId(), sb);
+				}
+				*/
+				if(addToMap) {
+					sbMap.put(sb.getScopusDocId(), sb);
 				}
 			}
-		} catch(SAXException e) {
-			log.error("populateScopusBeanMap SAXException: ", e);
-			errMsg.append(e + "\n");
 		}
 	}
 	
 	/**
-	 * Query Pubmed by DOI
+	 * Query Pubmed by DOI, searching for at most DOI_BATCH_SIZE DOIs at a time
 	 * @param sbMap scopus bean map
 	 * @param pubmedMap pubmed map
 	 * @param errMsg error message buffer
 	 */
 	private void pubmedQueryByDoi(Map<String, ScopusBean> sbMap, Map<String, String> pubmedMap, StringBuffer errMsg) {
 		StringBuffer searchTermBuf = new StringBuffer();
+		int batched = 0;
 		try {
 			for(String key : sbMap.keySet()) {
 				ScopusBean sb = sbMap.get(key);
@@ -644,10 +839,17 @@ public class ScopusFetch extends NIHFetch {
 						searchTermBuf.append(" OR ");
 					}
 					searchTermBuf.append(searchDoi);
+					if(++batched == DOI_BATCH_SIZE) {
+						populatePubmedMap(searchTermBuf.toString(), sbMap, pubmedMap, errMsg);
+						searchTermBuf.setLength(0);
+						batched = 0;
+					}
 				}
 			}
 			//log.info(searchTermBuf.toString());
-			populatePubmedMap(searchTermBuf.toString(), sbMap, pubmedMap, true, false, errMsg);
+			if(batched > 0) {
+				populatePubmedMap(searchTermBuf.toString(), sbMap, pubmedMap, errMsg);
+			}
 		} catch(Exception e) {
 			log.error("pubmedQueryByDoi Exception: ", e);
 			errMsg.append(e + "\n");
@@ -655,26 +857,21 @@ public class ScopusFetch extends NIHFetch {
 	}
 
 	/**
-	 * Query Pubmed by Pubmed ID
+	 * Query Pubmed by Pubmed ID, fetching the records directly by ID list (no ESearch needed)
+	 * at most PMID_BATCH_SIZE at a time
 	 * @param pmidList list of pubmed ids
 	 * @param sbMap scopus bean map
 	 * @param pubmedMap pubmed map
 	 * @param errMsg error message buffer
 	 */
 	private void pubmedQueryByPubmedId(List<String> pmidList, Map<String, ScopusBean> sbMap, Map<String, String> pubmedMap, StringBuffer errMsg) {
-		StringBuffer searchTermBuf = new StringBuffer();
-		for(String pmid : pmidList) {
-			if(searchTermBuf.length() > 0) {
-				searchTermBuf.append(" ");
-			}
-			searchTermBuf.append(pmid);
-		}
-		if(searchTermBuf.length() > 0) {
-			searchTermBuf.append("[uid]");
-		}
 		try {
-			//log.info(searchTermBuf.toString());
-			populatePubmedMap(searchTermBuf.toString(), sbMap, pubmedMap, false, true, errMsg);
+			for(int start = 0; start < pmidList.size(); start += PMID_BATCH_SIZE) {
+				fetchRecordsById(pmidList.subList(start, Math.min(start + PMID_BATCH_SIZE, pmidList.size())));
+				for(Document pubmedDoc: this.pubmedDocList) {
+					populateMapByPubmedId(pubmedDoc, sbMap, pubmedMap);
+				}
+			}
 		} catch(Exception e) {
 			log.error("pubmedQueryByPubmedId Exception: ", e);
 			errMsg.append(e + "\n");
@@ -682,31 +879,22 @@ public class ScopusFetch extends NIHFetch {
 	}
 
 	/**
-	 * Populate Pubmed map with metadata from Pubmed
+	 * Populate Pubmed map with metadata from Pubmed, matching records by DOI
 	 * @param searchTerm the term for which to search
 	 * @param sbMap the scopus bean map
 	 * @param pubmedMap the pubmed map
-	 * @param lookupDoi do we lookup doi
-	 * @param lookupPmid do we lookup pubmed id
 	 * @param errMsg error message buffer
 	 */
-	private void populatePubmedMap(String searchTerm, Map<String, ScopusBean> sbMap, Map<String, String> pubmedMap, boolean lookupDoi, boolean lookupPmid, StringBuffer errMsg) {
+	private void populatePubmedMap(String searchTerm, Map<String, ScopusBean> sbMap, Map<String, String> pubmedMap, StringBuffer errMsg) {
 		try {
-			int recToFetch = getLatestRecord();
-			@SuppressWarnings("unused")
-			int intBatchSize = Integer.parseInt(this.getBatchSize());
 			this.setSearchTerm(searchTerm);
 			String[] env = runESearch(this.getSearchTerm());
 			
 			// publication found in Pubmed
 			if(env != null && !"null".equals(env[2]) && Integer.parseInt(env[2]) > 0) {
-				fetchRecords(env, "0", "" + recToFetch);
+				fetchRecords(env, "0", env[2]);
 				for(Document pubmedDoc: this.pubmedDocList) {
-					if(lookupDoi) {
-						populateMapByDoi(pubmedDoc, sbMap, pubmedMap);
-					} else if(lookupPmid) {
-						populateMapByPubmedId(pubmedDoc, sbMap, pubmedMap);
-					}
+					populateMapByDoi(pubmedDoc, sbMap, pubmedMap);
 				}
 			}
 		} catch(IOException e) {
@@ -993,6 +1181,31 @@ public class ScopusFetch extends NIHFetch {
 		}
 	}
 	
+	/**
+	 * Fetch Pubmed records by ID
+	 * @param pmids the Pubmed IDs
+	 * @throws IOException error fetching records
+	 */
+	private void fetchRecordsById(List<String> pmids) throws IOException {
+		EFetchPubmedServiceStub.EFetchRequest req = new EFetchPubmedServiceStub.EFetchRequest();
+		StringBuilder ids = new StringBuilder();
+		for(String pmid : pmids) {
+			if(ids.length() > 0) {
+				ids.append(",");
+			}
+			ids.append(pmid);
+		}
+		req.setId(ids.toString());
+		req.setEmail(getEmailAddress());
+		req.setTool(getToolName());
+		log.info("Fetching " + pmids.size() + " records by Pubmed ID");
+		try {
+			serializeFetchRequest(req);
+		} catch(RemoteException e) {
+			throw new IOException("Could not run fetch: ", e);
+		}
+	}
+	
 	/**
 	 * Runs, sanitizes, and outputs the results of a EFetch request to the xmlWriter
 	 * <ol>
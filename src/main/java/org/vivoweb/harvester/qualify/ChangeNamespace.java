@@ -6,6 +6,8 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
@@ -251,23 +253,30 @@ public class ChangeNamespace {
 		}
 		int total = changeArray.size();
 		int count = 0;
+		// read the uris in use once, rather than querying both models for every candidate uri
+		URIMinter minter = new URIMinter(newNamespace, vivo, model);
+		Map<Resource, String> renames = new LinkedHashMap<Resource, String>();
 		for(String sub : changeArray) {
 			count++;
 			Resource res = model.getJenaModel().getResource(sub);
 			float percent = Math.round(10000f * count / total) / 100f;
 			log.trace("(" + count + "/" + total + ": " + percent + "%): Finding unused URI for resource <" + res + ">");
-			String uri = getUnusedURI(newNamespace, vivo, model);
+			String uri = minter.mint();
 			if(errorLog) {
 				log.error("Resource <" + res.getURI() + "> was found and renamed to new uri <" + uri + ">!");
 			} else {
 				log.debug("Resource <" + res.getURI() + "> was found and renamed to new uri <" + uri + ">!");
 			}
-			 
-			RenameResources.renameResource(res, uri);
-			if(sameAs) {
-			   Resource newRes = model.getJenaModel().getResource(uri); 
-			   model.getJenaModel().add(newRes, OWL.sameAs, res);
-		    }
+			renames.put(res, uri);
+		}
+		// rewrite the graph once for every rename
+		RenameResources.renameResources(model.getJenaModel(), renames);
+		RenameResources.journalRenames(model, renames);
+		if(sameAs) {
+			for(Map.Entry<Resource, String> rename : renames.entrySet()) {
+				Resource newRes = model.getJenaModel().getResource(rename.getValue());
+				model.getJenaModel().add(newRes, OWL.sameAs, rename.getKey());
+			}
 		}
 		log.info("Changed namespace for " + changeArray.size() + " rdf nodes");
 	}
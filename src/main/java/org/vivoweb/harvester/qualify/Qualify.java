@@ -6,20 +6,35 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.InitLog;
-import org.vivoweb.harvester.util.IterableAdaptor;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.apache.jena.datatypes.RDFDatatype;
-import org.apache.jena.query.QuerySolution;
-import org.apache.jena.rdf.model.Literal;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Statement;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * Qualify data using SPARQL queries
@@ -31,6 +46,14 @@ public class Qualify {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(Qualify.class);
+	/**
+	 * Fewest statements given to each thread when applying regex rules
+	 */
+	private static final int MIN_PARTITION = 1000;
+	/**
+	 * Most statements gathered before they are removed when cleaning a namespace
+	 */
+	private static final int REMOVE_BATCH = 10000;
 	/**
 	 * Jena Model we are working in
 	 */
@@ -40,7 +63,7 @@ public class Qualify {
 	 */
 	private final String dataPredicate;
 	/**
-	 * The string to match
+	 * The string to match exactly (when there are no regex rules)
 	 */
 	private final String matchTerm;
 	/**
@@ -48,9 +71,13 @@ public class Qualify {
 	 */
 	private final String newVal;
 	/**
-	 * Is this to use Regex to match the string
+	 * The regex rules' patterns, applied in order
 	 */
-	private final boolean regex;
+	private final List<Pattern> regexMatches;
+	/**
+	 * The value replacing each regex rule's matches (null to remove the statement)
+	 */
+	private final List<String> regexValues;
 	/**
 	 * the namespace you want removed
 	 */
@@ -83,9 +110,9 @@ public class Qualify {
 		this(
 			JenaConnect.parseConfig(argList.get("i"), argList.getValueMap("I")), 
 			argList.get("d"), 
-			(argList.has("r") ? argList.get("r") : argList.get("t")), 
-			argList.get("v"), 
-			argList.has("r"), 
+			(argList.has("r") ? null : argList.get("t")), 
+			argList.getAll("r"), 
+			argList.getAll("v"), 
 			argList.get("n"), 
 			argList.has("p"), 
 			argList.has("c")
@@ -107,14 +134,66 @@ public class Qualify {
 	 * @param cleanResources remove all statements where the subject or object is from the given namespace
 	 */
 	public Qualify(JenaConnect jenaModel, String dataType, String matchString, String newValue, boolean isRegex, String removeNameSpace, boolean cleanPredicates, boolean cleanResources) {
+		this(
+			jenaModel, 
+			dataType, 
+			(isRegex ? null : matchString), 
+			((isRegex && (matchString != null)) ? Collections.singletonList(matchString) : Collections.<String>emptyList()), 
+			Collections.singletonList(newValue), 
+			removeNameSpace, 
+			cleanPredicates, 
+			cleanResources
+		);
+	}
+	
+	/**
+	 * Constructor for several regex rules, applied in order to each value in a single scan of the data predicate
+	 * @param jenaModel the JENA model to run qualifications on
+	 * @param dataType the data predicate
+	 * @param regexMatches the regex of each rule
+	 * @param newValues the value replacing each rule's matches, or a single value for every rule (a null value, or no
+	 * values at all, removes matching statements; an empty string replaces matches with nothing, as with the single
+	 * rule constructor)
+	 * @param removeNameSpace remove statements with predicates in this namespace
+	 * @param cleanPredicates remove all statements where the predicate is from the given namespace
+	 * @param cleanResources remove all statements where the subject or object is from the given namespace
+	 */
+	public Qualify(JenaConnect jenaModel, String dataType, List<String> regexMatches, List<String> newValues, String removeNameSpace, boolean cleanPredicates, boolean cleanResources) {
+		this(jenaModel, dataType, null, regexMatches, newValues, removeNameSpace, cleanPredicates, cleanResources);
+	}
+	
+	/**
+	 * Constructor
+	 * @param jenaModel the JENA model to run qualifications on
+	 * @param dataType the data predicate
+	 * @param textMatch the string to match exactly when there are no regex rules
+	 * @param regexMatches the regex of each rule
+	 * @param newValues the value replacing each rule's matches, or a single value for every rule
+	 * @param removeNameSpace remove statements with predicates in this namespace
+	 * @param cleanPredicates remove all statements where the predicate is from the given namespace
+	 * @param cleanResources remove all statements where the subject or object is from the given namespace
+	 */
+	private Qualify(JenaConnect jenaModel, String dataType, String textMatch, List<String> regexMatches, List<String> newValues, String removeNameSpace, boolean cleanPredicates, boolean cleanResources) {
 		this.model = jenaModel;
 		if(this.model == null) {
 			throw new IllegalArgumentException("Must provide a jena model");
 		}
 		this.dataPredicate = dataType;
-		this.matchTerm = matchString;
-		this.newVal = newValue;
-		this.regex = isRegex;
+		this.matchTerm = textMatch;
+		List<String> values = (newValues == null) ? Collections.<String>emptyList() : newValues;
+		this.newVal = values.isEmpty() ? null : values.get(0);
+		this.regexMatches = new ArrayList<Pattern>();
+		this.regexValues = new ArrayList<String>();
+		if(regexMatches != null) {
+			if((values.size() > 1) && (values.size() != regexMatches.size())) {
+				throw new IllegalArgumentException("Must provide one value, or one value for each regexMatch");
+			}
+			for(int x = 0; x < regexMatches.size(); x++) {
+				// compiled once, dotall as the sparql filter was, so . also matches line breaks when replacing
+				this.regexMatches.add(Pattern.compile(regexMatches.get(x), Pattern.DOTALL));
+				this.regexValues.add((values.size() > 1) ? values.get(x) : this.newVal);
+			}
+		}
 		this.namespace = removeNameSpace;
 		this.cleanPredicates = cleanPredicates;
 		this.cleanResources = cleanResources;
@@ -138,6 +217,7 @@ public class Qualify {
 	 * Replace records exactly matching uri & datatype & oldValue with newValue
 	 */
 	private void strReplace() {
+		Set<Node> changed = new HashSet<Node>();
 		for(Statement stmt : this.model.getJenaModel().listStatements(null, this.model.getJenaModel().createProperty(this.dataPredicate), this.matchTerm).toList()) {
 			if(this.namespace == null || stmt.getSubject().getURI().startsWith(this.namespace)) {
 				if(this.newVal != null) {
@@ -151,105 +231,201 @@ public class Qualify {
 				} else {
 					stmt.remove();
 				}
+				changed.add(stmt.getSubject().asNode());
 			}
 		}
+		this.model.journalChanges(changed);
 	}
 	
 	/**
-	 * Replace records matching predicate & the regexMatch with newValue
+	 * Replace records matching predicate & each regexMatch with its newValue. The data predicate's statements are read
+	 * once from the graph, the rules are applied to partitions of them in parallel, and each partition's changes are
+	 * written in batches as it finishes.
 	 * @throws IOException error connecting
 	 */
 	private void regexReplace() throws IOException {
-		StringBuffer sb = new StringBuffer();
-		sb.append("SELECT ?s ?o \n");
-		sb.append("WHERE {\n");
-		sb.append("  ?s <").append(this.dataPredicate).append("> ?o .\n");
-		sb.append("  FILTER (regex(str(?o), \"").append(this.matchTerm).append("\", \"s\")) .\n");
-		if(this.namespace != null) {
-			sb.append("  FILTER (regex(str(?s), \"^" + this.namespace + "\")) .\n");
+		List<Triple> stmts = new ArrayList<Triple>();
+		ExtendedIterator<Triple> it = this.model.getJenaModel().getGraph().find(Node.ANY, NodeFactory.createURI(this.dataPredicate), Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Triple stmt = it.next();
+				if(stmt.getObject().isLiteral() && ((this.namespace == null) || (stmt.getSubject().isURI() && stmt.getSubject().getURI().startsWith(this.namespace)))) {
+					stmts.add(stmt);
+				}
+			}
+		} finally {
+			it.close();
 		}
-		sb.append("}");
-		String query = sb.toString();
-		log.debug(query);
-		StringBuilder insertQ = new StringBuilder("INSERT DATA {\n");
-		StringBuilder deleteQ = new StringBuilder("DELETE DATA {\n");
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), stmts.size() / MIN_PARTITION));
+		// several partitions per thread, so changes are written while later partitions are still being matched
+		int partitionSize = Math.max(MIN_PARTITION, (stmts.size() / (threads * 4)) + 1);
+		log.debug("Applying " + this.regexMatches.size() + " rules to " + stmts.size() + " statements on " + threads + " threads");
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
 		int modifyCounter = 0;
-		for(QuerySolution s : IterableAdaptor.adapt(this.model.executeSelectQuery(query))) {
-			modifyCounter++;
-			Literal obj = s.getLiteral("o");
-			RDFDatatype datatype = obj.getDatatype();
-			if(datatype.getURI().equals("http://www.w3.org/1999/02/22-rdf-syntax-ns#langString")) {
-				datatype = null;
+		try {
+			List<Future<RuleChanges>> partitions = new ArrayList<Future<RuleChanges>>();
+			for(int start = 0; start < stmts.size(); start += partitionSize) {
+				partitions.add(pool.submit(new RuleApplier(stmts.subList(start, Math.min(start + partitionSize, stmts.size())))));
 			}
-			String lang = obj.getLanguage();
-			String objStr = obj.getValue().toString();
-			String oldStr = encodeString(objStr, datatype, lang);
-			if(this.newVal != null) {
-				log.trace("Replacing record");
-			} else {
-				log.trace("Removing record");
+			for(Future<RuleChanges> partition : partitions) {
+				RuleChanges changes = partition.get();
+				this.model.updateTriples(changes.removes, changes.adds);
+				modifyCounter += changes.removes.size();
 			}
-			log.debug("oldValue: " + oldStr);
-			String sUri = s.getResource("s").getURI();
-			deleteQ.append("  <" + sUri + "> <" + this.dataPredicate + "> " + oldStr + " . \n");
-			if(this.newVal != null) {
-				String newStr = encodeString(objStr.replaceAll(this.matchTerm, this.newVal), datatype, lang);
-				log.debug("newValue: " + newStr);
-				insertQ.append("  <" + sUri + "> <" + this.dataPredicate + "> " + newStr + " . \n");
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while applying rules", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
 			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		log.debug("Modified " + Integer.toString(modifyCounter) + " Records.");
+	}
+	
+	/**
+	 * Statements to remove and add for a partition
+	 */
+	private static class RuleChanges {
+		/**
+		 * statements to remove
+		 */
+		protected final List<Triple> removes = new ArrayList<Triple>();
+		/**
+		 * statements to add
+		 */
+		protected final List<Triple> adds = new ArrayList<Triple>();
+		
+		/**
+		 * Default Constructor
+		 */
+		protected RuleChanges() {
+			// Nothing to do here
+		}
+	}
+	
+	/**
+	 * Applies the regex rules to a partition of the data predicate's statements
+	 */
+	private class RuleApplier implements Callable<RuleChanges> {
+		/**
+		 * the statements
+		 */
+		private final List<Triple> stmts;
+		
+		/**
+		 * Constructor
+		 * @param stmts the statements
+		 */
+		protected RuleApplier(List<Triple> stmts) {
+			this.stmts = stmts;
 		}
-		log.debug("Modifying " + Integer.toString(modifyCounter) + " Records.");
-		insertQ.append("} \n");
-		deleteQ.append("} \n");
-		log.debug("Removing old data:\n" + deleteQ);
-		this.model.executeUpdateQuery(deleteQ.toString());
-		if(this.newVal != null) {
-			log.debug("Inserting updated data:\n" + insertQ);
-			this.model.executeUpdateQuery(insertQ.toString());
+		
+		@Override
+		public RuleChanges call() {
+			RuleChanges changes = new RuleChanges();
+			for(Triple stmt : this.stmts) {
+				Node obj = stmt.getObject();
+				String value = obj.getLiteralLexicalForm();
+				boolean matched = false;
+				boolean removed = false;
+				for(int x = 0; (x < Qualify.this.regexMatches.size()) && !removed; x++) {
+					Matcher matcher = Qualify.this.regexMatches.get(x).matcher(value);
+					if(matcher.find()) {
+						matched = true;
+						String replacement = Qualify.this.regexValues.get(x);
+						if(replacement == null) {
+							removed = true;
+						} else {
+							value = matcher.replaceAll(replacement);
+						}
+					}
+				}
+				if(!matched) {
+					continue;
+				}
+				log.trace((removed ? "Removing" : "Replacing") + " record: " + stmt);
+				changes.removes.add(stmt);
+				if(!removed) {
+					changes.adds.add(Triple.create(stmt.getSubject(), stmt.getPredicate(), createLiteral(value, obj)));
+				}
+			}
+			return changes;
 		}
 	}
 	
 	/**
-	 * Encode a string with its rdfdatatype or lang
-	 * @param str the string
-	 * @param datatype the datatype
-	 * @param lang the language
-	 * @return the encoded string
+	 * Create a literal with the language or datatype of another literal
+	 * @param value the lexical form
+	 * @param like the other literal
+	 * @return the literal
 	 */
-	private String encodeString(String str, RDFDatatype datatype, String lang) {
-		String encStr = "\"" + str + "\"";
-		if(datatype != null) {
-			encStr += "^^<" + datatype.getURI().trim() + ">";
-		} else if(StringUtils.isNotBlank(lang)) {
-			encStr += "@" + lang.trim();
+	static Node createLiteral(String value, Node like) {
+		String lang = like.getLiteralLanguage();
+		if(StringUtils.isNotBlank(lang)) {
+			return NodeFactory.createLiteral(value, lang);
+		}
+		RDFDatatype datatype = like.getLiteralDatatype();
+		if(datatype == null) {
+			return NodeFactory.createLiteral(value);
 		}
-		return encStr;
+		return NodeFactory.createLiteral(value, datatype);
 	}
 	
 	/**
-	 * Remove all subjects and objects in a given namespace
+	 * Remove all subjects and objects in a given namespace. The resources in the namespace are found by prefix, and
+	 * their triples through the subject and object indexes, so only the affected triples are read.
 	 * @param ns the namespace to remove all resources from
 	 * @throws IOException error connecting
 	 */
 	private void cleanResources(String ns) throws IOException {
-		String query = "" + "DELETE { ?s ?p ?o } " 
-		+ "WHERE { " + "?s ?p ?o .  " 
-		+ "FILTER (regex(str(?s), \"^" + ns + "\" ) || regex(str(?o), \"^" + ns + "\" ))" + "}";
-		log.debug(query);
-		this.model.executeUpdateQuery(query);
+		Graph graph = this.model.getJenaModel().getGraph();
+		Set<Triple> removes = new LinkedHashSet<Triple>();
+		int count = 0;
+		for(Node node : this.model.findUriNodes(ns)) {
+			removes.addAll(graph.find(node, Node.ANY, Node.ANY).toList());
+			removes.addAll(graph.find(Node.ANY, Node.ANY, node).toList());
+			if(removes.size() >= REMOVE_BATCH) {
+				count += removeTriples(removes);
+			}
+		}
+		count += removeTriples(removes);
+		log.debug("Removed " + count + " statements about resources in " + ns);
 	}
 	
 	/**
-	 * Remove all predicates in a given namespace
+	 * Remove all predicates in a given namespace. The predicates in the namespace are found by prefix, and their
+	 * triples through the predicate index, so only the affected triples are read.
 	 * @param ns the namespace to remove all predicates from
 	 * @throws IOException error connecting
 	 */
 	private void cleanPredicates(String ns) throws IOException {
-		String predicateQuery = "" + "DELETE { ?s ?p ?o } " 
-		+ "WHERE { " + "?s ?p ?o .  " 
-		+ "FILTER regex(str(?p), \"^" + ns + "\" ) " + "}";
-		log.debug(predicateQuery);
-		this.model.executeUpdateQuery(predicateQuery);
+		Graph graph = this.model.getJenaModel().getGraph();
+		Set<Triple> removes = new LinkedHashSet<Triple>();
+		int count = 0;
+		for(Node node : this.model.findUriNodes(ns)) {
+			removes.addAll(graph.find(Node.ANY, node, Node.ANY).toList());
+			if(removes.size() >= REMOVE_BATCH) {
+				count += removeTriples(removes);
+			}
+		}
+		count += removeTriples(removes);
+		log.debug("Removed " + count + " statements");
+	}
+	
+	/**
+	 * Remove triples from the model and clear them
+	 * @param removes the triples
+	 * @return the number removed
+	 */
+	private int removeTriples(Set<Triple> removes) {
+		int count = removes.size();
+		this.model.updateTriples(new ArrayList<Triple>(removes), Collections.<Triple>emptyList());
+		removes.clear();
+		return count;
 	}
 	
 	/**
@@ -272,11 +448,13 @@ public class Qualify {
 			if(this.namespace != null) {
 				ns = "Limiting to resources with URI beginning with \"" + this.namespace + "\"";
 			}
-			if(this.regex && this.matchTerm != null) {
-				if(this.newVal != null) {
-					log.info("Running regex match replace '" + this.dataPredicate + "': '" + this.matchTerm + "' with '" + this.newVal + "'");
-				} else {
-					log.info("Running regex match remove '" + this.dataPredicate + "': '" + this.matchTerm + "'");
+			if(!this.regexMatches.isEmpty()) {
+				for(int x = 0; x < this.regexMatches.size(); x++) {
+					if(this.regexValues.get(x) != null) {
+						log.info("Running regex match replace '" + this.dataPredicate + "': '" + this.regexMatches.get(x).pattern() + "' with '" + this.regexValues.get(x) + "'");
+					} else {
+						log.info("Running regex match remove '" + this.dataPredicate + "': '" + this.regexMatches.get(x).pattern() + "'");
+					}
 				}
 				if(ns != null) {
 					log.info(ns);
@@ -314,9 +492,9 @@ public class Qualify {
 		parser.addArgument(new ArgDef().setShortOption('i').setLongOpt("jenaConfig").setDescription("config file for jena model").withParameter(true, "CONFIG_FILE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('I').setLongOpt("jenaOverride").setDescription("override the JENA_PARAM of jena model config using VALUE").withParameterValueMap("JENA_PARAM", "VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dataType").setDescription("remove statements with predicate of specified data type (rdf predicate) optionally limited to resource uris starting with -n/--remove-namespace").withParameter(true, "RDF_PREDICATE").setRequired(false));
-		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("regexMatch").setDescription("filter for -d/--datatype where object matches this regex expression").withParameter(true, "REGEX").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("regexMatch").setDescription("filter for -d/--datatype where object matches this regex expression (in dotall mode, so . also matches line breaks), repeat to apply several rules in order in one pass").withParameters(true, "REGEX").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("textMatch").setDescription("filter for -d/--datatype where object matches this exact text string").withParameter(true, "MATCH_STRING").setRequired(false));
-		parser.addArgument(new ArgDef().setShortOption('v').setLongOpt("value").setDescription("option for -d/--datatype where matching values of -r/--regexMatch or -t/--textMatch are replaced with this value").withParameter(true, "REPLACE_VALUE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('v').setLongOpt("value").setDescription("option for -d/--datatype where matching values of -r/--regexMatch or -t/--textMatch are replaced with this value, repeat to give each -r/--regexMatch its own value").withParameters(true, "REPLACE_VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("remove-namespace").setDescription("specify namespace for -p/--predicate-clean and -c/--clean-resources flag or optional namespace filter for -d/--dataType flag").withParameter(true, "RDF_NAMESPACE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("predicate-clean").setDescription("remove all statements where the predicate is from the given -n/--remove-namespace").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("clean-resources").setDescription("remove all statements where the subject or object is from the given -n/--remove-namespace").setRequired(false));
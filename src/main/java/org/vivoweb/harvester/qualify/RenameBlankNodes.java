@@ -6,9 +6,17 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.InitLog;
@@ -17,6 +25,11 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.ontology.OntModel;
 import org.apache.jena.ontology.OntModelSpec;
 import org.apache.jena.rdf.model.Model;
@@ -29,6 +42,7 @@ import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.rdf.model.StmtIterator;
 import org.apache.jena.shared.Lock;
 import org.apache.jena.util.iterator.ClosableIterator;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * Find nodes with no name and give them a name
@@ -39,6 +53,10 @@ public class RenameBlankNodes {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(RenameBlankNodes.class);
+	/**
+	 * Number of triples written to the output model at a time when skolemizing
+	 */
+	private static final int WRITE_BATCH = 50000;
 	/**
 	 * The model to perform rename in
 	 */
@@ -63,6 +81,10 @@ public class RenameBlankNodes {
 	 * property
 	 */
 	private final String property;
+	/**
+	 * give blank nodes deterministic uris while copying, instead of renaming them in the output afterwards
+	 */
+	private final boolean skolemize;
 	
 	/**
 	 * Constructor
@@ -84,6 +106,20 @@ public class RenameBlankNodes {
 	 * @param property property
 	 */
 	public RenameBlankNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property) {
+		this(inJC, outJC, namespaceEtc, dedupJC, pattern, property, false);
+	}
+	
+	/**
+	 * Constructor
+	 * @param inJC The model to perform rename in
+	 * @param outJC The model to write output to
+	 * @param namespaceEtc The part of the namespace between the base and the ID number
+	 * @param dedupJC deduplication test model (not needed when skolemizing)
+	 * @param pattern pattern
+	 * @param property property
+	 * @param skolemize give blank nodes deterministic uris while copying, instead of renaming them in the output
+	 */
+	public RenameBlankNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, JenaConnect dedupJC, String pattern, String property, boolean skolemize) {
 		this.inJC = inJC;
 		this.outJC = outJC;
 		this.namespaceEtc = namespaceEtc;
@@ -95,6 +131,7 @@ public class RenameBlankNodes {
 			this.pattern = pattern;
 		}
 		this.property = property;
+		this.skolemize = skolemize;
 		
 		if(this.inJC == null) {
 			throw new IllegalArgumentException("Must provide an input jena model");
@@ -102,6 +139,9 @@ public class RenameBlankNodes {
 		if(this.outJC == null) {
 			throw new IllegalArgumentException("Must provide an output jena model");
 		}
+		if(this.skolemize && (this.inJC == this.outJC)) {
+			throw new IllegalArgumentException("Must provide an output jena model other than the input model to skolemize");
+		}
 	}
 	
 	/**
@@ -116,7 +156,8 @@ public class RenameBlankNodes {
 			argList.get("n"),
 			JenaConnect.parseConfig(argList.get("d"), argList.getValueMap("D")),
 			argList.get("t"),
-			argList.get("p")
+			argList.get("p"),
+			argList.has("s")
 		);
 	}
 	
@@ -147,6 +188,8 @@ public class RenameBlankNodes {
 		
 		try {
 			outJC.loadRdfFromJC(inJC);			
+			URIMinter minter = null;
+			Map<Resource, String> renames = new HashMap<Resource, String>();
 			
 			//for (Iterator<Statement> stmtIt = inModel.listStatements(); stmtIt.hasNext();){
 			//	Statement stmt = stmtIt.next();
@@ -164,7 +207,11 @@ public class RenameBlankNodes {
 							StmtIterator stmtOut = outModel.listStatements(res, null, (RDFNode)null);
 							Resource outRes = stmtOut.next().getSubject();
 						
-							RenameResources.renameResource(outRes, ChangeNamespace.getUnusedURI(namespaceEtc+pattern+"_",dedupUnionModel));
+							if(minter == null) {
+								// read the uris in use once, rather than probing the models for every candidate uri
+								minter = new URIMinter(namespaceEtc+pattern+"_", dedupUnionModel);
+							}
+							renames.put(outRes, minter.mint());
 					
 							doneSet.add(res.getId().toString());
 						} else {
@@ -181,7 +228,7 @@ public class RenameBlankNodes {
 							if (stmt != null) {
 								Resource outRes = stmt.getSubject();
 								if(stmt.getObject().isLiteral()){
-									RenameResources.renameResource(outRes,namespaceEtc+pattern+"_"+stmt.getObject().toString());
+									renames.put(outRes, namespaceEtc+pattern+"_"+stmt.getObject().toString());
 								}
 								doneSet.add(res.getId().toString());
 							}
@@ -191,16 +238,264 @@ public class RenameBlankNodes {
 			} finally {
 				closeIt.close();
 			}
+			// the renames only touch outModel, so they can all be made once the subjects have been read
+			RenameResources.renameResources(outModel, renames);
+			RenameResources.journalRenames(outJC, renames);
 		} finally {
 			inModel.leaveCriticalSection();
 		}
 	}
 
+	/**
+	 * Copy the input model to the output model in one pass, giving each blank node a deterministic uri on the way.
+	 * With a property, the uri is built from an md5 hash of the blank node's value of that property (blank nodes
+	 * without a value stay blank). Otherwise it is an md5 hash of the blank node's outgoing statements, with blank
+	 * objects hashed the same way, so blank nodes with identical content get the same uri whatever order they are read
+	 * in. Blank nodes in a cycle of blank nodes, or leading to one, have no such canonical content and stay blank.
+	 * Each blank node is looked up through the input's subject index the first time it is seen, so no renames are
+	 * needed in the output and no models are probed for unused uris.
+	 * @param inJC The model to read
+	 * @param outJC The model to write output to
+	 * @param namespaceEtc The part of the namespace between the base and the ID number
+	 * @param pattern pattern
+	 * @param property property whose value identifies a blank node (null to hash its statements)
+	 * @return number of blank nodes given uris
+	 */
+	public static int skolemizeBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, String pattern, String property) {
+		Model inModel = inJC.getJenaModel();
+		Skolemizer skolemizer = new Skolemizer(inModel.getGraph(), namespaceEtc + ((pattern == null) ? "" : pattern) + "_", property);
+		List<Triple> batch = new ArrayList<Triple>();
+		inModel.enterCriticalSection(Lock.READ);
+		try {
+			ExtendedIterator<Triple> it = GraphUtil.findAll(inModel.getGraph());
+			try {
+				while(it.hasNext()) {
+					Triple t = it.next();
+					batch.add(Triple.create(skolemizer.skolemize(t.getSubject()), t.getPredicate(), skolemizer.skolemize(t.getObject())));
+					if(batch.size() >= WRITE_BATCH) {
+						outJC.updateTriples(Collections.<Triple>emptyList(), batch);
+						batch.clear();
+					}
+				}
+			} finally {
+				it.close();
+			}
+			outJC.updateTriples(Collections.<Triple>emptyList(), batch);
+		} finally {
+			inModel.leaveCriticalSection();
+		}
+		log.debug("Gave uris to " + skolemizer.count + " blank nodes");
+		if(skolemizer.cyclic > 0) {
+			log.warn("Left " + skolemizer.cyclic + " blank nodes in or leading to cycles of blank nodes blank");
+		}
+		return skolemizer.count;
+	}
+	
+	/**
+	 * Works out, and remembers, the uri for each blank node
+	 */
+	private static class Skolemizer {
+		/**
+		 * the input graph
+		 */
+		private final Graph graph;
+		/**
+		 * the namespace, pattern and separator the hash is added to
+		 */
+		private final String prefix;
+		/**
+		 * property whose value identifies a blank node (null to hash its statements)
+		 */
+		private final Node property;
+		/**
+		 * the uri (or the blank node itself, when it has none) for each blank node seen
+		 */
+		private final Map<Node, Node> uris = new HashMap<Node, Node>();
+		/**
+		 * blank nodes whose content hash is being worked out, to find cycles
+		 */
+		private final Set<Node> hashing = new HashSet<Node>();
+		/**
+		 * number of blank nodes given uris
+		 */
+		protected int count = 0;
+		/**
+		 * number of blank nodes left blank because they are in or lead to a cycle
+		 */
+		protected int cyclic = 0;
+		
+		/**
+		 * Constructor
+		 * @param graph the input graph
+		 * @param prefix the namespace, pattern and separator the hash is added to
+		 * @param property property whose value identifies a blank node (null to hash its statements)
+		 */
+		protected Skolemizer(Graph graph, String prefix, String property) {
+			this.graph = graph;
+			this.prefix = prefix;
+			this.property = (property == null) ? null : NodeFactory.createURI(property);
+		}
+		
+		/**
+		 * Get the node to write in place of a node
+		 * @param node the node
+		 * @return the uri for a blank node, otherwise the node
+		 */
+		protected Node skolemize(Node node) {
+			if(!node.isBlank()) {
+				return node;
+			}
+			Node uri = this.uris.get(node);
+			if(uri == null) {
+				if(this.property == null) {
+					hashContent(node);
+					return this.uris.get(node);
+				}
+				String hash = propertyHash(node);
+				if(hash == null) {
+					uri = node;
+				} else {
+					uri = NodeFactory.createURI(this.prefix + hash);
+					this.count++;
+				}
+				this.uris.put(node, uri);
+			}
+			return uri;
+		}
+		
+		/**
+		 * Hash a blank node's value of the property
+		 * @param node the blank node
+		 * @return the hash, or null if it has no literal value
+		 */
+		private String propertyHash(Node node) {
+			ExtendedIterator<Triple> it = this.graph.find(node, this.property, Node.ANY);
+			try {
+				while(it.hasNext()) {
+					Node value = it.next().getObject();
+					if(value.isLiteral()) {
+						return DigestUtils.md5Hex(value.getLiteralLexicalForm());
+					}
+				}
+			} finally {
+				it.close();
+			}
+			return null;
+		}
+		
+		/**
+		 * Give a blank node, and the blank nodes it leads to, uris from hashes of their outgoing statements. The blank
+		 * nodes are walked depth first with a stack rather than by recursion, so long chains such as rdf:Lists cannot
+		 * overflow the call stack, and each is hashed once the blank nodes it refers to have been. A blank node found
+		 * again while it is still on the stack closes a cycle, and every blank node on the stack then stays blank.
+		 * @param node the blank node
+		 */
+		private void hashContent(Node node) {
+			Deque<HashFrame> stack = new ArrayDeque<HashFrame>();
+			stack.push(new HashFrame(node));
+			this.hashing.add(node);
+			while(!stack.isEmpty()) {
+				HashFrame frame = stack.peek();
+				if(frame.next < frame.triples.size()) {
+					Node obj = frame.triples.get(frame.next++).getObject();
+					if(obj.isBlank()) {
+						Node objUri = this.uris.get(obj);
+						if(objUri != null) {
+							frame.cyclic |= objUri.isBlank();
+						} else if(this.hashing.contains(obj)) {
+							frame.cyclic = true;
+						} else {
+							stack.push(new HashFrame(obj));
+							this.hashing.add(obj);
+						}
+					}
+					continue;
+				}
+				stack.pop();
+				this.hashing.remove(frame.node);
+				if(frame.cyclic) {
+					this.uris.put(frame.node, frame.node);
+					this.cyclic++;
+					// the blank node that led here leads to the cycle too
+					if(!stack.isEmpty()) {
+						stack.peek().cyclic = true;
+					}
+				} else {
+					this.uris.put(frame.node, NodeFactory.createURI(this.prefix + contentHash(frame.triples)));
+					this.count++;
+				}
+			}
+		}
+		
+		/**
+		 * Hash a blank node's outgoing statements, in sorted order so the hash does not depend on the store. Blank
+		 * objects must already have uris.
+		 * @param triples the blank node's outgoing statements
+		 * @return the hash
+		 */
+		private String contentHash(List<Triple> triples) {
+			List<String> lines = new ArrayList<String>(triples.size());
+			for(Triple t : triples) {
+				Node obj = t.getObject();
+				String objStr;
+				if(obj.isLiteral()) {
+					objStr = "\"" + obj.getLiteralLexicalForm() + "\"@" + obj.getLiteralLanguage() + "^^" + obj.getLiteralDatatypeURI();
+				} else if(obj.isBlank()) {
+					objStr = this.uris.get(obj).getURI();
+				} else {
+					objStr = obj.getURI();
+				}
+				lines.add(t.getPredicate().getURI() + " " + objStr);
+			}
+			Collections.sort(lines);
+			StringBuilder content = new StringBuilder();
+			for(String line : lines) {
+				content.append(line).append('\n');
+			}
+			return DigestUtils.md5Hex(content.toString());
+		}
+		
+		/**
+		 * A blank node on the stack of hashContent
+		 */
+		private class HashFrame {
+			/**
+			 * the blank node
+			 */
+			final Node node;
+			/**
+			 * its outgoing statements
+			 */
+			final List<Triple> triples;
+			/**
+			 * index of the next statement to follow
+			 */
+			int next = 0;
+			/**
+			 * the blank node is in or leads to a cycle
+			 */
+			boolean cyclic = false;
+			
+			/**
+			 * Constructor
+			 * @param node the blank node
+			 */
+			HashFrame(Node node) {
+				this.node = node;
+				this.triples = Skolemizer.this.graph.find(node, Node.ANY, Node.ANY).toList();
+			}
+		}
+	}
+	
 	/**
 	 * Rename blank nodes
 	 */
 	public void execute() {
-		renameBNodes(this.inJC, this.outJC, this.namespaceEtc, this.dedupJC, this.pattern, this.property);
+		if(this.skolemize) {
+			skolemizeBNodes(this.inJC, this.outJC, this.namespaceEtc, this.pattern, this.property);
+		} else {
+			renameBNodes(this.inJC, this.outJC, this.namespaceEtc, this.dedupJC, this.pattern, this.property);
+		}
 		this.inJC.sync();
 		this.outJC.sync();
 //		try {
@@ -225,6 +520,7 @@ public class RenameBlankNodes {
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("namespaceEtc").withParameter(true, "NAMESPACE_ETC").setDescription("the namespace before to use for the unique URI").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("pattern").withParameter(true, "PATTERN").setDescription("pattern to add between the namespace and the uniqueid").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("property").withParameter(true, "PROPERTY").setDescription("property that contains the unique id to use for the new namespace").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("skolemize").setDescription("give blank nodes uris from a hash of their -p/--property value, or of their statements, while copying to the output in one pass").setRequired(false));
 		return parser;
 	}
 	
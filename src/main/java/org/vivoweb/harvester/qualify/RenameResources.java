@@ -6,7 +6,14 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +27,7 @@ import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.apache.jena.graph.GraphUtil;
 import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Resource;
@@ -36,6 +44,15 @@ public class RenameResources {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(RenameResources.class);
+	/**
+	 * Number of triples added or removed at a time by a batch rename
+	 */
+	private static final int BATCH_SIZE = 50000;
+	/**
+	 * A batch rename scans the whole graph once, rather than looking up each resource, when renaming more than one
+	 * resource for this many triples in the graph
+	 */
+	private static final int SCAN_RATIO = 20;
 	/**
 	 * The resource uri to which old uri will be renamed
 	 */
@@ -87,9 +104,12 @@ public class RenameResources {
 	 * Run the Merge
 	 */
 	public void execute() {
+		Map<Resource, String> renames = new HashMap<Resource, String>();
 		for(String sec : this.oldUris) {
-			renameResource(this.jena.getJenaModel().getResource(sec), this.newUri);
+			renames.put(this.jena.getJenaModel().getResource(sec), this.newUri);
 		}
+		renameResources(this.jena.getJenaModel(), renames);
+		journalRenames(this.jena, renames);
 		this.jena.sync();
 	}
 	
@@ -197,6 +217,179 @@ public class RenameResources {
 		return newRes;
 	}
 	
+	/**
+	 * Rename many resources at once. Every triple with a renamed resource as subject or object is rewritten, either
+	 * in one pass over the whole graph or, when few resources are renamed compared to the size of the graph, by
+	 * looking up each renamed resource. The changes are then applied in large batches, inside a transaction when the
+	 * model supports them. The result is the same as calling renameResource for each entry in the map's iteration
+	 * order, so a new uri that a later entry renames is followed to that entry's uri, and resources renamed to the same
+	 * uri are merged. As with renameResource, uses of a resource as a property are not renamed.
+	 * @param model the model to rename resources in
+	 * @param renames the new uri for each resource to rename (resources may be blank nodes), in the order to apply them
+	 * @return number of triples rewritten
+	 */
+	public static int renameResources(Model model, Map<Resource, String> renames) {
+		Map<Node, Node> nodeMap = new LinkedHashMap<Node, Node>();
+		for(Map.Entry<Resource, String> rename : renames.entrySet()) {
+			nodeMap.put(rename.getKey().asNode(), NodeFactory.createURI(rename.getValue()));
+		}
+		return rewrite(model, nodeMap);
+	}
+	
+	/**
+	 * Record the new uris of renamed resources in the change journal of their model (does nothing when the model is
+	 * not journaling)
+	 * @param jc the model the resources were renamed in
+	 * @param renames the new uri for each renamed resource
+	 */
+	public static void journalRenames(JenaConnect jc, Map<Resource, String> renames) {
+		if(!jc.isJournaling()) {
+			return;
+		}
+		Set<Node> renamed = new HashSet<Node>();
+		for(String newUri : renames.values()) {
+			renamed.add(NodeFactory.createURI(newUri));
+		}
+		jc.journalChanges(renamed);
+	}
+	
+	/**
+	 * Replace many resources at once, as renameResources does, where the replacement may also be a blank node
+	 * @param model the model to replace resources in
+	 * @param replacements the resource replacing each resource
+	 * @return number of triples rewritten
+	 */
+	public static int replaceResources(Model model, Map<? extends Resource, ? extends Resource> replacements) {
+		Map<Node, Node> nodeMap = new LinkedHashMap<Node, Node>();
+		for(Map.Entry<? extends Resource, ? extends Resource> replacement : replacements.entrySet()) {
+			nodeMap.put(replacement.getKey().asNode(), replacement.getValue().asNode());
+		}
+		return rewrite(model, nodeMap);
+	}
+	
+	/**
+	 * Rewrite every triple with a replaced node as subject or object
+	 * @param model the model to rewrite
+	 * @param replacements the node replacing each node, in the order to apply them
+	 * @return number of triples rewritten
+	 */
+	private static int rewrite(Model model, Map<Node, Node> replacements) {
+		Map<Node, Node> nodeMap = compose(replacements);
+		for(Iterator<Map.Entry<Node, Node>> it = nodeMap.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Node, Node> rename = it.next();
+			if(rename.getKey().equals(rename.getValue())) {
+				it.remove();
+			}
+		}
+		if(nodeMap.isEmpty()) {
+			return 0;
+		}
+		final Graph graph = model.getGraph(), rawGraph;
+		if(graph instanceof InfGraph) {
+			rawGraph = ((InfGraph)graph).getRawGraph();
+		} else {
+			rawGraph = graph;
+		}
+		
+		// find the triples to rewrite before changing anything
+		Set<Triple> removeTriples = new LinkedHashSet<Triple>();
+		if(((long)nodeMap.size() * SCAN_RATIO) > rawGraph.size()) {
+			log.trace("Renaming " + nodeMap.size() + " resources in one pass over the graph");
+			ExtendedIterator<Triple> all = GraphUtil.findAll(rawGraph);
+			try {
+				while(all.hasNext()) {
+					Triple t = all.next();
+					if(nodeMap.containsKey(t.getSubject()) || nodeMap.containsKey(t.getObject())) {
+						removeTriples.add(t);
+					}
+				}
+			} finally {
+				all.close();
+			}
+		} else {
+			log.trace("Renaming " + nodeMap.size() + " resources by lookup");
+			for(Node old : nodeMap.keySet()) {
+				removeTriples.addAll(rawGraph.find(old, Node.ANY, Node.ANY).toList());
+				removeTriples.addAll(rawGraph.find(Node.ANY, Node.ANY, old).toList());
+			}
+		}
+		List<Triple> addTriples = new ArrayList<Triple>(removeTriples.size());
+		for(Triple t : removeTriples) {
+			Node subj = nodeMap.containsKey(t.getSubject()) ? nodeMap.get(t.getSubject()) : t.getSubject();
+			Node obj = nodeMap.containsKey(t.getObject()) ? nodeMap.get(t.getObject()) : t.getObject();
+			addTriples.add(Triple.create(subj, t.getPredicate(), obj));
+		}
+		
+		boolean transaction = model.supportsTransactions();
+		if(transaction) {
+			model.begin();
+		}
+		try {
+			// remove first, so a rewritten triple that matches one being removed is kept
+			List<Triple> batch = new ArrayList<Triple>(Math.min(BATCH_SIZE, removeTriples.size()));
+			for(Triple t : removeTriples) {
+				batch.add(t);
+				if(batch.size() >= BATCH_SIZE) {
+					GraphUtil.delete(rawGraph, batch);
+					batch.clear();
+				}
+			}
+			GraphUtil.delete(rawGraph, batch);
+			for(int start = 0; start < addTriples.size(); start += BATCH_SIZE) {
+				GraphUtil.add(rawGraph, addTriples.subList(start, Math.min(start + BATCH_SIZE, addTriples.size())));
+			}
+			if(transaction) {
+				model.commit();
+				transaction = false;
+			}
+		} finally {
+			if(transaction) {
+				model.abort();
+			}
+		}
+		
+		// Did we work in the back of the InfGraph? If so, we need to rebind raw data
+		if(rawGraph != graph) {
+			((InfGraph)graph).rebind();
+		}
+		log.debug("Renamed " + nodeMap.size() + " resources, rewriting " + removeTriples.size() + " triples");
+		return removeTriples.size();
+	}
+	
+	/**
+	 * Combine replacements into the single replacement of each original node that applying them one after another
+	 * gives
+	 * @param replacements the node replacing each node, in the order to apply them
+	 * @return the final node replacing each original node
+	 */
+	private static Map<Node, Node> compose(Map<Node, Node> replacements) {
+		Map<Node, Node> composed = new HashMap<Node, Node>();
+		// the original nodes now at each node
+		Map<Node, Set<Node>> origins = new HashMap<Node, Set<Node>>();
+		for(Map.Entry<Node, Node> replacement : replacements.entrySet()) {
+			Node old = replacement.getKey();
+			Node target = replacement.getValue();
+			Set<Node> moved = origins.remove(old);
+			if(moved == null) {
+				moved = new HashSet<Node>();
+			}
+			// a node already replaced earlier no longer holds its own triples
+			if(!composed.containsKey(old)) {
+				moved.add(old);
+			}
+			for(Node origin : moved) {
+				composed.put(origin, target);
+			}
+			Set<Node> atTarget = origins.get(target);
+			if(atTarget == null) {
+				origins.put(target, moved);
+			} else {
+				atTarget.addAll(moved);
+			}
+		}
+		return composed;
+	}
+	
 	/**
 	 * Get the ArgParser for this task
 	 * @return the ArgParser
@@ -6,7 +6,16 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.InitLog;
@@ -16,13 +25,17 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
-import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.shared.Lock;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * Smush
@@ -54,6 +67,10 @@ public class Smush {
 	 * Change the input model to match the output model
 	 */
 	private boolean inPlace;
+	/**
+	 * journal key of incremental runs (null to smush everything)
+	 */
+	private String incremental = null;
 	
 	/**
 	 * Constructor
@@ -111,6 +128,7 @@ public class Smush {
 			opts.get("n"), 
 			opts.has("r")
 		);
+		setIncremental(opts.get("incremental"));
 	}
 	
 	/**
@@ -126,9 +144,10 @@ public class Smush {
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of outputJena jena model config using VALUE").setRequired(false));
 		
 		// Parameters
-		parser.addArgument(new ArgDef().setShortOption('P').setLongOpt("inputJena-predicates").withParameters(true, "PREDICATE").setDescription("PREDICATE(s) on which, to match. Multiples are done in series not simultaineously.").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('P').setLongOpt("inputJena-predicates").withParameters(true, "PREDICATE").setDescription("PREDICATE(s) on which, to match. Multiples are done together, so resources sharing a value for any of them are merged transitively.").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("namespace").withParameter(true, "NAMESPACE").setDescription("only match rdf nodes in inputJC whose URI begin with NAMESPACE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("replace").setDescription("replace input model with changed / output model").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("incremental").withParameter(true, "JOURNAL_KEY").setDescription("only smush around resources changed since the last successful run with JOURNAL_KEY (the input model config must set journal to true; changes made by sparql update queries run through JenaConnect -q are not journaled)").setRequired(false));
 		return parser;
 	}
 	
@@ -190,43 +209,283 @@ public class Smush {
 	}
 	
 	/**
-	 * Execute is that method where the smushResoures method is ran for each predicate.
+	 * Find the resources to smush for several inverse-functional properties at once. Each subject is given an integer
+	 * id and subjects sharing an object value of any of the properties are joined in a union-find, so resources are
+	 * merged transitively across properties. Each property is read with a single pass over its statements. Every
+	 * equivalence class is smushed into its lowest uri, or a blank node when the class has no uri.
+	 * @param inputJC model to operate on
+	 * @param properties properties for smush
+	 * @param ns filter on resources addressed (if null then applied to whole model)
+	 * @return the resource each smushed resource is merged into
 	 */
-	public void execute() {
-		JenaConnect subsJC = new MemJenaConnect();
-		JenaConnect addsJC = new MemJenaConnect();
-		log.info("Calculating Smush Changes");
-		for(String runName : this.inputPredicates) {
-			findSmushResourceChanges(this.inputJC, subsJC, addsJC, runName, this.namespace);
+	public static Map<Resource, Resource> findSmushEquivalences(JenaConnect inputJC, List<String> properties, String ns) {
+		return findSmushEquivalences(inputJC, properties, ns, null);
+	}
+	
+	/**
+	 * Find the resources to smush, as findSmushEquivalences does, but only for the equivalence classes of the given
+	 * subjects. Rather than reading whole properties, the classes are grown from the subjects through the subject and
+	 * object indexes, following shared values until no new subjects are found.
+	 * @param inputJC model to operate on
+	 * @param properties properties for smush
+	 * @param ns filter on resources addressed (if null then applied to whole model)
+	 * @param changed uris of the subjects whose classes are smushed (null for every class)
+	 * @return the resource each smushed resource is merged into
+	 */
+	public static Map<Resource, Resource> findSmushEquivalences(JenaConnect inputJC, List<String> properties, String ns, Set<String> changed) {
+		log.debug("Smushing on properties " + properties + " within "+((ns != null )?"namespace <"+ ns + ">":"any namespace"));
+		Model inModel = inputJC.getJenaModel();
+		Graph graph = inModel.getGraph();
+		Map<Node, Integer> ids = new HashMap<Node, Integer>();
+		List<Node> nodes = new ArrayList<Node>();
+		UnionFind classes = new UnionFind();
+		inModel.enterCriticalSection(Lock.READ);
+		try {
+			if(changed != null) {
+				// grow the classes of the changed subjects only
+				Deque<Node> queue = new ArrayDeque<Node>();
+				for(String uri : changed) {
+					Node subj = NodeFactory.createURI(uri);
+					if(inNamespace(subj, ns) && !ids.containsKey(subj)) {
+						ids.put(subj, Integer.valueOf(classes.add()));
+						nodes.add(subj);
+						queue.add(subj);
+					}
+				}
+				Map<Node, Set<Node>> followed = new HashMap<Node, Set<Node>>();
+				while(!queue.isEmpty()) {
+					Node subj = queue.poll();
+					for(String property : properties) {
+						Node prop = NodeFactory.createURI(property);
+						Set<Node> values = followed.get(prop);
+						if(values == null) {
+							values = new HashSet<Node>();
+							followed.put(prop, values);
+						}
+						for(Triple valueStmt : graph.find(subj, prop, Node.ANY).toList()) {
+							if(!values.add(valueStmt.getObject())) {
+								continue;
+							}
+							for(Triple stmt : graph.find(Node.ANY, prop, valueStmt.getObject()).toList()) {
+								Node other = stmt.getSubject();
+								if(!inNamespace(other, ns)) {
+									continue;
+								}
+								Integer otherId = ids.get(other);
+								if(otherId == null) {
+									otherId = Integer.valueOf(classes.add());
+									ids.put(other, otherId);
+									nodes.add(other);
+									queue.add(other);
+								}
+								classes.union(ids.get(subj).intValue(), otherId.intValue());
+							}
+						}
+					}
+				}
+			}
+			for(String property : ((changed == null) ? properties : Collections.<String>emptyList())) {
+				// the first subject found with each object value of the property
+				Map<Node, Integer> firstSubjects = new HashMap<Node, Integer>();
+				ExtendedIterator<Triple> stmts = graph.find(Node.ANY, NodeFactory.createURI(property), Node.ANY);
+				try {
+					while(stmts.hasNext()) {
+						Triple stmt = stmts.next();
+						Node subj = stmt.getSubject();
+						// only look at subject resources in the requested namespace if one specified
+						if(!inNamespace(subj, ns)) {
+							continue;
+						}
+						Integer id = ids.get(subj);
+						if(id == null) {
+							id = Integer.valueOf(classes.add());
+							ids.put(subj, id);
+							nodes.add(subj);
+						}
+						Integer first = firstSubjects.get(stmt.getObject());
+						if(first == null) {
+							firstSubjects.put(stmt.getObject(), id);
+						} else {
+							classes.union(first.intValue(), id.intValue());
+						}
+					}
+				} finally {
+					stmts.close();
+				}
+			}
+		} finally {
+			inModel.leaveCriticalSection();
 		}
-//		try {
-//			log.debug("Subs:\n" + subsJC.exportRdfToString());
-//		} catch(IOException e) {
-//			// Do Nothing
-//		}
-//		try {
-//			log.debug("Adds:\n" + addsJC.exportRdfToString());
-//		} catch(IOException e) {
-//			// Do Nothing
-//		}
+		
+		// pick the resource each class is smushed into
+		Node[] targets = new Node[nodes.size()];
+		for(int id = 0; id < nodes.size(); id++) {
+			int root = classes.find(id);
+			if((targets[root] == null) || isPreferred(nodes.get(id), targets[root])) {
+				targets[root] = nodes.get(id);
+			}
+		}
+		Map<Resource, Resource> merges = new HashMap<Resource, Resource>();
+		for(int id = 0; id < nodes.size(); id++) {
+			Node target = targets[classes.find(id)];
+			if(!target.equals(nodes.get(id))) {
+				log.trace(" Smushing <" + nodes.get(id) + "> into <" + target + ">");
+				merges.put(inModel.wrapAsResource(nodes.get(id)), inModel.wrapAsResource(target));
+			}
+		}
+		return merges;
+	}
+	
+	/**
+	 * Is a subject in the namespace
+	 * @param subj the subject
+	 * @param ns the namespace (null for any)
+	 * @return true if the subject should be looked at
+	 */
+	private static boolean inNamespace(Node subj, String ns) {
+		return (ns == null) || (subj.isURI() && subj.getNameSpace().equals(ns));
+	}
+	
+	/**
+	 * Should a resource be smushed into rather than another: uris before blank nodes, then the lowest uri
+	 * @param node the resource
+	 * @param other the other resource
+	 * @return true if node is preferred
+	 */
+	private static boolean isPreferred(Node node, Node other) {
+		if(node.isURI() != other.isURI()) {
+			return node.isURI();
+		}
+		return node.isURI() && (node.getURI().compareTo(other.getURI()) < 0);
+	}
+	
+	/**
+	 * Disjoint sets of integer ids, with path halving and union by size
+	 */
+	private static class UnionFind {
+		/**
+		 * parent of each id (an id that is its own parent is the root of its set)
+		 */
+		private int[] parents = new int[1024];
+		/**
+		 * size of the set each root id is the root of
+		 */
+		private int[] sizes = new int[1024];
+		/**
+		 * count of ids
+		 */
+		private int count = 0;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected UnionFind() {
+			// Nothing to do here
+		}
+		
+		/**
+		 * Add an id in a set of its own
+		 * @return the id
+		 */
+		protected int add() {
+			if(this.count == this.parents.length) {
+				this.parents = Arrays.copyOf(this.parents, this.count * 2);
+				this.sizes = Arrays.copyOf(this.sizes, this.count * 2);
+			}
+			this.parents[this.count] = this.count;
+			this.sizes[this.count] = 1;
+			return this.count++;
+		}
+		
+		/**
+		 * Find the root of the set an id is in
+		 * @param id the id
+		 * @return the root id
+		 */
+		protected int find(int id) {
+			int x = id;
+			while(this.parents[x] != x) {
+				this.parents[x] = this.parents[this.parents[x]];
+				x = this.parents[x];
+			}
+			return x;
+		}
+		
+		/**
+		 * Join the sets two ids are in
+		 * @param a an id
+		 * @param b another id
+		 */
+		protected void union(int a, int b) {
+			int rootA = find(a);
+			int rootB = find(b);
+			if(rootA == rootB) {
+				return;
+			}
+			if(this.sizes[rootA] < this.sizes[rootB]) {
+				int swap = rootA;
+				rootA = rootB;
+				rootB = swap;
+			}
+			this.parents[rootB] = rootA;
+			this.sizes[rootA] += this.sizes[rootB];
+		}
+	}
+	
+	/**
+	 * Execute is that method where resources are smushed on all the predicates at once.
+	 * @throws IOException error reading or writing the change journal
+	 */
+	public void execute() throws IOException {
+		long started = System.currentTimeMillis();
+		Set<String> changed = null;
+		if(this.incremental != null) {
+			changed = this.inputJC.getChangeJournal().getChangedSince(this.incremental);
+			if(changed == null) {
+				log.info("No earlier run of '" + this.incremental + "' in the change journal, smushing everything");
+			} else {
+				log.info("Smushing only around " + changed.size() + " resources changed since the last run");
+			}
+		}
+		log.info("Calculating Smush Changes");
+		Map<Resource, Resource> merges = findSmushEquivalences(this.inputJC, this.inputPredicates, this.namespace, changed);
+		log.info("Smushing " + merges.size() + " resources");
 		if(this.inPlace){
-			log.info("Removing Old Statements");
-			this.inputJC.removeRdfFromJC(subsJC);
-			log.info("Inserting New Statements");
-			this.inputJC.loadRdfFromJC(addsJC);
+			log.info("Rewriting Input Statements");
+			RenameResources.replaceResources(this.inputJC.getJenaModel(), merges);
+			Set<Node> targets = new HashSet<Node>();
+			for(Resource target : merges.values()) {
+				targets.add(target.asNode());
+			}
+			this.inputJC.journalChanges(targets);
 		}
 		if(this.outputJena != null) {
 			log.info("Loading RDF From Input Into Output");
 			this.outputJena.loadRdfFromJC(this.inputJC);
-			log.info("Removing Subtractions From Output");
-			this.outputJena.removeRdfFromJC(subsJC);
-			log.info("Loading Additions Into Output");
-			this.outputJena.loadRdfFromJC(addsJC);
+			if(!this.inPlace) {
+				log.info("Rewriting Output Statements");
+				RenameResources.replaceResources(this.outputJena.getJenaModel(), merges);
+			}
 			log.info("Syncing Output Model");
 			this.outputJena.sync();
 		}
 		log.info("Syncing Input Model");
 		this.inputJC.sync();
+		if(this.incremental != null) {
+			this.inputJC.getChangeJournal().markRun(this.incremental, started);
+		}
+	}
+	
+	/**
+	 * Only smush around the subjects changed since the last successful run with the same journal key. The input model
+	 * must be journaling its changes.
+	 * @param journalKey the journal key (null to smush everything)
+	 */
+	public void setIncremental(String journalKey) {
+		if((journalKey != null) && !this.inputJC.isJournaling()) {
+			throw new IllegalArgumentException("Incremental smush needs the input model config to set journal to true");
+		}
+		this.incremental = journalKey;
 	}
 
 	/**
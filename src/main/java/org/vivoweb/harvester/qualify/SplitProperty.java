@@ -6,6 +6,16 @@
 package org.vivoweb.harvester.qualify;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +26,9 @@ import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.Literal;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
@@ -24,6 +37,7 @@ import org.apache.jena.rdf.model.ResourceFactory;
 import org.apache.jena.rdf.model.Statement;
 import org.apache.jena.rdf.model.StmtIterator;
 import org.apache.jena.shared.Lock;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * Changes the namespace for all matching uris
@@ -35,22 +49,26 @@ public class SplitProperty {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(SplitProperty.class);
+	/**
+	 * Fewest statements given to each thread when splitting
+	 */
+	private static final int MIN_PARTITION = 1000;
 	/**
 	 * model to split property values in
 	 */
 	private JenaConnect model;
 	/**
-	 * regex to split oldPropertyURI value on
+	 * regex to split each oldPropertyURI value on
 	 */
-	private String splitRegex;
+	private List<Pattern> splitRegexes;
 	/**
-	 * old property uri (to be split)
+	 * old property uris (to be split)
 	 */
-	private String oldPropertyURI;
+	private List<String> oldPropertyURIs;
 	/**
-	 * new property uri (to store split values in)
+	 * new property uris (to store split values in)
 	 */
-	private String newPropertyURI;
+	private List<String> newPropertyURIs;
 	/**
 	 * trim() the new values
 	 */
@@ -75,13 +93,31 @@ public class SplitProperty {
 	 * @param trim trim() the new values
 	 */
 	public SplitProperty(JenaConnect model, String splitRegex, String oldPropertyURI, String newPropertyURI, boolean trim) {
+		this(model, Collections.singletonList(splitRegex), Collections.singletonList(oldPropertyURI), Collections.singletonList(newPropertyURI), trim);
+	}
+	
+	/**
+	 * Constructor for several splits, done together so each old property is read once
+	 * @param model model to split property values in
+	 * @param splitRegexes regex to split each oldPropertyURI value on
+	 * @param oldPropertyURIs old property uris (to be split)
+	 * @param newPropertyURIs new property uris (to store split values in)
+	 * @param trim trim() the new values
+	 */
+	public SplitProperty(JenaConnect model, List<String> splitRegexes, List<String> oldPropertyURIs, List<String> newPropertyURIs, boolean trim) {
 		if(model == null) {
 			throw new IllegalArgumentException("No model provided! Must provide a model");
 		}
+		if((splitRegexes.size() != oldPropertyURIs.size()) || (newPropertyURIs.size() != oldPropertyURIs.size())) {
+			throw new IllegalArgumentException("Must provide a regex, an old property and a new property for each split");
+		}
 		this.model = model;
-		this.splitRegex = splitRegex;
-		this.oldPropertyURI = oldPropertyURI;
-		this.newPropertyURI = newPropertyURI;
+		this.splitRegexes = new ArrayList<Pattern>();
+		for(String splitRegex : splitRegexes) {
+			this.splitRegexes.add(Pattern.compile(splitRegex));
+		}
+		this.oldPropertyURIs = oldPropertyURIs;
+		this.newPropertyURIs = newPropertyURIs;
 		this.trim = trim;
 	}
 	
@@ -93,9 +129,9 @@ public class SplitProperty {
 	private SplitProperty(ArgList argList) throws IOException {
 		this(
 			JenaConnect.parseConfig(argList.get("i"), argList.getValueMap("I")), 
-			argList.get("r"), 
-			argList.get("u"), 
-			argList.get("n"), 
+			argList.getAll("r"), 
+			argList.getAll("u"), 
+			argList.getAll("n"), 
 			argList.has("t")
 		);
 	}
@@ -159,13 +195,104 @@ public class SplitProperty {
 	}
 	
 	/**
-	 * Split Property Values
+	 * Split Property Values. The splits are grouped by old property so each property's statements are read once, the
+	 * values are split on a pool of threads, and the new statements are written straight into the model in batches.
 	 */
 	public void execute() {
-		this.model.loadRdfFromJC(splitPropertyValues(this.model, this.splitRegex, this.oldPropertyURI, this.newPropertyURI, this.trim));
+		Map<String, List<Integer>> splitsByProperty = new LinkedHashMap<String, List<Integer>>();
+		for(int x = 0; x < this.oldPropertyURIs.size(); x++) {
+			List<Integer> splits = splitsByProperty.get(this.oldPropertyURIs.get(x));
+			if(splits == null) {
+				splits = new ArrayList<Integer>();
+				splitsByProperty.put(this.oldPropertyURIs.get(x), splits);
+			}
+			splits.add(Integer.valueOf(x));
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for(Map.Entry<String, List<Integer>> property : splitsByProperty.entrySet()) {
+				List<Triple> stmts = new ArrayList<Triple>();
+				ExtendedIterator<Triple> it = this.model.getJenaModel().getGraph().find(Node.ANY, NodeFactory.createURI(property.getKey()), Node.ANY);
+				try {
+					while(it.hasNext()) {
+						Triple stmt = it.next();
+						if(stmt.getObject().isLiteral()) {
+							stmts.add(stmt);
+						}
+					}
+				} finally {
+					it.close();
+				}
+				log.debug("Splitting " + stmts.size() + " values of <" + property.getKey() + ">");
+				// several partitions per thread, so new statements are written while later partitions are still split
+				int partitionSize = Math.max(MIN_PARTITION, (stmts.size() / (threads * 4)) + 1);
+				List<Future<List<Triple>>> partitions = new ArrayList<Future<List<Triple>>>();
+				for(int start = 0; start < stmts.size(); start += partitionSize) {
+					partitions.add(pool.submit(new Splitter(stmts.subList(start, Math.min(start + partitionSize, stmts.size())), property.getValue())));
+				}
+				for(Future<List<Triple>> partition : partitions) {
+					this.model.updateTriples(Collections.<Triple>emptyList(), partition.get());
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while splitting property values", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
 		this.model.sync();
 	}
 	
+	/**
+	 * Splits a partition of an old property's values for each split on that property
+	 */
+	private class Splitter implements Callable<List<Triple>> {
+		/**
+		 * the statements
+		 */
+		private final List<Triple> stmts;
+		/**
+		 * the index of each split on the statements' property
+		 */
+		private final List<Integer> splits;
+		
+		/**
+		 * Constructor
+		 * @param stmts the statements
+		 * @param splits the index of each split on the statements' property
+		 */
+		protected Splitter(List<Triple> stmts, List<Integer> splits) {
+			this.stmts = stmts;
+			this.splits = splits;
+		}
+		
+		@Override
+		public List<Triple> call() {
+			List<Triple> adds = new ArrayList<Triple>();
+			for(Integer split : this.splits) {
+				Pattern delimiterPattern = SplitProperty.this.splitRegexes.get(split.intValue());
+				Node newProp = NodeFactory.createURI(SplitProperty.this.newPropertyURIs.get(split.intValue()));
+				for(Triple stmt : this.stmts) {
+					for(String newLexicalForm : delimiterPattern.split(stmt.getObject().getLiteralLexicalForm())) {
+						if(SplitProperty.this.trim) {
+							newLexicalForm = newLexicalForm.trim();
+						}
+						if(newLexicalForm.length() > 0) {
+							adds.add(Triple.create(stmt.getSubject(), newProp, Qualify.createLiteral(newLexicalForm, stmt.getObject())));
+						}
+					}
+				}
+			}
+			return adds;
+		}
+	}
+	
 	/**
 	 * Get the ArgParser for this task
 	 * @return the ArgParser
@@ -177,9 +304,9 @@ public class SplitProperty {
 		parser.addArgument(new ArgDef().setShortOption('I').setLongOpt("inputModelOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of jena model config using VALUE").setRequired(false));
 		
 		// Params
-		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("regex").withParameter(true, "SPLIT_REGEX").setDescription("regex to split oldPropertyURI value on").setRequired(true));
-		parser.addArgument(new ArgDef().setShortOption('u').setLongOpt("oldPropertyURI").withParameter(true, "OLD_PREDICATE").setDescription("old property uri (to be split)").setRequired(true));
-		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("newPropertyURI").withParameter(true, "NEW_PREDICATE").setDescription("new property uri (to store split values in)").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("regex").withParameters(true, "SPLIT_REGEX").setDescription("regex to split oldPropertyURI value on, repeat -r/-u/-n together to do several splits in one run").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('u').setLongOpt("oldPropertyURI").withParameters(true, "OLD_PREDICATE").setDescription("old property uri (to be split)").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("newPropertyURI").withParameters(true, "NEW_PREDICATE").setDescription("new property uri (to store split values in)").setRequired(true));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("trim").setDescription("trim() the new values").setRequired(false));
 		return parser;
 	}
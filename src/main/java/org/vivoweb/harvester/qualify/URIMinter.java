@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.qualify;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.IterableAdaptor;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.ResIterator;
+
+/**
+ * Mints unused uris of the form namespace + "n" + number, the same form as ChangeNamespace.getUnusedURI. The subjects
+ * already using the namespace are read from the models once, and each uri handed out is reserved, so minting needs
+ * no further queries and never hands out the same uri twice.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class URIMinter {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(URIMinter.class);
+	/**
+	 * The namespace uris are minted in
+	 */
+	private final String namespace;
+	/**
+	 * The numbers already used in the models, sorted
+	 */
+	private final int[] used;
+	/**
+	 * The numbers handed out by this minter
+	 */
+	private final Set<Integer> reserved = new HashSet<Integer>();
+	/**
+	 * Random number source
+	 */
+	private final Random random = new Random();
+
+	/**
+	 * Constructor
+	 * @param namespace the namespace to mint uris in
+	 * @param models models whose subjects are already in use
+	 * @throws IOException error connecting
+	 */
+	public URIMinter(String namespace, JenaConnect... models) throws IOException {
+		this(namespace, readUsed(checkNamespace(namespace), models));
+	}
+
+	/**
+	 * Constructor
+	 * @param namespace the namespace to mint uris in
+	 * @param models models whose subjects are already in use
+	 */
+	public URIMinter(String namespace, Model... models) {
+		this(namespace, readUsed(checkNamespace(namespace), models));
+	}
+
+	/**
+	 * Constructor
+	 * @param namespace the namespace to mint uris in
+	 * @param used the numbers already used, sorted
+	 */
+	private URIMinter(String namespace, int[] used) {
+		this.namespace = namespace;
+		this.used = used;
+		log.debug("Loaded " + this.used.length + " used uris in namespace <" + this.namespace + ">");
+	}
+
+	/**
+	 * Check that a namespace can have uris minted in it
+	 * @param namespace the namespace
+	 * @return the namespace
+	 */
+	private static String checkNamespace(String namespace) {
+		if((namespace == null) || namespace.equals("")) {
+			throw new IllegalArgumentException("namespace cannot be empty");
+		}
+		return namespace;
+	}
+
+	/**
+	 * Read the numbers used by subjects in the namespace from each model, with one query per model
+	 * @param namespace the namespace
+	 * @param models the models
+	 * @return the sorted numbers
+	 * @throws IOException error connecting
+	 */
+	private static int[] readUsed(String namespace, JenaConnect... models) throws IOException {
+		UsedNumbers numbers = new UsedNumbers(namespace);
+		String prefix = namespace + "n";
+		String query = "" +
+			"SELECT DISTINCT ?sub \n" +
+			"WHERE {\n" +
+			"\t" + "?sub ?p ?o . \n" +
+			"\t" + "FILTER( isURI(?sub) && STRSTARTS(str(?sub), \"" + prefix.replace("\\", "\\\\").replace("\"", "\\\"") + "\") ) \n" +
+			"}";
+		for(JenaConnect model : models) {
+			if(model == null) {
+				continue;
+			}
+			ResultSet results = model.executeSelectQuery(query);
+			for(QuerySolution solution : IterableAdaptor.adapt(results)) {
+				numbers.add(solution.getResource("sub").getURI());
+			}
+		}
+		return numbers.toSortedArray();
+	}
+
+	/**
+	 * Read the numbers used by subjects in the namespace from each model
+	 * @param namespace the namespace
+	 * @param models the models
+	 * @return the sorted numbers
+	 */
+	private static int[] readUsed(String namespace, Model... models) {
+		UsedNumbers numbers = new UsedNumbers(namespace);
+		for(Model model : models) {
+			if(model == null) {
+				continue;
+			}
+			ResIterator subjects = model.listSubjects();
+			try {
+				while(subjects.hasNext()) {
+					Resource sub = subjects.next();
+					if(sub.isURIResource()) {
+						numbers.add(sub.getURI());
+					}
+				}
+			} finally {
+				subjects.close();
+			}
+		}
+		return numbers.toSortedArray();
+	}
+
+	/**
+	 * Mint an unused uri and reserve it
+	 * @return the uri
+	 */
+	public synchronized String mint() {
+		int number;
+		do {
+			number = this.random.nextInt(Integer.MAX_VALUE);
+		} while((Arrays.binarySearch(this.used, number) >= 0) || !this.reserved.add(Integer.valueOf(number)));
+		String uri = this.namespace + "n" + number;
+		log.trace("Using new URI: <" + uri + ">");
+		return uri;
+	}
+
+	/**
+	 * Is a uri used in the models or already minted
+	 * @param uri the uri
+	 * @return true if in use
+	 */
+	public synchronized boolean isUsed(String uri) {
+		int number = parseNumber(this.namespace + "n", uri);
+		if(number < 0) {
+			return false;
+		}
+		return (Arrays.binarySearch(this.used, number) >= 0) || this.reserved.contains(Integer.valueOf(number));
+	}
+
+	/**
+	 * Get the number of a minted style uri
+	 * @param prefix the namespace followed by "n"
+	 * @param uri the uri
+	 * @return the number, or -1 if the uri is not of the minted form
+	 */
+	static int parseNumber(String prefix, String uri) {
+		if((uri == null) || !uri.startsWith(prefix)) {
+			return -1;
+		}
+		String suffix = uri.substring(prefix.length());
+		// only the canonical form of a number can collide with a minted uri
+		if(suffix.isEmpty() || (suffix.length() > 10) || ((suffix.length() > 1) && (suffix.charAt(0) == '0'))) {
+			return -1;
+		}
+		long number = 0;
+		for(int x = 0; x < suffix.length(); x++) {
+			char c = suffix.charAt(x);
+			if((c < '0') || (c > '9')) {
+				return -1;
+			}
+			number = (number * 10) + (c - '0');
+		}
+		if(number >= Integer.MAX_VALUE) {
+			return -1;
+		}
+		return (int)number;
+	}
+
+	/**
+	 * Collects used numbers into a compact array
+	 */
+	private static class UsedNumbers {
+		/**
+		 * the namespace followed by "n"
+		 */
+		private final String prefix;
+		/**
+		 * the numbers
+		 */
+		private int[] numbers = new int[1024];
+		/**
+		 * count of numbers
+		 */
+		private int size = 0;
+
+		/**
+		 * Constructor
+		 * @param namespace the namespace
+		 */
+		protected UsedNumbers(String namespace) {
+			this.prefix = namespace + "n";
+		}
+
+		/**
+		 * Add the number of a uri, if it is of the minted form
+		 * @param uri the uri
+		 */
+		protected void add(String uri) {
+			int number = parseNumber(this.prefix, uri);
+			if(number < 0) {
+				return;
+			}
+			if(this.size == this.numbers.length) {
+				this.numbers = Arrays.copyOf(this.numbers, this.size * 2);
+			}
+			this.numbers[this.size++] = number;
+		}
+
+		/**
+		 * Get the numbers sorted
+		 * @return the sorted numbers
+		 */
+		protected int[] toSortedArray() {
+			int[] sorted = Arrays.copyOf(this.numbers, this.size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -6,15 +6,17 @@
 package org.vivoweb.harvester.score;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeSet;
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.qualify.RenameResources;
@@ -25,13 +27,16 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
-import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.UpdateBatcher;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.QuerySolution;
+import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
-import org.apache.jena.rdf.model.Statement;
-import org.apache.jena.rdf.model.StmtIterator;
 
 /**
  * VIVO Match
@@ -44,6 +49,10 @@ public class Match {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(Match.class);
+	/**
+	 * Number of statements written to the output model at a time
+	 */
+	private static final int OUTPUT_BATCH = 50000;
 	/**
 	 * Model for VIVO instance
 	 */
@@ -76,6 +85,18 @@ public class Match {
 	 * number of records to use in batch
 	 */
 	private int batchSize;
+	/**
+	 * journal key of incremental runs (null to match everything)
+	 */
+	private String incremental = null;
+	/**
+	 * how many links from a matched structure to follow when outputting it (negative for no limit)
+	 */
+	private int outputDepth = -1;
+	/**
+	 * predicates not followed when outputting matched structures
+	 */
+	private Set<Node> outputSkipPredicates = new HashSet<Node>();
 	
 	/**
 	 * Constructor
@@ -145,6 +166,46 @@ public class Match {
 			(opts.has("c")?Boolean.parseBoolean(opts.get("c")):false), 
 			Integer.parseInt(opts.get("b"))
 		);
+		setIncremental(opts.get("incremental"));
+		if(opts.has("output-depth")) {
+			String depth = opts.get("output-depth");
+			if(!depth.trim().matches("\\d{1,9}")) {
+				throw new IllegalArgumentException("output-depth must be a whole number of links, not '" + depth + "'");
+			}
+			setOutputDepth(Integer.parseInt(depth.trim()));
+		}
+		setOutputSkipPredicates(opts.getAll("output-skip"));
+	}
+	
+	/**
+	 * Set how many links from a matched structure to follow when outputting it
+	 * @param depth the depth (negative for no limit)
+	 */
+	public void setOutputDepth(int depth) {
+		this.outputDepth = depth;
+	}
+	
+	/**
+	 * Set the predicates whose statements are output but not followed when outputting matched structures
+	 * @param predicates the predicate uris
+	 */
+	public void setOutputSkipPredicates(Collection<String> predicates) {
+		this.outputSkipPredicates = new HashSet<Node>();
+		for(String predicate : predicates) {
+			this.outputSkipPredicates.add(NodeFactory.createURI(predicate));
+		}
+	}
+	
+	/**
+	 * Only match the input resources changed since the last successful run with the same journal key. The input model
+	 * must be journaling its changes.
+	 * @param journalKey the journal key (null to match everything)
+	 */
+	public void setIncremental(String journalKey) {
+		if((journalKey != null) && !this.inputJena.isJournaling()) {
+			throw new IllegalArgumentException("Incremental match needs the input model config to set journal to true");
+		}
+		this.incremental = journalKey;
 	}
 	
 	/**
@@ -155,11 +216,33 @@ public class Match {
 	 * @throws IOException error connecting
 	 */
 	protected static Set<Map<String, String>> match(float threshold, JenaConnect scoreJena) throws IOException {
+		return match(threshold, scoreJena, null);
+	}
+	
+	/**
+	 * Find the nodes matching the given input resources, bound into the query with a VALUES block so only their
+	 * scores are summed
+	 * @param threshold the value to look for in the sparql query
+	 * @param scoreJena the jena model containing score data
+	 * @param inputUris the input resources to match (null for all)
+	 * @return mapping of the found matches
+	 * @throws IOException error connecting
+	 */
+	protected static Set<Map<String, String>> match(float threshold, JenaConnect scoreJena, Collection<String> inputUris) throws IOException {
+		StringBuilder inputValues = new StringBuilder();
+		if(inputUris != null) {
+			inputValues.append("  VALUES ?sInput {");
+			for(String uri : inputUris) {
+				inputValues.append(" <").append(uri).append(">");
+			}
+			inputValues.append(" } . \n");
+		}
 		//Build query to find all nodes matching above the given threshold
 		String sQuery = "" +
 				"PREFIX scoreValue: <http://vivoweb.org/harvester/scoreValue/>\n" +
 				"SELECT DISTINCT ?sVivo ?sInput (sum(?weightValue) AS ?sum) \n" +
 				"WHERE { \n" +
+				inputValues +
 				"  ?s scoreValue:InputRes ?sInput . \n" +
 				"  ?s scoreValue:VivoRes ?sVivo . \n" +
 				"  ?s scoreValue:hasScoreValue ?value . \n" +
@@ -211,18 +294,24 @@ public class Match {
 		log.info("Beginning Rename of matches");
 		int total = matchSet.size();
 		int count = 0;
+		Model inputModel = this.inputJena.getJenaModel();
+		Map<Resource, String> renames = new HashMap<Resource, String>();
 		for(Map<String,String> entry : matchSet) {
 			String oldUri = entry.get("sInputURI");
 			String newUri = entry.get("sVivoURI");
 			count++;
 			float percent = Math.round(10000f * count / total) / 100f;
 			log.trace("(" + count + "/" + total + ": " + percent + "%): Renaming match <" + oldUri + "> to <" + newUri + ">");
-			//get resource in input model and perform rename
-			if(oldUri != newUri){
-				Resource res = this.inputJena.getJenaModel().getResource(oldUri);
-				RenameResources.renameResource(res, newUri);
+			//get resource in input model and queue rename, the first match for a resource wins
+			if(!oldUri.equals(newUri)) {
+				Resource res = inputModel.getResource(oldUri);
+				if(!renames.containsKey(res)) {
+					renames.put(res, newUri);
+				}
 			}
 		}
+		RenameResources.renameResources(inputModel, renames);
+		RenameResources.journalRenames(this.inputJena, renames);
 		log.info("Rename of matches complete");
 	}
 	
@@ -255,111 +344,98 @@ public class Match {
 	}
 	
 	/**
-	 * Clear out rdf:type and literal values of matched scoreResources TODO stephen: TEST
+	 * Clear out rdf:type and literal values of matched scoreResources, binding the matched resources into the update
+	 * with a VALUES block so the store can use its subject index
 	 * @param resultSet a mapping of matched scoreResources to vivoResources
 	 * @throws IOException error connecting
 	 */
 	private void clearTypesAndLiterals(Set<Map<String, String>> resultSet) throws IOException {
 		if(!resultSet.isEmpty()) {
 			log.info("Beginning clear types and literals");
-			Set<String> uriFilters = new HashSet<String>();
-			int count = 0;
-			int inc = 0;
+			String query = "" +
+			"DELETE {\n" +
+			"  ?s ?p ?o\n" +
+			"} WHERE {\n" +
+			"  " + UpdateBatcher.VALUES_PLACEHOLDER + "\n" +
+			"  ?s ?p ?o .\n" +
+			"  FILTER ( isLiteral(?o) || (?p = <http://www.w3.org/1999/02/22-rdf-syntax-ns#type>) ) .\n" +
+			"}";
+			log.trace("Clear Literal Query:\n" + query);
+			UpdateBatcher batcher = new UpdateBatcher(this.inputJena, Math.max(1, this.batchSize), UpdateBatcher.DEFAULT_MAX_BYTES, query, "s");
+			Set<String> cleared = new HashSet<String>();
 			for(Map<String, String> entry : resultSet) {
 				String uri = entry.get("sInputURI");
-				if(inc == this.batchSize){
-					buildTypesAndLiteralsQuery(uriFilters);
-					count += inc;
-					inc = 0;
-					uriFilters.clear();
+				if(cleared.add(uri)) {
+					batcher.bind(NodeFactory.createURI(uri));
 				}
-				uriFilters.add("(str(?s) = \"" + uri + "\")");
-				inc++;
 			}
-			buildTypesAndLiteralsQuery(uriFilters);
-			count += inc;
-			log.trace("Cleared " + count + " types and literals");
+			batcher.flush();
+			log.trace("Cleared types and literals of " + cleared.size() + " resources: " + batcher.getMetrics());
 			log.info("Ending clear types and literals");
 		}
 	}
 	
 	/**
-	 * Build the query for matching types and literals
-	 * @param uriFilters uris to match on
-	 * @throws IOException error connecting
-	 */
-	private void buildTypesAndLiteralsQuery(Set<String> uriFilters) throws IOException {
-		String query = "" +
-		"DELETE {\n" +
-		"  ?s ?p ?o\n" +
-		"} WHERE {\n" +
-		"  ?s ?p ?o .\n" +
-		"  FILTER ( isLiteral(?o || (str(?p)='http://www.w3.org/1999/02/22-rdf-syntax-ns#type')) && (" + StringUtils.join(uriFilters, " || ") + ")) .\n" +
-		"}";
-//		String conQuery = query.replaceFirst("DELETE", "CONSTRUCT");
-//		log.debug("Construct Query:\n" + conQuery);
-//		log.debug("Constructed Literal Set:\n" + this.inputJena.executeConstructQuery(conQuery).exportRdfToString());
-		log.trace("Clear Literal Query:\n" + query);
-		log.trace("Query Execution Start");
-		this.inputJena.executeUpdateQuery(query);
-		log.trace("Query Execution Complete");
-	}
-	
-	/**
+	 * Copy the matched structures to the output model: the resources linking to each matched vivo resource, and the
+	 * subgraph reachable from them
 	 * @param matchSet the set of matches to run against
-	 * @return the completed model of matches
-	 * @throws IOException no idea why it throws this
 	 */
-	private JenaConnect outputMatches(Set<Map<String, String>> matchSet) throws IOException {
+	private void outputMatches(Set<Map<String, String>> matchSet) {
 		log.info("Beginning separate output of matches");
-		Stack<String> linkRes = new Stack<String>();
-		JenaConnect returnModel = new MemJenaConnect();
-		int i = 0;
+		Graph inputGraph = this.inputJena.getJenaModel().getGraph();
+		Set<Node> roots = new LinkedHashSet<Node>();
 		for(Map<String, String> entry : matchSet) {
 			String oldUri = entry.get("sInputURI");
 			String newUri = entry.get("sVivoURI");
-			i++;
 			log.trace("Getting statements for matchSet " + oldUri);
-			StmtIterator subjectStmts = this.inputJena.getJenaModel().listStatements(null, null, this.inputJena.getJenaModel().getResource(newUri));
-			
-			while(subjectStmts.hasNext()) {
-				Statement stmt = subjectStmts.nextStatement();
-				Resource subj = stmt.getSubject();
-				if(!linkRes.contains(subj)) {
-//					log.trace("Submitting to recursive build " + subj.getURI());
-					linkRes.push(subj.getURI());
-					returnModel.getJenaModel().add(recursiveBuild(subj, linkRes));
-				}
+			for(Triple stmt : inputGraph.find(Node.ANY, Node.ANY, NodeFactory.createURI(newUri)).toList()) {
+				roots.add(stmt.getSubject());
 			}
-			
-			returnModel.getJenaModel().add(this.inputJena.getJenaModel().listStatements(null, null, this.inputJena.getJenaModel().getResource(newUri)));
 		}
-		log.info("Outputted " + i + " matches");
-		return returnModel;
+		int copied = extractSubgraph(inputGraph, roots, this.outputDepth, this.outputSkipPredicates, this.outputJena);
+		log.info("Outputted " + matchSet.size() + " matches (" + copied + " statements)");
 	}
 	
 	/**
-	 * @param mainRes item to push into returnModel
-	 * @param linkRes list of items to not move to
-	 * @return list of recursively built statements
-	 * @throws IOException I have no idea why mem throws this
+	 * Copy the subgraph reachable from some resources into a model, breadth first. Every statement of each resource
+	 * reached is copied, and the resources and blank nodes it links to are reached in turn. Each resource is visited
+	 * once however many paths lead to it, so cycles end the walk rather than recursing, and statements are written to
+	 * the output in batches as they are found.
+	 * @param source the graph to copy from
+	 * @param roots the resources to start from
+	 * @param maxDepth how many links from a root to follow (negative for no limit)
+	 * @param skipPredicates predicates whose statements are copied but not followed
+	 * @param output the model to copy to
+	 * @return number of statements copied
 	 */
-	private static List<Statement> recursiveBuild(Resource mainRes, Stack<String> linkRes) throws IOException {
-		StmtIterator mainStmts = mainRes.listProperties();
-		List<Statement> rtnStmtList = mainRes.listProperties().toList();
-		
-		while(mainStmts.hasNext()) {
-			Statement stmt = mainStmts.nextStatement();
-			
-			//todo change the equals t o
-			if(stmt.getObject().isResource() && !linkRes.contains(stmt.getObject().asResource().getURI()) && !stmt.getObject().asResource().equals(mainRes)) {
-				linkRes.push(mainRes.getURI());
-//				log.trace("Submitting to rcb from within rcb " + stmt.getObject().asResource().getURI());
-				rtnStmtList.addAll(recursiveBuild(stmt.getObject().asResource(), linkRes));
-			}			
+	public static int extractSubgraph(Graph source, Collection<Node> roots, int maxDepth, Set<Node> skipPredicates, JenaConnect output) {
+		Set<Node> visited = new HashSet<Node>(roots);
+		List<Node> level = new ArrayList<Node>(visited);
+		List<Triple> batch = new ArrayList<Triple>();
+		int copied = 0;
+		for(int depth = 0; !level.isEmpty(); depth++) {
+			boolean follow = (maxDepth < 0) || (depth < maxDepth);
+			List<Node> next = new ArrayList<Node>();
+			for(Node res : level) {
+				// read each resource's statements before writing, so the output may share a store with the source
+				for(Triple t : source.find(res, Node.ANY, Node.ANY).toList()) {
+					batch.add(t);
+					Node obj = t.getObject();
+					if(follow && !obj.isLiteral() && !skipPredicates.contains(t.getPredicate()) && visited.add(obj)) {
+						next.add(obj);
+					}
+				}
+				if(batch.size() >= OUTPUT_BATCH) {
+					output.updateTriples(Collections.<Triple>emptyList(), batch);
+					copied += batch.size();
+					batch = new ArrayList<Triple>();
+				}
+			}
+			level = next;
 		}
-		
-		return rtnStmtList;
+		output.updateTriples(Collections.<Triple>emptyList(), batch);
+		copied += batch.size();
+		return copied;
 	}
 	
 	/**
@@ -390,6 +466,9 @@ public class Match {
 		// options
 		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("clear-type-and-literals").withParameter(true, "CLEAR_LITERALS").setDescription("clear all rdf:type and literal values out of the nodes matched").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('b').setLongOpt("batch-size").withParameter(true, "BATCH_SIZE").setDescription("number of records to process in batch - default 150 - lower this if getting StackOverflow or OutOfMemory").setDefaultValue("150").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("output-depth").withParameter(true, "DEPTH").setDescription("follow at most DEPTH links from a matched structure when outputting it - default no limit").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("output-skip").withParameters(true, "PREDICATE").setDescription("output statements with PREDICATE but do not follow them when outputting matched structures").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("incremental").withParameter(true, "JOURNAL_KEY").setDescription("only match input resources changed since the last successful run with JOURNAL_KEY (the input model config must set journal to true; changes made by sparql update queries run through JenaConnect -q are not journaled)").setRequired(false));
 		return parser;
 	}
 	
@@ -398,9 +477,24 @@ public class Match {
 	 * @throws IOException error connecting
 	 */
 	public void execute() throws IOException {
+		long started = System.currentTimeMillis();
 		log.info("Finding matches");
 		
-		Set<Map<String, String>> resultSet = match(this.matchThreshold, this.scoreJena);
+		Set<String> changed = null;
+		if(this.incremental != null) {
+			changed = this.inputJena.getChangeJournal().getChangedSince(this.incremental);
+			if(changed == null) {
+				log.info("No earlier run of '" + this.incremental + "' in the change journal, matching everything");
+			} else {
+				log.info("Matching only the " + changed.size() + " input resources changed since the last run");
+			}
+		}
+		Set<Map<String, String>> resultSet;
+		if((changed != null) && changed.isEmpty()) {
+			resultSet = Collections.emptySet();
+		} else {
+			resultSet = match(this.matchThreshold, this.scoreJena, changed);
+		}
 		for(Map<String, String> entry : resultSet) {
 			String sInputURI = entry.get("sInputURI");
 			log.trace("input: " + sInputURI);
@@ -427,10 +521,13 @@ public class Match {
 		}
 		
 		if(this.outputJena != null) {
-			this.outputJena.getJenaModel().add(outputMatches(resultSet).getJenaModel());
+			outputMatches(resultSet);
 			this.outputJena.sync();
 		}
 		this.inputJena.sync();
+		if(this.incremental != null) {
+			this.inputJena.getChangeJournal().markRun(this.incremental, started);
+		}
 	}
 	
 	/**
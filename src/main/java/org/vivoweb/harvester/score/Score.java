@@ -27,6 +27,11 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
 import org.vivoweb.harvester.util.repo.TDBJenaConnect;
+import org.vivoweb.harvester.util.repo.UpdateBatcher;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
@@ -52,6 +57,13 @@ public class Score {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(Score.class);
+	/**
+	 * Prefixes of the score data fragments
+	 */
+	private static final String SCORE_PREFIXES = "" +
+		"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> \n" +
+		"PREFIX scoreValue: <http://vivoweb.org/harvester/scoreValue/> \n" +
+		"PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> \n";
 
 	/**
 	 * model containing statements to be scored
@@ -113,6 +125,14 @@ public class Score {
 	 * reload the temp copy of Vivo, only needed if Vivo has changed since last score
 	 */
 	private boolean reloadVivo;
+	/**
+	 * journal key of incremental runs (null to score everything)
+	 */
+	private String incremental = null;
+	/**
+	 * uris of the input resources to score in this run (null for every resource)
+	 */
+	private Set<String> changedInputs = null;
 	
 	/**
 	 * Constructor
@@ -266,6 +286,7 @@ public class Score {
 			opts.has("reloadVivo"),
 			(opts.has("c")?opts.get("c"):null)
 		);
+		setIncremental(opts.get("incremental"));
 	}
 	
 	/**
@@ -312,6 +333,18 @@ public class Score {
 		}
 	}
 	
+	/**
+	 * Only score the input resources changed since the last successful run with the same journal key. The input model
+	 * must be journaling its changes.
+	 * @param journalKey the journal key (null to score everything)
+	 */
+	public void setIncremental(String journalKey) {
+		if((journalKey != null) && !this.inputJena.isJournaling()) {
+			throw new IllegalArgumentException("Incremental score needs the inputJena model config to set journal to true");
+		}
+		this.incremental = journalKey;
+	}
+	
 	/**
 	 * Verify that each map contains the same keys
 	 * @param maps mapping of map name to map
@@ -356,6 +389,7 @@ public class Score {
 		parser.addArgument(new ArgDef().setLongOpt("reloadInput").setDescription("reload the temp copy of input, only needed if input has changed since last score").setRequired(false));
 		parser.addArgument(new ArgDef().setLongOpt("reloadVivo").setDescription("reload the temp copy of Vivo, only needed if Vivo has changed since last score").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("common-names").withParameter(true, "COMMON_NAMES").setDescription("use these names to check if the score needs to be modified.").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("incremental").withParameter(true, "JOURNAL_KEY").setDescription("only score inputJena resources changed since the last successful run with JOURNAL_KEY (the inputJena model config must set journal to true; changes made by sparql update queries run through JenaConnect -q are not journaled)").setRequired(false));
 		return parser;
 	}
 	
@@ -380,14 +414,19 @@ public class Score {
 			log.debug("VIVO model already in temp copy model");
 		}
 		JenaConnect inputClone = this.tempJena.neighborConnectClone("http://vivoweb.org/harvester/model/scoring#inputClone");
-		if(inputClone.isEmpty() || this.reloadInput) {
-			if(this.reloadInput) {
+		// an incremental run with nothing to compare with scores everything, so it must see the current input
+		boolean reloadInputClone = this.reloadInput || ((this.incremental != null) && (this.changedInputs == null));
+		if(inputClone.isEmpty() || reloadInputClone) {
+			if(reloadInputClone) {
 				log.debug("Clearing old Input model data from temp copy model");
 				inputClone.truncate();
 			}
 			log.debug("Loading Input model into temp copy model");
 			inputClone.loadRdfFromJC(this.inputJena);
 //			log.debug("input clone contents:\n"+inputClone.exportRdfToString());
+		} else if(this.changedInputs != null) {
+			log.debug("Refreshing changed Input resources in temp copy model");
+			refreshInputClone(inputClone);
 		} else {
 			log.debug("Input model already in temp copy model");
 		}
@@ -399,6 +438,29 @@ public class Score {
 		return ds;
 	}
 	
+	/**
+	 * Replace the statements of the changed input resources in the temp copy with their current statements in the
+	 * inputJena, so changed resources are not scored against stale data and new resources are scored at all
+	 * @param inputClone the temp copy of the inputJena
+	 */
+	private void refreshInputClone(JenaConnect inputClone) {
+		Graph cloneGraph = inputClone.getJenaModel().getGraph();
+		Graph inputGraph = this.inputJena.getJenaModel().getGraph();
+		List<Triple> removes = new ArrayList<Triple>();
+		List<Triple> adds = new ArrayList<Triple>();
+		for(String uri : this.changedInputs) {
+			Node subject = NodeFactory.createURI(uri);
+			removes.addAll(cloneGraph.find(subject, Node.ANY, Node.ANY).toList());
+			adds.addAll(inputGraph.find(subject, Node.ANY, Node.ANY).toList());
+			if((removes.size() + adds.size()) >= this.batchSize) {
+				inputClone.updateTriples(removes, adds);
+				removes.clear();
+				adds.clear();
+			}
+		}
+		inputClone.updateTriples(removes, adds);
+	}
+	
 	/**
 	 * Get the result set
 	 * @return the resultset
@@ -459,7 +521,7 @@ public class Score {
 	 * @throws IOException error connecting to the models
 	 */
 	private Set<Map<String, String>> buildFilterSolutionSet() throws IOException {
-		Set<Map<String, String>> matchSet = Match.match(this.matchThreshold.floatValue(), this.scoreJena);
+		Set<Map<String, String>> matchSet = Match.match(this.matchThreshold.floatValue(), this.scoreJena, this.changedInputs);
 		Set<Map<String, String>> solSet = getNewSolSet();
 		if(matchSet.isEmpty()) {
 			log.info("No Results Found");
@@ -536,18 +598,36 @@ public class Score {
 	 * @throws IOException error connecting
 	 */
 	public void execute() throws IOException {
+		long started = System.currentTimeMillis();
+		this.changedInputs = null;
+		if(this.incremental != null) {
+			this.changedInputs = this.inputJena.getChangeJournal().getChangedSince(this.incremental);
+			if(this.changedInputs == null) {
+				log.info("No earlier run of '" + this.incremental + "' in the change journal, scoring everything");
+			} else if(this.changedInputs.isEmpty()) {
+				log.info("No inputJena resources changed since the last run");
+				this.inputJena.getChangeJournal().markRun(this.incremental, started);
+				return;
+			} else {
+				log.info("Scoring only " + this.changedInputs.size() + " inputJena resources changed since the last run");
+			}
+		}
 		Set<Map<String, String>> solSet = buildSolutionSet();
+		int recordBatchSize = (int)Math.ceil(this.batchSize / (2.0+(this.vivoPredicates.size()*7)));
+		if(this.incremental != null) {
+			clearScores(solSet, recordBatchSize);
+		}
 		if(!solSet.isEmpty()) {
 			log.info("Processing Results");
 			int total = solSet.size();
 			int count = 0;
-			int incrementer = 0;
-			double recordBatchSize = Math.ceil(this.batchSize / (2.0+(this.vivoPredicates.size()*7)));
+			// each score record's fragment is inserted whole; blank node labels are scoped to one update request, so
+			// numbering them by count only has to keep the records of a batch apart
+			UpdateBatcher scoreBatcher = new UpdateBatcher(this.scoreJena, recordBatchSize, UpdateBatcher.DEFAULT_MAX_BYTES);
+			scoreBatcher.setPrologue(SCORE_PREFIXES);
 			StringBuilder indScore;
-			StringBuilder scoreSparql = new StringBuilder();
 			for(Map<String, String> eval : solSet) {
 				count++;
-				incrementer++;
 				indScore = new StringBuilder();
 				String sInputURI = eval.get("sInput");
 				String sVivoURI = eval.get("sVivo");
@@ -555,8 +635,8 @@ public class Score {
 				log.debug("(" + count + "/" + total + ": " + percent + "%): Evaluating <" + sInputURI + "> from inputJena as match for <" + sVivoURI + "> from vivoJena");
 				// Build Score Record
 				indScore.append("" +
-					"  _:node" + incrementer + " scoreValue:VivoRes <" + sVivoURI + "> .\n" +
-					"  _:node" + incrementer + " scoreValue:InputRes <" + sInputURI + "> .\n"
+					"  _:node" + count + " scoreValue:VivoRes <" + sVivoURI + "> .\n" +
+					"  _:node" + count + " scoreValue:InputRes <" + sInputURI + "> .\n"
 				);
 				double sum_total = 0;
 				for(String runName : this.vivoPredicates.keySet()) {
@@ -566,41 +646,79 @@ public class Score {
 					String opLit = eval.get("LIT_op_" + runName);
 					log.debug("os_" + runName + ": '" + ((osUri != null) ? osUri : osLit) + "'");
 					log.debug("op_" + runName + ": '" + ((opUri != null) ? opUri : opLit) + "'");
-					sum_total += appendScoreSparqlFragment(indScore, incrementer, opUri, opLit, osUri, osLit, runName);
+					sum_total += appendScoreSparqlFragment(indScore, count, opUri, opLit, osUri, osLit, runName);
 				}
 				log.debug("sum_total: "+sum_total);
 				log.trace("Scores for inputJena node <" + sInputURI + "> to vivoJena node <" + sVivoURI + ">:\n" + indScore.toString());
-				scoreSparql.append(indScore);
-				if(incrementer == recordBatchSize) {
-					loadRdfToScoreData(scoreSparql.toString());
-					incrementer = 0;
-					scoreSparql = new StringBuilder();
-				}
-			}
-			if(incrementer > 0) {
-				loadRdfToScoreData(scoreSparql.toString());
+				scoreBatcher.insert(indScore.toString());
 			}
+			scoreBatcher.flush();
+			log.debug("Loaded score data: " + scoreBatcher.getMetrics());
 			log.info("Result Processing Complete");
 		}
 		this.scoreJena.sync();
+		if(this.incremental != null) {
+			this.inputJena.getChangeJournal().markRun(this.incremental, started);
+		}
 	}
 	
 	/**
-	 * Load a batch of scoring data to the score model
-	 * @param scores the score rdf/xml fragments
+	 * Delete the score records left by earlier runs for the input resources scored in this run, so a score model kept
+	 * between incremental runs holds one record per pair and match does not sum the same score twice. The changed
+	 * resources are cleared even when they no longer score against anything.
+	 * @param solSet the solutions being scored
+	 * @param recordBatchSize the input resources cleared in a batch
 	 * @throws IOException error connecting
 	 */
-	private void loadRdfToScoreData(String scores) throws IOException {
-		String sparql = "" +
-			"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> \n" +
-			"PREFIX scoreValue: <http://vivoweb.org/harvester/scoreValue/> \n" +
-			"PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> \n" +
-			"INSERT DATA {\n" +
-				scores +
+	private void clearScores(Set<Map<String, String>> solSet, int recordBatchSize) throws IOException {
+		Set<String> inputs = new TreeSet<String>();
+		if(this.changedInputs != null) {
+			inputs.addAll(this.changedInputs);
+		} else {
+			for(Map<String, String> eval : solSet) {
+				inputs.add(eval.get("sInput"));
+			}
+		}
+		if(inputs.isEmpty()) {
+			return;
+		}
+		String clear = "" +
+			"DELETE {\n" +
+			"  ?score ?p ?o .\n" +
+			"  ?value ?vp ?vo .\n" +
+			"}\n" +
+			"WHERE {\n" +
+			"  " + UpdateBatcher.VALUES_PLACEHOLDER + "\n" +
+			"  ?score scoreValue:InputRes ?sInput .\n" +
+			"  ?score ?p ?o .\n" +
+			"  OPTIONAL {\n" +
+			"    ?score scoreValue:hasScoreValue ?value .\n" +
+			"    ?value ?vp ?vo .\n" +
+			"  }\n" +
 			"}";
-		// Push Score Data into score model
-//		log.trace("Loading Score Data into Score Model:\n" + sparql);
-		this.scoreJena.executeUpdateQuery(sparql);
+		UpdateBatcher clearBatcher = new UpdateBatcher(this.scoreJena, recordBatchSize, UpdateBatcher.DEFAULT_MAX_BYTES, clear, "sInput");
+		clearBatcher.setPrologue(SCORE_PREFIXES);
+		for(String uri : inputs) {
+			clearBatcher.bind(NodeFactory.createURI(uri));
+		}
+		clearBatcher.flush();
+		log.debug("Cleared earlier scores of " + inputs.size() + " inputJena resources: " + clearBatcher.getMetrics());
+	}
+	
+	/**
+	 * Build the VALUES block restricting ?sInput to the changed input resources
+	 * @return the block, empty when every resource is scored
+	 */
+	private String buildInputValues() {
+		if(this.changedInputs == null) {
+			return "";
+		}
+		StringBuilder values = new StringBuilder("  VALUES ?sInput {");
+		for(String uri : this.changedInputs) {
+			values.append(" <").append(uri).append(">");
+		}
+		values.append(" } . \n");
+		return values.toString();
 	}
 	
 	/**
@@ -628,6 +746,7 @@ public class Score {
 		}
 		
 		sQuery.append("\n" + "FROM NAMED <http://vivoweb.org/harvester/model/scoring#vivoClone>\n" + "FROM NAMED <http://vivoweb.org/harvester/model/scoring#inputClone>\n" + "WHERE {\n");
+		sQuery.append(buildInputValues());
 		sQuery.append("  GRAPH scoring:vivoClone {\n    ");
 		sQuery.append(StringUtils.join(vivoSelects, "\n    "));
 		sQuery.append("\n  } . \n  GRAPH scoring:inputClone {\n" + "    ");
@@ -675,6 +794,7 @@ public class Score {
 		}
 		
 		sQuery.append("\n" + "FROM NAMED <http://vivoweb.org/harvester/model/scoring#vivoClone>\n" + "FROM NAMED <http://vivoweb.org/harvester/model/scoring#inputClone>\n" + "WHERE {\n");
+		sQuery.append(buildInputValues());
 		sQuery.append("  GRAPH scoring:vivoClone {\n    ");
 		sQuery.append(StringUtils.join(vivoUnions, " UNION \n    "));
 		sQuery.append(" . \n");
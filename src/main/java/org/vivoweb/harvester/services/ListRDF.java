@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.HttpCache;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
@@ -164,6 +165,8 @@ public class ListRDF {
 			
 			HttpPost httpPost = new HttpPost(this.url);
 			httpPost.addHeader(header);
+			// the body carries the credentials, so keep it and its response out of the http cache
+			httpPost.addHeader(HttpHeaders.CACHE_CONTROL, "no-store");
 			List<NameValuePair> nvps = new ArrayList<NameValuePair>();
 			nvps.add(new BasicNameValuePair("email", this.username));
 			nvps.add(new BasicNameValuePair("password", this.password));
@@ -171,7 +174,7 @@ public class ListRDF {
 			nvps.add(new BasicNameValuePair("vclass", this.vClass));
 			
 			httpPost.setEntity(new UrlEncodedFormEntity(nvps));
-			CloseableHttpResponse response = httpclient.execute(httpPost);
+			CloseableHttpResponse response = HttpCache.execute(httpclient, httpPost);
 			try {
 				System.out.println(response.getStatusLine());
 				HttpEntity entity = response.getEntity();
@@ -0,0 +1,867 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.CacheResponse;
+import java.net.HttpURLConnection;
+import java.net.ResponseCache;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * On-disk cache of http responses shared by the fetchers. Responses are keyed by request method, url, the request
+ * headers that select or authorize a representation (Accept, Accept-Language, Cookie and Authorization) and a hash of
+ * the request body. Cached responses are reused while fresh (Cache-Control max-age or Expires, or at least the
+ * configured time to live for GET requests), revalidated with their ETag/Last-Modified once stale, and the least
+ * recently used are evicted to keep the cache under its size bound. In replay mode every response is served from the
+ * cache and the network is never used, so a harvest can be re-processed offline against a frozen snapshot.
+ * <p>
+ * A request sending its own If-None-Match or If-Modified-Since gets a 304 when the cached response matches it. A
+ * request marked Cache-Control: no-store, as requests carrying credentials in their body should be, bypasses the
+ * cache entirely. Libraries reading urls with HttpURLConnection can be routed through the shared cache with
+ * installUrlConnectionCache().
+ * <p>
+ * The shared cache is configured with the system properties harvester-http-cache (directory),
+ * harvester-http-cache-size (megabytes, default 1024), harvester-http-cache-ttl (seconds, default 0) and
+ * harvester-http-cache-replay (true/false). Without a directory no caching is done.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class HttpCache {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(HttpCache.class);
+	/**
+	 * headers stored with a cached response
+	 */
+	private static final String[] storedHeaders = {"Content-Type", "Content-Encoding", "ETag", "Last-Modified", "Cache-Control", "Expires", "Date"};
+	/**
+	 * request headers that are part of the key
+	 */
+	private static final String[] keyedHeaders = {"Accept", "Accept-Language", "Cookie", "Authorization"};
+	/**
+	 * max-age directive of a Cache-Control header
+	 */
+	private static final Pattern maxAge = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+	/**
+	 * the shared cache, null if none configured
+	 */
+	private static HttpCache defaultCache;
+	/**
+	 * has the shared cache been configured
+	 */
+	private static boolean defaultLoaded = false;
+	/**
+	 * directory the responses are stored in
+	 */
+	private final File dir;
+	/**
+	 * maximum total size of the stored responses in bytes
+	 */
+	private final long maxBytes;
+	/**
+	 * minimum time in milliseconds a GET response is treated as fresh
+	 */
+	private final long ttl;
+	/**
+	 * serve only from the cache
+	 */
+	private final boolean replay;
+	/**
+	 * size of each stored response by key, least recently used first
+	 */
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	/**
+	 * total size of the stored responses
+	 */
+	private long totalBytes = 0;
+	
+	/**
+	 * Constructor
+	 * @param dir directory the responses are stored in
+	 * @param maxBytes maximum total size of the stored responses in bytes
+	 * @param ttlSeconds minimum time in seconds a GET response is treated as fresh
+	 * @param replay serve only from the cache
+	 * @throws IOException error creating the directory
+	 */
+	public HttpCache(String dir, long maxBytes, long ttlSeconds, boolean replay) throws IOException {
+		this.dir = new File(dir);
+		this.maxBytes = maxBytes;
+		this.ttl = ttlSeconds * 1000;
+		this.replay = replay;
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("Unable to create http cache directory " + dir);
+		}
+		File[] bodies = this.dir.listFiles();
+		Arrays.sort(bodies, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(File body : bodies) {
+			String name = body.getName();
+			if(name.endsWith(".body") && new File(this.dir, name.replace(".body", ".meta")).exists()) {
+				this.index.put(name.substring(0, name.length() - 5), Long.valueOf(body.length()));
+				this.totalBytes += body.length();
+			} else if(name.endsWith(".tmp")) {
+				body.delete();
+			}
+		}
+		log.debug("http cache " + dir + " holds " + this.index.size() + " responses (" + this.totalBytes + " bytes)");
+	}
+	
+	/**
+	 * Get the shared cache configured by system properties
+	 * @return the cache, null if none configured
+	 * @throws IOException error opening the cache
+	 */
+	public static synchronized HttpCache getDefault() throws IOException {
+		if(!defaultLoaded) {
+			String dir = System.getProperty("harvester-http-cache");
+			boolean replay = Boolean.parseBoolean(System.getProperty("harvester-http-cache-replay", "false"));
+			if(dir != null && !dir.trim().isEmpty()) {
+				long size = Long.parseLong(System.getProperty("harvester-http-cache-size", "1024"));
+				long ttl = Long.parseLong(System.getProperty("harvester-http-cache-ttl", "0"));
+				defaultCache = new HttpCache(dir.trim(), size * 1024 * 1024, ttl, replay);
+			} else if(replay) {
+				throw new IllegalArgumentException("harvester-http-cache-replay requires harvester-http-cache");
+			}
+			defaultLoaded = true;
+		}
+		return defaultCache;
+	}
+	
+	/**
+	 * Set the shared cache
+	 * @param cache the cache, null for none
+	 */
+	public static synchronized void setDefault(HttpCache cache) {
+		defaultCache = cache;
+		defaultLoaded = true;
+	}
+	
+	/**
+	 * Execute a request through the shared cache, or directly when none is configured
+	 * @param client the client to send the request with
+	 * @param request the request
+	 * @return the response
+	 * @throws IOException error executing the request, or the response is not cached in replay mode
+	 */
+	public static CloseableHttpResponse execute(HttpClient client, HttpUriRequest request) throws IOException {
+		HttpCache cache = getDefault();
+		if(cache == null) {
+			return closeable(client.execute(request));
+		}
+		return cache.fetch(client, request);
+	}
+	
+	/**
+	 * Is this cache serving only stored responses
+	 * @return true if in replay mode
+	 */
+	public boolean isReplay() {
+		return this.replay;
+	}
+	
+	/**
+	 * Route HttpURLConnection requests through the shared cache, for libraries that read urls themselves. Does
+	 * nothing when no cache is configured.
+	 * @throws IOException error opening the cache
+	 */
+	public static synchronized void installUrlConnectionCache() throws IOException {
+		HttpCache cache = getDefault();
+		if(cache != null && !(ResponseCache.getDefault() instanceof UrlConnectionCache)) {
+			ResponseCache.setDefault(new UrlConnectionCache(cache));
+		}
+	}
+	
+	/**
+	 * Execute a request through this cache
+	 * @param client the client to send the request with
+	 * @param request the request
+	 * @return the response
+	 * @throws IOException error executing the request, or the response is not cached in replay mode
+	 */
+	public CloseableHttpResponse fetch(HttpClient client, HttpUriRequest request) throws IOException {
+		if(isNoStore(request.getFirstHeader("Cache-Control"))) {
+			if(this.replay) {
+				throw new IOException("Request for " + request.getURI() + " is marked no-store so cannot be replayed");
+			}
+			return closeable(client.execute(request));
+		}
+		boolean conditional = request.containsHeader("If-None-Match") || request.containsHeader("If-Modified-Since");
+		String key = getKey(request);
+		Properties meta = readMeta(key);
+		if(meta != null && (this.replay || isFresh(request.getMethod(), meta))) {
+			CloseableHttpResponse cached = conditional ? notModified(request, meta) : null;
+			if(cached == null) {
+				cached = cachedResponse(key, meta);
+			}
+			if(cached != null) {
+				log.trace("http cache hit " + request.getURI());
+				return cached;
+			}
+			// evicted since the metadata was read
+			meta = null;
+		}
+		if(this.replay) {
+			throw new IOException("No cached response for " + request.getMethod() + " " + request.getURI() + " (replay mode)");
+		}
+		boolean revalidating = false;
+		if(meta != null && !conditional) {
+			if(meta.getProperty("ETag") != null) {
+				request.setHeader("If-None-Match", meta.getProperty("ETag"));
+				revalidating = true;
+			}
+			if(meta.getProperty("Last-Modified") != null) {
+				request.setHeader("If-Modified-Since", meta.getProperty("Last-Modified"));
+				revalidating = true;
+			}
+		}
+		HttpResponse response = client.execute(request);
+		int status = response.getStatusLine().getStatusCode();
+		if(revalidating && status == HttpStatus.SC_NOT_MODIFIED) {
+			EntityUtils.consume(response.getEntity());
+			CloseableHttpResponse cached = cachedResponse(key, meta);
+			if(cached != null) {
+				log.trace("http cache revalidated " + request.getURI());
+				for(String name : storedHeaders) {
+					Header header = response.getFirstHeader(name);
+					if(header != null) {
+						meta.setProperty(name, header.getValue());
+						cached.setHeader(name, header.getValue());
+					}
+				}
+				meta.setProperty("stored", String.valueOf(System.currentTimeMillis()));
+				writeMeta(key, meta);
+				return cached;
+			}
+			// evicted while revalidating, so ask for the whole response
+			request.removeHeaders("If-None-Match");
+			request.removeHeaders("If-Modified-Since");
+			response = client.execute(request);
+			status = response.getStatusLine().getStatusCode();
+		}
+		Header cacheControl = response.getFirstHeader("Cache-Control");
+		if(status != HttpStatus.SC_OK || response.getEntity() == null || isNoStore(cacheControl)) {
+			return closeable(response);
+		}
+		File tmp = newTempFile(key);
+		InputStream in = response.getEntity().getContent();
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			IOUtils.copy(in, out);
+		} finally {
+			out.close();
+			in.close();
+		}
+		meta = newMeta(request.getMethod(), request.getURI().toString(), status, response.getStatusLine().getReasonPhrase());
+		for(String name : storedHeaders) {
+			Header header = response.getFirstHeader(name);
+			if(header != null) {
+				meta.setProperty(name, header.getValue());
+			}
+		}
+		commit(key, tmp, meta);
+		CloseableHttpResponse cached = cachedResponse(key, meta);
+		if(cached == null) {
+			throw new IOException("Cached response for " + request.getURI() + " was evicted as it was stored");
+		}
+		return cached;
+	}
+	
+	/**
+	 * Does a Cache-Control header forbid storing
+	 * @param cacheControl the header, null if none
+	 * @return true if no-store
+	 */
+	private static boolean isNoStore(Header cacheControl) {
+		return cacheControl != null && cacheControl.getValue().contains("no-store");
+	}
+	
+	/**
+	 * Compute the key of a request from its method, url, keyed headers and body
+	 * @param request the request
+	 * @return the key
+	 * @throws IOException error reading the request body
+	 */
+	private static String getKey(HttpUriRequest request) throws IOException {
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		for(String name : keyedHeaders) {
+			List<String> values = new ArrayList<String>();
+			for(Header header : request.getHeaders(name)) {
+				values.add(header.getValue());
+			}
+			headers.put(name, values);
+		}
+		byte[] bytes = null;
+		if(request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest)request;
+			HttpEntity entity = enclosing.getEntity();
+			if(entity != null) {
+				// read the body once, and leave a repeatable copy in the request for sending
+				bytes = EntityUtils.toByteArray(entity);
+				ByteArrayEntity body = new ByteArrayEntity(bytes);
+				body.setContentType(entity.getContentType());
+				body.setContentEncoding(entity.getContentEncoding());
+				enclosing.setEntity(body);
+			}
+		}
+		return getKey(request.getMethod(), request.getURI().toString(), headers, bytes);
+	}
+	
+	/**
+	 * Compute the key of a request
+	 * @param method the request method
+	 * @param url the url
+	 * @param headers the request headers, by name (names are matched ignoring case)
+	 * @param body the request body, null if none
+	 * @return the key
+	 */
+	private static String getKey(String method, String url, Map<String, List<String>> headers, byte[] body) {
+		Charset utf8 = Charset.forName("UTF-8");
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(method, utf8).putByte((byte)0).putString(url, utf8).putByte((byte)0);
+		for(String name : keyedHeaders) {
+			for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if(name.equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+					for(String value : header.getValue()) {
+						hasher.putString(name, utf8).putByte((byte)0).putString(value, utf8).putByte((byte)0);
+					}
+				}
+			}
+		}
+		if(body != null) {
+			hasher.putBytes(body);
+		}
+		return hasher.hash().toString();
+	}
+	
+	/**
+	 * Answer a request's own If-None-Match or If-Modified-Since from a stored response
+	 * @param request the request
+	 * @param meta the stored response's metadata
+	 * @return a 304 response if the stored response matches the request's validators, null otherwise
+	 */
+	private static CloseableHttpResponse notModified(HttpUriRequest request, Properties meta) {
+		if(!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+			return null;
+		}
+		boolean matches = false;
+		String etag = meta.getProperty("ETag");
+		Header ifNoneMatch = request.getFirstHeader("If-None-Match");
+		if(ifNoneMatch != null) {
+			for(String tag : ifNoneMatch.getValue().split(",")) {
+				tag = tag.trim();
+				if(tag.equals("*") || (etag != null && stripWeak(tag).equals(stripWeak(etag)))) {
+					matches = true;
+				}
+			}
+		} else {
+			Header ifModifiedSince = request.getFirstHeader("If-Modified-Since");
+			Date since = DateUtils.parseDate(ifModifiedSince.getValue());
+			Date modified = (meta.getProperty("Last-Modified") == null) ? null : DateUtils.parseDate(meta.getProperty("Last-Modified"));
+			matches = since != null && modified != null && !modified.after(since);
+		}
+		if(!matches) {
+			return null;
+		}
+		CachedHttpResponse response = new CachedHttpResponse(HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+		for(String name : storedHeaders) {
+			if(meta.getProperty(name) != null && !name.startsWith("Content-")) {
+				response.setHeader(name, meta.getProperty(name));
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Remove the weak marker of an entity tag
+	 * @param tag the entity tag
+	 * @return the tag without W/
+	 */
+	private static String stripWeak(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+	
+	/**
+	 * Is a stored response still fresh
+	 * @param method the request method
+	 * @param meta the stored response's metadata
+	 * @return true if it can be served without revalidating
+	 */
+	boolean isFresh(String method, Properties meta) {
+		long stored = Long.parseLong(meta.getProperty("stored"));
+		long freshUntil = stored;
+		String cacheControl = meta.getProperty("Cache-Control");
+		String expires = meta.getProperty("Expires");
+		if(cacheControl != null && cacheControl.contains("no-cache")) {
+			return false;
+		}
+		Matcher m = (cacheControl == null) ? null : maxAge.matcher(cacheControl);
+		if(m != null && m.find()) {
+			freshUntil = stored + Long.parseLong(m.group(1)) * 1000;
+		} else if(expires != null) {
+			Date expiry = DateUtils.parseDate(expires);
+			if(expiry != null) {
+				freshUntil = expiry.getTime();
+			}
+		}
+		if("GET".equals(method)) {
+			freshUntil = Math.max(freshUntil, stored + this.ttl);
+		}
+		return System.currentTimeMillis() < freshUntil;
+	}
+	
+	/**
+	 * Create the metadata of a response to store
+	 * @param method the request method
+	 * @param url the url
+	 * @param status the status code
+	 * @param reason the reason phrase
+	 * @return the metadata
+	 */
+	private static Properties newMeta(String method, String url, int status, String reason) {
+		Properties meta = new Properties();
+		meta.setProperty("method", method);
+		meta.setProperty("url", url);
+		meta.setProperty("status", String.valueOf(status));
+		meta.setProperty("reason", String.valueOf(reason));
+		meta.setProperty("stored", String.valueOf(System.currentTimeMillis()));
+		return meta;
+	}
+	
+	/**
+	 * Create a temporary file in the cache directory to write a response body to
+	 * @param key the key
+	 * @return the file
+	 * @throws IOException error creating the file
+	 */
+	File newTempFile(String key) throws IOException {
+		return File.createTempFile(key, ".tmp", this.dir);
+	}
+	
+	/**
+	 * Store a response whose body has been written to a temporary file, evicting the least recently used responses
+	 * beyond the size bound
+	 * @param key the key
+	 * @param tmp the temporary file holding the body
+	 * @param meta the response's metadata
+	 * @throws IOException error storing the response
+	 */
+	synchronized void commit(String key, File tmp, Properties meta) throws IOException {
+		File body = getFile(key, ".body");
+		if(body.exists() && !body.delete()) {
+			tmp.delete();
+			throw new IOException("Unable to replace cached response " + body);
+		}
+		if(!tmp.renameTo(body)) {
+			tmp.delete();
+			throw new IOException("Unable to store cached response " + body);
+		}
+		writeMeta(key, meta);
+		Long previous = this.index.put(key, Long.valueOf(body.length()));
+		this.totalBytes += body.length() - ((previous == null) ? 0 : previous.longValue());
+		evict(key);
+	}
+	
+	/**
+	 * Remove least recently used responses until the cache fits its size bound
+	 * @param keep key of the response just stored, never evicted
+	 */
+	private synchronized void evict(String keep) {
+		Iterator<Map.Entry<String, Long>> entries = this.index.entrySet().iterator();
+		while(this.totalBytes > this.maxBytes && entries.hasNext()) {
+			Map.Entry<String, Long> entry = entries.next();
+			if(!entry.getKey().equals(keep)) {
+				getFile(entry.getKey(), ".meta").delete();
+				getFile(entry.getKey(), ".body").delete();
+				this.totalBytes -= entry.getValue().longValue();
+				entries.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Read the metadata of a stored response, marking it as recently used
+	 * @param key the key
+	 * @return the metadata, null if not stored
+	 * @throws IOException error reading the metadata
+	 */
+	Properties readMeta(String key) throws IOException {
+		synchronized(this) {
+			if(this.index.get(key) == null) {
+				return null;
+			}
+		}
+		File metaFile = getFile(key, ".meta");
+		if(!metaFile.exists()) {
+			return null;
+		}
+		Properties meta = new Properties();
+		InputStream in;
+		try {
+			in = new FileInputStream(metaFile);
+		} catch(FileNotFoundException e) {
+			// evicted meanwhile
+			return null;
+		}
+		try {
+			meta.load(in);
+		} finally {
+			in.close();
+		}
+		getFile(key, ".body").setLastModified(System.currentTimeMillis());
+		return meta;
+	}
+	
+	/**
+	 * Write the metadata of a stored response
+	 * @param key the key
+	 * @param meta the metadata
+	 * @throws IOException error writing the metadata
+	 */
+	private void writeMeta(String key, Properties meta) throws IOException {
+		File tmp = File.createTempFile(key, ".tmp", this.dir);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			meta.store(out, null);
+		} finally {
+			out.close();
+		}
+		File metaFile = getFile(key, ".meta");
+		synchronized(this) {
+			if((metaFile.exists() && !metaFile.delete()) || !tmp.renameTo(metaFile)) {
+				tmp.delete();
+				throw new IOException("Unable to store cached response metadata " + metaFile);
+			}
+		}
+	}
+	
+	/**
+	 * Get the file a part of a stored response is kept in
+	 * @param key the key
+	 * @param suffix .body or .meta
+	 * @return the file
+	 */
+	private File getFile(String key, String suffix) {
+		return new File(this.dir, key + suffix);
+	}
+	
+	/**
+	 * Open the body of a stored response
+	 * @param key the key
+	 * @return the body, null if it has been evicted
+	 */
+	FileInputStream openBody(String key) {
+		try {
+			return new FileInputStream(getFile(key, ".body"));
+		} catch(FileNotFoundException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Build a response from a stored response
+	 * @param key the key
+	 * @param meta the stored response's metadata
+	 * @return the response, null if the body has been evicted
+	 * @throws IOException error opening the stored response
+	 */
+	private CloseableHttpResponse cachedResponse(String key, Properties meta) throws IOException {
+		FileInputStream body = openBody(key);
+		if(body == null) {
+			return null;
+		}
+		CachedHttpResponse response = new CachedHttpResponse(Integer.parseInt(meta.getProperty("status")), meta.getProperty("reason"));
+		for(String name : storedHeaders) {
+			if(meta.getProperty(name) != null) {
+				response.setHeader(name, meta.getProperty(name));
+			}
+		}
+		InputStreamEntity entity = new InputStreamEntity(body, body.getChannel().size());
+		if(meta.getProperty("Content-Type") != null) {
+			entity.setContentType(meta.getProperty("Content-Type"));
+		}
+		response.setEntity(entity);
+		return response;
+	}
+	
+	/**
+	 * Make a response closeable
+	 * @param response the response
+	 * @return the closeable response
+	 */
+	private static CloseableHttpResponse closeable(HttpResponse response) {
+		if(response instanceof CloseableHttpResponse) {
+			return (CloseableHttpResponse)response;
+		}
+		CachedHttpResponse closeable = new CachedHttpResponse(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+		closeable.setHeaders(response.getAllHeaders());
+		closeable.setEntity(response.getEntity());
+		return closeable;
+	}
+	
+	/**
+	 * A response whose body is released on close
+	 */
+	private static class CachedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+		/**
+		 * Constructor
+		 * @param status the status code
+		 * @param reason the reason phrase
+		 */
+		CachedHttpResponse(int status, String reason) {
+			super(new BasicStatusLine(HttpVersion.HTTP_1_1, status, reason));
+		}
+		
+		@Override
+		public void close() throws IOException {
+			HttpEntity entity = getEntity();
+			if(entity != null && entity.isStreaming()) {
+				entity.getContent().close();
+			}
+		}
+	}
+	
+	/**
+	 * Routes HttpURLConnection requests through a cache. Fresh GET responses are served from the cache and 200
+	 * responses are stored; stale responses are fetched again rather than revalidated, and requests sending their own
+	 * validators go to the network.
+	 */
+	private static class UrlConnectionCache extends ResponseCache {
+		/**
+		 * the cache
+		 */
+		private final HttpCache cache;
+		/**
+		 * url and key of the request a thread is about to send, as the request headers cannot be read once the
+		 * connection is open
+		 */
+		private final ThreadLocal<String[]> pending = new ThreadLocal<String[]>();
+		
+		/**
+		 * Constructor
+		 * @param cache the cache
+		 */
+		UrlConnectionCache(HttpCache cache) {
+			this.cache = cache;
+		}
+		
+		@Override
+		public CacheResponse get(URI uri, String method, Map<String, List<String>> headers) throws IOException {
+			this.pending.remove();
+			boolean uncached = !"GET".equals(method);
+			for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+				String name = header.getKey();
+				if("If-None-Match".equalsIgnoreCase(name) || "If-Modified-Since".equalsIgnoreCase(name) || ("Cache-Control".equalsIgnoreCase(name) && String.valueOf(header.getValue()).contains("no-store"))) {
+					uncached = true;
+				}
+			}
+			if(uncached) {
+				if(this.cache.isReplay()) {
+					throw new IOException("Request for " + uri + " cannot be replayed from the cache");
+				}
+				return null;
+			}
+			String key = getKey(method, uri.toString(), headers, null);
+			Properties meta = this.cache.readMeta(key);
+			if(meta != null && (this.cache.isReplay() || this.cache.isFresh(method, meta))) {
+				FileInputStream body = this.cache.openBody(key);
+				if(body != null) {
+					log.trace("http cache hit " + uri);
+					return new StoredCacheResponse(meta, body);
+				}
+			}
+			if(this.cache.isReplay()) {
+				throw new IOException("No cached response for " + method + " " + uri + " (replay mode)");
+			}
+			this.pending.set(new String[]{uri.toString(), key});
+			return null;
+		}
+		
+		@Override
+		public CacheRequest put(URI uri, URLConnection conn) throws IOException {
+			String[] request = this.pending.get();
+			this.pending.remove();
+			if(request == null || !request[0].equals(uri.toString()) || !(conn instanceof HttpURLConnection)) {
+				return null;
+			}
+			HttpURLConnection http = (HttpURLConnection)conn;
+			String cacheControl = http.getHeaderField("Cache-Control");
+			if(http.getResponseCode() != HttpStatus.SC_OK || (cacheControl != null && cacheControl.contains("no-store"))) {
+				return null;
+			}
+			Properties meta = newMeta("GET", request[0], HttpStatus.SC_OK, http.getResponseMessage());
+			for(String name : storedHeaders) {
+				if(http.getHeaderField(name) != null) {
+					meta.setProperty(name, http.getHeaderField(name));
+				}
+			}
+			return new PendingCacheRequest(this.cache, request[1], meta);
+		}
+	}
+	
+	/**
+	 * A stored response handed to an HttpURLConnection
+	 */
+	private static class StoredCacheResponse extends CacheResponse {
+		/**
+		 * the response headers, with the status line under the null key
+		 */
+		private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		/**
+		 * the response body
+		 */
+		private final InputStream body;
+		
+		/**
+		 * Constructor
+		 * @param meta the stored response's metadata
+		 * @param body the response body
+		 */
+		StoredCacheResponse(Properties meta, InputStream body) {
+			this.headers.put(null, Collections.singletonList("HTTP/1.1 " + meta.getProperty("status") + " " + meta.getProperty("reason")));
+			for(String name : storedHeaders) {
+				if(meta.getProperty(name) != null) {
+					this.headers.put(name, Collections.singletonList(meta.getProperty(name)));
+				}
+			}
+			this.body = body;
+		}
+		
+		@Override
+		public Map<String, List<String>> getHeaders() {
+			return this.headers;
+		}
+		
+		@Override
+		public InputStream getBody() {
+			return this.body;
+		}
+	}
+	
+	/**
+	 * Stores the body of a response as an HttpURLConnection reads it, once it has been read whole
+	 */
+	private static class PendingCacheRequest extends CacheRequest {
+		/**
+		 * the cache
+		 */
+		private final HttpCache cache;
+		/**
+		 * the key
+		 */
+		private final String key;
+		/**
+		 * the response's metadata
+		 */
+		private final Properties meta;
+		/**
+		 * the temporary file the body is written to
+		 */
+		private final File tmp;
+		/**
+		 * the stream writing the temporary file
+		 */
+		private final OutputStream out;
+		/**
+		 * has the body been stored or abandoned
+		 */
+		private boolean done = false;
+		
+		/**
+		 * Constructor
+		 * @param cache the cache
+		 * @param key the key
+		 * @param meta the response's metadata
+		 * @throws IOException error creating the temporary file
+		 */
+		PendingCacheRequest(HttpCache cache, String key, Properties meta) throws IOException {
+			this.cache = cache;
+			this.key = key;
+			this.meta = meta;
+			this.tmp = cache.newTempFile(key);
+			this.out = new FileOutputStream(this.tmp);
+		}
+		
+		@Override
+		public OutputStream getBody() {
+			return new FilterOutputStream(this.out) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					this.out.write(b, off, len);
+				}
+				
+				@Override
+				public void close() throws IOException {
+					super.close();
+					synchronized(PendingCacheRequest.this) {
+						if(!PendingCacheRequest.this.done) {
+							PendingCacheRequest.this.done = true;
+							PendingCacheRequest.this.cache.commit(PendingCacheRequest.this.key, PendingCacheRequest.this.tmp, PendingCacheRequest.this.meta);
+						}
+					}
+				}
+			};
+		}
+		
+		@Override
+		public synchronized void abort() {
+			this.done = true;
+			try {
+				this.out.close();
+			} catch(IOException e) {
+				// nothing more to do with it
+			}
+			this.tmp.delete();
+		}
+	}
+}
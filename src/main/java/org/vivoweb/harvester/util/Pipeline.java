@@ -0,0 +1,471 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.args.ArgDef;
+import org.vivoweb.harvester.util.args.ArgList;
+import org.vivoweb.harvester.util.args.ArgParser;
+import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.QueueRecordHandler;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Runs a sequence of harvester tools in one jvm. Each stage is given the same arguments its harvester script would be,
+ * and while the pipeline runs every JenaConnect and RecordHandler built from the same configuration is opened once and
+ * shared by all the stages, so a RecordHandler or model configured to live in memory carries data from one stage to the
+ * next without touching disk. The pipeline file lists the stages:
+ * <pre>
+ * &lt;Pipeline&gt;
+ * 	&lt;Stage tool="JDBCFetch"&gt;
+ * 		&lt;Arg&gt;-X&lt;/Arg&gt;
+ * 		&lt;Arg&gt;jdbcfetch.config.xml&lt;/Arg&gt;
+ * 	&lt;/Stage&gt;
+ * 	&lt;Stage tool="org.vivoweb.harvester.translate.XSLTranslator"&gt;
+ * 		&lt;Arg&gt;-X&lt;/Arg&gt;
+ * 		&lt;Arg&gt;xsltranslator.config.xml&lt;/Arg&gt;
+ * 	&lt;/Stage&gt;
+ * &lt;/Pipeline&gt;
+ * </pre>
+ * A stage with stream="true" does not have to finish before the next stage starts: the two run at the same time,
+ * passing records through a {@link QueueRecordHandler} that the first writes and the second reads, so fetch, translate
+ * and load can overlap. Each stage of a streamed run is started once the one before it has opened its
+ * RecordHandlers.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class Pipeline {
+	/**
+	 * SLF4J Logger
+	 */
+	protected static Logger log = LoggerFactory.getLogger(Pipeline.class);
+	/**
+	 * packages searched for tools named without a package
+	 */
+	private static final String[] toolPackages = {
+		"org.vivoweb.harvester.fetch",
+		"org.vivoweb.harvester.fetch.nih",
+		"org.vivoweb.harvester.fetch.linkeddata",
+		"org.vivoweb.harvester.translate",
+		"org.vivoweb.harvester.transfer",
+		"org.vivoweb.harvester.score",
+		"org.vivoweb.harvester.qualify",
+		"org.vivoweb.harvester.diff",
+		"org.vivoweb.harvester.services",
+		"org.vivoweb.harvester.util",
+		"org.vivoweb.harvester.util.repo"
+	};
+	/**
+	 * the stages
+	 */
+	private List<Stage> stages;
+	/**
+	 * number of the stage to start at (1 is the first)
+	 */
+	private int startStage;
+	/**
+	 * share open JenaConnects and RecordHandlers between stages
+	 */
+	private boolean share;
+
+	/**
+	 * Constructor
+	 * @param pipelineFile path to the file listing the stages
+	 * @param startStage number of the stage to start at (1 is the first)
+	 * @param share share open JenaConnects and RecordHandlers between stages
+	 * @throws IOException error reading pipeline file
+	 */
+	public Pipeline(String pipelineFile, int startStage, boolean share) throws IOException {
+		this(parsePipeline(pipelineFile), startStage, share);
+	}
+
+	/**
+	 * Constructor
+	 * @param stages the stages
+	 * @param startStage number of the stage to start at (1 is the first)
+	 * @param share share open JenaConnects and RecordHandlers between stages
+	 */
+	public Pipeline(List<Stage> stages, int startStage, boolean share) {
+		this.stages = stages;
+		if((this.stages == null) || this.stages.isEmpty()) {
+			throw new IllegalArgumentException("Must provide at least one stage");
+		}
+		if((startStage < 1) || (startStage > this.stages.size())) {
+			throw new IllegalArgumentException("start stage must be between 1 and " + this.stages.size());
+		}
+		this.startStage = startStage;
+		this.share = share;
+		if(!this.share) {
+			for(Stage stage : this.stages) {
+				if(stage.isStream()) {
+					throw new IllegalArgumentException("Streamed stages must share their RecordHandlers");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param args commandline arguments
+	 * @throws IOException error creating task
+	 * @throws UsageException user requested usage message
+	 */
+	private Pipeline(String[] args) throws IOException, UsageException {
+		this(getParser().parse(args));
+	}
+
+	/**
+	 * Constructor
+	 * @param argList arguments
+	 * @throws IOException error reading pipeline file
+	 */
+	private Pipeline(ArgList argList) throws IOException {
+		this(argList.get("p"), Integer.parseInt(argList.get("s")), !argList.has("n"));
+	}
+
+	/**
+	 * Read the stages from a pipeline file
+	 * @param pipelineFile path to the file
+	 * @return the stages
+	 * @throws IOException error reading file
+	 */
+	private static List<Stage> parsePipeline(String pipelineFile) throws IOException {
+		if(pipelineFile == null) {
+			throw new IllegalArgumentException("Must provide a pipeline file");
+		}
+		Document doc;
+		InputStream in = FileAide.getInputStream(pipelineFile);
+		try {
+			doc = XMLAide.getDocument(in);
+		} catch(SAXException e) {
+			throw new IOException("Invalid pipeline file " + pipelineFile, e);
+		} finally {
+			in.close();
+		}
+		List<Stage> stages = new ArrayList<Stage>();
+		for(Node stageNode : IterableAdaptor.adapt(doc.getElementsByTagName("Stage"))) {
+			Element stageElem = (Element)stageNode;
+			List<String> args = new ArrayList<String>();
+			for(Node argNode : IterableAdaptor.adapt(stageElem.getElementsByTagName("Arg"))) {
+				args.add(argNode.getTextContent().trim());
+			}
+			boolean stream = Boolean.parseBoolean(stageElem.getAttribute("stream"));
+			stages.add(new Stage(stageElem.getAttribute("tool"), stream, args.toArray(new String[args.size()])));
+		}
+		return stages;
+	}
+
+	/**
+	 * Runs the stages in order
+	 * @throws IOException a stage failed
+	 */
+	public void execute() throws IOException {
+		if(this.share) {
+			JenaConnect.setSharing(true);
+			RecordHandler.setSharing(true);
+		}
+		try {
+			int x = this.startStage;
+			while(x <= this.stages.size()) {
+				int last = x;
+				while((last < this.stages.size()) && this.stages.get(last - 1).isStream()) {
+					last++;
+				}
+				if(last == x) {
+					Stage stage = this.stages.get(x - 1);
+					log.info("Stage " + x + "/" + this.stages.size() + ": " + stage);
+					long start = System.currentTimeMillis();
+					try {
+						stage.run();
+					} catch(IOException e) {
+						throw new IOException("Stage " + x + " (" + stage.getTool() + ") failed, rerun from it with -s " + x, e);
+					}
+					log.info("Stage " + x + " finished in " + (System.currentTimeMillis() - start) + "ms");
+				} else {
+					runStreamed(x, last);
+				}
+				x = last + 1;
+			}
+		} finally {
+			if(this.share) {
+				JenaConnect.setSharing(false);
+				RecordHandler.setSharing(false);
+			}
+		}
+	}
+
+	/**
+	 * Runs a streamed group of stages at the same time, each on its own thread
+	 * @param first number of the first stage in the group
+	 * @param last number of the last stage in the group
+	 * @throws IOException a stage failed
+	 */
+	private void runStreamed(int first, int last) throws IOException {
+		log.info("Stages " + first + "-" + last + "/" + this.stages.size() + ": streaming");
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(last - first + 1);
+		try {
+			List<Future<Void>> running = new ArrayList<Future<Void>>();
+			for(int x = first; x <= last; x++) {
+				final Stage stage = this.stages.get(x - 1);
+				final CountDownLatch built = new CountDownLatch(1);
+				log.info("Stage " + x + "/" + this.stages.size() + ": " + stage);
+				running.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							Object task;
+							try {
+								task = stage.build();
+							} finally {
+								built.countDown();
+							}
+							stage.execute(task);
+						} catch(Exception e) {
+							// unblock the rest of the group
+							QueueRecordHandler.abortAll();
+							throw e;
+						} finally {
+							QueueRecordHandler.taskFinished(Thread.currentThread());
+						}
+						return null;
+					}
+				}));
+				// the next stage may only read once this one has opened what it writes to
+				built.await();
+			}
+			IOException error = null;
+			for(int x = first; x <= last; x++) {
+				try {
+					running.get(x - first).get();
+				} catch(ExecutionException e) {
+					log.error("Stage " + x + " (" + this.stages.get(x - 1).getTool() + ") failed", e.getCause());
+					if(error == null) {
+						error = new IOException("Stage " + x + " (" + this.stages.get(x - 1).getTool() + ") failed, rerun the streamed stages with -s " + first, e.getCause());
+					}
+				}
+			}
+			if(error != null) {
+				throw error;
+			}
+		} catch(InterruptedException e) {
+			QueueRecordHandler.abortAll();
+			throw new IOException(e);
+		} finally {
+			pool.shutdown();
+		}
+		log.info("Stages " + first + "-" + last + " finished in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * A harvester tool and the arguments to run it with
+	 */
+	public static class Stage {
+		/**
+		 * the tool's class name
+		 */
+		private final String tool;
+		/**
+		 * the tool's arguments
+		 */
+		private final String[] args;
+		/**
+		 * does the next stage run alongside this one
+		 */
+		private final boolean stream;
+
+		/**
+		 * Constructor
+		 * @param tool the tool's class name, the package may be left off for the harvester's own tools
+		 * @param args the arguments the tool is run with, as given to its harvester script
+		 */
+		public Stage(String tool, String... args) {
+			this(tool, false, args);
+		}
+
+		/**
+		 * Constructor
+		 * @param tool the tool's class name, the package may be left off for the harvester's own tools
+		 * @param stream does the next stage run alongside this one, reading what this one writes
+		 * @param args the arguments the tool is run with, as given to its harvester script
+		 */
+		public Stage(String tool, boolean stream, String... args) {
+			if((tool == null) || tool.trim().isEmpty()) {
+				throw new IllegalArgumentException("Stage must name a tool");
+			}
+			this.tool = tool.trim();
+			this.stream = stream;
+			this.args = args;
+		}
+
+		/**
+		 * Does the next stage run alongside this one
+		 * @return true if streamed
+		 */
+		public boolean isStream() {
+			return this.stream;
+		}
+
+		/**
+		 * Get the tool's class name
+		 * @return the tool
+		 */
+		public String getTool() {
+			return this.tool;
+		}
+
+		/**
+		 * Run the tool: build it from the arguments and execute it
+		 * @throws IOException error running the tool
+		 */
+		public void run() throws IOException {
+			execute(build());
+		}
+
+		/**
+		 * Build the tool from the arguments
+		 * @return the tool
+		 * @throws IOException error building the tool
+		 */
+		Object build() throws IOException {
+			Class<?> toolClass = findTool(this.tool);
+			try {
+				Constructor<?> constructor = toolClass.getDeclaredConstructor(String[].class);
+				constructor.setAccessible(true);
+				return constructor.newInstance((Object)this.args);
+			} catch(NoSuchMethodException e) {
+				throw new IllegalArgumentException(this.tool + " can not be run as a pipeline stage", e);
+			} catch(InstantiationException | IllegalAccessException e) {
+				throw new IllegalArgumentException(this.tool + " can not be run as a pipeline stage", e);
+			} catch(InvocationTargetException e) {
+				throw unwrap(e);
+			}
+		}
+
+		/**
+		 * Execute a built tool
+		 * @param task the tool
+		 * @throws IOException error running the tool
+		 */
+		void execute(Object task) throws IOException {
+			try {
+				Method execute = task.getClass().getDeclaredMethod("execute");
+				execute.setAccessible(true);
+				execute.invoke(task);
+			} catch(NoSuchMethodException e) {
+				throw new IllegalArgumentException(this.tool + " can not be run as a pipeline stage", e);
+			} catch(IllegalAccessException e) {
+				throw new IllegalArgumentException(this.tool + " can not be run as a pipeline stage", e);
+			} catch(InvocationTargetException e) {
+				throw unwrap(e);
+			}
+		}
+
+		/**
+		 * Get the error a tool threw
+		 * @param e the reflection wrapper
+		 * @return the tool's IOException, or an IOException wrapping what it threw
+		 */
+		private IOException unwrap(InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				return (IOException)cause;
+			}
+			return new IOException(this.tool + " failed: " + cause.getMessage(), cause);
+		}
+
+		@Override
+		public String toString() {
+			return this.tool + " " + Arrays.toString(this.args);
+		}
+	}
+
+	/**
+	 * Find a tool's class
+	 * @param tool the class name, with or without its package
+	 * @return the class
+	 */
+	static Class<?> findTool(String tool) {
+		try {
+			return Class.forName(tool);
+		} catch(ClassNotFoundException e) {
+			// try the harvester's packages
+		}
+		if(!tool.contains(".")) {
+			for(String pkg : toolPackages) {
+				try {
+					return Class.forName(pkg + "." + tool);
+				} catch(ClassNotFoundException e) {
+					// try the next package
+				}
+			}
+		}
+		throw new IllegalArgumentException("Unknown tool: " + tool);
+	}
+
+	/**
+	 * Get the ArgParser for this task
+	 * @return the ArgParser
+	 */
+	private static ArgParser getParser() {
+		ArgParser parser = new ArgParser("Pipeline");
+		// Inputs
+		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("pipeline").withParameter(true, "PIPELINE_FILE").setDescription("file listing the stages to run").setRequired(true));
+		// Params
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("start").withParameter(true, "STAGE").setDescription("number of the stage to start at - default 1").setDefaultValue("1").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("noShare").setDescription("open JenaConnects and RecordHandlers separately for each stage instead of sharing them").setRequired(false));
+		return parser;
+	}
+
+	/**
+	 * Main method
+	 * @param args commandline arguments
+	 */
+	public static void main(String... args) {
+		Exception error = null;
+		try {
+			InitLog.initLogger(args, getParser());
+			log.info(getParser().getAppName() + ": Start");
+			new Pipeline(args).execute();
+		} catch(IllegalArgumentException e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(UsageException e) {
+			log.info("Printing Usage:");
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(Exception e) {
+			log.error(e.getMessage(), e);
+			error = e;
+		} finally {
+			log.info(getParser().getAppName() + ": End");
+			if(error != null) {
+				System.exit(1);
+			}
+		}
+	}
+}
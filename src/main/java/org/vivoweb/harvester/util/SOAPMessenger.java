@@ -7,11 +7,10 @@ package org.vivoweb.harvester.util;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.Map;
 import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
@@ -19,11 +18,19 @@ import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Fetches SOAP-XML data from a SOAP compatible site placing the data in the supplied file.
+ * Messages are sent over a shared pool of connections, through the shared HttpCache when one is configured.
  */
 public class SOAPMessenger {
 	/**
@@ -41,9 +48,9 @@ public class SOAPMessenger {
 	private URL url;
 
 	/**
-	 * Connection derived from that URL
+	 * Client shared by all messengers so connections to the same site are reused
 	 */
-	private HttpURLConnection urlCon;
+	private static CloseableHttpClient httpClient;
 	
 	/**
 	 * Inputstream with SOAP style XML message
@@ -172,61 +179,49 @@ public class SOAPMessenger {
 	}
 	
 	/**
-	 * @throws IOException thrown if there is an issue with the stream.
+	 * Get the client shared by all messengers
+	 * @return the client
 	 */
-	private void sendMessage() throws IOException{
-
-
-	    // specify that we will send output and accept input
-		this.urlCon.setDoInput(true);
-		this.urlCon.setDoOutput(true);
-
-//		this.urlCon.setConnectTimeout( 20000 );  // long timeout, but not infinite
-//		this.urlCon.setReadTimeout( 20000 );
-
-		this.urlCon.setUseCaches (false);
-		this.urlCon.setDefaultUseCaches (false);
-
+	private static synchronized CloseableHttpClient getClient() {
+		if(httpClient == null) {
+			PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+			connManager.setMaxTotal(20);
+			connManager.setDefaultMaxPerRoute(10);
+			httpClient = HttpClientBuilder.create().useSystemProperties().setConnectionManager(connManager).build();
+		}
+		return httpClient;
+	}
+	
+	/**
+	 * @return the request carrying the message
+	 */
+	private HttpPost buildMessage() {
+		HttpPost post = new HttpPost(this.url.toString());
+		
 	    // tell the web server what we are sending
-		this.urlCon.setRequestProperty ( "Content-Type", "application/soap+xml; charset=utf-8" );
+		post.setHeader("Content-Type", "application/soap+xml; charset=utf-8");
 		if(this.sessionID != ""){
-			this.urlCon.setRequestProperty ( "Cookie", "SID=\""+this.sessionID + "\"" );
+			post.setHeader("Cookie", "SID=\""+this.sessionID + "\"");
 		}
 		if(this.requestProperties != null){
 			for(String param : this.requestProperties.keySet()){
-				this.urlCon.setRequestProperty ( param, this.requestProperties.get(param) );
+				post.setHeader(param, this.requestProperties.get(param));
 			}
 		}
-		
-		log.debug("getting writer for url connection");
-	    OutputStreamWriter osWriter = new OutputStreamWriter( this.urlCon.getOutputStream() );
-	    
-		log.debug("writting to url connection");
-	    osWriter.write(this.xmlString);
-	    osWriter.close();
+		post.setEntity(new StringEntity(this.xmlString, "UTF-8"));
+		return post;
 	}
 	
 	/**
+	 * @param response the response to the message
 	 * @return the string version of the message
 	 * @throws IOException if there is a problem with the source.
 	 */
-	private String readMessage() throws IOException{
-		InputStreamReader isReader;
-		try {
-			isReader = new InputStreamReader( this.urlCon.getInputStream() );
-		} catch(IOException e) {
-			isReader = new InputStreamReader( this.urlCon.getErrorStream() );
-		}
-	
-	    StringBuilder buf = new StringBuilder();
-	    char[] cbuf = new char[ 2048 ];
-	    int num;
-	
-	    while ( -1 != (num=isReader.read( cbuf ))) {
-	        buf.append( cbuf, 0, num );
-	    }
+	private String readMessage(CloseableHttpResponse response) throws IOException{
+		// error responses are read the same way, they carry the SOAP fault
+	    String body = EntityUtils.toString(response.getEntity(), Charset.defaultCharset());
 	
-	    return StringEscapeUtils.unescapeXml(buf.toString());
+	    return StringEscapeUtils.unescapeXml(body);
 	}
 	
 	/**
@@ -240,14 +235,16 @@ public class SOAPMessenger {
 		log.debug("Built message");
 		log.debug("Message contents:\n" + this.xmlString);
 
-		log.debug("opening the url connection");
-		this.urlCon = (HttpURLConnection)this.url.openConnection();
-		
-		sendMessage();
-
-	    // reading the response
-		log.debug("getting reader for url connection");
-		String result = readMessage();
+		log.debug("sending message");
+		CloseableHttpResponse response = HttpCache.execute(getClient(), buildMessage());
+		String result;
+		try {
+		    // reading the response
+			log.debug("reading response");
+			result = readMessage(response);
+		} finally {
+			response.close();
+		}
 
 	    result = XMLAide.formatXML(result);
 
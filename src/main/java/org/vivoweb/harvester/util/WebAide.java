@@ -11,12 +11,20 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
 
 /**
  * Simple Web Tools
  * @author Christopher Haines (chris@chrishaines.net)
  */
 public class WebAide {
+    /**
+     * Client for http urls read through the shared HttpCache
+     */
+    private static CloseableHttpClient httpClient;
 
     /**
      * Get the contents of a url
@@ -27,22 +35,48 @@ public class WebAide {
      */
     public static String getURLContents(String url) throws MalformedURLException, IOException {
         StringBuilder sb = new StringBuilder();
-        BufferedReader br = new BufferedReader(new InputStreamReader(new URL(url).openStream()));
-        String s;
-        while((s = br.readLine()) != null) {
-            sb.append(s);
+        BufferedReader br = new BufferedReader(new InputStreamReader(getInputStream(url)));
+        try {
+            String s;
+            while((s = br.readLine()) != null) {
+                sb.append(s);
+            }
+        } finally {
+            br.close();
         }
         return sb.toString();
     }
 
     /**
-     * Get an input stream to read the contents of a url
+     * Get an input stream to read the contents of a url. Http urls are read through the shared HttpCache when one is
+     * configured.
      * @param url the url to read
      * @return an input stream for the contents
      * @throws MalformedURLException invalid url
      * @throws IOException error reading
      */
     public static InputStream getInputStream(String url) throws MalformedURLException, IOException {
-       return new URL(url).openStream();
+        HttpCache cache = HttpCache.getDefault();
+        if(cache == null || !url.matches("(?i)https?://.*")) {
+            return new URL(url).openStream();
+        }
+        CloseableHttpResponse response = cache.fetch(getClient(), new HttpGet(url));
+        int status = response.getStatusLine().getStatusCode();
+        if(status != 200) {
+            response.close();
+            throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url);
+        }
+        return response.getEntity().getContent();
+    }
+
+    /**
+     * Get the shared client for http urls
+     * @return the client
+     */
+    public static synchronized CloseableHttpClient getClient() {
+        if(httpClient == null) {
+            httpClient = HttpClients.createSystem();
+        }
+        return httpClient;
     }
 }
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Journal of the subjects changed in a model, kept in a neighbor model of it. Each subject keeps the time it last
+ * changed, and each task keeps the time its last successful run started, so incremental runs of Smush, Score and Match
+ * only look at subjects changed since then. A model journals its changes when its config sets the journal parameter
+ * to true.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class ChangeJournal {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(ChangeJournal.class);
+	/**
+	 * Namespace of the journal's uris
+	 */
+	private static final String JOURNAL_NS = "http://vivoweb.org/harvester/model/journal#";
+	/**
+	 * Property holding the time a subject last changed
+	 */
+	private static final Node CHANGED = NodeFactory.createURI(JOURNAL_NS + "changed");
+	/**
+	 * Property holding the time a task's last successful run started
+	 */
+	private static final Node LAST_RUN = NodeFactory.createURI(JOURNAL_NS + "lastRun");
+	/**
+	 * The model the journal is kept in
+	 */
+	private final JenaConnect journalJC;
+
+	/**
+	 * Constructor
+	 * @param journalJC the model the journal is kept in
+	 */
+	public ChangeJournal(JenaConnect journalJC) {
+		if(journalJC == null) {
+			throw new IllegalArgumentException("Must provide a journal model");
+		}
+		this.journalJC = journalJC;
+	}
+
+	/**
+	 * Get the name of the neighbor model holding the journal of a model
+	 * @param modelName the journaled model's name
+	 * @return the journal's model name
+	 */
+	public static String getJournalModelName(String modelName) {
+		return JOURNAL_NS + ((modelName == null) ? "default" : modelName);
+	}
+
+	/**
+	 * Record that subjects have changed now (blank nodes are not journaled)
+	 * @param subjects the subjects
+	 */
+	public synchronized void recordChanges(Collection<Node> subjects) {
+		Graph graph = this.journalJC.getJenaModel().getGraph();
+		Node now = timeNode(System.currentTimeMillis());
+		List<Triple> removes = new ArrayList<Triple>();
+		List<Triple> adds = new ArrayList<Triple>();
+		for(Node subject : new HashSet<Node>(subjects)) {
+			if(subject.isURI()) {
+				removes.addAll(graph.find(subject, CHANGED, Node.ANY).toList());
+				adds.add(Triple.create(subject, CHANGED, now));
+			}
+		}
+		this.journalJC.updateTriples(removes, adds);
+		log.trace("Journaled " + adds.size() + " changed subjects");
+	}
+
+	/**
+	 * Get the subjects changed since the last successful run of a task started
+	 * @param task the task's journal key
+	 * @return the subject uris, or null if the task has not run before
+	 * @throws IOException error encoding the key
+	 */
+	public synchronized Set<String> getChangedSince(String task) throws IOException {
+		Graph graph = this.journalJC.getJenaModel().getGraph();
+		Long lastRun = null;
+		ExtendedIterator<Triple> runs = graph.find(taskNode(task), LAST_RUN, Node.ANY);
+		try {
+			if(runs.hasNext()) {
+				lastRun = Long.valueOf(runs.next().getObject().getLiteralLexicalForm());
+			}
+		} finally {
+			runs.close();
+		}
+		if(lastRun == null) {
+			return null;
+		}
+		Set<String> changed = new HashSet<String>();
+		ExtendedIterator<Triple> changes = graph.find(Node.ANY, CHANGED, Node.ANY);
+		try {
+			while(changes.hasNext()) {
+				Triple change = changes.next();
+				if(Long.parseLong(change.getObject().getLiteralLexicalForm()) >= lastRun.longValue()) {
+					changed.add(change.getSubject().getURI());
+				}
+			}
+		} finally {
+			changes.close();
+		}
+		return changed;
+	}
+
+	/**
+	 * Record a successful run of a task, so the next incremental run looks at subjects changed since it started
+	 * @param task the task's journal key
+	 * @param started when the run started
+	 * @throws IOException error encoding the key
+	 */
+	public synchronized void markRun(String task, long started) throws IOException {
+		Node taskNode = taskNode(task);
+		List<Triple> removes = this.journalJC.getJenaModel().getGraph().find(taskNode, LAST_RUN, Node.ANY).toList();
+		List<Triple> adds = new ArrayList<Triple>();
+		adds.add(Triple.create(taskNode, LAST_RUN, timeNode(started)));
+		this.journalJC.updateTriples(removes, adds);
+		this.journalJC.sync();
+	}
+
+	/**
+	 * Get the node for a task
+	 * @param task the task's journal key
+	 * @return the node
+	 * @throws IOException error encoding the key
+	 */
+	private static Node taskNode(String task) throws IOException {
+		if((task == null) || task.trim().equals("")) {
+			throw new IllegalArgumentException("journal key cannot be empty");
+		}
+		return NodeFactory.createURI(JOURNAL_NS + "task-" + URLEncoder.encode(task.trim(), "UTF-8"));
+	}
+
+	/**
+	 * Get the literal for a time
+	 * @param time the time in milliseconds
+	 * @return the literal
+	 */
+	private static Node timeNode(long time) {
+		return NodeFactory.createLiteral(Long.toString(time), XSDDatatype.XSDlong);
+	}
+
+	/**
+	 * Sync the journal model
+	 */
+	public void sync() {
+		this.journalJC.sync();
+	}
+}
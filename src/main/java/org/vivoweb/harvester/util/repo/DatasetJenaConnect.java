@@ -43,6 +43,9 @@ public class DatasetJenaConnect extends JenaConnect {
 	@Override
 	public void close() {
 		super.close();
+		if(isShared()) {
+			return;
+		}
 		getJenaModel().close();
 	}
 	
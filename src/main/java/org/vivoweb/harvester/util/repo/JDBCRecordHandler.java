@@ -12,9 +12,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -75,6 +79,10 @@ public class JDBCRecordHandler extends RecordHandler {
 	 * Field to store data in
 	 */
 	protected String dataField;
+	/**
+	 * Number of record ids looked up per query when working on many records at once
+	 */
+	private static final int ID_LOOKUP_BATCH = 500;
 	
 	/**
 	 * Default Constructor
@@ -430,8 +438,191 @@ public class JDBCRecordHandler extends RecordHandler {
 		return retVal;
 	}
 	
+	@Override
+	protected Map<String, SortedSet<RecordMetaData>> getRecordMetaData(Collection<String> recIDs) throws IOException {
+		Map<String, SortedSet<RecordMetaData>> retVal = new HashMap<String, SortedSet<RecordMetaData>>();
+		List<String> ids = new ArrayList<String>(recIDs);
+		try {
+			for(int start = 0; start < ids.size(); start += ID_LOOKUP_BATCH) {
+				List<String> chunk = ids.subList(start, Math.min(start + ID_LOOKUP_BATCH, ids.size()));
+				PreparedStatement ps = this.db.prepareStatement("select " + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdRelField + " in (" + placeholders(chunk.size()) + ")");
+				try {
+					for(int x = 0; x < chunk.size(); x++) {
+						ps.setString(x + 1, chunk.get(x));
+					}
+					ResultSet rs = ps.executeQuery();
+					while(rs.next()) {
+						String recID = rs.getString(rmdRelField);
+						Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
+						cal.setTimeInMillis(Long.parseLong(rs.getString(rmdCalField)));
+						RecordMetaDataType operation = RecordMetaDataType.valueOf(rs.getString(rmdOperationField));
+						Class<?> operator = Class.forName(rs.getString(rmdOperatorField));
+						String md5 = rs.getString(rmdMD5Field);
+						if(!retVal.containsKey(recID)) {
+							retVal.put(recID, new TreeSet<RecordMetaData>());
+						}
+						retVal.get(recID).add(new RecordMetaData(cal, operator, operation, md5));
+					}
+				} finally {
+					ps.close();
+				}
+			}
+		} catch(SQLException e) {
+			throw new IOException(e);
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Get which of the given record ids exist
+	 * @param recIDs the record ids
+	 * @return the ids that exist
+	 * @throws SQLException error querying
+	 */
+	private Set<String> getExistingIDs(List<String> recIDs) throws SQLException {
+		Set<String> retVal = new HashSet<String>();
+		for(int start = 0; start < recIDs.size(); start += ID_LOOKUP_BATCH) {
+			List<String> chunk = recIDs.subList(start, Math.min(start + ID_LOOKUP_BATCH, recIDs.size()));
+			PreparedStatement ps = this.db.prepareStatement("select " + recordIdField + " from " + this.table + " where " + recordIdField + " in (" + placeholders(chunk.size()) + ")");
+			try {
+				for(int x = 0; x < chunk.size(); x++) {
+					ps.setString(x + 1, chunk.get(x));
+				}
+				ResultSet rs = ps.executeQuery();
+				while(rs.next()) {
+					retVal.add(rs.getString(1));
+				}
+			} finally {
+				ps.close();
+			}
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Build a list of parameter placeholders for an in clause
+	 * @param count number of parameters
+	 * @return the placeholders
+	 */
+	private static String placeholders(int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int x = 0; x < count; x++) {
+			sb.append((x == 0) ? "?" : ", ?");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Add a metadata row to a batch insert
+	 * @param ps the insert statement
+	 * @param recID the record id
+	 * @param rmd the metadata record
+	 * @throws SQLException error adding to batch
+	 */
+	private static void addMetaDataBatch(PreparedStatement ps, String recID, RecordMetaData rmd) throws SQLException {
+		ps.setString(1, recID);
+		ps.setString(2, String.valueOf(rmd.getDate().getTimeInMillis()));
+		ps.setString(3, rmd.getOperation().toString());
+		ps.setString(4, rmd.getOperator().getName());
+		ps.setString(5, rmd.getMD5());
+		ps.addBatch();
+	}
+	
+	/**
+	 * Adds many records in one transaction, looking up existing records and metadata a batch at a time and writing
+	 * data and metadata with batched statements
+	 */
+	@Override
+	public int addRecords(List<Record> recs, Map<String, SortedSet<RecordMetaData>> history, Class<?> operator, boolean overwrite) throws IOException {
+		if(recs.isEmpty()) {
+			return 0;
+		}
+		List<String> ids = new ArrayList<String>(recs.size());
+		for(Record rec : recs) {
+			ids.add(rec.getID());
+		}
+		Map<String, SortedSet<RecordMetaData>> current = getRecordMetaData(ids);
+		int added = 0;
+		try {
+			Set<String> existing = getExistingIDs(ids);
+			boolean autoCommit = this.db.getAutoCommit();
+			this.db.setAutoCommit(false);
+			PreparedStatement insert = this.db.prepareStatement("insert into " + this.table + "(" + recordIdField + ", " + this.dataField + ") values (?, ?)");
+			PreparedStatement update = this.db.prepareStatement("update " + this.table + " set " + this.dataField + " = ? where " + recordIdField + " = ?");
+			PreparedStatement delMeta = this.db.prepareStatement("delete from " + this.table + "_rmd where " + rmdRelField + " = ?");
+			PreparedStatement addMeta = this.db.prepareStatement("insert into " + this.table + "_rmd (" + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + ") values (?, ?, ?, ?, ?)");
+			try {
+				for(Record rec : recs) {
+					String md5 = RecordMetaData.md5hex(rec.getData());
+					RecordMetaData lastWrite = null;
+					if(current.containsKey(rec.getID())) {
+						for(RecordMetaData rmd : current.get(rec.getID())) {
+							if(rmd.getOperation() == RecordMetaDataType.written) {
+								lastWrite = rmd;
+								break;
+							}
+						}
+					}
+					boolean changed = (lastWrite == null) || !md5.equals(lastWrite.getMD5());
+					if(changed) {
+						if(!existing.contains(rec.getID())) {
+							insert.setString(1, rec.getID());
+							insert.setBytes(2, rec.getData().getBytes());
+							insert.addBatch();
+							existing.add(rec.getID());
+						} else if(overwrite) {
+							update.setBytes(1, rec.getData().getBytes());
+							update.setString(2, rec.getID());
+							update.addBatch();
+						} else {
+							throw new IOException("Unable to add record: " + rec.getID());
+						}
+						added++;
+					}
+					if(history != null) {
+						delMeta.setString(1, rec.getID());
+						delMeta.addBatch();
+						if(history.containsKey(rec.getID())) {
+							for(RecordMetaData rmd : history.get(rec.getID())) {
+								addMetaDataBatch(addMeta, rec.getID(), rmd);
+							}
+						}
+						addMetaDataBatch(addMeta, rec.getID(), new RecordMetaData(operator, RecordMetaDataType.transferred, md5));
+					} else if(changed) {
+						addMetaDataBatch(addMeta, rec.getID(), new RecordMetaData(operator, RecordMetaDataType.written, md5));
+					}
+				}
+				insert.executeBatch();
+				update.executeBatch();
+				delMeta.executeBatch();
+				addMeta.executeBatch();
+				this.db.commit();
+			} catch(SQLException e) {
+				this.db.rollback();
+				throw e;
+			} catch(IOException e) {
+				this.db.rollback();
+				throw e;
+			} finally {
+				insert.close();
+				update.close();
+				delMeta.close();
+				addMeta.close();
+				this.db.setAutoCommit(autoCommit);
+			}
+		} catch(SQLException e) {
+			throw new IOException("Unable to add records", e);
+		}
+		return added;
+	}
+	
 	@Override
 	public void close() throws IOException {
+		if(isShared()) {
+			return;
+		}
 		try {
 			this.cursor.close();
 			this.db.close();
@@ -12,8 +12,21 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -29,7 +42,11 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.GraphEvents;
+import org.apache.jena.graph.GraphUtil;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
@@ -42,14 +59,17 @@ import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.sparql.resultset.ResultsFormat;
 import org.apache.jena.query.Syntax;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.RDFNode;
 import org.apache.jena.rdf.model.RDFWriter;
+import org.apache.jena.rdf.model.ResIterator;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.shared.Lock;
  
 import org.apache.jena.update.UpdateAction; 
 import org.apache.jena.update.UpdateFactory;
+import org.apache.jena.util.iterator.ExtendedIterator;
 
 /**
  * Connection Helper for Jena Models
@@ -60,6 +80,14 @@ public abstract class JenaConnect {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(JenaConnect.class);
+	/**
+	 * Number of triples written to the model at a time when loading from a RecordHandler or updating in batches
+	 */
+	private static final int WRITE_BATCH = 50000;
+	/**
+	 * Number of records parsed or waiting to be written, per parsing thread, when loading from a RecordHandler
+	 */
+	private static final int RH_RECORDS_PER_THREAD = 8;
 	/**
 	 * Model we are connecting to
 	 */
@@ -68,6 +96,18 @@ public abstract class JenaConnect {
 	 * The modelname
 	 */
 	private String modelName;
+	/**
+	 * Connections by configuration, handed out again for the same configuration while sharing is on (null when off)
+	 */
+	private static Map<String, JenaConnect> sharedConnections = null;
+	/**
+	 * Is this connection shared between tasks (close only syncs it)
+	 */
+	private boolean shared = false;
+	/**
+	 * Journal of the subjects changed through this connection (null when not journaling)
+	 */
+	private ChangeJournal journal = null;
 	
 	/**
 	 * Factory (connects to the same jena triple store as another jena connect, but uses a different named model)
@@ -96,9 +136,134 @@ public abstract class JenaConnect {
 				log.trace("'" + param + "' - '" + paramList.get(param) + "'");
 			}
 		}
+		synchronized(JenaConnect.class) {
+			if(sharedConnections != null) {
+				String key = new TreeMap<String, String>(paramList).toString();
+				JenaConnect jc = sharedConnections.get(key);
+				if(jc == null) {
+					jc = build(paramList);
+					if(jc != null) {
+						jc.shared = true;
+						sharedConnections.put(key, jc);
+					}
+				} else {
+					log.debug("Reusing open connection for model " + jc.getModelName());
+				}
+				return jc;
+			}
+		}
 		return build(paramList);
 	}
 	
+	/**
+	 * Turn sharing of connections on or off. While on, every config based factory call with the same configuration gets
+	 * the same open connection, and closing it only syncs it. Turning sharing off closes the shared connections.
+	 * @param sharing share connections
+	 */
+	public static synchronized void setSharing(boolean sharing) {
+		if(sharing && (sharedConnections == null)) {
+			sharedConnections = new HashMap<String, JenaConnect>();
+		} else if(!sharing && (sharedConnections != null)) {
+			for(JenaConnect jc : sharedConnections.values()) {
+				jc.shared = false;
+				jc.close();
+			}
+			sharedConnections = null;
+		}
+	}
+	
+	/**
+	 * Is this connection shared between tasks
+	 * @return true if closing only syncs it
+	 */
+	protected boolean isShared() {
+		return this.shared;
+	}
+	
+	/**
+	 * Turn journaling of changed subjects on or off. While on, subjects changed by loading or removing rdf, or by
+	 * batched triple updates, are recorded in a change journal kept in a neighbor model. Sparql updates run through
+	 * executeUpdateQuery are not journaled, so callers (such as UpdateBatcher) must journal what they change, and
+	 * updates run by hand with the -q option are missed by incremental runs.
+	 * @param journaling journal changes
+	 * @throws IOException error connecting to the journal model
+	 */
+	public void setJournaling(boolean journaling) throws IOException {
+		if(journaling && (this.journal == null)) {
+			this.journal = new ChangeJournal(neighborConnectClone(ChangeJournal.getJournalModelName(getModelName())));
+		} else if(!journaling && (this.journal != null)) {
+			this.journal.sync();
+			this.journal = null;
+		}
+	}
+	
+	/**
+	 * Is this connection journaling changed subjects
+	 * @return true if journaling
+	 */
+	public boolean isJournaling() {
+		return this.journal != null;
+	}
+	
+	/**
+	 * Get the change journal of this model
+	 * @return the journal, or null when not journaling
+	 */
+	public ChangeJournal getChangeJournal() {
+		return this.journal;
+	}
+	
+	/**
+	 * Record that subjects changed, for tools that change the model directly rather than through this connection
+	 * (does nothing when not journaling)
+	 * @param subjects the changed subjects
+	 */
+	public void journalChanges(Collection<Node> subjects) {
+		if((this.journal != null) && !subjects.isEmpty()) {
+			this.journal.recordChanges(subjects);
+		}
+	}
+	
+	/**
+	 * Record the subjects of triples as changed (does nothing when not journaling)
+	 * @param triples the triples
+	 */
+	private void journalTriples(Iterable<Triple> triples) {
+		if(this.journal == null) {
+			return;
+		}
+		Set<Node> subjects = new HashSet<Node>();
+		for(Triple t : triples) {
+			subjects.add(t.getSubject());
+		}
+		journalChanges(subjects);
+	}
+	
+	/**
+	 * Record the subjects of a model as changed, reading them from its subject index and journaling them in chunks so
+	 * the model's triples are never copied (does nothing when not journaling)
+	 * @param model the model
+	 */
+	private void journalSubjects(Model model) {
+		if(this.journal == null) {
+			return;
+		}
+		Set<Node> subjects = new HashSet<Node>();
+		ResIterator it = model.listSubjects();
+		try {
+			while(it.hasNext()) {
+				subjects.add(it.next().asNode());
+				if(subjects.size() >= WRITE_BATCH) {
+					journalChanges(subjects);
+					subjects.clear();
+				}
+			}
+		} finally {
+			it.close();
+		}
+		journalChanges(subjects);
+	}
+	
 	/**
 	 * Config File Based Factory
 	 * @param configFileName the config file path
@@ -164,6 +329,9 @@ public abstract class JenaConnect {
 		} else {
 			throw new IllegalArgumentException("unknown type: " + type);
 		}
+		if("true".equalsIgnoreCase(params.get("journal"))) {
+			jc.setJournaling(true);
+		}
 		if((params.containsKey("checkEmpty") && (params.get("checkEmpty").toLowerCase() == "true")) && jc.isEmpty()) {
 			StringBuilder emptyWarn = new StringBuilder("jena model empty! ");
 			emptyWarn.append(type);
@@ -222,7 +390,19 @@ public abstract class JenaConnect {
 	 *        "RDF/XML"
 	 */
 	public void loadRdfFromStream(InputStream in, String namespace, String language) {
-		getJenaModel().read(in, namespace, language);
+		if(this.journal == null) {
+			getJenaModel().read(in, namespace, language);
+			return;
+		}
+		// read aside first so the subjects can be journaled
+		Model model = ModelFactory.createDefaultModel();
+		try {
+			model.read(in, namespace, language);
+			getJenaModel().add(model);
+			journalSubjects(model);
+		} finally {
+			model.close();
+		}
 	}
 	
 	/**
@@ -268,6 +448,9 @@ public abstract class JenaConnect {
 	 */
 	public void loadRdfFromJC(JenaConnect jc) {
 		getJenaModel().add(jc.getJenaModel());
+		if(this.journal != null) {
+			journalSubjects(jc.getJenaModel());
+		}
 	}
 	
 	/**
@@ -387,6 +570,9 @@ public abstract class JenaConnect {
 	public void removeRdfFromJC(JenaConnect inputJC) {
 //		this.jenaModel.remove(inputJC.getJenaModel());
 		this.jenaModel.remove(inputJC.getJenaModel().listStatements());
+		if(this.journal != null) {
+			journalSubjects(inputJC.getJenaModel());
+		}
 	}
 	
 	/**
@@ -403,7 +589,14 @@ public abstract class JenaConnect {
 	 *        "RDF/XML"
 	 */
 	public void removeRdfFromStream(InputStream in, String namespace, String language) {
-		removeRdfFromJC(new MemJenaConnect(in, namespace, language));
+		// an in-heap model is enough to hold what is being removed
+		Model model = ModelFactory.createDefaultModel();
+		try {
+			model.read(in, namespace, language);
+			writeTriples(GraphUtil.findAll(model.getGraph()).toList(), true);
+		} finally {
+			model.close();
+		}
 	}
 	
 	/**
@@ -437,22 +630,25 @@ public abstract class JenaConnect {
 	 * @return number of records removed
 	 */
 	public int removeRdfFromRH(RecordHandler rh, String namespace, String language) {
-		int processCount = 0;
-		for(Record r : rh) {
-			log.trace("removing record: " + r.getID());
-			if(namespace != null) {
-				// log.trace("using namespace '"+namespace+"'");
-			}
-			ByteArrayInputStream bais = new ByteArrayInputStream(r.getData().getBytes());
-			getJenaModel().remove(new MemJenaConnect(bais, namespace, language).getJenaModel());
-			try {
-				bais.close();
-			} catch(IOException e) {
-				// ignore
-			}
-			processCount++;
-		}
-		return processCount;
+		return removeRdfFromRH(rh, namespace, language, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Removes all records in a RecordHandler from the model, parsing records on a pool of threads while this thread
+	 * removes the parsed triples from the model in large batches (each in a transaction when the model supports them)
+	 * @param rh the RecordHandler to pull records from
+	 * @param namespace the base uri to be used when converting relative URI's to absolute URI's. (Resolving relative URIs
+	 * and fragment IDs is done by prepending the base URI to the relative URI/fragment.) If there are no 
+	 * relative URIs in the source, this argument may safely be null. If the base is the empty string, then relative
+	 * URIs will be retained in the model. This is typically unwise and will usually generate errors when writing 
+	 * the model back out.
+	 * See "Reading and Writing RDF in Apache Jena" for more information about concrete syntaxes. 
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc). null = RDF/XML
+	 * @param threads number of threads parsing records
+	 * @return number of records removed
+	 */
+	public int removeRdfFromRH(RecordHandler rh, String namespace, String language, int threads) {
+		return processRdfFromRH(rh, namespace, language, threads, true);
 	}
 	
 	/**
@@ -468,29 +664,259 @@ public abstract class JenaConnect {
 	 * @return number of records added
 	 */
 	public int loadRdfFromRH(RecordHandler rh, String namespace, String language) {
+		return loadRdfFromRH(rh, namespace, language, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Adds all records in a RecordHandler to the model, parsing records on a pool of threads while this thread adds
+	 * the parsed triples to the model in large batches (each in a transaction when the model supports them)
+	 * @param rh the RecordHandler to pull records from
+	 * @param namespace the base uri to be used when converting relative URI's to absolute URI's. (Resolving relative URIs
+	 * and fragment IDs is done by prepending the base URI to the relative URI/fragment.) If there are no 
+	 * relative URIs in the source, this argument may safely be null. If the base is the empty string, then relative
+	 * URIs will be retained in the model. This is typically unwise and will usually generate errors when writing 
+	 * the model back out.
+	 * See "Reading and Writing RDF in Apache Jena" for more information about concrete syntaxes. 
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc).  null = RDF/XML
+	 * @param threads number of threads parsing records
+	 * @return number of records added
+	 */
+	public int loadRdfFromRH(RecordHandler rh, String namespace, String language, int threads) {
+		return processRdfFromRH(rh, namespace, language, threads, false);
+	}
+	
+	/**
+	 * Parses each record in a RecordHandler on a pool of threads and adds or removes the triples in this thread
+	 * @param rh the RecordHandler to pull records from
+	 * @param namespace the base uri to be used when converting relative URI's to absolute URI's
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc).  null = RDF/XML
+	 * @param threads number of threads parsing records
+	 * @param remove remove the triples instead of adding them
+	 * @return number of records processed
+	 */
+	private int processRdfFromRH(RecordHandler rh, String namespace, String language, int threads, boolean remove) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
 		int processCount = 0;
-		for(Record r : rh) {
-			log.trace("loading record: " + r.getID());
-			if(namespace != null) {
-				// log.trace("using namespace '"+namespace+"'");
+		int maxPending = threads * RH_RECORDS_PER_THREAD;
+		int pending = 0;
+		List<Triple> batch = new ArrayList<Triple>();
+		Map<String, String> prefixes = new HashMap<String, String>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<ParsedRecord> parsed = new ExecutorCompletionService<ParsedRecord>(pool);
+		try {
+			// records are read here, since a RecordHandler is not read from many threads at once
+			for(Record r : rh) {
+				log.trace((remove ? "removing" : "loading") + " record: " + r.getID());
+				parsed.submit(new RecordParser(r.getData(), namespace, language));
+				pending++;
+				processCount++;
+				while(pending >= maxPending) {
+					takeParsed(parsed, batch, prefixes);
+					pending--;
+					if(batch.size() >= WRITE_BATCH) {
+						writeTriples(batch, remove, prefixes);
+						batch.clear();
+						prefixes.clear();
+					}
+				}
 			}
-			ByteArrayInputStream bais = new ByteArrayInputStream(r.getData().getBytes());
-			getJenaModel().read(bais, namespace, language);
-			try {
-				bais.close();
-			} catch(IOException e) {
-				// ignore
+			while(pending > 0) {
+				takeParsed(parsed, batch, prefixes);
+				pending--;
+				if(batch.size() >= WRITE_BATCH) {
+					writeTriples(batch, remove, prefixes);
+					batch.clear();
+					prefixes.clear();
+				}
 			}
-			processCount++;
+			writeTriples(batch, remove, prefixes);
+		} finally {
+			pool.shutdownNow();
 		}
 		return processCount;
 	}
 	
+	/**
+	 * Wait for the next record to finish parsing and add its triples and namespace prefixes to the batch
+	 * @param parsed the records being parsed
+	 * @param batch the batch of triples
+	 * @param prefixes the batch's namespace prefixes
+	 */
+	private static void takeParsed(CompletionService<ParsedRecord> parsed, List<Triple> batch, Map<String, String> prefixes) {
+		try {
+			ParsedRecord record = parsed.take().get();
+			batch.addAll(record.triples);
+			prefixes.putAll(record.prefixes);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while parsing records", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Find the uri nodes starting with a prefix that the model uses as subject, predicate or object. This reads every
+	 * triple once; stores that can find nodes by prefix without reading the triples override it.
+	 * @param prefix the prefix
+	 * @return the nodes (stores looking nodes up by prefix may include nodes this model does not use)
+	 * @throws IOException error connecting
+	 */
+	public Set<Node> findUriNodes(String prefix) throws IOException {
+		Set<Node> nodes = new HashSet<Node>();
+		ExtendedIterator<Triple> it = GraphUtil.findAll(getJenaModel().getGraph());
+		try {
+			while(it.hasNext()) {
+				Triple t = it.next();
+				for(Node node : new Node[]{t.getSubject(), t.getPredicate(), t.getObject()}) {
+					if(node.isURI() && node.getURI().startsWith(prefix)) {
+						nodes.add(node);
+					}
+				}
+			}
+		} finally {
+			it.close();
+		}
+		return nodes;
+	}
+	
+	/**
+	 * Remove and then add triples, written in batches that are each in a transaction if the model supports them
+	 * @param removes the triples to remove
+	 * @param adds the triples to add
+	 */
+	public void updateTriples(List<Triple> removes, List<Triple> adds) {
+		for(int start = 0; start < removes.size(); start += WRITE_BATCH) {
+			writeTriples(removes.subList(start, Math.min(start + WRITE_BATCH, removes.size())), true);
+		}
+		for(int start = 0; start < adds.size(); start += WRITE_BATCH) {
+			writeTriples(adds.subList(start, Math.min(start + WRITE_BATCH, adds.size())), false);
+		}
+	}
+	
+	/**
+	 * Add or remove a batch of triples, in a transaction if the model supports them
+	 * @param triples the triples
+	 * @param remove remove the triples instead of adding them
+	 */
+	private void writeTriples(List<Triple> triples, boolean remove) {
+		writeTriples(triples, remove, Collections.<String, String>emptyMap());
+	}
+	
+	/**
+	 * Add or remove a batch of triples, in a transaction if the model supports them, merging the namespace prefixes
+	 * the triples were read with into the model when adding
+	 * @param triples the triples
+	 * @param remove remove the triples instead of adding them
+	 * @param prefixes the namespace prefixes
+	 */
+	private void writeTriples(List<Triple> triples, boolean remove, Map<String, String> prefixes) {
+		if(triples.isEmpty() && (remove || prefixes.isEmpty())) {
+			return;
+		}
+		Model model = getJenaModel();
+		boolean transaction = model.supportsTransactions();
+		if(transaction) {
+			model.begin();
+		}
+		try {
+			Graph graph = model.getGraph();
+			if(remove) {
+				GraphUtil.delete(graph, triples);
+			} else {
+				GraphUtil.add(graph, triples);
+				model.setNsPrefixes(prefixes);
+			}
+			if(transaction) {
+				model.commit();
+				transaction = false;
+			}
+		} finally {
+			if(transaction) {
+				model.abort();
+			}
+		}
+		journalTriples(triples);
+	}
+	
+	/**
+	 * The triples and namespace prefixes parsed from one record
+	 */
+	private static class ParsedRecord {
+		/**
+		 * the record's triples
+		 */
+		final List<Triple> triples;
+		/**
+		 * the record's namespace prefixes
+		 */
+		final Map<String, String> prefixes;
+		
+		/**
+		 * Constructor
+		 * @param triples the record's triples
+		 * @param prefixes the record's namespace prefixes
+		 */
+		ParsedRecord(List<Triple> triples, Map<String, String> prefixes) {
+			this.triples = triples;
+			this.prefixes = prefixes;
+		}
+	}
+	
+	/**
+	 * Parses one record's rdf into an in-memory graph
+	 */
+	private static class RecordParser implements Callable<ParsedRecord> {
+		/**
+		 * the record's rdf
+		 */
+		private final String data;
+		/**
+		 * the base uri
+		 */
+		private final String namespace;
+		/**
+		 * the rdf syntax language
+		 */
+		private final String language;
+		
+		/**
+		 * Constructor
+		 * @param data the record's rdf
+		 * @param namespace the base uri
+		 * @param language the rdf syntax language
+		 */
+		protected RecordParser(String data, String namespace, String language) {
+			this.data = data;
+			this.namespace = namespace;
+			this.language = language;
+		}
+		
+		@Override
+		public ParsedRecord call() {
+			Model model = ModelFactory.createDefaultModel();
+			try {
+				model.read(new ByteArrayInputStream(this.data.getBytes()), this.namespace, this.language);
+				return new ParsedRecord(GraphUtil.findAll(model.getGraph()).toList(), model.getNsPrefixMap());
+			} finally {
+				model.close();
+			}
+		}
+	}
+	
 	/**
 	 * Closes the model
 	 */
 	public void close() {
 		sync();
+		if(this.journal != null) {
+			this.journal.sync();
+		}
 	}
 	
 	/**
@@ -622,7 +1048,7 @@ public abstract class JenaConnect {
 	}
 	
 	/**
-	 * Executes a sparql update query against the JENA model
+	 * Executes a sparql update query against the JENA model. The changes are not recorded in the change journal.
 	 * @param queryString the query to execute against the model
 	 * @throws IOException error connecting
 	 */
@@ -631,7 +1057,7 @@ public abstract class JenaConnect {
 	}
 	
 	/**
-	 * Executes a sparql update query against the JENA model
+	 * Executes a sparql update query against the JENA model. The changes are not recorded in the change journal.
 	 * @param queryString the query to execute against the model
 	 * @param datasetMode execute against dataset
 	 * @throws IOException error connecting
@@ -829,7 +1255,7 @@ public abstract class JenaConnect {
 		ArgParser parser = new ArgParser("JenaConnect");
 		parser.addArgument(new ArgDef().setShortOption('j').setLongOpt("jena").withParameter(true, "CONFIG_FILE").setDescription("config file for jena model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('J').setLongOpt("jenaOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of jena model config using VALUE").setRequired(false));
-		parser.addArgument(new ArgDef().setShortOption('q').setLongOpt("query").withParameter(true, "SPARQL_QUERY").setDescription("sparql query to execute").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('q').setLongOpt("query").withParameter(true, "SPARQL_QUERY").setDescription("sparql query to execute (changes made by an update query are not recorded in the change journal)").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('Q').setLongOpt("queryResultFormat").withParameter(true, "RESULT_FORMAT").setDescription("the format to return the results in ('RS_RDF',etc for select queries / 'RDF/XML',etc for construct/describe queries)").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('f').setLongOpt("fileOutput").withParameter(true, "OUTPUT_FILE").setDescription("the file to output the results in, if not specified writes to stdout").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dataset").setDescription("execute query against dataset rather than model").setRequired(false));
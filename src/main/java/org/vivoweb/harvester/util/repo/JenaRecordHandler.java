@@ -356,6 +356,9 @@ public class JenaRecordHandler extends RecordHandler {
 	
 	@Override
 	public void close() throws IOException {
+		if(isShared()) {
+			return;
+		}
 		this.model.close();
 	}
 	
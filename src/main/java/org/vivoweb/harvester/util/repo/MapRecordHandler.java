@@ -133,6 +133,9 @@ public class MapRecordHandler extends RecordHandler {
 	
 	@Override
 	public void close() throws IOException {
+		if(isShared()) {
+			return;
+		}
 		this.map.clear();
 		this.metaDataMap.clear();
 	}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record Handler that passes records from the task writing them straight to the task reading them through a bounded
+ * queue, so a fetch, a translate and a load can run at the same time in one jvm (see the stream attribute of
+ * {@link org.vivoweb.harvester.util.Pipeline} stages). Adding a record waits while the queue is full, and iterating
+ * waits for the next record until every task that opened the queue for writing has finished. Records are not kept once
+ * read; give a tee RecordHandler config to also persist each record as it passes through.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class QueueRecordHandler extends RecordHandler {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(QueueRecordHandler.class);
+	/**
+	 * Default number of records the queue holds before writers wait
+	 */
+	private static final int DEFAULT_CAPACITY = 100;
+	/**
+	 * Open queues, so the tasks writing to them can be marked finished
+	 */
+	private static final Set<QueueRecordHandler> openQueues = Collections.synchronizedSet(new HashSet<QueueRecordHandler>());
+	/**
+	 * The queue of records
+	 */
+	private BlockingQueue<Record> queue;
+	/**
+	 * Threads that opened this queue and have not finished or started reading
+	 */
+	private final Set<Thread> writers = new HashSet<Thread>();
+	/**
+	 * Thread reading the queue
+	 */
+	private Thread reader;
+	/**
+	 * Have all the writers finished (the reader stops once the queue is empty)
+	 */
+	private volatile boolean ended = false;
+	/**
+	 * Has the reader gone away
+	 */
+	private volatile boolean abandoned = false;
+	/**
+	 * RecordHandler that also gets every record added (null for none)
+	 */
+	private RecordHandler tee;
+	/**
+	 * Is the tee shared (so it is closed by whoever is sharing it)
+	 */
+	private boolean teeShared;
+
+	/**
+	 * Default Constructor
+	 */
+	public QueueRecordHandler() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity number of records the queue holds before writers wait
+	 * @param tee RecordHandler that also gets every record added (null for none)
+	 */
+	public QueueRecordHandler(int capacity, RecordHandler tee) {
+		setCapacity(capacity);
+		this.tee = tee;
+		this.teeShared = false;
+	}
+
+	/**
+	 * Set the number of records the queue holds before writers wait
+	 * @param capacity the capacity
+	 */
+	private void setCapacity(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		this.queue = new ArrayBlockingQueue<Record>(capacity);
+	}
+
+	@Override
+	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
+		String capacity = getParam(params, "capacity", false);
+		if(capacity != null) {
+			try {
+				setCapacity(Integer.parseInt(capacity.trim()));
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("capacity must be a number", e);
+			}
+		}
+		String teeConfig = getParam(params, "tee", false);
+		if(teeConfig != null) {
+			this.tee = RecordHandler.parseConfig(teeConfig);
+			this.teeShared = (this.tee != null) && this.tee.isShared();
+		}
+	}
+
+	@Override
+	protected void opened() {
+		openQueues.add(this);
+		synchronized(this) {
+			if((this.reader != Thread.currentThread()) && !this.ended) {
+				this.writers.add(Thread.currentThread());
+			}
+		}
+	}
+
+	/**
+	 * Mark a task as finished with every open queue: once no task that opened a queue for writing is left, the queue
+	 * ends, and if the task was reading a queue, writers to it fail instead of waiting forever
+	 * @param task the thread the task ran on
+	 */
+	public static void taskFinished(Thread task) {
+		QueueRecordHandler[] queues;
+		synchronized(openQueues) {
+			queues = openQueues.toArray(new QueueRecordHandler[openQueues.size()]);
+		}
+		for(QueueRecordHandler qrh : queues) {
+			qrh.finished(task);
+		}
+	}
+
+	/**
+	 * Stop every open queue: readers see the end of their records and writers fail
+	 */
+	public static void abortAll() {
+		QueueRecordHandler[] queues;
+		synchronized(openQueues) {
+			queues = openQueues.toArray(new QueueRecordHandler[openQueues.size()]);
+		}
+		for(QueueRecordHandler qrh : queues) {
+			qrh.abandon();
+		}
+	}
+
+	/**
+	 * Mark a task as finished with this queue
+	 * @param task the thread the task ran on
+	 */
+	private synchronized void finished(Thread task) {
+		if(task == this.reader) {
+			abandon();
+		} else if(this.writers.remove(task) && this.writers.isEmpty()) {
+			end();
+		}
+	}
+
+	/**
+	 * Stop this queue: drop what is queued, so the reader sees the end and writers fail
+	 */
+	private synchronized void abandon() {
+		this.abandoned = true;
+		end();
+		this.queue.clear();
+	}
+
+	/**
+	 * Mark that no more records will be added
+	 */
+	private synchronized void end() {
+		this.ended = true;
+		this.writers.clear();
+	}
+
+	/**
+	 * Put a record on the queue, waiting for room while the reader is still there
+	 * @param rec the record
+	 * @return false if the reader has gone away
+	 */
+	private boolean put(Record rec) {
+		try {
+			while(!this.abandoned) {
+				if(this.queue.offer(rec, 1, TimeUnit.SECONDS)) {
+					return true;
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+		if(this.tee != null) {
+			this.tee.addRecord(rec, creator, overwrite);
+		}
+		if(!put(new Record(rec.getID(), rec.getData(), this))) {
+			throw new IOException("Nothing is reading the queue any more, record " + rec.getID() + " not passed on");
+		}
+		return true;
+	}
+
+	@Override
+	public void delRecord(String recID) throws IOException {
+		if(this.tee != null) {
+			this.tee.delRecord(recID);
+		}
+	}
+
+	@Override
+	public String getRecordData(String recID) throws IllegalArgumentException, IOException {
+		if(this.tee != null) {
+			return this.tee.getRecordData(recID);
+		}
+		throw new IllegalArgumentException("Record " + recID + " is not kept once passed through the queue");
+	}
+
+	@Override
+	public Iterator<Record> iterator() {
+		synchronized(this) {
+			if((this.reader != null) && (this.reader != Thread.currentThread())) {
+				throw new IllegalStateException("Queue is already being read by " + this.reader.getName());
+			}
+			this.reader = Thread.currentThread();
+			if(this.writers.remove(this.reader) && this.writers.isEmpty()) {
+				end();
+			}
+		}
+		return new QueueRecordIterator();
+	}
+
+	/**
+	 * Iterator for QueueRecordHandler, waits for each record to be added
+	 * @author Christopher Haines (chris@chrishaines.net)
+	 */
+	private class QueueRecordIterator implements Iterator<Record> {
+		/**
+		 * The next record (null if not yet taken from the queue)
+		 */
+		private Record next;
+
+		/**
+		 * Default Constructor
+		 */
+		protected QueueRecordIterator() {
+			this.next = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				while(this.next == null) {
+					this.next = QueueRecordHandler.this.queue.poll(1, TimeUnit.SECONDS);
+					// ended is set after the last record is queued, so an empty queue once ended stays empty
+					if((this.next == null) && QueueRecordHandler.this.ended && QueueRecordHandler.this.queue.isEmpty()) {
+						return false;
+					}
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public Record next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record rec = this.next;
+			this.next = null;
+			return rec;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Override
+	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+		if(this.tee != null) {
+			this.tee.addMetaData(rec, rmd);
+		}
+	}
+
+	@Override
+	protected void delMetaData(String recID) throws IOException {
+		if(this.tee != null) {
+			this.tee.delMetaData(recID);
+		}
+	}
+
+	@Override
+	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		// every record passing through is new to the reader
+		throw new IOException("No Matching MetaData Found");
+	}
+
+	@Override
+	protected boolean needsUpdated(Record rec) {
+		return true;
+	}
+
+	@Override
+	public void truncate() throws IOException {
+		if(this.tee != null) {
+			this.tee.truncate();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(isShared()) {
+			return;
+		}
+		openQueues.remove(this);
+		if(!this.ended) {
+			log.debug("Queue closed before all writers finished");
+			end();
+		}
+		if((this.tee != null) && !this.teeShared) {
+			this.tee.close();
+		}
+	}
+
+	@Override
+	public Set<String> find(String idText) {
+		return new TreeSet<String>();
+	}
+
+	@Override
+	public Set<String> getRecordIDs() {
+		return new HashSet<String>();
+	}
+}
@@ -8,15 +8,26 @@ package org.vivoweb.harvester.util.repo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
@@ -43,6 +54,18 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 * Do we overwrite existing records by default
 	 */
 	private boolean overwriteDefault = true;
+	/**
+	 * RecordHandlers by configuration, handed out again for the same configuration while sharing is on (null when off)
+	 */
+	private static Map<String, RecordHandler> sharedHandlers = null;
+	/**
+	 * Is this RecordHandler shared between tasks (close does nothing)
+	 */
+	private boolean shared = false;
+	/**
+	 * Number of records copied at a time by copyFrom
+	 */
+	private static final int COPY_BATCH = 500;
 	
 	/**
 	 * Sets parameters from param list
@@ -100,6 +123,200 @@ public abstract class RecordHandler implements Iterable<Record> {
 		return addRecord(new Record(recID, recData, this), creator);
 	}
 	
+	/**
+	 * Adds many records at once. Each record is written as addRecord would, and if a metadata history is given, each
+	 * record's metadata is then replaced by its history followed by a transferred entry for the operator.
+	 * @param recs the records to add
+	 * @param history metadata to give each record, by record id (null to just mark records written)
+	 * @param operator the class adding the records
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @return number of records whose data was added or changed
+	 * @throws IOException error adding
+	 */
+	public int addRecords(List<Record> recs, Map<String, SortedSet<RecordMetaData>> history, Class<?> operator, boolean overwrite) throws IOException {
+		int added = 0;
+		for(Record rec : recs) {
+			Record outRec = new Record(rec.getID(), rec.getData(), this);
+			if(addRecord(outRec, operator, overwrite)) {
+				added++;
+			}
+			if(history != null) {
+				List<RecordMetaData> rmds = new ArrayList<RecordMetaData>();
+				if(history.containsKey(rec.getID())) {
+					rmds.addAll(history.get(rec.getID()));
+				}
+				rmds.add(new RecordMetaData(operator, RecordMetaDataType.transferred, RecordMetaData.md5hex(rec.getData())));
+				setMetaData(outRec, rmds);
+			}
+		}
+		return added;
+	}
+	
+	/**
+	 * Copies every record in another RecordHandler into this one, along with its metadata history, a batch of records
+	 * at a time. With more than one thread, batches are copied in parallel when both RecordHandlers are thread safe.
+	 * @param source the RecordHandler to copy from
+	 * @param inputPrefix prefix removed from the source record ids (null for none)
+	 * @param outputPrefix prefix added on the copied record ids (null for none)
+	 * @param operator the class copying the records
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @param threads number of batches copied at once
+	 * @return number of records copied
+	 * @throws IOException error copying
+	 */
+	public int copyFrom(RecordHandler source, String inputPrefix, String outputPrefix, Class<?> operator, boolean overwrite, int threads) throws IOException {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		int workers = (isThreadSafe() && source.isThreadSafe()) ? threads : 1;
+		if(workers < threads) {
+			log.debug("Copying with one thread: RecordHandlers are not thread safe");
+		}
+		ExecutorService pool = null;
+		CompletionService<Integer> copying = null;
+		if(workers > 1) {
+			pool = Executors.newFixedThreadPool(workers);
+			copying = new ExecutorCompletionService<Integer>(pool);
+		}
+		int copied = 0;
+		int pending = 0;
+		try {
+			CopyBatch batch = new CopyBatch(source, operator, overwrite);
+			for(Record r : source) {
+				String outRecID = StringUtils.defaultString(outputPrefix) + StringUtils.removeStart(r.getID(), inputPrefix);
+				batch.add(r.getID(), new Record(outRecID, r.getData(), this));
+				if(batch.size() >= COPY_BATCH) {
+					if(copying == null) {
+						copied += batch.call().intValue();
+					} else {
+						copying.submit(batch);
+						pending++;
+						// keep only a few batches in memory
+						if(pending > (workers * 2)) {
+							copied += takeCopied(copying);
+							pending--;
+						}
+					}
+					batch = new CopyBatch(source, operator, overwrite);
+				}
+			}
+			copied += batch.call().intValue();
+			while(pending > 0) {
+				copied += takeCopied(copying);
+				pending--;
+			}
+		} finally {
+			if(pool != null) {
+				pool.shutdownNow();
+			}
+		}
+		return copied;
+	}
+	
+	/**
+	 * Wait for the next batch to finish copying
+	 * @param copying the batches being copied
+	 * @return number of records copied
+	 * @throws IOException error copying
+	 */
+	private static int takeCopied(CompletionService<Integer> copying) throws IOException {
+		try {
+			return copying.take().get().intValue();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying records", e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * A batch of records being copied into this RecordHandler
+	 */
+	private class CopyBatch implements Callable<Integer> {
+		/**
+		 * the RecordHandler copied from
+		 */
+		private final RecordHandler source;
+		/**
+		 * the class copying the records
+		 */
+		private final Class<?> operator;
+		/**
+		 * overwrite existing records
+		 */
+		private final boolean overwrite;
+		/**
+		 * the source record ids
+		 */
+		private final List<String> inRecIDs = new ArrayList<String>();
+		/**
+		 * the records to add, with their new ids
+		 */
+		private final List<Record> outRecs = new ArrayList<Record>();
+		
+		/**
+		 * Constructor
+		 * @param source the RecordHandler copied from
+		 * @param operator the class copying the records
+		 * @param overwrite overwrite existing records
+		 */
+		protected CopyBatch(RecordHandler source, Class<?> operator, boolean overwrite) {
+			this.source = source;
+			this.operator = operator;
+			this.overwrite = overwrite;
+		}
+		
+		/**
+		 * Add a record to the batch
+		 * @param inRecID the source record id
+		 * @param outRec the record to add
+		 */
+		protected void add(String inRecID, Record outRec) {
+			this.inRecIDs.add(inRecID);
+			this.outRecs.add(outRec);
+		}
+		
+		/**
+		 * Get the number of records in the batch
+		 * @return the size
+		 */
+		protected int size() {
+			return this.outRecs.size();
+		}
+		
+		@Override
+		public Integer call() throws IOException {
+			if(this.outRecs.isEmpty()) {
+				return Integer.valueOf(0);
+			}
+			Map<String, SortedSet<RecordMetaData>> inHistory = this.source.getRecordMetaData(this.inRecIDs);
+			Map<String, SortedSet<RecordMetaData>> outHistory = new HashMap<String, SortedSet<RecordMetaData>>();
+			for(int x = 0; x < this.outRecs.size(); x++) {
+				SortedSet<RecordMetaData> rmds = inHistory.get(this.inRecIDs.get(x));
+				if(rmds != null) {
+					outHistory.put(this.outRecs.get(x).getID(), rmds);
+				}
+			}
+			addRecords(this.outRecs, outHistory, this.operator, this.overwrite);
+			return Integer.valueOf(this.outRecs.size());
+		}
+	}
+	
+	/**
+	 * Can records be read and written from many threads at once
+	 * @return true if thread safe
+	 */
+	protected boolean isThreadSafe() {
+		return false;
+	}
+	
 	/**
 	 * Get a record
 	 * @param recID record id to get
@@ -142,6 +359,37 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 */
 	protected abstract SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException;
 	
+	/**
+	 * Get the metadata for many records at once
+	 * @param recIDs ids of the records to retrieve metadata for
+	 * @return the metadata by record id, leaving out records that have none
+	 * @throws IOException error retrieving record metadata
+	 */
+	protected Map<String, SortedSet<RecordMetaData>> getRecordMetaData(Collection<String> recIDs) throws IOException {
+		Map<String, SortedSet<RecordMetaData>> retVal = new HashMap<String, SortedSet<RecordMetaData>>();
+		for(String recID : recIDs) {
+			try {
+				retVal.put(recID, getRecordMetaData(recID));
+			} catch(IOException e) {
+				log.trace("No metadata for record " + recID);
+			}
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Replaces all metadata for a record
+	 * @param rec record to set metadata for
+	 * @param rmds the metadata records
+	 * @throws IOException error setting meta data
+	 */
+	protected void setMetaData(Record rec, Collection<RecordMetaData> rmds) throws IOException {
+		delMetaData(rec.getID());
+		for(RecordMetaData rmd : rmds) {
+			addMetaData(rec, rmd);
+		}
+	}
+	
 	/**
 	 * Get the last RecordMetaData of a given type by a given operator for a given record
 	 * @param recID id of record to retrieve metadata for
@@ -249,7 +497,63 @@ public abstract class RecordHandler implements Iterable<Record> {
 				log.debug("'" + param + "' - '" + paramList.get(param) + "'");
 			}
 		}
-		return build(paramList);
+		synchronized(RecordHandler.class) {
+			if(sharedHandlers != null) {
+				String key = new TreeMap<String, String>(paramList).toString();
+				RecordHandler rh = sharedHandlers.get(key);
+				if(rh == null) {
+					rh = build(paramList);
+					if(rh != null) {
+						rh.shared = true;
+						sharedHandlers.put(key, rh);
+					}
+				}
+				if(rh != null) {
+					rh.opened();
+				}
+				return rh;
+			}
+		}
+		RecordHandler rh = build(paramList);
+		if(rh != null) {
+			rh.opened();
+		}
+		return rh;
+	}
+	
+	/**
+	 * Called on the opening task's thread each time the config based factory hands out this RecordHandler
+	 */
+	protected void opened() {
+		// nothing to do by default
+	}
+	
+	/**
+	 * Turn sharing of RecordHandlers on or off. While on, every config based factory call with the same configuration
+	 * gets the same open RecordHandler, and closing it does nothing, so a map based RecordHandler keeps its records in
+	 * memory from one task to the next. Turning sharing off closes the shared RecordHandlers.
+	 * @param sharing share RecordHandlers
+	 * @throws IOException error closing
+	 */
+	public static synchronized void setSharing(boolean sharing) throws IOException {
+		if(sharing && (sharedHandlers == null)) {
+			sharedHandlers = new HashMap<String, RecordHandler>();
+		} else if(!sharing && (sharedHandlers != null)) {
+			Map<String, RecordHandler> handlers = sharedHandlers;
+			sharedHandlers = null;
+			for(RecordHandler rh : handlers.values()) {
+				rh.shared = false;
+				rh.close();
+			}
+		}
+	}
+	
+	/**
+	 * Is this RecordHandler shared between tasks
+	 * @return true if close should do nothing
+	 */
+	protected boolean isShared() {
+		return this.shared;
 	}
 	
 	/**
@@ -15,7 +15,6 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
-import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
 
 /**
  * Transfer records from one Record Handler to another
@@ -50,6 +49,10 @@ public class RecordTransfer {
 	 * overwrite existing records
 	 */
 	private boolean overwriteMode;
+	/**
+	 * number of batches of records copied at once
+	 */
+	private int threads;
 	
 	/**
 	 * Constructor
@@ -78,6 +81,10 @@ public class RecordTransfer {
 		this.overwriteMode = argList.has("f");
 		this.inputPrefix = MathAide.nvl(argList.get("p"),"");
 		this.outputPrefix = MathAide.nvl(argList.get("q"),"");
+		this.threads = Integer.parseInt(argList.get("t"));
+		if(this.threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
 		
 		// Require input args
 		if(this.inRH == null) {
@@ -114,19 +121,7 @@ public class RecordTransfer {
 			log.info("Removed " + processed + " records");
 		} else {
 			log.info("Loading input record handler rdf records into output record handler");
-			int processed = 0;
-			for(Record r : this.inRH) {
-				String inRecID = r.getID();
-				String outRecID = getOutRecId(inRecID);
-				this.outRH.addRecord(outRecID, r.getData(), RecordTransfer.class, this.overwriteMode);
-				this.outRH.delMetaData(outRecID);
-				Record outRec = this.outRH.getRecord(outRecID);
-				for(RecordMetaData rmd : this.inRH.getRecordMetaData(inRecID)) {
-					this.outRH.addMetaData(outRec, rmd);
-				}
-				this.outRH.addMetaData(outRec, RecordTransfer.class, RecordMetaDataType.transferred);
-				processed++;
-			}
+			int processed = this.outRH.copyFrom(this.inRH, this.inputPrefix, this.outputPrefix, RecordTransfer.class, this.overwriteMode, this.threads);
 			log.info("Loaded " + processed + " records");
 		}
 	}
@@ -147,6 +142,7 @@ public class RecordTransfer {
 		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("inputPrefix").withParameter(true, "PREFIX").setDescription("prefix added on the output record ids").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('q').setLongOpt("outputPrefix").withParameter(true, "PREFIX").setDescription("prefix removed from the input record ids").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('f').setLongOpt("forceOverwrite").setDescription("force overwrite of existing records in output").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("threads").withParameter(true, "NUM_THREADS").setDescription("number of batches of records copied at once, when both record handlers allow it - default 1").setDefaultValue("1").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('m').setLongOpt("modeRemove").setDescription("remove from output recordhandler rather than add").setRequired(false));
 		return parser;
 	}
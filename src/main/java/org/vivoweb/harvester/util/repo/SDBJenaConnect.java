@@ -7,12 +7,19 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.sdb.SDBFactory;
 import org.apache.jena.sdb.Store;
+import org.apache.jena.sdb.layout2.ValueType;
 import org.apache.jena.sdb.StoreDesc;
 import org.apache.jena.sdb.sql.MySQLEngineType;
 import org.apache.jena.sdb.sql.SDBConnectionFactory;
@@ -174,9 +181,47 @@ public class SDBJenaConnect extends DBJenaConnect {
 		}
 	}
 	
+	/**
+	 * Find the uri nodes starting with a prefix from the store's node table, so the triples are not read. The node
+	 * table is shared by every model in the store, so some of the nodes may not be used by this model.
+	 */
+	@Override
+	public Set<Node> findUriNodes(String prefix) throws IOException {
+		LayoutType layout = LayoutType.fetch(this.dbLayout);
+		if(layout != LayoutType.LayoutTripleNodesHash && layout != LayoutType.LayoutTripleNodesIndex) {
+			// only the layouts with a node table
+			return super.findUriNodes(prefix);
+		}
+		String pattern = prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+		Set<Node> nodes = new HashSet<Node>();
+		try {
+			PreparedStatement query = this.store.getConnection().getSqlConnection().prepareStatement("SELECT lex FROM Nodes WHERE type = ? AND lex LIKE ? ESCAPE '!'");
+			try {
+				query.setInt(1, ValueType.URI.getTypeId());
+				query.setString(2, pattern);
+				ResultSet rs = query.executeQuery();
+				try {
+					while(rs.next()) {
+						nodes.add(NodeFactory.createURI(rs.getString(1)));
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				query.close();
+			}
+		} catch(SQLException e) {
+			throw new IOException(e);
+		}
+		return nodes;
+	}
+	
 	@Override
 	public void close() {
 		super.close();
+		if(isShared()) {
+			return;
+		}
 		getJenaModel().close();
 		this.store.close();
 		this.store.getConnection().close();
@@ -105,6 +105,9 @@ public class TDBJenaConnect extends JenaConnect {
 	@Override
 	public void close() {
 		super.close();
+		if(isShared()) {
+			return;
+		}
 		try {
 			getJenaModel().close();
 		} catch(NullPointerException e) {
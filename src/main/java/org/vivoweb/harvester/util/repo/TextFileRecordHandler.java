@@ -14,6 +14,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -268,7 +269,50 @@ public class TextFileRecordHandler extends RecordHandler {
 				is.close();
 			}
 		}
-		Element rootNode = doc.getDocumentElement();
+		doc.getDocumentElement().appendChild(createMetaDataNode(doc, rmd));
+		writeMetaDataFile(fmo, doc);
+		
+		// OutputStream os = FileAide.getOutputStream(fmo);
+		// BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
+		// bw.append("<MetaDataRecord>\n");
+		// bw.append("  <Date>"+rmd.getDate().getTimeInMillis()+"</Date>\n");
+		// bw.append("  <Operation>"+rmd.getOperation()+"</Operation>\n");
+		// bw.append("  <Operator>"+rmd.getOperator().getName()+"</Operator>\n");
+		// bw.append("  <MD5>"+rmd.getMD5()+"</MD5>\n");
+		// bw.append("</MetaDataRecord>\n");
+		// bw.close();
+		// os.close();
+	}
+	
+	@Override
+	protected void setMetaData(Record rec, Collection<RecordMetaData> rmds) throws IOException {
+		// write the whole history at once rather than re-reading the file for every entry
+		String fmo = this.metaDir+"/"+rec.getID();
+		if(FileAide.exists(fmo) && !FileAide.isWriteable(fmo)) {
+			throw new IOException("Insufficient file system privileges to modify record " + rec.getID() + " metadata from file " + fmo);
+		}
+		Document doc;
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		} catch(ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+		Element rootNode = doc.createElement("MetaDataRecordList");
+		doc.appendChild(rootNode);
+		for(RecordMetaData rmd : rmds) {
+			rootNode.appendChild(createMetaDataNode(doc, rmd));
+		}
+		FileAide.createFile(fmo);
+		writeMetaDataFile(fmo, doc);
+	}
+	
+	/**
+	 * Build the element for a metadata record
+	 * @param doc the metadata document
+	 * @param rmd the metadata record
+	 * @return the element
+	 */
+	private static Element createMetaDataNode(Document doc, RecordMetaData rmd) {
 		Element newNode = doc.createElement("MetaDataRecord");
 		Element dateNode = doc.createElement("Date");
 		dateNode.appendChild(doc.createTextNode(rmd.getDate().getTimeInMillis() + ""));
@@ -287,8 +331,16 @@ public class TextFileRecordHandler extends RecordHandler {
 		Element md5Node = doc.createElement("MD5");
 		md5Node.appendChild(doc.createTextNode(rmd.getMD5()));
 		newNode.appendChild(md5Node);
-		rootNode.appendChild(newNode);
-		
+		return newNode;
+	}
+	
+	/**
+	 * Write a metadata document to its file
+	 * @param fmo the metadata file
+	 * @param doc the metadata document
+	 * @throws IOException error writing file
+	 */
+	private static void writeMetaDataFile(String fmo, Document doc) throws IOException {
 		OutputStream os = null;
 		try {
 			Transformer trans = TransformerFactory.newInstance().newTransformer();
@@ -307,16 +359,12 @@ public class TextFileRecordHandler extends RecordHandler {
 			}
 		}
 		
-		// OutputStream os = FileAide.getOutputStream(fmo);
-		// BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
-		// bw.append("<MetaDataRecord>\n");
-		// bw.append("  <Date>"+rmd.getDate().getTimeInMillis()+"</Date>\n");
-		// bw.append("  <Operation>"+rmd.getOperation()+"</Operation>\n");
-		// bw.append("  <Operator>"+rmd.getOperator().getName()+"</Operator>\n");
-		// bw.append("  <MD5>"+rmd.getMD5()+"</MD5>\n");
-		// bw.append("</MetaDataRecord>\n");
-		// bw.close();
-		// os.close();
+	}
+	
+	@Override
+	protected boolean isThreadSafe() {
+		// each record and its metadata are kept in their own files
+		return true;
 	}
 	
 	@Override
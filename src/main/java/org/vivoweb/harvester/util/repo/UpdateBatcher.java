@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.util.FmtUtils;
+
+/**
+ * Batches sparql updates against a JenaConnect. Either triples are inserted and deleted with DATA updates, or rows of
+ * bindings are fed to a templated update through a VALUES block, so stores can use their indexes rather than
+ * filtering on string comparisons. A batch is executed when it reaches the item count or the byte budget, and the
+ * batches, items, bytes and time spent executing are counted.
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class UpdateBatcher {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(UpdateBatcher.class);
+	/**
+	 * The placeholder replaced by the VALUES block in a templated update
+	 */
+	public static final String VALUES_PLACEHOLDER = "%VALUES%";
+	/**
+	 * Default byte budget of a batch
+	 */
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+	/**
+	 * Charset updates are measured in
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The model updated
+	 */
+	private final JenaConnect jc;
+	/**
+	 * Most items in a batch
+	 */
+	private final int maxItems;
+	/**
+	 * Most bytes in a batch
+	 */
+	private final int maxBytes;
+	/**
+	 * The templated update (null when batching triples)
+	 */
+	private final String template;
+	/**
+	 * The variables bound by the VALUES block
+	 */
+	private final String[] variables;
+	/**
+	 * The prefixes put before each batch's update
+	 */
+	private String prologue = "";
+	/**
+	 * The buffered triples to delete
+	 */
+	private final StringBuilder deletes = new StringBuilder();
+	/**
+	 * The buffered triples or fragments to insert, or the buffered rows of bindings
+	 */
+	private final StringBuilder inserts = new StringBuilder();
+	/**
+	 * The subjects changed by the buffered items
+	 */
+	private final Set<Node> subjects = new HashSet<Node>();
+	/**
+	 * Items buffered
+	 */
+	private int items = 0;
+	/**
+	 * Bytes buffered
+	 */
+	private int bytes = 0;
+	/**
+	 * Batches executed
+	 */
+	private int batchCount = 0;
+	/**
+	 * Items executed
+	 */
+	private long itemCount = 0;
+	/**
+	 * Bytes executed
+	 */
+	private long byteCount = 0;
+	/**
+	 * Nanoseconds spent executing
+	 */
+	private long executeNanos = 0;
+
+	/**
+	 * Constructor for batching triple inserts and deletes
+	 * @param jc the model to update
+	 * @param maxItems most triples in a batch
+	 * @param maxBytes most bytes in a batch
+	 */
+	public UpdateBatcher(JenaConnect jc, int maxItems, int maxBytes) {
+		this(jc, maxItems, maxBytes, null);
+	}
+
+	/**
+	 * Constructor for batching rows of bindings into a templated update. The template holds VALUES_PLACEHOLDER where
+	 * the VALUES block goes. The first variable is taken to be the subject the update changes.
+	 * @param jc the model to update
+	 * @param maxItems most rows in a batch
+	 * @param maxBytes most bytes in a batch
+	 * @param template the update
+	 * @param variables the variables bound by each row (without the ?)
+	 */
+	public UpdateBatcher(JenaConnect jc, int maxItems, int maxBytes, String template, String... variables) {
+		if(jc == null) {
+			throw new IllegalArgumentException("Must provide a jena model");
+		}
+		this.jc = jc;
+		if(maxItems < 1) {
+			throw new IllegalArgumentException("Batch must hold at least one item");
+		}
+		this.maxItems = maxItems;
+		if(maxBytes < 1) {
+			throw new IllegalArgumentException("Batch byte budget must be positive");
+		}
+		this.maxBytes = maxBytes;
+		if((template != null) && (!template.contains(VALUES_PLACEHOLDER) || (variables.length == 0))) {
+			throw new IllegalArgumentException("Templated update must hold " + VALUES_PLACEHOLDER + " and bind at least one variable");
+		}
+		this.template = template;
+		this.variables = variables;
+	}
+
+	/**
+	 * Set the prefixes put before each batch's update, for inserted fragments that use prefixed names
+	 * @param prologue the PREFIX declarations
+	 */
+	public void setPrologue(String prologue) {
+		this.prologue = (prologue == null) ? "" : prologue;
+	}
+
+	/**
+	 * Insert a triple (blank nodes are new blank nodes in the store)
+	 * @param triple the triple
+	 * @throws IOException error connecting
+	 */
+	public void insert(Triple triple) throws IOException {
+		checkTripleMode();
+		String item = FmtUtils.stringForTriple(triple, null) + " .\n";
+		addItem(this.inserts, item, triple.getSubject());
+	}
+
+	/**
+	 * Delete a triple. Each batch deletes its triples before inserting its triples.
+	 * @param triple the triple
+	 * @throws IOException error connecting
+	 */
+	public void delete(Triple triple) throws IOException {
+		checkTripleMode();
+		if(triple.getSubject().isBlank() || triple.getObject().isBlank()) {
+			throw new IllegalArgumentException("Cannot delete triples with blank nodes as data: " + triple);
+		}
+		String item = FmtUtils.stringForTriple(triple, null) + " .\n";
+		addItem(this.deletes, item, triple.getSubject());
+	}
+
+	/**
+	 * Insert a fragment of triples that must stay in one batch, such as a resource and the blank nodes it links to.
+	 * Blank node labels are scoped to the batch's update request, so fragments that must not share blank nodes need
+	 * labels that differ within a batch.
+	 * @param fragment the triples, each ending with " ."
+	 * @throws IOException error connecting
+	 */
+	public void insert(String fragment) throws IOException {
+		checkTripleMode();
+		addItem(this.inserts, fragment.endsWith("\n") ? fragment : (fragment + "\n"), null);
+	}
+
+	/**
+	 * Bind a row of values into the templated update
+	 * @param values the value of each variable, in order (null leaves a variable unbound)
+	 * @throws IOException error connecting
+	 */
+	public void bind(Node... values) throws IOException {
+		if(this.template == null) {
+			throw new IllegalStateException("Only a templated update binds values");
+		}
+		if(values.length != this.variables.length) {
+			throw new IllegalArgumentException("Expected " + this.variables.length + " values, got " + values.length);
+		}
+		StringBuilder row = new StringBuilder("    (");
+		for(Node value : values) {
+			row.append(" ").append((value == null) ? "UNDEF" : FmtUtils.stringForNode(value));
+		}
+		row.append(" )\n");
+		addItem(this.inserts, row.toString(), values[0]);
+	}
+
+	/**
+	 * Check the batcher is batching triples
+	 */
+	private void checkTripleMode() {
+		if(this.template != null) {
+			throw new IllegalStateException("A templated update only binds values");
+		}
+	}
+
+	/**
+	 * Buffer an item, executing the batch first if the item would take it over its byte budget and after if it is full
+	 * @param buffer the buffer
+	 * @param item the item's text
+	 * @param subject the subject the item changes (null if none)
+	 * @throws IOException error connecting
+	 */
+	private void addItem(StringBuilder buffer, String item, Node subject) throws IOException {
+		int itemBytes = item.getBytes(UTF8).length;
+		if((this.items > 0) && ((this.bytes + itemBytes) > this.maxBytes)) {
+			flush();
+		}
+		buffer.append(item);
+		this.items++;
+		this.bytes += itemBytes;
+		if(subject != null) {
+			this.subjects.add(subject);
+		}
+		if(this.items >= this.maxItems) {
+			flush();
+		}
+	}
+
+	/**
+	 * Execute the buffered batch
+	 * @throws IOException error connecting
+	 */
+	public void flush() throws IOException {
+		if(this.items == 0) {
+			return;
+		}
+		StringBuilder update = new StringBuilder(this.prologue);
+		if(this.template == null) {
+			if(this.deletes.length() > 0) {
+				update.append("DELETE DATA {\n").append(this.deletes).append("}");
+			}
+			if(this.inserts.length() > 0) {
+				if(this.deletes.length() > 0) {
+					update.append(" ;\n");
+				}
+				update.append("INSERT DATA {\n").append(this.inserts).append("}");
+			}
+		} else {
+			StringBuilder values = new StringBuilder("VALUES (");
+			for(String variable : this.variables) {
+				values.append(" ?").append(variable);
+			}
+			values.append(" ) {\n").append(this.inserts).append("  }");
+			update.append(this.template.replace(VALUES_PLACEHOLDER, values));
+		}
+		long start = System.nanoTime();
+		this.jc.executeUpdateQuery(update.toString());
+		this.executeNanos += System.nanoTime() - start;
+		this.jc.journalChanges(this.subjects);
+		this.batchCount++;
+		this.itemCount += this.items;
+		this.byteCount += this.bytes;
+		log.debug("Executed update batch " + this.batchCount + " of " + this.items + " items (" + this.bytes + " bytes)");
+		this.deletes.setLength(0);
+		this.inserts.setLength(0);
+		this.subjects.clear();
+		this.items = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * Get the number of batches executed
+	 * @return the batch count
+	 */
+	public int getBatchCount() {
+		return this.batchCount;
+	}
+
+	/**
+	 * Get the number of items executed
+	 * @return the item count
+	 */
+	public long getItemCount() {
+		return this.itemCount;
+	}
+
+	/**
+	 * Get the number of bytes of items executed
+	 * @return the byte count
+	 */
+	public long getByteCount() {
+		return this.byteCount;
+	}
+
+	/**
+	 * Get the time spent executing batches
+	 * @return the time in milliseconds
+	 */
+	public long getExecuteMillis() {
+		return this.executeNanos / 1000000;
+	}
+
+	/**
+	 * Get the throughput of executed items
+	 * @return items per second spent executing
+	 */
+	public double getItemsPerSecond() {
+		if(this.executeNanos == 0) {
+			return 0;
+		}
+		return this.itemCount * 1000000000d / this.executeNanos;
+	}
+
+	/**
+	 * Get a summary of the counts
+	 * @return the summary
+	 */
+	public String getMetrics() {
+		return this.itemCount + " items in " + this.batchCount + " batches (" + this.byteCount + " bytes) in " + getExecuteMillis() + "ms, " + Math.round(getItemsPerSecond()) + " items/s";
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.fetch;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.apache.jena.ext.com.google.common.io.Files;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.fetch.CSVFetch;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class CSVFetchTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(CSVFetchTest.class);
+	/** */
+	private static final String NS = "http://vivo.test.edu/";
+	/** */
+	private String tempDir;
+	/** */
+	private String csvFile;
+	/** */
+	private JenaConnect output;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.tempDir = Files.createTempDir().getAbsolutePath();
+		this.csvFile = this.tempDir + "/people.csv";
+		this.output = new MemJenaConnect();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(this.output != null) {
+			this.output.close();
+		}
+		this.output = null;
+		FileAide.delete(this.tempDir);
+	}
+
+	/**
+	 * Build a fetch of the test file
+	 * @return the fetch
+	 */
+	private CSVFetch newFetch() {
+		return new CSVFetch(this.csvFile, ',', NS, "Person", null, "", null, this.output);
+	}
+
+	/**
+	 * Get the individuals loaded
+	 * @return the individuals
+	 */
+	private Resource[] getPeople() {
+		Model model = this.output.getJenaModel();
+		return model.listSubjectsWithProperty(RDF.type, model.createResource(NS + "Person")).toList().toArray(new Resource[0]);
+	}
+
+	/**
+	 * Test rows are named by a hash of their key column only
+	 * @throws Exception error
+	 */
+	public final void testKeyColumns() throws Exception {
+		log.info("BEGIN testKeyColumns");
+		FileAide.setTextContent(this.csvFile, "id,name\n1,Alice\n2,Alice\n3,Bob\n3,Bob\n");
+		CSVFetch fetch = newFetch();
+		fetch.setKeyColumns(Arrays.asList("id"));
+		fetch.execute();
+		// rows with the same values but different keys stay apart, repeated keys name the same individual
+		assertEquals(3, getPeople().length);
+
+		// a changed value keeps the row's uri
+		FileAide.setTextContent(this.csvFile, "id,name\n1,Alicia\n");
+		fetch.execute();
+		assertEquals(3, getPeople().length);
+		Property name = this.output.getJenaModel().createProperty(NS + "name");
+		boolean found = false;
+		for(Resource person : getPeople()) {
+			if(person.hasProperty(name, "Alicia")) {
+				assertTrue(person.hasProperty(name, "Alice"));
+				found = true;
+			}
+		}
+		assertTrue(found);
+		log.info("END testKeyColumns");
+	}
+
+	/**
+	 * Test rows are numbered on from the stored counter
+	 * @throws Exception error
+	 */
+	public final void testCounterFile() throws Exception {
+		log.info("BEGIN testCounterFile");
+		String counter = this.tempDir + "/counter";
+		FileAide.setTextContent(this.csvFile, "id,name\n1,Alice\n2,Bob\n3,Carol\n");
+		CSVFetch fetch = newFetch();
+		fetch.setCounterFile(counter);
+		fetch.execute();
+		assertEquals("3", FileAide.getTextContent(counter).trim());
+		fetch.execute();
+		assertEquals("6", FileAide.getTextContent(counter).trim());
+		assertEquals(6, getPeople().length);
+		assertTrue(this.output.getJenaModel().containsResource(this.output.getJenaModel().createResource(NS + "/individual/n6")));
+		log.info("END testCounterFile");
+	}
+
+	/**
+	 * Test a file larger than a batch is loaded whole
+	 * @throws Exception error
+	 */
+	public final void testBatches() throws Exception {
+		log.info("BEGIN testBatches");
+		StringBuilder csv = new StringBuilder("id,name\n");
+		for(int x = 0; x < 1000; x++) {
+			csv.append(x).append(",name").append(x).append("\n");
+		}
+		FileAide.setTextContent(this.csvFile, csv.toString());
+		CSVFetch fetch = newFetch();
+		fetch.setKeyColumns(Arrays.asList("id"));
+		fetch.setBatchSize(7);
+		fetch.execute();
+		assertEquals(1000, getPeople().length);
+		log.info("END testBatches");
+	}
+
+	/**
+	 * Test a fetch with no way to name rows is refused
+	 * @throws Exception error
+	 */
+	public final void testNoRowNames() throws Exception {
+		log.info("BEGIN testNoRowNames");
+		FileAide.setTextContent(this.csvFile, "id,name\n1,Alice\n");
+		try {
+			newFetch().execute();
+			fail("rows were loaded without a way to name them");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		log.info("END testNoRowNames");
+	}
+}
@@ -5,6 +5,7 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.fetch;
 
+import java.io.StringReader;
 import java.sql.Connection;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
@@ -12,7 +13,16 @@ import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.fetch.D2RMapFetch;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.repo.JDBCRecordHandler;
+import org.vivoweb.harvester.util.repo.MapRecordHandler;
+import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFList;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
 
 /**
  * @author Eliza Chan (elc2013@med.cornell.edu)
@@ -56,4 +66,59 @@ public class D2RMapFetchTest extends TestCase {
 		log.info("END testD2RMapFetchInit");
 	}
 	
+	/**
+	 * test splitting the mapped rdf into records
+	 * @throws Exception error
+	 */
+	public final void testWriteRecords() throws Exception {
+		log.info("BEGIN testWriteRecords");
+		this.rh = new MapRecordHandler();
+		String ns = "http://vivoweb.org/harvester/d2r/";
+		Model model = ModelFactory.createDefaultModel();
+		Property address = model.createProperty(ns, "address");
+		Property street = model.createProperty(ns, "street");
+		Property names = model.createProperty(ns, "names");
+		// two people sharing an address blank node must land in the same record
+		Resource shared = model.createResource();
+		shared.addProperty(street, "1 Main St");
+		model.createResource(ns + "p1").addProperty(address, shared);
+		model.createResource(ns + "p2").addProperty(address, shared);
+		// a long rdf:List of blank nodes
+		RDFNode[] items = new RDFNode[20000];
+		for(int x = 0; x < items.length; x++) {
+			items[x] = model.createLiteral("name" + x);
+		}
+		model.createResource(ns + "p3").addProperty(names, model.createList(items));
+		model.createResource(ns + "p4").addProperty(street, "2 Main St");
+		
+		D2RMapFetch fetch = new D2RMapFetch(null, this.rh, null);
+		fetch.setRecordSize(1);
+		fetch.writeRecords(model);
+		assertTrue(model.isEmpty());
+		
+		int records = 0;
+		for(Record r : this.rh) {
+			records++;
+			Model record = ModelFactory.createDefaultModel();
+			record.read(new StringReader(r.getData()), null, "RDF/XML");
+			// every blank node a record refers to is described in that record
+			NodeIterator objects = record.listObjects();
+			while(objects.hasNext()) {
+				RDFNode object = objects.next();
+				if(object.isAnon()) {
+					assertTrue(record.contains((Resource)object, null));
+				}
+			}
+			if(record.contains(model.createResource(ns + "p1"), null)) {
+				assertTrue(record.contains(model.createResource(ns + "p2"), null));
+			}
+			if(record.contains(model.createResource(ns + "p3"), null)) {
+				assertEquals(items.length, record.getProperty(model.createResource(ns + "p3"), names).getResource().as(RDFList.class).size());
+			}
+		}
+		// {p1, p2}, {p3} and {p4}
+		assertEquals(3, records);
+		log.info("END testWriteRecords");
+	}
+	
 }
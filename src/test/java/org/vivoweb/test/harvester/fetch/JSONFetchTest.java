@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.fetch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.jena.ext.com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.fetch.JSONFetch;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.MapRecordHandler;
+import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class JSONFetchTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(JSONFetchTest.class);
+	/** people with nested addresses, and items nested in items */
+	private static final String JSON = "" +
+		"{\"people\":[" +
+			"{\"name\":\"a\",\"address\":{\"city\":\"x\"}}," +
+			"{\"name\":\"b\",\"address\":{\"city\":\"y\"}}" +
+		"]," +
+		"\"item\":{\"item\":{\"id\":2},\"id\":1}}";
+	/** */
+	private String tempDir;
+	/** */
+	private String jsonFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.tempDir = Files.createTempDir().getAbsolutePath();
+		this.jsonFile = this.tempDir + "/test.json";
+		FileAide.setTextContent(this.jsonFile, JSON);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileAide.delete(this.tempDir);
+	}
+
+	/**
+	 * Run a fetch and gather its records
+	 * @param streaming stream the source
+	 * @param names the node names
+	 * @param paths the json paths
+	 * @return the lines of each record, sorted, by record id
+	 * @throws Exception error
+	 */
+	private Map<String, String> fetch(boolean streaming, String[] names, String[] paths) throws Exception {
+		RecordHandler rh = new MapRecordHandler();
+		JSONFetch fetch = new JSONFetch(this.jsonFile, rh, "http://vivoweb.org/harvester/json/", names, paths);
+		fetch.setStreaming(streaming);
+		fetch.execute();
+		Map<String, String> records = new HashMap<String, String>();
+		for(Record r : rh) {
+			// the json object modes list fields in different orders
+			String[] lines = r.getData().split("\n");
+			Arrays.sort(lines);
+			records.put(r.getID(), Arrays.toString(lines));
+		}
+		rh.close();
+		return records;
+	}
+
+	/**
+	 * Test streaming gives the same records, under the same ids, as JsonPath for nested and deep scan paths
+	 * @throws Exception error
+	 */
+	public final void testStreamingMatchesJsonPath() throws Exception {
+		log.info("BEGIN testStreamingMatchesJsonPath");
+		String[] names = {"person", "address", "item"};
+		String[] paths = {"$.people[*]", "$..address", "$..item"};
+		Map<String, String> parsed = fetch(false, names, paths);
+		Map<String, String> streamed = fetch(true, names, paths);
+		assertEquals(6, parsed.size());
+		assertEquals(parsed, streamed);
+		// the enclosing item is numbered before the one nested in it
+		assertTrue(streamed.get("item_node_-_0").contains("<node-item:id>1</node-item:id>"));
+		assertTrue(streamed.get("item_node_-_1").contains("<node-item:id>2</node-item:id>"));
+		log.info("END testStreamingMatchesJsonPath");
+	}
+
+	/**
+	 * Test a path matching an array gives a record for each object in it
+	 * @throws Exception error
+	 */
+	public final void testStreamingArrayPath() throws Exception {
+		log.info("BEGIN testStreamingArrayPath");
+		String[] names = {"person"};
+		String[] paths = {"$.people"};
+		Map<String, String> parsed = fetch(false, names, paths);
+		assertEquals(2, parsed.size());
+		assertEquals(parsed, fetch(true, names, paths));
+		log.info("END testStreamingArrayPath");
+	}
+}
@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.fetch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.TestCase;
+import org.apache.http.HttpStatus;
+import org.apache.jena.ext.com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.fetch.OAIPMHFetch;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.MapRecordHandler;
+import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class OAIPMHFetchTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(OAIPMHFetchTest.class);
+	/** */
+	private static final String MARC_NS = "http://www.loc.gov/MARC21/slim";
+	/** a prefixed ListRecords page holding an unprefixed MARC record and a prefixed one */
+	private static final String PAGE = "" +
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<oai:OAI-PMH xmlns:oai=\"http://www.openarchives.org/OAI/2.0/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+		"  <oai:ListRecords>\n" +
+		"    <oai:record>\n" +
+		"      <oai:header><oai:identifier>oai:test:1</oai:identifier><oai:datestamp>2011-01-02</oai:datestamp></oai:header>\n" +
+		"      <oai:metadata>\n" +
+		"        <record xmlns=\"" + MARC_NS + "\"><leader>00000nam</leader><datafield tag=\"245\"><subfield code=\"a\">Title &amp; More</subfield></datafield><identifier>inner</identifier><datestamp>2099-01-01</datestamp></record>\n" +
+		"      </oai:metadata>\n" +
+		"    </oai:record>\n" +
+		"    <oai:record>\n" +
+		"      <oai:header><oai:identifier>oai:test:2</oai:identifier><oai:datestamp>2011-01-03</oai:datestamp></oai:header>\n" +
+		"      <oai:metadata><marc:record xmlns:marc=\"" + MARC_NS + "\"><marc:leader xsi:type=\"x\">00000nam</marc:leader></marc:record></oai:metadata>\n" +
+		"    </oai:record>\n" +
+		"    <oai:resumptionToken cursor=\"0\">token&amp;1</oai:resumptionToken>\n" +
+		"  </oai:ListRecords>\n" +
+		"</oai:OAI-PMH>";
+	/** the last page of the served harvest */
+	private static final String LAST_PAGE = "" +
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+		"<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\"><ListRecords>" +
+		"<record><header><identifier>oai:test:3</identifier><datestamp>2011-01-05</datestamp></header><metadata/></record>" +
+		"<resumptionToken/>" +
+		"</ListRecords></OAI-PMH>";
+	/** */
+	private String tempDir;
+	/** */
+	private String checkpointFile;
+	/** */
+	private HttpServer server;
+	/** */
+	private String baseUrl;
+	/** */
+	private List<String> queries;
+	/** */
+	private volatile boolean failLastPage;
+	/** */
+	private RecordHandler rh;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.tempDir = Files.createTempDir().getAbsolutePath();
+		this.checkpointFile = this.tempDir + "/checkpoint.properties";
+		this.queries = Collections.synchronizedList(new ArrayList<String>());
+		this.failLastPage = false;
+		this.rh = new MapRecordHandler();
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/oai", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String query = exchange.getRequestURI().getRawQuery();
+				OAIPMHFetchTest.this.queries.add(query);
+				// the first page hands out the token of the last page
+				boolean last = query.contains("resumptionToken=token%261");
+				if(last && OAIPMHFetchTest.this.failLastPage) {
+					exchange.sendResponseHeaders(HttpStatus.SC_INTERNAL_SERVER_ERROR, -1);
+					exchange.close();
+					return;
+				}
+				byte[] body = (last ? LAST_PAGE : PAGE).getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(HttpStatus.SC_OK, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		this.server.start();
+		this.baseUrl = "http://localhost:" + this.server.getAddress().getPort() + "/oai";
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(this.server != null) {
+			this.server.stop(0);
+		}
+		if(this.rh != null) {
+			this.rh.close();
+		}
+		FileAide.delete(this.tempDir);
+		this.server = null;
+		this.rh = null;
+	}
+
+	/**
+	 * Run a harvest of the test server
+	 * @param from the from date, null for none
+	 * @throws IOException error harvesting
+	 */
+	private void harvest(String from) throws IOException {
+		new OAIPMHFetch(this.baseUrl, from, null, null, null, this.checkpointFile, this.rh).execute();
+	}
+
+	/**
+	 * Read the checkpoint file
+	 * @return the checkpoint
+	 * @throws IOException error reading
+	 */
+	private Properties getCheckpoint() throws IOException {
+		Properties checkpoint = new Properties();
+		InputStream in = FileAide.getInputStream(this.checkpointFile);
+		try {
+			checkpoint.load(in);
+		} finally {
+			in.close();
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Write the checkpoint of an interrupted harvest
+	 * @param from the from date of the interrupted harvest
+	 * @param token the resumption token of its next page
+	 * @throws IOException error writing
+	 */
+	private void setCheckpoint(String from, String token) throws IOException {
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty("from", from);
+		checkpoint.setProperty("resumptionToken", token);
+		checkpoint.setProperty("lastDatestamp", "2009-01-01");
+		OutputStream out = FileAide.getOutputStream(this.checkpointFile);
+		try {
+			checkpoint.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Count the records harvested
+	 * @return the number of records
+	 */
+	private int countRecords() {
+		int count = 0;
+		for(@SuppressWarnings("unused") Record r : this.rh) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Test method for {@link org.vivoweb.harvester.fetch.OAIPMHFetch#parsePage(java.lang.String) parsePage(String)}
+	 * with namespaced records holding MARC records.
+	 * @throws Exception error
+	 */
+	public final void testParseNamespacedPage() throws Exception {
+		log.info("BEGIN testParseNamespacedPage");
+		OAIPMHFetch.Page page = OAIPMHFetch.parsePage(PAGE);
+		assertNull(page.getErrorCode());
+		assertEquals("token&1", page.getResumptionToken());
+		assertEquals(2, page.getIds().size());
+		assertEquals("oai:test:1", page.getIds().get(0));
+		assertEquals("oai:test:2", page.getIds().get(1));
+		// the datestamp inside the metadata is not a record datestamp
+		assertEquals("2011-01-03", page.getLatestDatestamp());
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		for(String record : page.getRecords()) {
+			// each record stands alone, with the namespaces it uses declared
+			Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(("<harvest>" + record + "</harvest>").getBytes("UTF-8")));
+			Element oaiRecord = (Element)doc.getDocumentElement().getFirstChild();
+			assertEquals("http://www.openarchives.org/OAI/2.0/", oaiRecord.getNamespaceURI());
+			assertEquals(1, doc.getElementsByTagNameNS(MARC_NS, "record").getLength());
+			assertEquals(1, doc.getElementsByTagNameNS(MARC_NS, "leader").getLength());
+		}
+		// the embedded MARC record is copied whole
+		assertTrue(page.getRecords().get(0).contains("<subfield code=\"a\">Title &amp; More</subfield>"));
+		assertTrue(page.getRecords().get(0).contains("<datestamp>2099-01-01</datestamp></record>"));
+		log.info("END testParseNamespacedPage");
+	}
+
+	/**
+	 * Test method for {@link org.vivoweb.harvester.fetch.OAIPMHFetch#parsePage(java.lang.String) parsePage(String)}
+	 * with an error response.
+	 * @throws Exception error
+	 */
+	public final void testParseErrorPage() throws Exception {
+		log.info("BEGIN testParseErrorPage");
+		OAIPMHFetch.Page page = OAIPMHFetch.parsePage("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\"><error code=\"noRecordsMatch\">No matches</error></OAI-PMH>");
+		assertEquals("noRecordsMatch", page.getErrorCode());
+		assertEquals("No matches", page.getErrorMessage());
+		assertTrue(page.getIds().isEmpty());
+		log.info("END testParseErrorPage");
+	}
+
+	/**
+	 * Test the checkpoint is written after each page, resumed from after an interruption and moved on to the latest
+	 * datestamp once the harvest completes
+	 * @throws Exception error
+	 */
+	public final void testCheckpoint() throws Exception {
+		log.info("BEGIN testCheckpoint");
+		this.failLastPage = true;
+		try {
+			harvest(null);
+			fail("the failed page did not stop the harvest");
+		} catch(IOException e) {
+			// expected
+		}
+		assertEquals(2, countRecords());
+		Properties checkpoint = getCheckpoint();
+		assertEquals("token&1", checkpoint.getProperty("resumptionToken"));
+		assertEquals("2011-01-03", checkpoint.getProperty("harvestDatestamp"));
+		assertNull(checkpoint.getProperty("lastDatestamp"));
+		assertFalse(FileAide.exists(this.checkpointFile + ".tmp"));
+		
+		// resumes with the stored token instead of listing from the start
+		this.failLastPage = false;
+		this.queries.clear();
+		harvest(null);
+		assertEquals("verb=ListRecords&resumptionToken=token%261", this.queries.get(0));
+		assertEquals(3, countRecords());
+		checkpoint = getCheckpoint();
+		assertNull(checkpoint.getProperty("resumptionToken"));
+		assertEquals("2011-01-05", checkpoint.getProperty("lastDatestamp"));
+		
+		// the next harvest is incremental from the latest datestamp
+		this.queries.clear();
+		harvest(null);
+		assertEquals("verb=ListRecords&metadataPrefix=oai_dc&from=2011-01-05", this.queries.get(0));
+		assertEquals(2, this.queries.size());
+		log.info("END testCheckpoint");
+	}
+	
+	/**
+	 * Test an explicit from date starts an interrupted harvest of another date over, and resumes one of the same date
+	 * @throws Exception error
+	 */
+	public final void testExplicitFromOverridesCheckpoint() throws Exception {
+		log.info("BEGIN testExplicitFromOverridesCheckpoint");
+		setCheckpoint("2010-01-01", "stale");
+		harvest("2012-01-01");
+		assertEquals("verb=ListRecords&metadataPrefix=oai_dc&from=2012-01-01", this.queries.get(0));
+		for(String query : this.queries) {
+			assertFalse(query.contains("stale"));
+		}
+		assertEquals(3, countRecords());
+		assertNull(getCheckpoint().getProperty("resumptionToken"));
+		
+		this.queries.clear();
+		setCheckpoint("2010-01-01", "token&1");
+		harvest("2010-01-01");
+		assertEquals("verb=ListRecords&resumptionToken=token%261", this.queries.get(0));
+		assertEquals(1, this.queries.size());
+		log.info("END testExplicitFromOverridesCheckpoint");
+	}
+}
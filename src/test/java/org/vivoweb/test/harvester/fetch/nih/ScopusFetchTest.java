@@ -110,5 +110,17 @@ public class ScopusFetchTest extends TestCase {
 		}
 		log.info("END testConstructCompleteQStr");
 	}
+	
+	/**
+	 * Test method for constructing complete query strings when the total is a multiple of the count
+	 */
+	public final void testConstructCompleteQStrExactPages() {
+		log.info("BEGIN testConstructCompleteQStrExactPages");
+		ScopusFetch s = new ScopusFetch("test@test.com", "", "0", "0", this.rh);
+		assertEquals(2, s.constructCompleteQStr("", 200, 0, 400).size());
+		assertEquals(1, s.constructCompleteQStr("", 200, 200, 400).size());
+		assertEquals(0, s.constructCompleteQStr("", 200, 0, 0).size());
+		log.info("END testConstructCompleteQStrExactPages");
+	}
 
 }
@@ -6,15 +6,24 @@
 package org.vivoweb.test.harvester.qualify;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.qualify.ChangeNamespace;
+import org.vivoweb.harvester.qualify.RenameResources;
+import org.vivoweb.harvester.qualify.URIMinter;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
 //import org.vivoweb.harvester.util.repo.RDBJenaConnect;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
 import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
 
@@ -129,6 +138,26 @@ public class ChangeNamespaceTest extends TestCase {
 		log.info("END testGetUnusedURI");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.URIMinter#mint() mint()}.
+	 * @throws IOException error connecting
+	 */
+	public void testURIMinter() throws IOException {
+		log.info("BEGIN testURIMinter");
+		URIMinter minter = new URIMinter(this.newNamespace, this.vivo, this.model);
+		assertTrue(minter.isUsed(this.newNamespace + "n123456"));
+		assertFalse(minter.isUsed(this.newNamespace + "n1234567"));
+		Set<String> minted = new HashSet<String>();
+		for(int x = 0; x < 1000; x++) {
+			String uri = minter.mint();
+			assertTrue(uri.startsWith(this.newNamespace + "n"));
+			assertFalse(this.vivo.containsURI(uri));
+			assertTrue(minted.add(uri));
+			assertTrue(minter.isUsed(uri));
+		}
+		log.info("END testURIMinter");
+	}
+	
 	/**
 	 * Test method for
 	 * {@link org.vivoweb.harvester.qualify.ChangeNamespace#changeNS(org.vivoweb.harvester.util.repo.JenaConnect, org.vivoweb.harvester.util.repo.JenaConnect, java.lang.String, java.lang.String, boolean, boolean)
@@ -159,4 +188,78 @@ public class ChangeNamespaceTest extends TestCase {
 		System.out.println(this.model.exportRdfToString());
 		log.info("END testObjChangeNS");
 	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.qualify.RenameResources#renameResources(org.apache.jena.rdf.model.Model, java.util.Map)
+	 * renameResources(Model model, Map renames)} with a chained and a colliding rename, in both orders, compared with
+	 * renaming one resource at a time.
+	 */
+	public void testRenameResourcesMatchesSequential() {
+		log.info("BEGIN testRenameResourcesMatchesSequential");
+		String a = this.namespace + "a";
+		String b = this.namespace + "b";
+		String c = this.newNamespace + "c";
+		String d = this.namespace + "d";
+		// a to b then b to c follows a on to c, and d collides with c
+		Map<String, String> chained = new LinkedHashMap<String, String>();
+		chained.put(a, b);
+		chained.put(b, c);
+		chained.put(d, c);
+		assertRenamesMatchSequential(chained);
+		// b to c then a to b leaves a at b
+		Map<String, String> reversed = new LinkedHashMap<String, String>();
+		reversed.put(b, c);
+		reversed.put(a, b);
+		reversed.put(d, c);
+		assertRenamesMatchSequential(reversed);
+		// renaming back and forth ends where it started
+		Map<String, String> swapped = new LinkedHashMap<String, String>();
+		swapped.put(a, b);
+		swapped.put(b, a);
+		assertRenamesMatchSequential(swapped);
+		log.info("END testRenameResourcesMatchesSequential");
+	}
+	
+	/**
+	 * Rename resources in one batch in one model and one at a time in another, and check the models agree
+	 * @param renames the new uri for each uri, in order
+	 */
+	private void assertRenamesMatchSequential(Map<String, String> renames) {
+		JenaConnect batch = new MemJenaConnect();
+		JenaConnect sequential = new MemJenaConnect();
+		addRenameData(batch.getJenaModel());
+		addRenameData(sequential.getJenaModel());
+		Map<Resource, String> batchRenames = new LinkedHashMap<Resource, String>();
+		for(Map.Entry<String, String> rename : renames.entrySet()) {
+			batchRenames.put(batch.getJenaModel().createResource(rename.getKey()), rename.getValue());
+			RenameResources.renameResource(sequential.getJenaModel().createResource(rename.getKey()), rename.getValue());
+		}
+		RenameResources.renameResources(batch.getJenaModel(), batchRenames);
+		log.debug(batch.exportRdfToString());
+		assertTrue(batch.getJenaModel().isIsomorphicWith(sequential.getJenaModel()));
+		batch.close();
+		sequential.close();
+	}
+	
+	/**
+	 * Add resources a, b and d linking to each other and an existing resource c
+	 * @param m the model
+	 */
+	private void addRenameData(Model m) {
+		Property label = m.createProperty("http://www.w3.org/2000/01/rdf-schema#", "label");
+		Property link = m.createProperty("http://vivoweb.org/ontology/core#", "linkedTo");
+		Resource a = m.createResource(this.namespace + "a");
+		Resource b = m.createResource(this.namespace + "b");
+		Resource c = m.createResource(this.newNamespace + "c");
+		Resource d = m.createResource(this.namespace + "d");
+		m.add(a, label, "A");
+		m.add(b, label, "B");
+		m.add(c, label, "C");
+		m.add(d, label, "D");
+		m.add(a, link, b);
+		m.add(b, link, d);
+		m.add(c, link, a);
+		m.add(d, link, d);
+	}
 }
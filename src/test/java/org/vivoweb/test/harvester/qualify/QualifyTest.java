@@ -6,6 +6,7 @@
 package org.vivoweb.test.harvester.qualify;
 
 import java.io.IOException;
+import java.util.Arrays;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +14,8 @@ import org.vivoweb.harvester.qualify.Qualify;
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
 
@@ -97,6 +100,28 @@ public class QualifyTest extends TestCase {
 		log.info("END testMultiRegexReplace");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.Qualify#main(java.lang.String[]) main(String... args)} using
+	 * several regex rules in one pass.
+	 * @throws IOException error connecting
+	 */
+	public void testRegexRules() throws IOException {
+		log.info("BEGIN testRegexRules");
+		Resource res1 = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSPARQLQualify/item#1");
+		Resource res2 = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSPARQLQualify/item#2");
+		Resource res3 = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSPARQLQualify/item#3");
+		this.jena.getJenaModel().add(res1, this.label, this.jena.getJenaModel().createLiteral("Smith,  John", "en"));
+		this.jena.getJenaModel().add(res2, this.label, "DELETEME");
+		this.jena.getJenaModel().add(res3, this.label, "Doe,Jane");
+		// call qualify, the second rule sees the output of the first
+		new Qualify(this.jena, this.label.getURI(), Arrays.asList(",\\s*", ",", "^DELETE"), Arrays.asList(",", ", ", null), null, false, false).execute();
+		assertEquals("Smith, John", this.jena.getJenaModel().getProperty(res1, this.label).getString());
+		assertEquals("en", this.jena.getJenaModel().getProperty(res1, this.label).getLanguage());
+		assertNull(this.jena.getJenaModel().getProperty(res2, this.label));
+		assertEquals("Doe, Jane", this.jena.getJenaModel().getProperty(res3, this.label).getString());
+		log.info("END testRegexRules");
+	}
+	
 	/**
 	 * Test method for {@link org.vivoweb.harvester.qualify.Qualify#main(java.lang.String[]) main(String... args)} using
 	 * string replace.
@@ -168,4 +193,49 @@ public class QualifyTest extends TestCase {
 		log.info("END testRemoveNamespaceObjRes");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.Qualify#execute() execute()} removing namespace resources
+	 * and predicates from an SDB model, whose nodes are found through the node table shared with other models.
+	 * @throws IOException error
+	 */
+	public void testRemoveNamespaceSDB() throws IOException {
+		log.info("BEGIN testRemoveNamespaceSDB");
+		SDBJenaConnect sdb = new SDBJenaConnect("jdbc:h2:mem:testQualifySDB", "sa", "", "H2", "org.h2.Driver", "layout2", "http://vivoweb.org/harvester/model/qualify");
+		JenaConnect other = sdb.neighborConnectClone("http://vivoweb.org/harvester/model/other");
+		try {
+			// the '_' in the namespace must not match any character
+			String ns = "http://harvester.vivoweb.org/clean_ns#";
+			Model model = sdb.getJenaModel();
+			Resource inNs = model.createResource(ns + "1");
+			Resource likeNs = model.createResource("http://harvester.vivoweb.org/cleanXns#2");
+			Resource outside = model.createResource("http://harvester.vivoweb.org/kept#3");
+			Property nsPredicate = model.createProperty(ns + "rel");
+			model.add(inNs, this.label, "in");
+			model.add(outside, this.scoreAffilitation, inNs);
+			model.add(likeNs, this.label, "like");
+			model.add(outside, nsPredicate, likeNs);
+			model.add(outside, this.label, "out");
+			other.getJenaModel().add(inNs, this.label, "other model");
+			
+			new Qualify(sdb, null, null, null, false, ns, false, true).execute();
+			assertFalse(model.containsResource(inNs));
+			assertTrue(model.contains(likeNs, this.label, "like"));
+			assertTrue(model.contains(outside, nsPredicate, likeNs));
+			assertTrue(model.contains(outside, this.label, "out"));
+			// only the qualified model is cleaned
+			assertTrue(other.getJenaModel().contains(inNs, this.label, "other model"));
+			
+			new Qualify(sdb, null, null, null, false, ns, true, false).execute();
+			assertFalse(model.contains(outside, nsPredicate, likeNs));
+			assertTrue(model.contains(outside, this.label, "out"));
+			assertEquals(2, model.size());
+		} finally {
+			other.truncate();
+			other.close();
+			sdb.truncate();
+			sdb.close();
+		}
+		log.info("END testRemoveNamespaceSDB");
+	}
+	
 }
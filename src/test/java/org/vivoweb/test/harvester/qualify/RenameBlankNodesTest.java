@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.qualify;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.qualify.RenameBlankNodes;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.RDFNode;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.rdf.model.Statement;
+
+/** */
+public class RenameBlankNodesTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RenameBlankNodesTest.class);
+	/** */
+	private static final String namespace = "http://vivo.test.edu/individual/";
+	/** */
+	private static final String ns = "http://vivoweb.org/ontology/core#";
+	/** */
+	private JenaConnect input;
+	/** */
+	private JenaConnect output;
+	/** */
+	private Property label;
+	/** */
+	private Property link;
+	
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.input = new MemJenaConnect();
+		this.output = new MemJenaConnect();
+		this.label = this.input.getJenaModel().createProperty("http://www.w3.org/2000/01/rdf-schema#", "label");
+		this.link = this.input.getJenaModel().createProperty(ns, "linkedTo");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		this.input.close();
+		this.input = null;
+		this.output.close();
+		this.output = null;
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.qualify.RenameBlankNodes#skolemizeBNodes(org.vivoweb.harvester.util.repo.JenaConnect, org.vivoweb.harvester.util.repo.JenaConnect, java.lang.String, java.lang.String, java.lang.String)
+	 * skolemizeBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, String pattern, String property)}
+	 * with a blank node shared by two resources and two isomorphic blank node components.
+	 */
+	public void testSkolemizeSharedAndIsomorphic() {
+		log.info("BEGIN testSkolemizeSharedAndIsomorphic");
+		Model m = this.input.getJenaModel();
+		// one blank node shared by two resources
+		Resource shared = m.createResource();
+		m.add(shared, this.label, "Shared");
+		m.add(m.createResource(namespace + "x"), this.link, shared);
+		m.add(m.createResource(namespace + "y"), this.link, shared);
+		// two separate components with the same content
+		Resource first = m.createResource();
+		Resource firstInner = m.createResource();
+		m.add(first, this.label, "Outer");
+		m.add(first, this.link, firstInner);
+		m.add(firstInner, this.label, "Inner");
+		m.add(m.createResource(namespace + "first"), this.link, first);
+		Resource second = m.createResource();
+		Resource secondInner = m.createResource();
+		m.add(secondInner, this.label, "Inner");
+		m.add(second, this.link, secondInner);
+		m.add(second, this.label, "Outer");
+		m.add(m.createResource(namespace + "second"), this.link, second);
+		
+		RenameBlankNodes.skolemizeBNodes(this.input, this.output, namespace, "bn", null);
+		log.debug(this.output.exportRdfToString());
+		assertNoBlankNodes();
+		Model out = this.output.getJenaModel();
+		RDFNode sharedX = out.getResource(namespace + "x").getPropertyResourceValue(this.link);
+		RDFNode sharedY = out.getResource(namespace + "y").getPropertyResourceValue(this.link);
+		assertTrue(sharedX.asResource().getURI().startsWith(namespace + "bn_"));
+		assertEquals(sharedX, sharedY);
+		// the shared node's statements are written once
+		assertEquals(1, out.listStatements(sharedX.asResource(), this.label, (RDFNode)null).toList().size());
+		Resource firstUri = out.getResource(namespace + "first").getPropertyResourceValue(this.link);
+		Resource secondUri = out.getResource(namespace + "second").getPropertyResourceValue(this.link);
+		assertEquals(firstUri, secondUri);
+		assertFalse(firstUri.equals(sharedX));
+		assertFalse(firstUri.equals(firstUri.getPropertyResourceValue(this.link)));
+		log.info("END testSkolemizeSharedAndIsomorphic");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.qualify.RenameBlankNodes#skolemizeBNodes(org.vivoweb.harvester.util.repo.JenaConnect, org.vivoweb.harvester.util.repo.JenaConnect, java.lang.String, java.lang.String, java.lang.String)
+	 * skolemizeBNodes(JenaConnect inJC, JenaConnect outJC, String namespaceEtc, String pattern, String property)}
+	 * with a long chain of blank nodes and a cycle of blank nodes.
+	 */
+	public void testSkolemizeChainAndCycle() {
+		log.info("BEGIN testSkolemizeChainAndCycle");
+		Model m = this.input.getJenaModel();
+		// a chain long enough to overflow the stack if walked recursively
+		Resource head = m.createResource();
+		m.add(m.createResource(namespace + "list"), this.link, head);
+		Resource node = head;
+		for(int x = 0; x < 20000; x++) {
+			Resource next = m.createResource();
+			m.add(node, this.label, "item" + x);
+			m.add(node, this.link, next);
+			node = next;
+		}
+		m.add(node, this.label, "last");
+		// a cycle, reached from a blank node
+		Resource cycleA = m.createResource();
+		Resource cycleB = m.createResource();
+		Resource toCycle = m.createResource();
+		m.add(cycleA, this.link, cycleB);
+		m.add(cycleB, this.link, cycleA);
+		m.add(toCycle, this.link, cycleA);
+		m.add(m.createResource(namespace + "cycle"), this.link, toCycle);
+		
+		int count = RenameBlankNodes.skolemizeBNodes(this.input, this.output, namespace, "bn", null);
+		assertEquals(20001, count);
+		Model out = this.output.getJenaModel();
+		Resource headUri = out.getResource(namespace + "list").getPropertyResourceValue(this.link);
+		assertTrue(headUri.isURIResource());
+		// the blank nodes in and leading to the cycle stay blank
+		assertTrue(out.getResource(namespace + "cycle").getPropertyResourceValue(this.link).isAnon());
+		int blank = 0;
+		for(Statement stmt : out.listStatements().toList()) {
+			if(stmt.getSubject().isAnon()) {
+				blank++;
+			}
+		}
+		assertEquals(3, blank);
+		log.info("END testSkolemizeChainAndCycle");
+	}
+	
+	/**
+	 * Check the output has no blank nodes left
+	 */
+	private void assertNoBlankNodes() {
+		for(Statement stmt : this.output.getJenaModel().listStatements().toList()) {
+			assertFalse(stmt.getSubject().isAnon());
+			assertFalse(stmt.getObject().isAnon());
+		}
+	}
+}
@@ -181,6 +181,41 @@ public class SmushTest extends TestCase {
 		log.info("END testExecSmushResources");
 	}
 	
+	/**
+	 * @throws IOException incase there is an ioerror from exportRdfToString
+	 * 
+	 */
+	public void testExecSmushTransitive() throws IOException {
+		log.info("BEGIN testExecSmushTransitive");
+		// shares a workEmail with test123, which shares a uniqueId with n654321 and n321456
+		Resource test456 = ResourceFactory.createResource(this.namespace + "test456");
+		this.inputModel.getJenaModel().add(test456, ResourceFactory.createProperty("http://vivo.test.edu/ontology/vivo-test/", "uniqueId"), "3456789012");
+		this.inputModel.getJenaModel().add(test456, ResourceFactory.createProperty("http://vivoweb.org/ontology/core#", "workEmail"), "robert.johnson@sci.test.edu");
+		List<String> predicates = new ArrayList<String>();
+		predicates.add("http://vivo.test.edu/ontology/vivo-test/uniqueId");
+		predicates.add("http://vivoweb.org/ontology/core#workEmail");
+		
+		new Smush(this.inputModel,predicates,this.namespace).execute();
+		
+		log.trace("After:\n" + this.inputModel.exportRdfToString());
+		StringBuilder query = new StringBuilder();
+		query.append("PREFIX localVivo:	<http://vivo.test.edu/ontology/vivo-test/>");
+		query.append("SELECT ?uri WHERE{");
+		query.append("?uri localVivo:uniqueId \"3456789012\" .");
+		query.append("?uri localVivo:uniqueId \"2345678901\" .");
+		query.append("}");
+		ResultSet rs = this.inputModel.executeSelectQuery(query.toString());
+		List<String> list = new ArrayList<String>();
+		while(rs.hasNext()) {
+			list.add(rs.next().get("uri").toString());
+		}
+		assertEquals(1, list.size());
+		// the lowest uri is kept
+		assertEquals(this.namespace + "n321456", list.get(0));
+		
+		log.info("END testExecSmushTransitive");
+	}
+	
 	/**
 	 * @throws IOException incase there is an ioerror from exportRdfToString
 	 * 
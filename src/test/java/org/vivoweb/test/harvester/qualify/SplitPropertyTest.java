@@ -5,6 +5,7 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.qualify;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import junit.framework.TestCase;
@@ -99,4 +100,28 @@ public class SplitPropertyTest extends TestCase {
 		log.info("END testSplitPropertyValues");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.qualify.SplitProperty#execute() execute()} with several splits
+	 * @throws Exception error
+	 */
+	public final void testExecuteSplits() throws Exception{
+		log.info("BEGIN testExecuteSplits");
+		Property scoreLabelWords = this.jena.getJenaModel().createProperty("http://vivoweb.org/harvester/score#LabelWords");
+		Resource res1 = this.jena.getJenaModel().createResource("http://harvester.vivoweb.org/testSplitPropertyValues/item#1");
+		this.jena.getJenaModel().add(res1, this.label, this.jena.getJenaModel().createLiteral("part one; part two", "en"));
+		new SplitProperty(this.jena, Arrays.asList(";", "[ ;]+"), Arrays.asList(this.label.getURI(), this.label.getURI()), Arrays.asList(this.scoreLabelParts.getURI(), scoreLabelWords.getURI()), true).execute();
+		Set<String> res1parts = new HashSet<String>();
+		for(Statement s : IterableAdaptor.adapt(this.jena.getJenaModel().listStatements(res1, this.scoreLabelParts, (RDFNode)null))) {
+			res1parts.add(s.getString());
+			assertEquals("en", s.getLanguage());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("part one", "part two")), res1parts);
+		Set<String> res1words = new HashSet<String>();
+		for(Statement s : IterableAdaptor.adapt(this.jena.getJenaModel().listStatements(res1, scoreLabelWords, (RDFNode)null))) {
+			res1words.add(s.getString());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("part", "one", "two")), res1words);
+		log.info("END testExecuteSplits");
+	}
+	
 }
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.score;
+
+import java.util.Collections;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.score.Match;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+
+/** */
+public class MatchTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(MatchTest.class);
+	/** */
+	private static final String ns = "http://vivoweb.org/harvester/match/";
+	/** */
+	private static final Node label = NodeFactory.createURI("http://www.w3.org/2000/01/rdf-schema#label");
+	/** */
+	private static final Node link = NodeFactory.createURI("http://vivoweb.org/ontology/core#linkedTo");
+	/** */
+	private static final Node skip = NodeFactory.createURI("http://vivoweb.org/ontology/core#skipped");
+	/** */
+	private JenaConnect input;
+	/** */
+	private JenaConnect output;
+	
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.input = new MemJenaConnect();
+		this.output = new MemJenaConnect();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		this.input.truncate();
+		this.input.close();
+		this.input = null;
+		this.output.truncate();
+		this.output.close();
+		this.output = null;
+	}
+	
+	/**
+	 * Add a resource with a label and a link to another
+	 * @param graph the graph
+	 * @param from the resource's local name
+	 * @param to the linked resource's local name
+	 */
+	private static void addLinked(Graph graph, String from, String to) {
+		graph.add(Triple.create(NodeFactory.createURI(ns + from), label, NodeFactory.createLiteral(from)));
+		graph.add(Triple.create(NodeFactory.createURI(ns + from), link, NodeFactory.createURI(ns + to)));
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.score.Match#extractSubgraph(org.apache.jena.graph.Graph, java.util.Collection, int, java.util.Set, org.vivoweb.harvester.util.repo.JenaConnect)
+	 * extractSubgraph(Graph source, Collection roots, int maxDepth, Set skipPredicates, JenaConnect output)} with a
+	 * cycle, which must be copied once and end the walk.
+	 */
+	public void testExtractCycle() {
+		log.info("BEGIN testExtractCycle");
+		Graph graph = this.input.getJenaModel().getGraph();
+		addLinked(graph, "root", "a");
+		addLinked(graph, "a", "b");
+		addLinked(graph, "b", "a");
+		graph.add(Triple.create(NodeFactory.createURI(ns + "b"), link, NodeFactory.createURI(ns + "root")));
+		int copied = Match.extractSubgraph(graph, Collections.singleton(NodeFactory.createURI(ns + "root")), -1, Collections.<Node>emptySet(), this.output);
+		assertEquals(7, copied);
+		assertTrue(this.output.getJenaModel().getGraph().isIsomorphicWith(graph));
+		log.info("END testExtractCycle");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.score.Match#extractSubgraph(org.apache.jena.graph.Graph, java.util.Collection, int, java.util.Set, org.vivoweb.harvester.util.repo.JenaConnect)
+	 * extractSubgraph(Graph source, Collection roots, int maxDepth, Set skipPredicates, JenaConnect output)} with a
+	 * deep chain cut off at a depth, and a predicate that is not followed.
+	 */
+	public void testExtractDepthAndSkip() {
+		log.info("BEGIN testExtractDepthAndSkip");
+		Graph graph = this.input.getJenaModel().getGraph();
+		for(int x = 0; x < 10; x++) {
+			addLinked(graph, "n" + x, "n" + (x + 1));
+		}
+		graph.add(Triple.create(NodeFactory.createURI(ns + "n0"), skip, NodeFactory.createURI(ns + "skipped")));
+		graph.add(Triple.create(NodeFactory.createURI(ns + "skipped"), label, NodeFactory.createLiteral("skipped")));
+		Graph out = this.output.getJenaModel().getGraph();
+		
+		// three links from the root: the statements of n0 to n3 are copied, so n3's link to n4 is but n4's are not
+		int copied = Match.extractSubgraph(graph, Collections.singleton(NodeFactory.createURI(ns + "n0")), 3, Collections.singleton(skip), this.output);
+		assertEquals(9, copied);
+		assertTrue(out.contains(NodeFactory.createURI(ns + "n3"), link, NodeFactory.createURI(ns + "n4")));
+		assertFalse(out.contains(NodeFactory.createURI(ns + "n4"), Node.ANY, Node.ANY));
+		// the skipped statement is copied, the resource it leads to is not
+		assertTrue(out.contains(NodeFactory.createURI(ns + "n0"), skip, NodeFactory.createURI(ns + "skipped")));
+		assertFalse(out.contains(NodeFactory.createURI(ns + "skipped"), Node.ANY, Node.ANY));
+		
+		// a depth of zero copies only the root's own statements
+		this.output.truncate();
+		assertEquals(3, Match.extractSubgraph(graph, Collections.singleton(NodeFactory.createURI(ns + "n0")), 0, Collections.<Node>emptySet(), this.output));
+		
+		// no limit follows the chain to its end, and the skipped resource when not skipped
+		this.output.truncate();
+		assertEquals(22, Match.extractSubgraph(graph, Collections.singleton(NodeFactory.createURI(ns + "n0")), -1, Collections.<Node>emptySet(), this.output));
+		log.info("END testExtractDepthAndSkip");
+	}
+}
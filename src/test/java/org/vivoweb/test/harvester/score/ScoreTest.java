@@ -5,6 +5,7 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.score;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import junit.framework.TestCase;
@@ -19,6 +20,7 @@ import org.vivoweb.harvester.score.algorithm.NormalizedDoubleMetaphoneDifference
 import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.repo.JenaConnect;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.rdf.model.Property;
 import org.apache.jena.rdf.model.Resource;
 import org.apache.jena.rdf.model.ResourceFactory;
@@ -632,6 +634,124 @@ public class ScoreTest extends TestCase {
 		log.info("END testTieredScore");
 	}
 	
+	/**
+	 * Test incremental Score and Match: after one subject changes, a rerun only scores and matches that subject
+	 * @throws Exception error
+	 */
+	public void testIncremental() throws Exception {
+		log.info("BEGIN testIncremental");
+		String ns = "http://vivoweb.org/harvester/incr/";
+		String uid = "http://vivo.mydomain.edu/ontology/vivo-local/uniqueid";
+		this.input.setJournaling(true);
+		this.input.loadRdfFromString("<" + ns + "a1> <" + uid + "> \"incr-1\" .\n<" + ns + "a2> <" + uid + "> \"incr-2\" .\n", null, "N-TRIPLE");
+		this.vivo.loadRdfFromString("<http://vivo.mydomain.edu/individual/incr1> <" + uid + "> \"incr-1\" .\n<http://vivo.mydomain.edu/individual/incr2> <" + uid + "> \"incr-2\" .\n", null, "N-TRIPLE");
+		HashMap<String, Class<? extends Algorithm>> algorithms = new HashMap<String, Class<? extends Algorithm>>();
+		algorithms.put("uid", EqualityTest.class);
+		HashMap<String, String> predicates = new HashMap<String, String>();
+		predicates.put("uid", uid);
+		HashMap<String, Float> weights = new HashMap<String, Float>();
+		weights.put("uid", Float.valueOf(1f));
+		HashMap<String, String> links = new HashMap<String, String>();
+		links.put("http://vivoweb.org/ontology/score#vivoToInput", "http://vivoweb.org/ontology/score#inputToVivo");
+		String scored = "ASK { ?s <http://vivoweb.org/harvester/scoreValue/InputRes> <" + ns + "%s> }";
+		String linked = "ASK { <" + ns + "%s> <http://vivoweb.org/ontology/score#inputToVivo> ?v }";
+		Thread.sleep(10);
+		
+		// the first runs have nothing to compare with, so process everything
+		Score score = new Score(this.input, this.vivo, this.score, null, algorithms, predicates, predicates, ns, weights, null, 1, false, false);
+		score.setIncremental("incrScore");
+		score.execute();
+		assertTrue(this.score.executeAskQuery(String.format(scored, "a1")));
+		assertTrue(this.score.executeAskQuery(String.format(scored, "a2")));
+		Match match = new Match(this.input, this.score, null, false, 1f, null, false, 500);
+		match.setIncremental("incrMatch");
+		match.execute();
+		Thread.sleep(10);
+		
+		// change one subject and rerun
+		this.input.loadRdfFromString("<" + ns + "a2> <http://www.w3.org/2000/01/rdf-schema#label> \"changed\" .\n", null, "N-TRIPLE");
+		this.score.truncate();
+		score.execute();
+		assertFalse(this.score.executeAskQuery(String.format(scored, "a1")));
+		assertTrue(this.score.executeAskQuery(String.format(scored, "a2")));
+		
+		// with both scored, only the changed subject is matched
+		this.score.truncate();
+		new Score(this.input, this.vivo, this.score, null, algorithms, predicates, predicates, ns, weights, null, 1, false, false).execute();
+		assertTrue(this.score.executeAskQuery(String.format(scored, "a1")));
+		match = new Match(this.input, this.score, null, false, 1f, links, false, 500);
+		match.setIncremental("incrMatch");
+		match.execute();
+		assertFalse(this.input.executeAskQuery(String.format(linked, "a1")));
+		assertTrue(this.input.executeAskQuery(String.format(linked, "a2")));
+		this.input.setJournaling(false);
+		log.info("END testIncremental");
+	}
+	
+	/**
+	 * Test incremental runs against a score model kept between runs
+	 * @throws Exception error
+	 */
+	public void testIncrementalKeepsScores() throws Exception {
+		log.info("BEGIN testIncrementalKeepsScores");
+		String ns = "http://vivoweb.org/harvester/kept/";
+		String uid = "http://vivo.mydomain.edu/ontology/vivo-local/uniqueid";
+		this.input.setJournaling(true);
+		this.input.loadRdfFromString("<" + ns + "a1> <" + uid + "> \"kept-1\" .\n", null, "N-TRIPLE");
+		this.vivo.loadRdfFromString("<http://vivo.mydomain.edu/individual/kept1> <" + uid + "> \"kept-1\" .\n<http://vivo.mydomain.edu/individual/kept2> <" + uid + "> \"kept-2\" .\n", null, "N-TRIPLE");
+		HashMap<String, Class<? extends Algorithm>> algorithms = new HashMap<String, Class<? extends Algorithm>>();
+		algorithms.put("uid", EqualityTest.class);
+		HashMap<String, String> predicates = new HashMap<String, String>();
+		predicates.put("uid", uid);
+		HashMap<String, Float> weights = new HashMap<String, Float>();
+		weights.put("uid", Float.valueOf(1f));
+		HashMap<String, String> links = new HashMap<String, String>();
+		links.put("http://vivoweb.org/ontology/score#vivoToInput", "http://vivoweb.org/ontology/score#inputToVivo");
+		String records = "SELECT ?s WHERE { ?s <http://vivoweb.org/harvester/scoreValue/InputRes> <" + ns + "%s> }";
+		String linked = "ASK { <" + ns + "%s> <http://vivoweb.org/ontology/score#inputToVivo> <http://vivo.mydomain.edu/individual/%s> }";
+		Thread.sleep(10);
+		
+		// the first run loads the temp copy of the input, later runs only refresh the changed subjects in it
+		Score score = new Score(this.input, this.vivo, this.score, null, algorithms, predicates, predicates, ns, weights, null, 1, false, true);
+		score.setIncremental("keptScore");
+		score.execute();
+		assertEquals(1, countRows(String.format(records, "a1")));
+		Thread.sleep(10);
+		
+		// a changed subject is rescored from its current data, a new one is scored, and neither keeps an old record
+		this.input.loadRdfFromString("<" + ns + "a1> <http://www.w3.org/2000/01/rdf-schema#label> \"changed\" .\n<" + ns + "a2> <" + uid + "> \"kept-2\" .\n", null, "N-TRIPLE");
+		score.execute();
+		assertEquals(1, countRows(String.format(records, "a1")));
+		assertEquals(1, countRows(String.format(records, "a2")));
+		Thread.sleep(10);
+		
+		// a subject no longer matching anything loses its record
+		this.input.removeRdfFromStream(new ByteArrayInputStream(("<" + ns + "a1> <" + uid + "> \"kept-1\" .\n").getBytes()), null, "N-TRIPLE");
+		score.execute();
+		assertEquals(0, countRows(String.format(records, "a1")));
+		assertEquals(1, countRows(String.format(records, "a2")));
+		
+		new Match(this.input, this.score, null, false, 1f, links, false, 500).execute();
+		assertTrue(this.input.executeAskQuery(String.format(linked, "a2", "kept2")));
+		assertFalse(this.input.executeAskQuery(String.format(linked, "a1", "kept1")));
+		this.input.setJournaling(false);
+		log.info("END testIncrementalKeepsScores");
+	}
+	
+	/**
+	 * Count the rows a select query returns from the score model
+	 * @param query the query
+	 * @return the row count
+	 * @throws IOException error connecting
+	 */
+	private int countRows(String query) throws IOException {
+		int rows = 0;
+		for(ResultSet rs = this.score.executeSelectQuery(query); rs.hasNext(); rs.next()) {
+			rows++;
+		}
+		return rows;
+	}
+	
 	@Override
 	protected void setUp() throws Exception {
 		InitLog.initLogger(null, null);
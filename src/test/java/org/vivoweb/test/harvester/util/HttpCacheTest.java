@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import junit.framework.TestCase;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.apache.jena.ext.com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.HttpCache;
+import org.vivoweb.harvester.util.InitLog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class HttpCacheTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(HttpCacheTest.class);
+	/** */
+	private String tempDir;
+	/** */
+	private HttpServer server;
+	/** */
+	private String baseUrl;
+	/** */
+	private CloseableHttpClient client;
+	/** */
+	private volatile int hits;
+	/** */
+	private volatile String cacheControl;
+	/** */
+	private volatile String etag;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.tempDir = Files.createTempDir().getAbsolutePath();
+		this.hits = 0;
+		this.cacheControl = null;
+		this.etag = null;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				HttpCacheTest.this.hits++;
+				String tag = HttpCacheTest.this.etag;
+				if(HttpCacheTest.this.cacheControl != null) {
+					exchange.getResponseHeaders().set("Cache-Control", HttpCacheTest.this.cacheControl);
+				}
+				if(tag != null) {
+					exchange.getResponseHeaders().set("ETag", tag);
+					if(tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+						exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1);
+						exchange.close();
+						return;
+					}
+				}
+				String accept = exchange.getRequestHeaders().getFirst("Accept");
+				byte[] body = (exchange.getRequestURI().getPath() + " " + accept + " " + HttpCacheTest.this.hits).getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain");
+				exchange.sendResponseHeaders(HttpStatus.SC_OK, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		this.server.start();
+		this.baseUrl = "http://localhost:" + this.server.getAddress().getPort();
+		this.client = HttpClients.createDefault();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(this.client != null) {
+			this.client.close();
+		}
+		if(this.server != null) {
+			this.server.stop(0);
+		}
+		FileAide.delete(this.tempDir);
+		this.client = null;
+		this.server = null;
+	}
+
+	/**
+	 * Fetch a request through a cache
+	 * @param cache the cache
+	 * @param request the request
+	 * @return the status code and body
+	 * @throws IOException error fetching
+	 */
+	private String fetch(HttpCache cache, HttpGet request) throws IOException {
+		CloseableHttpResponse response = cache.fetch(this.client, request);
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			return status + ((response.getEntity() == null) ? "" : " " + EntityUtils.toString(response.getEntity()));
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Test a miss goes to the server and a hit does not
+	 * @throws Exception error
+	 */
+	public void testHitAndMiss() throws Exception {
+		log.info("BEGIN testHitAndMiss");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 60, false);
+		String first = fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		assertEquals(1, this.hits);
+		assertEquals(first, fetch(cache, new HttpGet(this.baseUrl + "/a")));
+		assertEquals(1, this.hits);
+		fetch(cache, new HttpGet(this.baseUrl + "/b"));
+		assertEquals(2, this.hits);
+		log.info("END testHitAndMiss");
+	}
+
+	/**
+	 * Test requests differing in their Accept header are cached apart
+	 * @throws Exception error
+	 */
+	public void testKeyedHeaders() throws Exception {
+		log.info("BEGIN testKeyedHeaders");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 60, false);
+		HttpGet xml = new HttpGet(this.baseUrl + "/a");
+		xml.setHeader("Accept", "application/rdf+xml");
+		HttpGet turtle = new HttpGet(this.baseUrl + "/a");
+		turtle.setHeader("Accept", "text/turtle");
+		assertEquals("200 /a application/rdf+xml 1", fetch(cache, xml));
+		assertEquals("200 /a text/turtle 2", fetch(cache, turtle));
+		HttpGet again = new HttpGet(this.baseUrl + "/a");
+		again.setHeader("Accept", "application/rdf+xml");
+		assertEquals("200 /a application/rdf+xml 1", fetch(cache, again));
+		assertEquals(2, this.hits);
+		log.info("END testKeyedHeaders");
+	}
+
+	/**
+	 * Test a stale response is revalidated and a stale response without validators fetched again
+	 * @throws Exception error
+	 */
+	public void testExpiry() throws Exception {
+		log.info("BEGIN testExpiry");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 0, false);
+		this.cacheControl = "max-age=1";
+		this.etag = "\"v1\"";
+		String first = fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		assertEquals(first, fetch(cache, new HttpGet(this.baseUrl + "/a")));
+		assertEquals(1, this.hits);
+		Thread.sleep(1100);
+		// revalidated with a 304, so the stored body is served
+		assertEquals(first, fetch(cache, new HttpGet(this.baseUrl + "/a")));
+		assertEquals(2, this.hits);
+		this.cacheControl = null;
+		this.etag = null;
+		fetch(cache, new HttpGet(this.baseUrl + "/b"));
+		assertEquals("200 /b null 4", fetch(cache, new HttpGet(this.baseUrl + "/b")));
+		log.info("END testExpiry");
+	}
+
+	/**
+	 * Test the caller's own validators get a 304 from a fresh response and are never answered with a stale one
+	 * @throws Exception error
+	 */
+	public void testCallerConditional() throws Exception {
+		log.info("BEGIN testCallerConditional");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 60, false);
+		this.etag = "\"v1\"";
+		fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		HttpGet conditional = new HttpGet(this.baseUrl + "/a");
+		conditional.setHeader("If-None-Match", "\"v1\"");
+		assertEquals("304", fetch(cache, conditional));
+		assertEquals(1, this.hits);
+		HttpGet outdated = new HttpGet(this.baseUrl + "/a");
+		outdated.setHeader("If-None-Match", "\"v0\"");
+		assertEquals("200 /a null 1", fetch(cache, outdated));
+		log.info("END testCallerConditional");
+	}
+
+	/**
+	 * Test the least recently used responses are evicted beyond the size bound
+	 * @throws Exception error
+	 */
+	public void testEviction() throws Exception {
+		log.info("BEGIN testEviction");
+		// each body is 9 bytes, so only one fits
+		HttpCache cache = new HttpCache(this.tempDir, 12, 60, false);
+		fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		fetch(cache, new HttpGet(this.baseUrl + "/b"));
+		fetch(cache, new HttpGet(this.baseUrl + "/b"));
+		assertEquals(2, this.hits);
+		fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		assertEquals(3, this.hits);
+		log.info("END testEviction");
+	}
+
+	/**
+	 * Test a body removed after its metadata was stored is fetched again
+	 * @throws Exception error
+	 */
+	public void testMissingBody() throws Exception {
+		log.info("BEGIN testMissingBody");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 60, false);
+		fetch(cache, new HttpGet(this.baseUrl + "/a"));
+		for(File file : new File(this.tempDir).listFiles()) {
+			if(file.getName().endsWith(".body")) {
+				assertTrue(file.delete());
+			}
+		}
+		assertEquals("200 /a null 2", fetch(cache, new HttpGet(this.baseUrl + "/a")));
+		log.info("END testMissingBody");
+	}
+
+	/**
+	 * Test requests marked no-store are never written to disk
+	 * @throws Exception error
+	 */
+	public void testNoStore() throws Exception {
+		log.info("BEGIN testNoStore");
+		HttpCache cache = new HttpCache(this.tempDir, 1024 * 1024, 60, false);
+		HttpGet request = new HttpGet(this.baseUrl + "/a");
+		request.setHeader("Cache-Control", "no-store");
+		fetch(cache, request);
+		fetch(cache, request);
+		assertEquals(2, this.hits);
+		assertEquals(0, new File(this.tempDir).listFiles().length);
+		log.info("END testNoStore");
+	}
+
+	/**
+	 * Test replay mode serves stored responses and fails on the rest without using the network
+	 * @throws Exception error
+	 */
+	public void testReplay() throws Exception {
+		log.info("BEGIN testReplay");
+		String first = fetch(new HttpCache(this.tempDir, 1024 * 1024, 0, false), new HttpGet(this.baseUrl + "/a"));
+		HttpCache replay = new HttpCache(this.tempDir, 1024 * 1024, 0, true);
+		assertEquals(first, fetch(replay, new HttpGet(this.baseUrl + "/a")));
+		try {
+			fetch(replay, new HttpGet(this.baseUrl + "/b"));
+			fail("replay mode fetched an uncached response");
+		} catch(IOException e) {
+			// expected
+		}
+		assertEquals(1, this.hits);
+		log.info("END testReplay");
+	}
+}
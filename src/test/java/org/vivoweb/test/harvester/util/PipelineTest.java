@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import org.apache.jena.ext.com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.Pipeline;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.Record;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class PipelineTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(PipelineTest.class);
+	/** the ids added by each stage run, in order */
+	static List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+	/** the recordhandler each stage run opened */
+	static List<RecordHandler> handlers = Collections.synchronizedList(new ArrayList<RecordHandler>());
+	/** the number of records each stage run saw after adding its own */
+	static List<Integer> counts = Collections.synchronizedList(new ArrayList<Integer>());
+	/** the model each stage run opened */
+	static List<JenaConnect> models = Collections.synchronizedList(new ArrayList<JenaConnect>());
+	/** the stage id that fails, null for none */
+	static volatile String failing;
+	/** */
+	private String tempDir;
+	/** */
+	private String rhConfig;
+	/** */
+	private String otherRhConfig;
+	/** */
+	private String jenaConfig;
+
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.tempDir = Files.createTempDir().getAbsolutePath();
+		this.rhConfig = this.tempDir + "/rh.xml";
+		this.otherRhConfig = this.tempDir + "/other-rh.xml";
+		this.jenaConfig = this.tempDir + "/model.xml";
+		FileAide.setTextContent(this.rhConfig, "<RecordHandler><Param name=\"rhClass\">org.vivoweb.harvester.util.repo.MapRecordHandler</Param></RecordHandler>");
+		FileAide.setTextContent(this.otherRhConfig, "<RecordHandler><Param name=\"rhClass\">org.vivoweb.harvester.util.repo.MapRecordHandler</Param><Param name=\"label\">other</Param></RecordHandler>");
+		FileAide.setTextContent(this.jenaConfig, "<Model><Param name=\"type\">mem</Param><Param name=\"modelName\">http://vivoweb.org/harvester/model/pipelinetest</Param></Model>");
+		ran.clear();
+		handlers.clear();
+		counts.clear();
+		models.clear();
+		failing = null;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		JenaConnect.setSharing(false);
+		RecordHandler.setSharing(false);
+		FileAide.delete(this.tempDir);
+	}
+
+	/**
+	 * A stage that adds a record, named by its second argument, to the recordhandler configured by its first, and
+	 * opens the model configured by its third
+	 */
+	static class AddRecord {
+		/** the tool's arguments */
+		private final String[] args;
+
+		/**
+		 * Constructor
+		 * @param args commandline arguments
+		 */
+		@SuppressWarnings("unused")
+		private AddRecord(String[] args) {
+			this.args = args;
+		}
+
+		/**
+		 * Add the record
+		 * @throws IOException error adding
+		 */
+		@SuppressWarnings("unused")
+		private void execute() throws IOException {
+			String id = this.args[1];
+			if(id.equals(failing)) {
+				throw new IOException("stage " + id + " failed");
+			}
+			if(id.equals("runtime")) {
+				throw new IllegalStateException("stage " + id + " failed");
+			}
+			RecordHandler rh = RecordHandler.parseConfig(this.args[0]);
+			rh.addRecord(id, id, getClass());
+			handlers.add(rh);
+			counts.add(Integer.valueOf(countRecords(rh)));
+			rh.close();
+			JenaConnect jc = JenaConnect.parseConfig(this.args[2]);
+			models.add(jc);
+			jc.close();
+			ran.add(id);
+		}
+	}
+
+	/**
+	 * Count the records in a recordhandler
+	 * @param rh the recordhandler
+	 * @return the number of records
+	 */
+	static int countRecords(RecordHandler rh) {
+		int count = 0;
+		for(@SuppressWarnings("unused") Record r : rh) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Build a stage adding a record
+	 * @param id the record id
+	 * @param rh the recordhandler config
+	 * @return the stage
+	 */
+	private Pipeline.Stage stage(String id, String rh) {
+		return new Pipeline.Stage(AddRecord.class.getName(), rh, id, this.jenaConfig);
+	}
+
+	/**
+	 * Test the stages and arguments are read from a pipeline file
+	 * @throws Exception error
+	 */
+	public void testParsePipeline() throws Exception {
+		log.info("BEGIN testParsePipeline");
+		String pipelineFile = this.tempDir + "/pipeline.xml";
+		StringBuilder xml = new StringBuilder("<Pipeline>\n");
+		for(String id : Arrays.asList("a", "b")) {
+			xml.append("\t<Stage tool=\" ").append(AddRecord.class.getName()).append(" \">\n");
+			xml.append("\t\t<Arg> ").append(this.rhConfig).append(" </Arg>\n");
+			xml.append("\t\t<Arg>").append(id).append("</Arg>\n");
+			xml.append("\t\t<Arg>").append(this.jenaConfig).append("</Arg>\n");
+			xml.append("\t</Stage>\n");
+		}
+		xml.append("</Pipeline>");
+		FileAide.setTextContent(pipelineFile, xml.toString());
+		new Pipeline(pipelineFile, 1, true).execute();
+		assertEquals(Arrays.asList("a", "b"), ran);
+
+		// a file without stages is refused
+		FileAide.setTextContent(pipelineFile, "<Pipeline/>");
+		try {
+			new Pipeline(pipelineFile, 1, true);
+			fail("a pipeline without stages was accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		FileAide.setTextContent(pipelineFile, "<Pipeline>");
+		try {
+			new Pipeline(pipelineFile, 1, true);
+			fail("a malformed pipeline was accepted");
+		} catch(IOException e) {
+			// expected
+		}
+		log.info("END testParsePipeline");
+	}
+
+	/**
+	 * Test a failed stage names the stage to rerun from, and the pipeline restarts there
+	 * @throws Exception error
+	 */
+	public void testStartStage() throws Exception {
+		log.info("BEGIN testStartStage");
+		List<Pipeline.Stage> stages = Arrays.asList(stage("a", this.rhConfig), stage("b", this.rhConfig), stage("c", this.rhConfig));
+		failing = "b";
+		try {
+			new Pipeline(stages, 1, true).execute();
+			fail("the failed stage did not stop the pipeline");
+		} catch(IOException e) {
+			assertTrue(e.getMessage().contains("-s 2"));
+			assertEquals("stage b failed", e.getCause().getMessage());
+		}
+		assertEquals(Arrays.asList("a"), ran);
+		failing = null;
+		new Pipeline(stages, 2, true).execute();
+		assertEquals(Arrays.asList("a", "b", "c"), ran);
+		try {
+			new Pipeline(stages, 4, true);
+			fail("a start past the last stage was accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		log.info("END testStartStage");
+	}
+
+	/**
+	 * Test a runtime error thrown by a stage is reported as an IOException
+	 * @throws Exception error
+	 */
+	public void testStageRuntimeError() throws Exception {
+		log.info("BEGIN testStageRuntimeError");
+		try {
+			new Pipeline(Arrays.asList(stage("runtime", this.rhConfig)), 1, true).execute();
+			fail("the failed stage did not stop the pipeline");
+		} catch(IOException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+		}
+		log.info("END testStageRuntimeError");
+	}
+
+	/**
+	 * Test stages share open recordhandlers and models, so records in memory carry from one stage to the next, and
+	 * open their own when sharing is off
+	 * @throws Exception error
+	 */
+	public void testSharedHandlers() throws Exception {
+		log.info("BEGIN testSharedHandlers");
+		new Pipeline(Arrays.asList(stage("a", this.rhConfig), stage("b", this.rhConfig)), 1, true).execute();
+		assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2)), counts);
+		assertSame(handlers.get(0), handlers.get(1));
+		assertSame(models.get(0), models.get(1));
+
+		counts.clear();
+		handlers.clear();
+		models.clear();
+		new Pipeline(Arrays.asList(stage("a", this.rhConfig), stage("b", this.rhConfig)), 1, false).execute();
+		assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(1)), counts);
+		assertNotSame(handlers.get(0), handlers.get(1));
+		assertNotSame(models.get(0), models.get(1));
+		log.info("END testSharedHandlers");
+	}
+
+	/**
+	 * Test turning sharing off closes every shared recordhandler and model, once the pipeline ends or when done directly
+	 * @throws Exception error
+	 */
+	public void testSharingOffCloses() throws Exception {
+		log.info("BEGIN testSharingOffCloses");
+		new Pipeline(Arrays.asList(stage("a", this.rhConfig), stage("b", this.otherRhConfig)), 1, true).execute();
+		assertNotSame(handlers.get(0), handlers.get(1));
+		// a closed map recordhandler has dropped its records
+		for(RecordHandler rh : handlers) {
+			assertEquals(0, countRecords(rh));
+		}
+
+		RecordHandler.setSharing(true);
+		JenaConnect.setSharing(true);
+		RecordHandler rh = RecordHandler.parseConfig(this.rhConfig);
+		JenaConnect jc = JenaConnect.parseConfig(this.jenaConfig);
+		rh.addRecord("a", "a", getClass());
+		rh.close();
+		assertSame(rh, RecordHandler.parseConfig(this.rhConfig));
+		assertSame(jc, JenaConnect.parseConfig(this.jenaConfig));
+		assertEquals(1, countRecords(rh));
+		RecordHandler.setSharing(false);
+		JenaConnect.setSharing(false);
+		assertEquals(0, countRecords(rh));
+		RecordHandler reopened = RecordHandler.parseConfig(this.rhConfig);
+		assertNotSame(rh, reopened);
+		reopened.close();
+		assertNotSame(jc, JenaConnect.parseConfig(this.jenaConfig));
+		log.info("END testSharingOffCloses");
+	}
+}
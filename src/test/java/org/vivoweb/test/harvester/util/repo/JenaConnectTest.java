@@ -218,6 +218,9 @@ public class JenaConnectTest extends TestCase {
 		this.jc.loadRdfFromRH(rh, null, null);
 		StmtIterator stmnt = this.jc.getJenaModel().listStatements();
 		assertTrue(stmnt.hasNext());
+		// the prefixes of each record are merged into the model
+		assertEquals("jdbc:mysql://127.0.0.1:3306/jdbctestharvest/fields/faculty/", this.jc.getJenaModel().getNsPrefixURI("db-faculty"));
+		assertEquals("jdbc:mysql://127.0.0.1:3306/jdbctestharvest/fields/paylevel/", this.jc.getJenaModel().getNsPrefixURI("db-paylevel"));
 		log.info("END testImportRDF");
 	}
 	
@@ -17,6 +17,7 @@ import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.repo.JDBCRecordHandler;
 import org.vivoweb.harvester.util.repo.JenaRecordHandler;
 import org.vivoweb.harvester.util.repo.MapRecordHandler;
+import org.vivoweb.harvester.util.repo.QueueRecordHandler;
 import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordMetaData;
@@ -201,6 +202,68 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testJenaAddRecord");
 	}
 	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.QueueRecordHandler#QueueRecordHandler(int, org.vivoweb.harvester.util.repo.RecordHandler)
+	 * QueueRecordHandler(int capacity, RecordHandler tee)}.
+	 * @throws Exception error
+	 */
+	public void testQueueStreamRecords() throws Exception {
+		log.info("BEGIN testQueueStreamRecords");
+		final MapRecordHandler tee = new MapRecordHandler();
+		final QueueRecordHandler queue = new QueueRecordHandler(5, tee);
+		final int total = 50;
+		final IOException[] writeError = new IOException[1];
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(int x = 0; x < total; x++) {
+						queue.addRecord("rec" + x, "data for record " + x, RecordHandlerTest.class);
+					}
+					queue.close();
+				} catch(IOException e) {
+					writeError[0] = e;
+				}
+			}
+		});
+		writer.start();
+		int read = 0;
+		for(Record r : queue) {
+			assertEquals("data for record " + read, r.getData());
+			read++;
+		}
+		writer.join();
+		assertNull(writeError[0]);
+		assertEquals(total, read);
+		assertEquals(total, tee.getRecordIDs().size());
+		log.info("END testQueueStreamRecords");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.RecordHandler#copyFrom(org.vivoweb.harvester.util.repo.RecordHandler, java.lang.String, java.lang.String, java.lang.Class, boolean, int)
+	 * copyFrom(RecordHandler source, String inputPrefix, String outputPrefix, Class operator, boolean overwrite, int threads)}.
+	 * @throws IOException error
+	 */
+	public void testJDBCCopyFrom() throws IOException {
+		log.info("BEGIN testJDBCCopyFrom");
+		MapRecordHandler source = new MapRecordHandler();
+		for(int x = 0; x < 1200; x++) {
+			source.addRecord("in-" + x, "data for record " + x, RecordHandlerTest.class);
+		}
+		this.rh = new JDBCRecordHandler("org.h2.Driver", "jdbc:h2:mem:TestRH-JDBCCopy", "sa", "", "testdb", "data");
+		this.rh.addRecord("out-7", "old data", RecordHandlerTest.class);
+		assertEquals(1200, this.rh.copyFrom(source, "in-", "out-", RecordHandlerTest.class, true, 2));
+		assertEquals(1200, this.rh.getRecordIDs().size());
+		assertEquals("data for record 7", this.rh.getRecordData("out-7"));
+		assertEquals("data for record 1199", this.rh.getRecordData("out-1199"));
+		// the copied history says the data was already written, so the same data is not written again
+		assertFalse(this.rh.addRecord("out-7", "data for record 7", RecordHandlerTest.class));
+		source.close();
+		log.info("END testJDBCCopyFrom");
+	}
+	
 	/**
 	 * @throws IOException error
 	 */
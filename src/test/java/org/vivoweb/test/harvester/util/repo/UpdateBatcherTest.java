@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.util.repo;
+
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.UpdateBatcher;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.util.FmtUtils;
+
+/**
+ * @author Christopher Haines (chris@chrishaines.net)
+ */
+public class UpdateBatcherTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(UpdateBatcherTest.class);
+	/** */
+	private static final String ns = "http://harvester.vivoweb.org/test/repo/UpdateBatcher#";
+	/** */
+	private static final Node pred = NodeFactory.createURI(ns + "value");
+	/** */
+	private JenaConnect jc;
+	
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.jc = new MemJenaConnect();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		if(this.jc != null) {
+			this.jc.truncate();
+			this.jc.close();
+			this.jc = null;
+		}
+	}
+	
+	/**
+	 * Build a triple with a literal value
+	 * @param subject the subject's local name
+	 * @param value the value
+	 * @return the triple
+	 */
+	private static Triple triple(String subject, String value) {
+		return Triple.create(NodeFactory.createURI(ns + subject), pred, NodeFactory.createLiteral(value));
+	}
+	
+	/**
+	 * Test a batch is executed before an item would take it over its byte budget
+	 * @throws Exception error
+	 */
+	public void testByteBudgetSplitsBatches() throws Exception {
+		log.info("BEGIN testByteBudgetSplitsBatches");
+		int itemBytes = (FmtUtils.stringForTriple(triple("s1", "v1"), null) + " .\n").getBytes("UTF-8").length;
+		// two items fit in the budget, a third does not
+		UpdateBatcher batcher = new UpdateBatcher(this.jc, 100, (2 * itemBytes) + 1);
+		for(int x = 1; x <= 5; x++) {
+			batcher.insert(triple("s" + x, "v" + x));
+		}
+		assertEquals(2, batcher.getBatchCount());
+		batcher.flush();
+		assertEquals(3, batcher.getBatchCount());
+		assertEquals(5, batcher.getItemCount());
+		assertEquals(5L * itemBytes, batcher.getByteCount());
+		for(int x = 1; x <= 5; x++) {
+			assertTrue(this.jc.getJenaModel().getGraph().contains(triple("s" + x, "v" + x)));
+		}
+		// an empty batch is not executed
+		batcher.flush();
+		assertEquals(3, batcher.getBatchCount());
+		log.info("END testByteBudgetSplitsBatches");
+	}
+	
+	/**
+	 * Test a batch is executed once it holds its item count
+	 * @throws Exception error
+	 */
+	public void testItemCountSplitsBatches() throws Exception {
+		log.info("BEGIN testItemCountSplitsBatches");
+		UpdateBatcher batcher = new UpdateBatcher(this.jc, 2, UpdateBatcher.DEFAULT_MAX_BYTES);
+		for(int x = 1; x <= 4; x++) {
+			batcher.insert(triple("s" + x, "v" + x));
+		}
+		assertEquals(2, batcher.getBatchCount());
+		assertEquals(4, this.jc.getJenaModel().size());
+		log.info("END testItemCountSplitsBatches");
+	}
+	
+	/**
+	 * Test a batch deletes its triples before inserting its triples
+	 * @throws Exception error
+	 */
+	public void testDeleteBeforeInsert() throws Exception {
+		log.info("BEGIN testDeleteBeforeInsert");
+		this.jc.getJenaModel().getGraph().add(triple("s1", "old"));
+		this.jc.getJenaModel().getGraph().add(triple("s2", "kept"));
+		UpdateBatcher batcher = new UpdateBatcher(this.jc, 100, UpdateBatcher.DEFAULT_MAX_BYTES);
+		batcher.insert(triple("s1", "new"));
+		batcher.delete(triple("s1", "old"));
+		// inserted and deleted in one batch, so it is kept
+		batcher.insert(triple("s2", "kept"));
+		batcher.delete(triple("s2", "kept"));
+		batcher.flush();
+		assertEquals(1, batcher.getBatchCount());
+		assertFalse(this.jc.getJenaModel().getGraph().contains(triple("s1", "old")));
+		assertTrue(this.jc.getJenaModel().getGraph().contains(triple("s1", "new")));
+		assertTrue(this.jc.getJenaModel().getGraph().contains(triple("s2", "kept")));
+		log.info("END testDeleteBeforeInsert");
+	}
+	
+	/**
+	 * Test rows bound into a templated update, with a null value left unbound
+	 * @throws Exception error
+	 */
+	public void testValuesWithUndef() throws Exception {
+		log.info("BEGIN testValuesWithUndef");
+		String template = "INSERT { ?s <" + ns + "value> ?o } WHERE { " + UpdateBatcher.VALUES_PLACEHOLDER + " }";
+		UpdateBatcher batcher = new UpdateBatcher(this.jc, 100, UpdateBatcher.DEFAULT_MAX_BYTES, template, "s", "o");
+		batcher.bind(NodeFactory.createURI(ns + "s1"), NodeFactory.createLiteral("bound"));
+		batcher.bind(NodeFactory.createURI(ns + "s2"), null);
+		try {
+			batcher.bind(NodeFactory.createURI(ns + "s3"));
+			fail("a row must bind every variable");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		batcher.flush();
+		assertEquals(2, batcher.getItemCount());
+		assertTrue(this.jc.getJenaModel().getGraph().contains(triple("s1", "bound")));
+		// the UNDEF value leaves its row's triple out of the template
+		assertFalse(this.jc.getJenaModel().getGraph().contains(NodeFactory.createURI(ns + "s2"), Node.ANY, Node.ANY));
+		assertEquals(1, this.jc.getJenaModel().size());
+		log.info("END testValuesWithUndef");
+	}
+	
+	/**
+	 * Test blank nodes cannot be deleted as data, and a templated update only binds values
+	 * @throws Exception error
+	 */
+	public void testRejectsBlankNodeDeletes() throws Exception {
+		log.info("BEGIN testRejectsBlankNodeDeletes");
+		UpdateBatcher batcher = new UpdateBatcher(this.jc, 100, UpdateBatcher.DEFAULT_MAX_BYTES);
+		try {
+			batcher.delete(Triple.create(NodeFactory.createBlankNode(), pred, NodeFactory.createLiteral("v")));
+			fail("blank subject accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			batcher.delete(Triple.create(NodeFactory.createURI(ns + "s1"), pred, NodeFactory.createBlankNode()));
+			fail("blank object accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		UpdateBatcher templated = new UpdateBatcher(this.jc, 100, UpdateBatcher.DEFAULT_MAX_BYTES, "DELETE { ?s ?p ?o } WHERE { " + UpdateBatcher.VALUES_PLACEHOLDER + " ?s ?p ?o }", "s");
+		try {
+			templated.insert(triple("s1", "v1"));
+			fail("triple accepted by a templated update");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		log.info("END testRejectsBlankNodeDeletes");
+	}
+}